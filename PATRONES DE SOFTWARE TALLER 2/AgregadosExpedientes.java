@@ -0,0 +1,132 @@
+import java.util.*;
+
+/**
+ * Agregados del dashboard mantenidos de forma incremental: cada expediente
+ * guardado suma en O(1) a los conteos por tipo, a la suma de edades y al
+ * top de diagnósticos (un arreglo fijo de {@link #TOP} entradas que se
+ * mantiene al crecer un conteo y se recalcula en el caso raro de que una
+ * modificación le reste a uno del top). Tras cada cambio se invoca
+ * {@code alCambiar}, que debe ser barato: la GUI lo agrupa por cuadro.
+ */
+class AgregadosExpedientes implements OyenteExpedientes {
+    static final int TOP = 5;
+
+    static final class Instantanea {
+        final int total;
+        final double edadPromedio;
+        final Map<String, Integer> porTipoPaciente;
+        final Map<String, Integer> porTipoAtencion;
+        final List<Map.Entry<String, Integer>> topDiagnosticos;
+
+        Instantanea(int total, double edadPromedio, Map<String, Integer> porTipoPaciente,
+                    Map<String, Integer> porTipoAtencion, List<Map.Entry<String, Integer>> topDiagnosticos) {
+            this.total = total;
+            this.edadPromedio = edadPromedio;
+            this.porTipoPaciente = porTipoPaciente;
+            this.porTipoAtencion = porTipoAtencion;
+            this.topDiagnosticos = topDiagnosticos;
+        }
+    }
+
+    private final Map<String, int[]> porTipoPaciente = new HashMap<>();
+    private final Map<String, int[]> porTipoAtencion = new HashMap<>();
+    private final Map<String, int[]> porDiagnostico  = new HashMap<>();
+    private final String[] topClaves = new String[TOP];
+    private final int[][] topConteos = new int[TOP][];
+    private int total;
+    private long sumaEdades;
+    private volatile Runnable alCambiar = () -> {};
+
+    public void setAlCambiar(Runnable alCambiar) { this.alCambiar = alCambiar; }
+
+    @Override
+    public void expedienteGuardado(int id, ExpedienteMedico e) {
+        synchronized (this) {
+            total++;
+            sumaEdades += e.edad;
+            incrementar(porTipoPaciente, e.tipoPaciente());
+            incrementar(porTipoAtencion, e.tipoAtencion());
+            String diag = e.diagnostico.trim().toLowerCase();
+            int[] c = incrementar(porDiagnostico, diag);
+            subirAlTop(diag, c);
+        }
+        alCambiar.run();
+    }
+
+    @Override
+    public void expedienteModificado(int id, ExpedienteMedico anterior, ExpedienteMedico nueva) {
+        synchronized (this) {
+            sumaEdades += nueva.edad - anterior.edad;
+            if (!Objects.equals(anterior.tipoPaciente(), nueva.tipoPaciente())) {
+                decrementar(porTipoPaciente, anterior.tipoPaciente());
+                incrementar(porTipoPaciente, nueva.tipoPaciente());
+            }
+            if (!Objects.equals(anterior.tipoAtencion(), nueva.tipoAtencion())) {
+                decrementar(porTipoAtencion, anterior.tipoAtencion());
+                incrementar(porTipoAtencion, nueva.tipoAtencion());
+            }
+            String antes = anterior.diagnostico.trim().toLowerCase(), ahora = nueva.diagnostico.trim().toLowerCase();
+            if (!antes.equals(ahora)) {
+                int[] viejo = porDiagnostico.get(antes);
+                decrementar(porDiagnostico, antes);
+                int[] c = incrementar(porDiagnostico, ahora);
+                if (Arrays.asList(topConteos).contains(viejo)) recalcularTop(); else subirAlTop(ahora, c);
+            }
+        }
+        alCambiar.run();
+    }
+
+    private static void decrementar(Map<String, int[]> m, String clave) {
+        String k = clave == null ? "" : clave;
+        int[] c = m.get(k);
+        if (c != null && --c[0] == 0) m.remove(k);
+    }
+
+    private void recalcularTop() {
+        Arrays.fill(topClaves, null);
+        Arrays.fill(topConteos, null);
+        porDiagnostico.forEach(this::subirAlTop);
+    }
+
+    private static int[] incrementar(Map<String, int[]> m, String clave) {
+        int[] c = m.computeIfAbsent(clave == null ? "" : clave, k -> new int[1]);
+        c[0]++;
+        return c;
+    }
+
+    private void subirAlTop(String clave, int[] conteo) {
+        int pos = -1, menor = 0;
+        for (int i = 0; i < TOP; i++) {
+            if (topConteos[i] == conteo) { pos = i; break; }
+            if (topConteos[i] == null || (topConteos[menor] != null && topConteos[i][0] < topConteos[menor][0])) menor = i;
+        }
+        if (pos < 0) {
+            if (topConteos[menor] != null && topConteos[menor][0] >= conteo[0]) return;
+            pos = menor;
+            topClaves[pos] = clave;
+            topConteos[pos] = conteo;
+        }
+        // Mantener el arreglo ordenado de mayor a menor
+        while (pos > 0 && (topConteos[pos - 1] == null || topConteos[pos - 1][0] < conteo[0])) {
+            topClaves[pos] = topClaves[pos - 1];
+            topConteos[pos] = topConteos[pos - 1];
+            topClaves[pos - 1] = clave;
+            topConteos[pos - 1] = conteo;
+            pos--;
+        }
+    }
+
+    public synchronized Instantanea instantanea() {
+        List<Map.Entry<String, Integer>> top = new ArrayList<>(TOP);
+        for (int i = 0; i < TOP && topConteos[i] != null; i++)
+            top.add(new AbstractMap.SimpleImmutableEntry<>(topClaves[i], topConteos[i][0]));
+        return new Instantanea(total, total == 0 ? 0 : (double) sumaEdades / total,
+            copiar(porTipoPaciente), copiar(porTipoAtencion), top);
+    }
+
+    private static Map<String, Integer> copiar(Map<String, int[]> m) {
+        Map<String, Integer> r = new TreeMap<>();
+        m.forEach((k, v) -> r.put(k, v[0]));
+        return r;
+    }
+}
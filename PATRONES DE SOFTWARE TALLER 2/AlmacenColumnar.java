@@ -0,0 +1,433 @@
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Copia columnar de los campos que se agregan en el dashboard: tipo de
+ * paciente, tipo de atención, médico y plantilla (tipo + atención) codificados
+ * con diccionario en int[], y la edad en un int[] propio. Se alimenta como
+ * oyente en cada guardado; las consultas son recorridos de arreglos primitivos.
+ * Además mantiene un bitmap de ids por cada valor de diccionario y por cada
+ * edad, que sirven para filtrar combinando con AND y para emitir ids ya
+ * ordenados por esas columnas. Los campos de lista (alergias, medicamentos,
+ * exámenes) solo tienen bitmaps, con el valor normalizado como clave; junto a
+ * cada bitmap se lleva su cardinalidad para que el planificador de
+ * {@link #ejecutar} estime la selectividad sin recorrerlo.
+ */
+class AlmacenColumnar implements OyenteExpedientes {
+    enum Columna { TIPO_PACIENTE, TIPO_ATENCION, MEDICO, PLANTILLA }
+    enum Lista { ALERGIAS, MEDICAMENTOS, EXAMENES }
+
+    static final class Diccionario {
+        private final Map<String, Integer> codigos = new HashMap<>();
+        private final List<String> valores = new ArrayList<>();
+
+        int codificar(String v) {
+            String clave = v == null ? "" : v;
+            Integer c = codigos.get(clave);
+            if (c == null) {
+                c = valores.size();
+                codigos.put(clave, c);
+                valores.add(clave);
+            }
+            return c;
+        }
+
+        String valor(int codigo) { return valores.get(codigo); }
+        int tamanio()            { return valores.size(); }
+    }
+
+    private final Diccionario[] diccionarios = new Diccionario[Columna.values().length];
+    private int[][] columnas = new int[Columna.values().length][];
+    private int[] edades;
+    private int filas;
+    private final List<List<BitSet>> bitmaps = new ArrayList<>(Columna.values().length);
+    private final List<BitSet> porEdad = new ArrayList<>();
+    private final int[][] cuentas = new int[Columna.values().length][];
+    private int[] cuentaEdad = new int[128];
+    private final Diccionario[] diccionariosLista = new Diccionario[Lista.values().length];
+    private final Map<String, String> nombresLista = new HashMap<>();   // clave normalizada → primera grafía vista
+    private final List<List<BitSet>> bitmapsLista = new ArrayList<>(Lista.values().length);
+    private final int[][] cuentasLista = new int[Lista.values().length][];
+
+    public AlmacenColumnar() {
+        for (int c = 0; c < diccionarios.length; c++) {
+            diccionarios[c] = new Diccionario();
+            columnas[c] = vacia(1024);
+            bitmaps.add(new ArrayList<>());
+            cuentas[c] = new int[16];
+        }
+        for (int l = 0; l < diccionariosLista.length; l++) {
+            diccionariosLista[l] = new Diccionario();
+            bitmapsLista.add(new ArrayList<>());
+            cuentasLista[l] = new int[16];
+        }
+        edades = vacia(1024);
+    }
+
+    private static int[] vacia(int n) {
+        int[] a = new int[n];
+        Arrays.fill(a, -1);   // -1 = id todavía no recibido
+        return a;
+    }
+
+    @Override
+    public synchronized void expedienteGuardado(int id, ExpedienteMedico e) {
+        if (id >= edades.length) {
+            int cap = Math.max(id + 1, edades.length * 2);
+            for (int c = 0; c < columnas.length; c++) columnas[c] = crecer(columnas[c], cap);
+            edades = crecer(edades, cap);
+        }
+        int[] codigos = codificar(e);
+        edades[id] = e.edad;
+        filas = Math.max(filas, id + 1);
+        for (int c = 0; c < columnas.length; c++) {
+            int codigo = codigos[c];
+            columnas[c][id] = codigo;
+            bitmap(bitmaps.get(c), codigo).set(id);
+            cuentas[c] = contar(cuentas[c], codigo);
+        }
+        if (e.edad >= 0) {
+            bitmap(porEdad, e.edad).set(id);
+            cuentaEdad = contar(cuentaEdad, e.edad);
+        }
+        indexarLista(Lista.ALERGIAS, id, e.alergias);
+        indexarLista(Lista.MEDICAMENTOS, id, e.medicamentos);
+        indexarLista(Lista.EXAMENES, id, e.examenes);
+    }
+
+    /** Mueve el id entre bitmaps y conteos solo en las columnas y listas que cambiaron. */
+    @Override
+    public synchronized void expedienteModificado(int id, ExpedienteMedico anterior, ExpedienteMedico nueva) {
+        int[] codigos = codificar(nueva);
+        for (int c = 0; c < columnas.length; c++) {
+            int viejo = columnas[c][id], codigo = codigos[c];
+            if (viejo == codigo) continue;
+            bitmaps.get(c).get(viejo).clear(id);
+            cuentas[c][viejo]--;
+            columnas[c][id] = codigo;
+            bitmap(bitmaps.get(c), codigo).set(id);
+            cuentas[c] = contar(cuentas[c], codigo);
+        }
+        if (anterior.edad != nueva.edad) {
+            if (anterior.edad >= 0) {
+                porEdad.get(anterior.edad).clear(id);
+                cuentaEdad[anterior.edad]--;
+            }
+            edades[id] = nueva.edad;
+            if (nueva.edad >= 0) {
+                bitmap(porEdad, nueva.edad).set(id);
+                cuentaEdad = contar(cuentaEdad, nueva.edad);
+            }
+        }
+        reindexarLista(Lista.ALERGIAS, id, anterior.alergias, nueva.alergias);
+        reindexarLista(Lista.MEDICAMENTOS, id, anterior.medicamentos, nueva.medicamentos);
+        reindexarLista(Lista.EXAMENES, id, anterior.examenes, nueva.examenes);
+    }
+
+    private int[] codificar(ExpedienteMedico e) {
+        int[] codigos = new int[Columna.values().length];
+        codigos[Columna.TIPO_PACIENTE.ordinal()] = diccionarios[Columna.TIPO_PACIENTE.ordinal()].codificar(e.tipoPaciente());
+        codigos[Columna.TIPO_ATENCION.ordinal()] = diccionarios[Columna.TIPO_ATENCION.ordinal()].codificar(e.tipoAtencion());
+        codigos[Columna.MEDICO.ordinal()]        = diccionarios[Columna.MEDICO.ordinal()].codificar(e.medicoResponsable());
+        codigos[Columna.PLANTILLA.ordinal()]     = diccionarios[Columna.PLANTILLA.ordinal()]
+            .codificar(e.tipoPaciente() + " · " + e.tipoAtencion());
+        return codigos;
+    }
+
+    private void reindexarLista(Lista l, int id, List<String> antes, List<String> ahora) {
+        if (antes.equals(ahora)) return;
+        for (String v : antes) {
+            Integer codigo = diccionariosLista[l.ordinal()].codigos.get(normalizar(v));
+            if (codigo == null) continue;
+            BitSet b = bitmapsLista.get(l.ordinal()).get(codigo);
+            if (!b.get(id)) continue;   // repetido en el mismo expediente
+            b.clear(id);
+            cuentasLista[l.ordinal()][codigo]--;
+        }
+        indexarLista(l, id, ahora);
+    }
+
+    private void indexarLista(Lista l, int id, List<String> valores) {
+        for (String v : valores) {
+            String clave = normalizar(v);
+            if (clave.isEmpty()) continue;
+            int codigo = diccionariosLista[l.ordinal()].codificar(clave);
+            nombresLista.putIfAbsent(clave, v.trim());
+            BitSet b = bitmap(bitmapsLista.get(l.ordinal()), codigo);
+            if (b.get(id)) continue;   // repetido en el mismo expediente
+            b.set(id);
+            cuentasLista[l.ordinal()] = contar(cuentasLista[l.ordinal()], codigo);
+        }
+    }
+
+    /** "Penicilina", " penicilína " y "PENICILINA" son el mismo valor de lista. */
+    static String normalizar(String v) {
+        return v == null ? "" : IndiceOrden.claveNombre(v.trim());
+    }
+
+    private static int[] contar(int[] a, int i) {
+        if (i >= a.length) a = Arrays.copyOf(a, Math.max(i + 1, a.length * 2));
+        a[i]++;
+        return a;
+    }
+
+    private static BitSet bitmap(List<BitSet> l, int i) {
+        while (l.size() <= i) l.add(new BitSet());
+        return l.get(i);
+    }
+
+    /** Valores distintos vistos en la columna, en orden de aparición. */
+    public synchronized List<String> valores(Columna c) {
+        return new ArrayList<>(diccionarios[c.ordinal()].valores);
+    }
+
+    /** Valores distintos vistos en el campo de lista, con la primera grafía de cada uno. */
+    public synchronized List<String> valores(Lista l) {
+        List<String> r = new ArrayList<>();
+        for (String clave : diccionariosLista[l.ordinal()].valores) r.add(nombresLista.get(clave));
+        return r;
+    }
+
+    /**
+     * Ids que cumplen a la vez todos los criterios dados: igualdad en cada
+     * columna de {@code iguales} y edad en [desde, hasta] (-1 = sin límite).
+     * Devuelve null si no hay ningún criterio.
+     */
+    public synchronized BitSet filtrar(Map<Columna, String> iguales, int edadDesde, int edadHasta) {
+        BitSet r = null;
+        for (Map.Entry<Columna, String> e : iguales.entrySet()) {
+            Integer codigo = diccionarios[e.getKey().ordinal()].codigos.get(e.getValue());
+            BitSet b = codigo == null ? new BitSet() : bitmaps.get(e.getKey().ordinal()).get(codigo);
+            if (r == null) r = (BitSet) b.clone(); else r.and(b);
+        }
+        if (edadDesde >= 0 || edadHasta >= 0) {
+            BitSet rango = new BitSet();
+            int hasta = edadHasta < 0 ? porEdad.size() - 1 : Math.min(edadHasta, porEdad.size() - 1);
+            for (int a = Math.max(0, edadDesde); a <= hasta; a++) rango.or(porEdad.get(a));
+            if (r == null) r = rango; else r.and(rango);
+        }
+        return r;
+    }
+
+    /**
+     * Emite los ids ordenados por la columna: los grupos de cada valor en el
+     * orden de {@code orden}, y dentro de cada grupo por id. Con {@code filtro}
+     * solo se emiten los ids marcados en él.
+     */
+    public synchronized void recorrerOrdenado(Columna c, Comparator<String> orden, boolean ascendente,
+                                              BitSet filtro, IntConsumer salida) {
+        Diccionario d = diccionarios[c.ordinal()];
+        Integer[] codigos = new Integer[d.tamanio()];
+        for (int i = 0; i < codigos.length; i++) codigos[i] = i;
+        Arrays.sort(codigos, (a, b) -> orden.compare(d.valor(a), d.valor(b)));
+        List<BitSet> grupos = new ArrayList<>(codigos.length);
+        for (Integer codigo : codigos) grupos.add(bitmaps.get(c.ordinal()).get(codigo));
+        emitir(grupos, ascendente, filtro, salida);
+    }
+
+    /** Igual que {@link #recorrerOrdenado} pero por edad numérica. */
+    public synchronized void recorrerPorEdad(boolean ascendente, BitSet filtro, IntConsumer salida) {
+        emitir(porEdad, ascendente, filtro, salida);
+    }
+
+    private static void emitir(List<BitSet> grupos, boolean ascendente, BitSet filtro, IntConsumer salida) {
+        for (int g = 0; g < grupos.size(); g++) {
+            BitSet b = grupos.get(ascendente ? g : grupos.size() - 1 - g);
+            if (filtro != null) {
+                b = (BitSet) b.clone();
+                b.and(filtro);
+            }
+            if (ascendente)
+                for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i + 1)) salida.accept(i);
+            else
+                for (int i = b.length() - 1; i >= 0; i = b.previousSetBit(i - 1)) salida.accept(i);
+        }
+    }
+
+    private static int[] crecer(int[] a, int cap) {
+        int[] b = Arrays.copyOf(a, cap);
+        Arrays.fill(b, a.length, cap, -1);
+        return b;
+    }
+
+    public synchronized int filas() { return filas; }
+
+    /** Cantidad de registros por código de la columna. */
+    public synchronized int[] conteo(Columna c) {
+        int[] col = columnas[c.ordinal()];
+        int[] cuenta = new int[diccionarios[c.ordinal()].tamanio()];
+        for (int i = 0; i < filas; i++) if (col[i] >= 0) cuenta[col[i]]++;
+        return cuenta;
+    }
+
+    /** Histograma de edades en rangos de {@code ancho} años. */
+    public synchronized int[] histogramaEdad(int ancho) {
+        int max = 0;
+        for (int i = 0; i < filas; i++) max = Math.max(max, edades[i]);
+        int[] h = new int[max / ancho + 1];
+        for (int i = 0; i < filas; i++) if (edades[i] >= 0) h[edades[i] / ancho]++;
+        return h;
+    }
+
+    /** Edad promedio por código de la columna (NaN si el grupo está vacío). */
+    public synchronized double[] edadPromedio(Columna c) {
+        int[] col = columnas[c.ordinal()];
+        int k = diccionarios[c.ordinal()].tamanio();
+        long[] suma = new long[k];
+        int[] cuenta = new int[k];
+        for (int i = 0; i < filas; i++) {
+            int g = col[i];
+            if (g < 0) continue;
+            suma[g] += edades[i];
+            cuenta[g]++;
+        }
+        double[] prom = new double[k];
+        for (int g = 0; g < k; g++) prom[g] = cuenta[g] == 0 ? Double.NaN : (double) suma[g] / cuenta[g];
+        return prom;
+    }
+
+    /** Conteo decodificado, de mayor a menor, con a lo sumo {@code limite} grupos. */
+    public synchronized List<Map.Entry<String, Integer>> resumen(Columna c, int limite) {
+        int[] cuenta = conteo(c);
+        List<Map.Entry<String, Integer>> grupos = new ArrayList<>();
+        for (int g = 0; g < cuenta.length; g++)
+            if (cuenta[g] > 0) grupos.add(new AbstractMap.SimpleImmutableEntry<>(diccionarios[c.ordinal()].valor(g), cuenta[g]));
+        grupos.sort((a, b) -> b.getValue() - a.getValue());
+        return grupos.size() > limite ? grupos.subList(0, limite) : grupos;
+    }
+
+    // ── Planificador de consultas ──
+    // Un criterio ya resuelto contra el diccionario: los bitmaps cuya unión lo
+    // cumple, cuántos ids lo cumplen y, si se puede, cómo verificarlo id por id
+    private static final class Paso {
+        final String descripcion;
+        final int estimado;
+        final List<BitSet> bitmaps;
+        final IntPredicate verificar;   // null = solo se puede intersecar
+
+        Paso(String descripcion, int estimado, List<BitSet> bitmaps, IntPredicate verificar) {
+            this.descripcion = descripcion;
+            this.estimado = estimado;
+            this.bitmaps = bitmaps;
+            this.verificar = verificar;
+        }
+
+        BitSet union() {
+            if (bitmaps.size() == 1) return bitmaps.get(0);
+            BitSet r = new BitSet();
+            for (BitSet b : bitmaps) r.or(b);
+            return r;
+        }
+    }
+
+    // Verificar un id lee un arreglo en un lugar cualquiera; intersecar avanza
+    // 64 ids por palabra en orden. Con esta relación se elige entre los dos.
+    private static final int COSTO_VERIFICAR = 8;
+
+    /**
+     * Planifica y prepara la consulta. Cada criterio se estima con la
+     * cardinalidad de sus bitmaps y se ordenan de más a menos selectivo: el
+     * primero da los candidatos y cada uno de los siguientes se interseca
+     * mientras hacerlo cueste menos que verificar uno a uno los candidatos que
+     * quedan; si no, se deja como verificación que corre al recorrer el
+     * resultado, que es perezoso. Los campos de lista siempre se intersecan
+     * (sus bitmaps siguen creciendo y no hay arreglo por id para verificar).
+     * {@code restringir} (p. ej. las coincidencias de texto) entra como un
+     * criterio más y no debe modificarse después; null = sin restricción.
+     */
+    public synchronized ResultadoConsulta ejecutar(ConsultaExpedientes consulta, BitSet restringir) {
+        List<Paso> pasos = new ArrayList<>();
+        for (Map.Entry<Columna, String> e : consulta.iguales.entrySet()) pasos.add(pasoColumna(e.getKey(), e.getValue()));
+        for (Map.Entry<Lista, List<String>> e : consulta.contiene.entrySet())
+            for (String v : e.getValue()) pasos.add(pasoLista(e.getKey(), v));
+        if (consulta.edadDesde >= 0 || consulta.edadHasta >= 0) pasos.add(pasoEdad(consulta.edadDesde, consulta.edadHasta));
+        if (consulta.ningunaEdad) pasos.add(new Paso("edad < 0", 0, List.of(new BitSet()), id -> false));
+        if (restringir != null)
+            pasos.add(new Paso("restricción externa", restringir.cardinality(), List.of(restringir), restringir::get));
+        pasos.sort(Comparator.comparingInt(p -> p.estimado));
+
+        StringBuilder plan = new StringBuilder();
+        BitSet candidatos;
+        int estimado, desde;
+        if (pasos.isEmpty()) {
+            candidatos = new BitSet(filas);
+            candidatos.set(0, filas);
+            estimado = filas;
+            plan.append("todos los expedientes (").append(filas).append(")\n");
+            desde = 0;
+        } else {
+            Paso base = pasos.get(0);
+            candidatos = base.bitmaps.size() == 1 ? (BitSet) base.bitmaps.get(0).clone() : base.union();
+            estimado = base.estimado;
+            plan.append("1. ").append(base.descripcion).append(" (").append(base.estimado).append(") → candidatos\n");
+            desde = 1;
+        }
+
+        long palabras = (filas + 63) / 64;
+        IntPredicate verificar = null;
+        for (int i = desde; i < pasos.size(); i++) {
+            Paso p = pasos.get(i);
+            plan.append(i + 1).append(". ").append(p.descripcion).append(" (").append(p.estimado).append(") → ");
+            // Tras una verificación el estimado es aproximado: solo se omite si ya no hay candidatos
+            if (candidatos.isEmpty()) {
+                plan.append("omitido, no quedan candidatos\n");
+                continue;
+            }
+            if (p.verificar != null && (long) estimado * COSTO_VERIFICAR < palabras * p.bitmaps.size()) {
+                verificar = verificar == null ? p.verificar : verificar.and(p.verificar);
+                estimado = (int) ((long) estimado * p.estimado / Math.max(1, filas));
+                plan.append("verificar por id\n");
+            } else {
+                candidatos.and(p.union());
+                estimado = candidatos.cardinality();
+                plan.append("intersecar, quedan ").append(estimado).append('\n');
+            }
+        }
+        return new ResultadoConsulta(candidatos, verificar, estimado, plan.toString().trim());
+    }
+
+    // Igualdad sin distinguir mayúsculas ni acentos: puede abarcar varios códigos
+    private Paso pasoColumna(Columna c, String valor) {
+        Diccionario d = diccionarios[c.ordinal()];
+        String clave = normalizar(valor);
+        BitSet codigos = new BitSet();
+        List<BitSet> bs = new ArrayList<>();
+        int estimado = 0;
+        for (int codigo = 0; codigo < d.tamanio(); codigo++) {
+            if (!normalizar(d.valor(codigo)).equals(clave)) continue;
+            codigos.set(codigo);
+            bs.add(bitmaps.get(c.ordinal()).get(codigo));
+            estimado += cuentas[c.ordinal()][codigo];
+        }
+        if (bs.isEmpty()) bs.add(new BitSet());
+        int[] col = columnas[c.ordinal()];
+        return new Paso(c.name().toLowerCase() + " = " + valor, estimado, bs, id -> {
+            int v = id < col.length ? col[id] : -1;
+            return v >= 0 && codigos.get(v);
+        });
+    }
+
+    private Paso pasoLista(Lista l, String valor) {
+        Integer codigo = diccionariosLista[l.ordinal()].codigos.get(normalizar(valor));
+        String descripcion = l.name().toLowerCase() + " ∋ " + valor;
+        if (codigo == null) return new Paso(descripcion, 0, List.of(new BitSet()), null);
+        return new Paso(descripcion, cuentasLista[l.ordinal()][codigo], List.of(bitmapsLista.get(l.ordinal()).get(codigo)), null);
+    }
+
+    private Paso pasoEdad(int desde, int hasta) {
+        int d = Math.max(0, desde), h = hasta < 0 ? porEdad.size() - 1 : Math.min(hasta, porEdad.size() - 1);
+        List<BitSet> bs = new ArrayList<>();
+        int estimado = 0;
+        for (int a = d; a <= h; a++) {
+            bs.add(porEdad.get(a));
+            estimado += a < cuentaEdad.length ? cuentaEdad[a] : 0;
+        }
+        if (bs.isEmpty()) bs.add(new BitSet());
+        int[] ed = edades;
+        String descripcion = hasta < 0 ? "edad ≥ " + d : desde < 0 ? "edad ≤ " + hasta : "edad " + d + "–" + hasta;
+        return new Paso(descripcion, estimado, bs, id -> {
+            int v = id < ed.length ? ed[id] : -1;
+            return v >= d && (hasta < 0 || v <= hasta);
+        });
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.*;
+
+/**
+ * Bitácora de auditoría encadenada por hash, con escritura diferida. Quien
+ * guarda solo publica la entrada en un anillo MPSC sin locks (decenas de ns,
+ * sin E/S); el hilo "auditoria" las toma en orden, en lotes de hasta
+ * {@link #LOTE}, y escribe cada lote con un solo write + fsync. Una línea por
+ * entrada:
+ *
+ *   secuencia  fecha (UTC)  acción  id  cédula  usuario  huella  hash
+ *
+ * La huella es el SHA-256 (truncado) del expediente codificado y el hash es
+ * SHA-256(hash anterior + la línea sin el hash): cambiar, borrar o reordenar
+ * una línea rompe la cadena desde ese punto, y {@link #verificar} lo señala.
+ *
+ * Memoria acotada: el anillo tiene {@link #CAPACIDAD} ranuras fijas. Si se
+ * llena, quien guarda espera a que el escritor libere lugar (el guardado se
+ * frena al ritmo del disco pero no se pierde ninguna entrada). Si el escritor
+ * falló (disco lleno, sin permisos) las entradas se descartan, se cuentan en
+ * {@link #perdidas()} y el fallo se informa una vez por {@code advertencias}.
+ */
+class BitacoraAuditoria implements OyenteExpedientes {
+    static final int CAPACIDAD = 1 << 14, LOTE = 4096;
+    private static final int MASCARA = CAPACIDAD - 1;
+    private static final long SELLADA = Long.MIN_VALUE;   // valor de cola cuando el escritor ya terminó
+    private static final ThreadLocal<String> USUARIO = new ThreadLocal<>();
+    private static final String USUARIO_SISTEMA = System.getProperty("user.name", "desconocido");
+
+    static final class Entrada {
+        final long instante;
+        final String accion, usuario;
+        final int id;
+        final ExpedienteMedico expediente;
+
+        Entrada(String accion, int id, ExpedienteMedico expediente, String usuario) {
+            this.instante = System.currentTimeMillis();
+            this.accion = accion;
+            this.id = id;
+            this.expediente = expediente;
+            this.usuario = usuario;
+        }
+    }
+
+    // Anillo de Vyukov: turno == posición → ranura libre para esa vuelta;
+    // turno == posición + 1 → ranura escrita y lista para el escritor
+    private final Entrada[] ranuras = new Entrada[CAPACIDAD];
+    private final AtomicLongArray turnos = new AtomicLongArray(CAPACIDAD);
+    private final AtomicLong cola = new AtomicLong();
+    private long cabeza;                                  // solo el hilo escritor
+
+    private final Path archivo;
+    private final FileChannel canal;
+    private final Consumer<String> advertencias;
+    private final Thread escritor;
+    private final LongAdder esperas = new LongAdder(), perdidas = new LongAdder();
+    private final AtomicBoolean durmiendo = new AtomicBoolean();
+    private volatile boolean cerrando;
+    private volatile IOException fallo;
+    private volatile long escritas;
+    private long secuencia;
+    private byte[] hashAnterior;
+
+    public BitacoraAuditoria(Path archivo, Consumer<String> advertencias) throws IOException {
+        this.archivo = archivo;
+        this.advertencias = advertencias;
+        for (int i = 0; i < CAPACIDAD; i++) turnos.set(i, i);
+        canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            retomar();
+        } catch (IOException | RuntimeException ex) {
+            canal.close();
+            throw ex;
+        }
+        escritor = new Thread(this::escribirSiempre, "auditoria");
+        escritor.setDaemon(true);
+        escritor.start();
+    }
+
+    /**
+     * Ubica la última línea completa para seguir la cadena desde ella. Una
+     * línea a medias al final (corte de luz durante el write) se trunca: su
+     * lote nunca llegó al fsync.
+     */
+    private void retomar() throws IOException {
+        long tamanio = canal.size();
+        hashAnterior = new byte[32];
+        if (tamanio == 0) return;
+        int leer = (int) Math.min(tamanio, 64 * 1024);
+        ByteBuffer b = ByteBuffer.allocate(leer);
+        canal.read(b, tamanio - leer);
+        byte[] bytes = b.array();
+        int fin = leer - 1;
+        while (fin >= 0 && bytes[fin] != '\n') fin--;
+        if (fin < 0) throw new IOException(archivo + ": la última línea de auditoría no cabe en 64 KB.");
+        if (fin < leer - 1) canal.truncate(tamanio - leer + fin + 1);
+        int inicio = fin - 1;
+        while (inicio >= 0 && bytes[inicio] != '\n') inicio--;
+        if (inicio < 0 && tamanio > leer) throw new IOException(archivo + ": línea de auditoría demasiado larga.");
+        String[] campos = new String(bytes, inicio + 1, fin - inicio - 1, StandardCharsets.UTF_8).split("\t", -1);
+        if (campos.length != 8) throw new IOException(archivo + ": última línea de auditoría mal formada.");
+        secuencia = Long.parseLong(campos[0]);
+        hashAnterior = desdeHex(campos[7]);
+    }
+
+    /** Usuario que firma lo que el hilo actual guarde durante {@code accion}. */
+    static <T> T comoUsuario(String usuario, Supplier<T> accion) {
+        String previo = USUARIO.get();
+        USUARIO.set(usuario);
+        try {
+            return accion.get();
+        } finally {
+            if (previo == null) USUARIO.remove(); else USUARIO.set(previo);
+        }
+    }
+
+    static String usuarioActual() {
+        String u = USUARIO.get();
+        return u != null ? u : USUARIO_SISTEMA;
+    }
+
+    @Override
+    public void expedienteGuardado(int id, ExpedienteMedico e) {
+        registrar("CREAR", id, e);
+    }
+
+    @Override
+    public void expedienteModificado(int id, ExpedienteMedico anterior, ExpedienteMedico nueva) {
+        registrar("MODIFICAR", id, nueva);
+    }
+
+    /** Publica la entrada sin esperar al disco; ver la clase para el caso de anillo lleno. */
+    public void registrar(String accion, int id, ExpedienteMedico e) {
+        if (cerrando) {
+            perdidas.increment();
+            return;
+        }
+        Entrada entrada = new Entrada(accion, id, e, usuarioActual());
+        long pos = cola.get();
+        while (true) {
+            // Pasó el control de cerrando justo antes de que el escritor sellara la cola
+            if (pos == SELLADA) {
+                perdidas.increment();
+                return;
+            }
+            int i = (int) pos & MASCARA;
+            long dif = turnos.get(i) - pos;
+            if (dif == 0) {
+                if (cola.compareAndSet(pos, pos + 1)) break;
+                pos = cola.get();
+            } else if (dif < 0) {
+                // Lleno: la ranura sigue ocupada desde la vuelta anterior
+                if (fallo != null) {
+                    perdidas.increment();
+                    Metricas.AUDITORIA.error();
+                    return;
+                }
+                esperas.increment();
+                LockSupport.unpark(escritor);
+                LockSupport.parkNanos(50_000);
+                pos = cola.get();
+            } else {
+                pos = cola.get();
+            }
+        }
+        int i = (int) pos & MASCARA;
+        ranuras[i] = entrada;
+        turnos.set(i, pos + 1);                   // publica la ranura (escritura volátil)
+        // Solo el primer productor que lo encuentra dormido paga el unpark
+        if (durmiendo.get() && durmiendo.getAndSet(false)) LockSupport.unpark(escritor);
+    }
+
+    private int drenar(List<Entrada> lote) {
+        while (lote.size() < LOTE) {
+            int i = (int) cabeza & MASCARA;
+            if (turnos.get(i) != cabeza + 1) break;
+            lote.add(ranuras[i]);
+            ranuras[i] = null;
+            turnos.set(i, cabeza + CAPACIDAD);    // libre para la vuelta siguiente
+            cabeza++;
+        }
+        return lote.size();
+    }
+
+    private void escribirSiempre() {
+        List<Entrada> lote = new ArrayList<>(LOTE);
+        MessageDigest sha = sha256();
+        ByteBuffer codificado = ByteBuffer.allocate(64 * 1024);
+        ByteArrayOutputStream salida = new ByteArrayOutputStream(LOTE * 160);
+        while (true) {
+            lote.clear();
+            if (drenar(lote) == 0) {
+                // Sellar con CAS: si un productor tomó una ranura entretanto, falla y se sigue drenando
+                if (cerrando && cola.compareAndSet(cabeza, SELLADA)) return;
+                durmiendo.set(true);
+                if (turnos.get((int) cabeza & MASCARA) != cabeza + 1 && !cerrando) LockSupport.parkNanos(this, 10_000_000);
+                durmiendo.set(false);
+                continue;
+            }
+            if (fallo != null) {
+                perdidas.add(lote.size());
+                for (int k = 0; k < lote.size(); k++) Metricas.AUDITORIA.error();
+                continue;
+            }
+            long t0 = Metricas.inicio();
+            long sec = secuencia;
+            byte[] hash = hashAnterior;
+            salida.reset();
+            for (Entrada e : lote) {
+                byte[] linea = linea(++sec, e, sha, codificado);
+                sha.update(hash);
+                sha.update(linea);
+                hash = sha.digest();
+                salida.write(linea, 0, linea.length);
+                salida.write('\t');
+                byte[] hex = hex(hash, hash.length).getBytes(StandardCharsets.US_ASCII);
+                salida.write(hex, 0, hex.length);
+                salida.write('\n');
+            }
+            try {
+                ByteBuffer b = ByteBuffer.wrap(salida.toByteArray());
+                long pos = canal.size();
+                while (b.hasRemaining()) pos += canal.write(b, pos);
+                canal.force(false);
+                secuencia = sec;
+                hashAnterior = hash;
+                escritas += lote.size();
+                Metricas.AUDITORIA.registrar(t0);
+            } catch (IOException ex) {
+                fallo = ex;
+                perdidas.add(lote.size());
+                advertencias.accept("La bitácora de auditoría dejó de escribirse (" + ex.getMessage() + ").\n" +
+                    "Los cambios siguientes se guardan pero no quedan auditados.");
+            }
+        }
+    }
+
+    // Línea sin el hash final; tabuladores y saltos en los textos se vuelven espacios
+    private static byte[] linea(long sec, Entrada e, MessageDigest sha, ByteBuffer codificado) {
+        codificado.clear();
+        CodecExpediente.escribir(codificado, e.expediente, null);
+        sha.update(codificado.array(), 0, codificado.position());
+        String huella = hex(sha.digest(), 16);
+        String s = sec + "\t" + java.time.Instant.ofEpochMilli(e.instante) + "\t" + e.accion + "\t" + e.id
+            + "\t" + limpiar(e.expediente.cedula) + "\t" + limpiar(e.usuario) + "\t" + huella;
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String limpiar(String s) {
+        return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);   // toda JVM trae SHA-256
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String hex(byte[] b, int n) {
+        char[] c = new char[2 * n];
+        for (int i = 0; i < n; i++) {
+            c[2 * i] = HEX[(b[i] >> 4) & 0xF];
+            c[2 * i + 1] = HEX[b[i] & 0xF];
+        }
+        return new String(c);
+    }
+
+    private static byte[] desdeHex(String s) throws IOException {
+        if (s.length() != 64) throw new IOException("Hash de auditoría inválido: " + s);
+        byte[] b = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16), lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) throw new IOException("Hash de auditoría inválido: " + s);
+            b[i] = (byte) (hi << 4 | lo);
+        }
+        return b;
+    }
+
+    public long escritas()  { return escritas; }
+    public long perdidas()  { return perdidas.sum(); }
+    public long esperas()   { return esperas.sum(); }
+    public Path archivo()   { return archivo; }
+
+    /**
+     * Deja de aceptar entradas, escribe las pendientes y cierra el archivo.
+     * Una entrada que llega durante el cierre se escribe o se cuenta en
+     * {@link #perdidas()}, nunca se descarta en silencio.
+     */
+    public void cerrar() {
+        cerrando = true;
+        LockSupport.unpark(escritor);
+        try {
+            escritor.join(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try { canal.close(); } catch (IOException ignored) {}
+    }
+
+    // ── Verificación ──
+    static final class Verificacion {
+        final long entradas;
+        final long primeraInvalida;   // secuencia de la primera línea que rompe la cadena; -1 = íntegra
+        final String detalle;
+
+        Verificacion(long entradas, long primeraInvalida, String detalle) {
+            this.entradas = entradas;
+            this.primeraInvalida = primeraInvalida;
+            this.detalle = detalle;
+        }
+
+        boolean integra() { return primeraInvalida < 0; }
+    }
+
+    /**
+     * Recorre el archivo recalculando la cadena de hashes y la numeración.
+     * Lee por bloques y trabaja sobre bytes: ~1 µs por entrada.
+     */
+    static Verificacion verificar(Path archivo) throws IOException {
+        MessageDigest sha = sha256();
+        byte[] hash = new byte[32], buf = new byte[1 << 20], esperado = new byte[32];
+        long n = 0;
+        int lleno = 0;
+        try (InputStream in = Files.newInputStream(archivo)) {
+            while (true) {
+                int leidos = in.read(buf, lleno, buf.length - lleno);
+                if (leidos < 0) break;
+                lleno += leidos;
+                int inicio = 0;
+                for (int fin; (fin = indice(buf, (byte) '\n', inicio, lleno)) >= 0; inicio = fin + 1) {
+                    n++;
+                    int tab = fin - 65;
+                    if (tab < inicio || buf[tab] != '\t')
+                        return new Verificacion(n - 1, n, "línea " + n + " mal formada");
+                    int tab0 = indice(buf, (byte) '\t', inicio, tab);
+                    long sec = tab0 < 0 ? -1 : decimal(buf, inicio, tab0);
+                    if (sec != n)
+                        return new Verificacion(n - 1, n, "línea " + n + ": secuencia " + sec + ", se esperaba " + n);
+                    sha.update(hash);
+                    sha.update(buf, inicio, tab - inicio);
+                    hash = sha.digest();
+                    for (int k = 0; k < 32; k++) {
+                        int hi = Character.digit(buf[tab + 1 + 2 * k], 16), lo = Character.digit(buf[tab + 2 + 2 * k], 16);
+                        esperado[k] = (byte) (hi << 4 | lo);
+                    }
+                    if (!MessageDigest.isEqual(hash, esperado))
+                        return new Verificacion(n - 1, n, "línea " + n + ": el hash no coincide (modificada o fuera de orden)");
+                }
+                if (inicio == 0 && lleno == buf.length) return new Verificacion(n, n + 1, "línea " + (n + 1) + " demasiado larga");
+                System.arraycopy(buf, inicio, buf, 0, lleno - inicio);
+                lleno -= inicio;
+            }
+        }
+        if (lleno > 0) return new Verificacion(n, n + 1, "línea " + (n + 1) + " incompleta al final del archivo");
+        return new Verificacion(n, -1, "cadena íntegra");
+    }
+
+    private static int indice(byte[] b, byte c, int desde, int hasta) {
+        for (int i = desde; i < hasta; i++) if (b[i] == c) return i;
+        return -1;
+    }
+
+    private static long decimal(byte[] b, int desde, int hasta) {
+        long v = 0;
+        for (int i = desde; i < hasta; i++) {
+            if (b[i] < '0' || b[i] > '9') return -1;
+            v = v * 10 + (b[i] - '0');
+        }
+        return v;
+    }
+
+    /** java BitacoraAuditoria [archivo]  — sale con código 1 si la cadena está rota. */
+    public static void main(String[] args) throws IOException {
+        Path archivo = args.length > 0 ? Paths.get(args[0]) : ServicioExpedientes.DIR_DATOS.resolve("auditoria.log");
+        long t0 = System.nanoTime();
+        Verificacion v = verificar(archivo);
+        System.out.printf("%s: %,d entradas verificadas en %d ms — %s%n", archivo, v.entradas,
+            (System.nanoTime() - t0) / 1_000_000, v.detalle);
+        if (!v.integra()) System.exit(1);
+    }
+}
@@ -0,0 +1,100 @@
+import javax.swing.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Construye y persiste expedientes en un único hilo escritor, fuera del EDT.
+ * Los expedientes reciben ids en el orden de envío y los avisos de terminación
+ * se entregan (por defecto en el EDT) en ese mismo orden. Las modificaciones
+ * ({@link #enviarCambio}) pasan por la misma cola. Hay como máximo
+ * {@code capacidad} envíos pendientes: {@link #enviar} rechaza el excedente y
+ * {@link #enviarEsperando} bloquea al productor hasta que haya cupo.
+ */
+class CanalGuardado {
+    interface AlTerminar { void terminado(int id, ExpedienteMedico e, RuntimeException error); }
+
+    private final RepositorioExpedientes repositorio;
+    private final Executor entrega;
+    private final int capacidad;
+    private final Semaphore cupos;
+    private final ExecutorService escritor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "escritor-expedientes");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CanalGuardado(RepositorioExpedientes repositorio, int capacidad) {
+        this(repositorio, capacidad, SwingUtilities::invokeLater);
+    }
+
+    public CanalGuardado(RepositorioExpedientes repositorio, int capacidad, Executor entrega) {
+        this.repositorio = repositorio;
+        this.capacidad   = capacidad;
+        this.cupos       = new Semaphore(capacidad);
+        this.entrega     = entrega;
+    }
+
+    public void enviar(Supplier<ExpedienteMedico> construir, AlTerminar alTerminar) {
+        if (!cupos.tryAcquire())
+            throw new RejectedExecutionException("Hay " + capacidad + " expedientes pendientes de guardar.");
+        encolar(construir, alTerminar);
+    }
+
+    public void enviarEsperando(Supplier<ExpedienteMedico> construir, AlTerminar alTerminar)
+            throws InterruptedException {
+        cupos.acquire();
+        encolar(construir, alTerminar);
+    }
+
+    /** Guarda lo que construya {@code construir} como versión siguiente de {@code versionLeida}. */
+    public void enviarCambio(int id, int versionLeida, Supplier<ExpedienteMedico> construir, AlTerminar alTerminar) {
+        if (!cupos.tryAcquire())
+            throw new RejectedExecutionException("Hay " + capacidad + " expedientes pendientes de guardar.");
+        encolar(construir, e -> {
+            repositorio.modificar(id, versionLeida, e);
+            return id;
+        }, alTerminar);
+    }
+
+    private void encolar(Supplier<ExpedienteMedico> construir, AlTerminar alTerminar) {
+        encolar(construir, repositorio::guardar, alTerminar);
+    }
+
+    private void encolar(Supplier<ExpedienteMedico> construir, ToIntFunction<ExpedienteMedico> persistir,
+                         AlTerminar alTerminar) {
+        try {
+            escritor.execute(() -> {
+                ExpedienteMedico e = null;
+                RuntimeException error = null;
+                int id = -1;
+                try {
+                    e  = construir.get();
+                    id = persistir.applyAsInt(e);
+                } catch (RuntimeException ex) {
+                    error = ex;
+                } finally {
+                    cupos.release();
+                }
+                int idFinal = id;
+                ExpedienteMedico exp = error == null ? e : null;
+                RuntimeException err = error;
+                entrega.execute(() -> alTerminar.terminado(idFinal, exp, err));
+            });
+        } catch (RejectedExecutionException ex) {
+            cupos.release();
+            throw ex;
+        }
+    }
+
+    public int pendientes() { return capacidad - cupos.availablePermits(); }
+
+    /** Deja de aceptar envíos y espera a que se confirmen los pendientes. */
+    public void cerrar() {
+        escritor.shutdown();
+        try {
+            escritor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+import java.util.*;
+
+class CedulaDuplicadaException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+    private final int idExistente;   // -1: el otro expediente todavía no tiene id
+
+    public CedulaDuplicadaException(String cedula, int idExistente) {
+        super("Ya existe un expediente con la cédula " + cedula + ".");
+        this.idExistente = idExistente;
+    }
+
+    /** Choca con un alta sin id todavía: otra del mismo lote o un guardado en curso. */
+    public CedulaDuplicadaException(String cedula, boolean mismoLote) {
+        super(mismoLote ? "La cédula " + cedula + " aparece más de una vez en el lote."
+                        : "Ya se está guardando un expediente con la cédula " + cedula + ".");
+        this.idExistente = -1;
+    }
+
+    /** Id del expediente que ya tiene la cédula; vacío si aún se está guardando. */
+    public OptionalInt getIdExistente() {
+        return idExistente < 0 ? OptionalInt.empty() : OptionalInt.of(idExistente);
+    }
+}
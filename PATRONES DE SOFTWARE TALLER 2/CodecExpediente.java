@@ -0,0 +1,463 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Formato binario versionado de expedientes y plantillas.
+ *
+ * Formato 1 (logs anteriores; se sigue leyendo): campos en orden fijo,
+ * longitudes varint + UTF-8, null = 0.
+ *
+ * Formato 2: cabecera [0x80 0x00][versión][tipo de registro] y campos
+ * etiquetados (número << 3 | clase) terminados en 0. El lector salta los
+ * campos que no conoce, así una versión nueva puede agregar campos sin romper
+ * a las anteriores. 0x80 0x00 es una varint no canónica que el formato 1 nunca
+ * escribe, y eso distingue los dos formatos registro por registro. Tipos y
+ * exámenes van como referencias a un {@link DiccionarioCodec}, que viaja en
+ * sus propios registros ({@link #escribirDiccionario}). Se codifica y
+ * decodifica directamente sobre el ByteBuffer, sin arreglos intermedios.
+ *
+ * Un registro de versión ({@link #escribirVersion}) lleva solo los campos que
+ * cambiaron respecto de la versión anterior, con las mismas etiquetas, más la
+ * fecha y la máscara de los que quedaron vacíos.
+ */
+final class CodecExpediente {
+    static final int VERSION = 2;
+    static final int REGISTRO_EXPEDIENTE = 1, REGISTRO_PLANTILLA = 2, REGISTRO_DICCIONARIO = 3, REGISTRO_VERSION = 4;
+
+    // Clases de campo: cómo saltarlo sin conocerlo
+    private static final int VARINT = 0, TEXTO = 1, LISTA = 2;
+
+    private static final int EDAD          = 1 << 3 | VARINT;
+    private static final int TIPO_PACIENTE = 2 << 3 | TEXTO;
+    private static final int TIPO_ATENCION = 3 << 3 | TEXTO;
+    private static final int NOMBRE        = 4 << 3 | TEXTO;
+    private static final int CEDULA        = 5 << 3 | TEXTO;
+    private static final int DIAGNOSTICO   = 6 << 3 | TEXTO;
+    private static final int NOTAS         = 7 << 3 | TEXTO;
+    private static final int MEDICO        = 8 << 3 | TEXTO;
+    private static final int EXAMENES      = 9 << 3 | LISTA;
+    private static final int MEDICAMENTOS  = 10 << 3 | LISTA;
+    private static final int ALERGIAS      = 11 << 3 | LISTA;
+    private static final int FECHA         = 12 << 3 | VARINT;  // registro de versión
+    private static final int VACIADOS      = 13 << 3 | VARINT;  // bit n = el campo n quedó null o vacío
+    private static final int DESDE         = 1 << 3 | VARINT;   // registro de diccionario
+    private static final int ENTRADAS      = 2 << 3 | LISTA;
+
+    private static final ThreadLocal<byte[]> AUXILIAR = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private CodecExpediente() {}
+
+    // ── Escritura (formato 2) ──
+
+    /** {@code dic} puede ser null: entonces todos los textos van literales. */
+    static void escribir(ByteBuffer b, ExpedienteMedico e, DiccionarioCodec dic) {
+        cabecera(b, REGISTRO_EXPEDIENTE);
+        putVarint(b, EDAD);
+        putVarint(b, e.edad);
+        campo(b, TIPO_PACIENTE, e.tipoPaciente(), dic);
+        campo(b, TIPO_ATENCION, e.tipoAtencion(), dic);
+        campo(b, NOMBRE,        e.nombrePaciente, null);
+        campo(b, CEDULA,        e.cedula, null);
+        campo(b, DIAGNOSTICO,   e.diagnostico, null);
+        campo(b, NOTAS,         e.notasAdicionales, null);
+        campo(b, MEDICO,        e.medicoResponsable(), null);
+        campo(b, EXAMENES,      e.examenes, dic);
+        campo(b, MEDICAMENTOS,  e.medicamentos, null);
+        campo(b, ALERGIAS,      e.alergias, null);
+        b.put((byte) 0);
+    }
+
+    /** Diferencia de {@code nueva} respecto de {@code anterior}, para {@link #leerVersion}. */
+    static void escribirVersion(ByteBuffer b, ExpedienteMedico anterior, ExpedienteMedico nueva, long fecha,
+                                DiccionarioCodec dic) {
+        cabecera(b, REGISTRO_VERSION);
+        putVarint(b, FECHA);
+        putVarlong(b, fecha);
+        int vaciados = 0;
+        if (nueva.edad != anterior.edad) {
+            putVarint(b, EDAD);
+            putVarint(b, nueva.edad);
+        }
+        vaciados |= cambio(b, TIPO_PACIENTE, anterior.tipoPaciente(), nueva.tipoPaciente(), dic);
+        vaciados |= cambio(b, TIPO_ATENCION, anterior.tipoAtencion(), nueva.tipoAtencion(), dic);
+        vaciados |= cambio(b, NOMBRE,        anterior.nombrePaciente, nueva.nombrePaciente, null);
+        vaciados |= cambio(b, CEDULA,        anterior.cedula, nueva.cedula, null);
+        vaciados |= cambio(b, DIAGNOSTICO,   anterior.diagnostico, nueva.diagnostico, null);
+        vaciados |= cambio(b, NOTAS,         anterior.notasAdicionales, nueva.notasAdicionales, null);
+        vaciados |= cambio(b, MEDICO,        anterior.medicoResponsable(), nueva.medicoResponsable(), null);
+        vaciados |= cambio(b, EXAMENES,      anterior.examenes, nueva.examenes, dic);
+        vaciados |= cambio(b, MEDICAMENTOS,  anterior.medicamentos, nueva.medicamentos, null);
+        vaciados |= cambio(b, ALERGIAS,      anterior.alergias, nueva.alergias, null);
+        if (vaciados != 0) {
+            putVarint(b, VACIADOS);
+            putVarint(b, vaciados);
+        }
+        b.put((byte) 0);
+    }
+
+    // Escribe el campo si cambió; devuelve su bit de VACIADOS si quedó null
+    private static int cambio(ByteBuffer b, int clave, String antes, String ahora, DiccionarioCodec dic) {
+        if (Objects.equals(antes, ahora)) return 0;
+        campo(b, clave, ahora, dic);
+        return ahora == null ? 1 << (clave >>> 3) : 0;
+    }
+
+    private static int cambio(ByteBuffer b, int clave, List<String> antes, List<String> ahora, DiccionarioCodec dic) {
+        if (antes.equals(ahora)) return 0;
+        campo(b, clave, ahora, dic);
+        return ahora.isEmpty() ? 1 << (clave >>> 3) : 0;
+    }
+
+    static void escribirPlantilla(ByteBuffer b, ExpedienteBase p, DiccionarioCodec dic) {
+        cabecera(b, REGISTRO_PLANTILLA);
+        campo(b, TIPO_PACIENTE, p.getTipoPaciente(), dic);
+        campo(b, TIPO_ATENCION, p.getTipoAtencion(), dic);
+        campo(b, EXAMENES,      p.getExamenesBase(), dic);
+        b.put((byte) 0);
+    }
+
+    /** Entradas [desde, hasta) del diccionario, para enviarlas antes de los registros que las usan. */
+    static void escribirDiccionario(ByteBuffer b, DiccionarioCodec dic, int desde, int hasta) {
+        cabecera(b, REGISTRO_DICCIONARIO);
+        putVarint(b, DESDE);
+        putVarint(b, desde);
+        putVarint(b, ENTRADAS);
+        putVarint(b, hasta - desde);
+        for (int c = desde; c < hasta; c++) putTexto(b, dic.valor(c), null);
+        b.put((byte) 0);
+    }
+
+    private static void cabecera(ByteBuffer b, int registro) {
+        b.put((byte) 0x80).put((byte) 0);
+        putVarint(b, VERSION);
+        putVarint(b, registro);
+    }
+
+    private static void campo(ByteBuffer b, int clave, String v, DiccionarioCodec dic) {
+        if (v == null) return;
+        putVarint(b, clave);
+        putTexto(b, v, dic);
+    }
+
+    private static void campo(ByteBuffer b, int clave, List<String> l, DiccionarioCodec dic) {
+        if (l.isEmpty()) return;
+        putVarint(b, clave);
+        putVarint(b, l.size());
+        for (String s : l) putTexto(b, s, dic);
+    }
+
+    // Referencia: código << 1 | 1; literal: bytes UTF-8 << 1
+    private static void putTexto(ByteBuffer b, String s, DiccionarioCodec dic) {
+        int codigo = dic == null ? -1 : dic.codigo(s);
+        if (codigo >= 0) {
+            putVarint(b, codigo << 1 | 1);
+            return;
+        }
+        int n = longitudUtf8(s);
+        putVarint(b, n << 1);
+        if (b.remaining() < n) throw new BufferOverflowException();
+        if (b.hasArray()) {
+            utf8(s, b.array(), b.arrayOffset() + b.position());
+        } else {
+            byte[] aux = auxiliar(n);
+            utf8(s, aux, 0);
+            b.put(aux, 0, n);
+            return;
+        }
+        b.position(b.position() + n);
+    }
+
+    // Escribe s en UTF-8 desde a[p], sin crear arreglos intermedios
+    private static void utf8(String s, byte[] a, int p) {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                a[p++] = (byte) c;
+            } else if (c < 0x800) {
+                a[p++] = (byte) (0xC0 | c >> 6);
+                a[p++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                a[p++] = (byte) (0xF0 | cp >> 18);
+                a[p++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                a[p++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                a[p++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                a[p++] = '?';                        // suplente suelto: igual que String.getBytes
+            } else {
+                a[p++] = (byte) (0xE0 | c >> 12);
+                a[p++] = (byte) (0x80 | c >> 6 & 0x3F);
+                a[p++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private static int longitudUtf8(String s) {
+        int n = 0;
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) { n += 4; i++; }
+            else if (Character.isSurrogate(c)) n++;
+            else n += 3;
+        }
+        return n;
+    }
+
+    // ── Lectura (formatos 1 y 2) ──
+
+    static boolean esFormato2(ByteBuffer b) {
+        int p = b.position();
+        return b.limit() - p >= 2 && b.get(p) == (byte) 0x80 && b.get(p + 1) == 0;
+    }
+
+    /** Lee un expediente en cualquiera de los dos formatos. */
+    static ExpedienteMedico leer(ByteBuffer b, DiccionarioCodec dic) {
+        if (!esFormato2(b)) return leerFormato1(b);
+        leerCabecera(b, REGISTRO_EXPEDIENTE);
+        int edad = 0;
+        String tipoPaciente = null, tipoAtencion = null, nombre = null, cedula = null,
+               diagnostico = null, notas = null, medico = null;
+        String[] examenes = {}, medicamentos = {}, alergias = {};
+        for (int clave; (clave = getVarint(b)) != 0; ) {
+            switch (clave) {
+                case EDAD:          edad = getVarint(b); break;
+                case TIPO_PACIENTE: tipoPaciente = getTexto(b, dic); break;
+                case TIPO_ATENCION: tipoAtencion = getTexto(b, dic); break;
+                case NOMBRE:        nombre = getTexto(b, dic); break;
+                case CEDULA:        cedula = getTexto(b, dic); break;
+                case DIAGNOSTICO:   diagnostico = getTexto(b, dic); break;
+                case NOTAS:         notas = getTexto(b, dic); break;
+                case MEDICO:        medico = getTexto(b, dic); break;
+                case EXAMENES:      examenes = getLista(b, dic); break;
+                case MEDICAMENTOS:  medicamentos = getLista(b, dic); break;
+                case ALERGIAS:      alergias = getLista(b, dic); break;
+                default:            saltar(b, clave);
+            }
+        }
+        // ExpedienteBase interna tipos y exámenes: al reabrir no se duplican por registro
+        ExpedienteMedico.Builder builder = new ExpedienteMedico.Builder(
+                new ExpedienteBase(tipoPaciente, tipoAtencion, Arrays.asList(examenes)))
+            .conEdad(edad)
+            .conNombre(nombre)
+            .conCedula(cedula)
+            .conDiagnostico(diagnostico)
+            .conNotas(notas)
+            .conMedico(medico);
+        for (String m : medicamentos) builder.agregarMedicamento(m);
+        for (String a : alergias)     builder.agregarAlergia(a);
+        return builder.construir();
+    }
+
+    /**
+     * Aplica un registro de versión sobre {@code anterior}. Los campos que no
+     * trae siguen siendo los mismos objetos de {@code anterior}. Deja la fecha
+     * en {@code fecha[0]}.
+     */
+    static ExpedienteMedico leerVersion(ByteBuffer b, ExpedienteMedico anterior, DiccionarioCodec dic, long[] fecha) {
+        leerCabecera(b, REGISTRO_VERSION);
+        ExpedienteMedico.Builder builder = new ExpedienteMedico.Builder(anterior);
+        for (int clave; (clave = getVarint(b)) != 0; ) {
+            switch (clave) {
+                case FECHA:         fecha[0] = getVarlong(b); break;
+                case EDAD:          builder.conEdad(getVarint(b)); break;
+                case TIPO_PACIENTE: builder.conTipoPaciente(getTexto(b, dic)); break;
+                case TIPO_ATENCION: builder.conTipoAtencion(getTexto(b, dic)); break;
+                case NOMBRE:        builder.conNombre(getTexto(b, dic)); break;
+                case CEDULA:        builder.conCedula(getTexto(b, dic)); break;
+                case DIAGNOSTICO:   builder.conDiagnostico(getTexto(b, dic)); break;
+                case NOTAS:         builder.conNotas(getTexto(b, dic)); break;
+                case MEDICO:        builder.conMedico(getTexto(b, dic)); break;
+                case EXAMENES:      builder.conExamenes(Arrays.asList(getLista(b, dic))); break;
+                case MEDICAMENTOS:  builder.conMedicamentos(Arrays.asList(getLista(b, dic))); break;
+                case ALERGIAS:      builder.conAlergias(Arrays.asList(getLista(b, dic))); break;
+                case VACIADOS:
+                    int v = getVarint(b);
+                    if ((v & 1 << (TIPO_PACIENTE >>> 3)) != 0) builder.conTipoPaciente(null);
+                    if ((v & 1 << (TIPO_ATENCION >>> 3)) != 0) builder.conTipoAtencion(null);
+                    if ((v & 1 << (NOTAS >>> 3)) != 0)         builder.conNotas(null);
+                    if ((v & 1 << (MEDICO >>> 3)) != 0)        builder.conMedico(null);
+                    if ((v & 1 << (EXAMENES >>> 3)) != 0)      builder.conExamenes(List.of());
+                    if ((v & 1 << (MEDICAMENTOS >>> 3)) != 0)  builder.conMedicamentos(List.of());
+                    if ((v & 1 << (ALERGIAS >>> 3)) != 0)      builder.conAlergias(List.of());
+                    break;
+                default:            saltar(b, clave);
+            }
+        }
+        return builder.construir();
+    }
+
+    static ExpedienteBase leerPlantilla(ByteBuffer b, DiccionarioCodec dic) {
+        leerCabecera(b, REGISTRO_PLANTILLA);
+        String tipoPaciente = null, tipoAtencion = null;
+        String[] examenes = {};
+        for (int clave; (clave = getVarint(b)) != 0; ) {
+            switch (clave) {
+                case TIPO_PACIENTE: tipoPaciente = getTexto(b, dic); break;
+                case TIPO_ATENCION: tipoAtencion = getTexto(b, dic); break;
+                case EXAMENES:      examenes = getLista(b, dic); break;
+                default:            saltar(b, clave);
+            }
+        }
+        return new ExpedienteBase(tipoPaciente, tipoAtencion, Arrays.asList(examenes));
+    }
+
+    /**
+     * Agrega a {@code dic} las entradas de un registro de diccionario. Las que
+     * ya tiene se ignoran; un hueco (entradas que faltan antes) es un error.
+     */
+    static void leerDiccionario(ByteBuffer b, DiccionarioCodec dic) {
+        leerCabecera(b, REGISTRO_DICCIONARIO);
+        int desde = 0;
+        for (int clave; (clave = getVarint(b)) != 0; ) {
+            if (clave == DESDE) {
+                desde = getVarint(b);
+            } else if (clave == ENTRADAS) {
+                if (desde > dic.tamanio())
+                    throw new IllegalArgumentException("Diccionario incompleto: falta desde " + dic.tamanio() + " hasta " + desde);
+                for (int n = getVarint(b), c = desde; n > 0; n--, c++) {
+                    String s = getTexto(b, null);
+                    if (c >= dic.tamanio() && dic.agregar(s) != c)
+                        throw new IllegalArgumentException("Entrada de diccionario fuera de orden: " + s);
+                }
+            } else {
+                saltar(b, clave);
+            }
+        }
+    }
+
+    private static void leerCabecera(ByteBuffer b, int esperado) {
+        if (!esFormato2(b)) throw new IllegalArgumentException("No es un registro en formato 2.");
+        b.position(b.position() + 2);
+        int version = getVarint(b);
+        if (version < 2) throw new IllegalArgumentException("Versión de formato inválida: " + version);
+        int registro = getVarint(b);
+        if (registro != esperado)
+            throw new IllegalArgumentException("Se esperaba un registro de tipo " + esperado + " y llegó " + registro);
+    }
+
+    private static void saltar(ByteBuffer b, int clave) {
+        switch (clave & 7) {
+            case VARINT: getVarint(b); break;
+            case TEXTO:  saltarTexto(b); break;
+            case LISTA:  for (int n = getVarint(b); n > 0; n--) saltarTexto(b); break;
+            default: throw new IllegalArgumentException("Clase de campo desconocida en la clave " + clave);
+        }
+    }
+
+    private static void saltarTexto(ByteBuffer b) {
+        int v = getVarint(b);
+        if ((v & 1) == 0) b.position(b.position() + (v >>> 1));
+    }
+
+    private static String[] getLista(ByteBuffer b, DiccionarioCodec dic) {
+        String[] l = new String[getVarint(b)];
+        for (int i = 0; i < l.length; i++) l[i] = getTexto(b, dic);
+        return l;
+    }
+
+    private static String getTexto(ByteBuffer b, DiccionarioCodec dic) {
+        int v = getVarint(b);
+        if ((v & 1) != 0) {
+            if (dic == null) throw new IllegalStateException("Registro con referencias y sin diccionario.");
+            return dic.valor(v >>> 1);
+        }
+        return utf8(b, v >>> 1);
+    }
+
+    // Buffers del heap se decodifican en sitio; los directos (mmap) pasan por un arreglo por hilo
+    private static String utf8(ByteBuffer b, int n) {
+        String s;
+        if (b.hasArray()) {
+            s = new String(b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8);
+            b.position(b.position() + n);
+        } else {
+            byte[] aux = auxiliar(n);
+            b.get(aux, 0, n);
+            s = new String(aux, 0, n, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static byte[] auxiliar(int n) {
+        byte[] aux = AUXILIAR.get();
+        if (aux.length < n) AUXILIAR.set(aux = new byte[Math.max(n, aux.length * 2)]);
+        return aux;
+    }
+
+    // ── Formato 1 ──
+
+    /** Escritor del formato 1; solo para comparar y para probar la compatibilidad de lectura. */
+    static void escribirFormato1(ByteBuffer b, ExpedienteMedico e) {
+        putVarint(b, e.edad);
+        for (String s : new String[]{e.tipoPaciente(), e.tipoAtencion(), e.nombrePaciente, e.cedula,
+                                     e.diagnostico, e.notasAdicionales, e.medicoResponsable()})
+            putTextoFormato1(b, s);
+        for (List<String> l : List.of(e.examenes, e.medicamentos, e.alergias)) {
+            putVarint(b, l.size());
+            for (String s : l) putTextoFormato1(b, s);
+        }
+    }
+
+    static ExpedienteMedico leerFormato1(ByteBuffer b) {
+        int edad = getVarint(b);
+        String tipoPaciente = getTextoFormato1(b), tipoAtencion = getTextoFormato1(b), nombre = getTextoFormato1(b),
+               cedula = getTextoFormato1(b), diagnostico = getTextoFormato1(b), notas = getTextoFormato1(b),
+               medico = getTextoFormato1(b);
+        String[] examenes = new String[getVarint(b)];
+        for (int i = 0; i < examenes.length; i++) examenes[i] = getTextoFormato1(b);
+        ExpedienteMedico.Builder builder = new ExpedienteMedico.Builder(
+                new ExpedienteBase(tipoPaciente, tipoAtencion, Arrays.asList(examenes)))
+            .conEdad(edad)
+            .conNombre(nombre)
+            .conCedula(cedula)
+            .conDiagnostico(diagnostico)
+            .conNotas(notas)
+            .conMedico(medico);
+        for (int n = getVarint(b); n > 0; n--) builder.agregarMedicamento(getTextoFormato1(b));
+        for (int n = getVarint(b); n > 0; n--) builder.agregarAlergia(getTextoFormato1(b));
+        return builder.construir();
+    }
+
+    private static void putTextoFormato1(ByteBuffer b, String s) {
+        if (s == null) { putVarint(b, 0); return; }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putVarint(b, bytes.length + 1);
+        b.put(bytes);
+    }
+
+    private static String getTextoFormato1(ByteBuffer b) {
+        int n = getVarint(b) - 1;
+        return n < 0 ? null : utf8(b, n);
+    }
+
+    static void putVarint(ByteBuffer b, int v) {
+        while ((v & ~0x7F) != 0) { b.put((byte) ((v & 0x7F) | 0x80)); v >>>= 7; }
+        b.put((byte) v);
+    }
+
+    static void putVarlong(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) { b.put((byte) ((v & 0x7F) | 0x80)); v >>>= 7; }
+        b.put((byte) v);
+    }
+
+    static long getVarlong(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte x = b.get();
+            v |= (long) (x & 0x7F) << shift;
+            if (x >= 0) return v;
+        }
+    }
+
+    static int getVarint(ByteBuffer b) {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte x = b.get();
+            v |= (x & 0x7F) << shift;
+            if (x >= 0) return v;
+        }
+    }
+}
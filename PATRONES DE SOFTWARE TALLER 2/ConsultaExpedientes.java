@@ -0,0 +1,98 @@
+import java.util.*;
+
+/**
+ * Consulta de varios criterios combinados con AND: igualdad en tipo de
+ * paciente, tipo de atención y médico (sin distinguir mayúsculas ni
+ * acentos), rango de edad y valores que deben aparecer en las listas de
+ * alergias, medicamentos y exámenes. Se arma con {@link Builder}; quien la
+ * planifica y resuelve es {@link AlmacenColumnar#ejecutar}.
+ *
+ *   ConsultaExpedientes.nueva().tipoPaciente("Geriátrico").tipoAtencion("Hospitalización")
+ *       .conAlergia("Penicilina").edadMayorQue(75).medico("Dr. Ramírez").construir();
+ */
+final class ConsultaExpedientes {
+    final Map<AlmacenColumnar.Columna, String> iguales;
+    final Map<AlmacenColumnar.Lista, List<String>> contiene;
+    final int edadDesde, edadHasta;   // -1 = sin límite
+    final boolean ningunaEdad;        // edadMenorQue(0 o menos): no coincide ningún expediente
+
+    private ConsultaExpedientes(Builder b) {
+        this.iguales = Collections.unmodifiableMap(new EnumMap<>(b.iguales));
+        Map<AlmacenColumnar.Lista, List<String>> c = new EnumMap<>(AlmacenColumnar.Lista.class);
+        b.contiene.forEach((l, vs) -> c.put(l, List.copyOf(vs)));
+        this.contiene = Collections.unmodifiableMap(c);
+        this.edadDesde = b.edadDesde;
+        this.edadHasta = b.edadHasta;
+        this.ningunaEdad = b.ningunaEdad;
+    }
+
+    public static Builder nueva() { return new Builder(); }
+
+    public boolean vacia() {
+        return iguales.isEmpty() && contiene.isEmpty() && edadDesde < 0 && edadHasta < 0 && !ningunaEdad;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner sj = new StringJoiner(" · ");
+        iguales.forEach((c, v) -> sj.add(c.name().toLowerCase() + " = " + v));
+        contiene.forEach((l, vs) -> vs.forEach(v -> sj.add(l.name().toLowerCase() + " ∋ " + v)));
+        if (ningunaEdad) sj.add("edad < 0");
+        else if (edadDesde >= 0 && edadHasta >= 0) sj.add("edad " + edadDesde + "–" + edadHasta);
+        else if (edadDesde >= 0) sj.add("edad ≥ " + edadDesde);
+        else if (edadHasta >= 0) sj.add("edad ≤ " + edadHasta);
+        return sj.length() == 0 ? "sin criterios" : sj.toString();
+    }
+
+    static final class Builder {
+        private final Map<AlmacenColumnar.Columna, String> iguales = new EnumMap<>(AlmacenColumnar.Columna.class);
+        private final Map<AlmacenColumnar.Lista, List<String>> contiene = new EnumMap<>(AlmacenColumnar.Lista.class);
+        private int edadDesde = -1, edadHasta = -1;
+        private boolean ningunaEdad;
+
+        private Builder() {}
+
+        public Builder tipoPaciente(String v) { return igual(AlmacenColumnar.Columna.TIPO_PACIENTE, v); }
+        public Builder tipoAtencion(String v) { return igual(AlmacenColumnar.Columna.TIPO_ATENCION, v); }
+        public Builder medico(String v)       { return igual(AlmacenColumnar.Columna.MEDICO, v); }
+        public Builder conAlergia(String v)     { return contiene(AlmacenColumnar.Lista.ALERGIAS, v); }
+        public Builder conMedicamento(String v) { return contiene(AlmacenColumnar.Lista.MEDICAMENTOS, v); }
+        public Builder conExamen(String v)      { return contiene(AlmacenColumnar.Lista.EXAMENES, v); }
+
+        /** Valores vacíos o null no agregan criterio. */
+        public Builder igual(AlmacenColumnar.Columna c, String v) {
+            if (v != null && !v.isBlank()) iguales.put(c, v.trim());
+            return this;
+        }
+
+        public Builder contiene(AlmacenColumnar.Lista l, String v) {
+            if (v != null && !v.isBlank()) contiene.computeIfAbsent(l, k -> new ArrayList<>()).add(v.trim());
+            return this;
+        }
+
+        /** Edad en [desde, hasta], ambos incluidos; -1 = sin límite por ese lado. */
+        public Builder edadEntre(int desde, int hasta) {
+            edadDesde = desde;
+            edadHasta = hasta;
+            ningunaEdad = false;
+            return this;
+        }
+
+        public Builder edadMayorQue(int edad) { edadDesde = edad + 1; return this; }
+
+        /** Con {@code edad} 0 o menos la consulta no devuelve nada: no hay edades negativas. */
+        public Builder edadMenorQue(int edad) {
+            ningunaEdad = edad <= 0;
+            edadHasta = ningunaEdad ? -1 : edad - 1;
+            return this;
+        }
+
+        public ConsultaExpedientes construir() {
+            if (edadDesde < -1 || edadHasta < -1)
+                throw new IllegalStateException("La edad no puede ser negativa.");
+            if (!ningunaEdad && edadDesde >= 0 && edadHasta >= 0 && edadDesde > edadHasta)
+                throw new IllegalStateException("Rango de edad vacío: " + edadDesde + "–" + edadHasta + ".");
+            return new ConsultaExpedientes(this);
+        }
+    }
+}
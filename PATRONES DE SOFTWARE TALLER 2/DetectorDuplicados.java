@@ -0,0 +1,368 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Detección incremental de pacientes registrados dos veces con el nombre
+ * escrito distinto o la cédula mal digitada. Un alta nueva solo se compara
+ * con los expedientes de sus bloques, y de cada bloque solo con los
+ * {@link #MAX_POR_BLOQUE} más recientes, así el costo por alta no crece con
+ * el total. La cédula se parte en tercios (un error de digitación deja dos
+ * intactos) y los bloques son:
+ *   tercios 1 y 2 + clave fonética de la primera palabra del nombre
+ *   tercios 1 y 3 + clave fonética de la última palabra
+ *   tercios 2 y 3
+ * El nombre entra en las claves con el primer tercio porque las cédulas se
+ * expiden en secuencia y ese prefijo lo comparten muchísimos pacientes. La
+ * clave fonética es la del español (b/v, c/s/z, ll/y, h muda, …), y los
+ * trigramas del nombre se toman sobre ella: "Hernández Vásquez" y
+ * "Ernandez Basquez" quedan iguales. Un par se marca si las cédulas difieren
+ * en un cambio (o una transposición) y los nombres comparten al menos
+ * {@link #MIN_NOMBRE} de sus trigramas, o en dos cambios con nombres casi
+ * iguales; edades muy distintas descartan el par.
+ * Las comparaciones corren en un hilo propio: el guardado no las espera
+ * mientras haya lugar en su cola ({@link #PENDIENTES_MAXIMO} altas); con la
+ * cola llena las corre el hilo que guarda, que así frena al productor en
+ * lugar de acumular huellas sin límite. Tras {@link #cerrar} se descartan.
+ */
+class DetectorDuplicados implements OyenteExpedientes {
+    static final int MAX_POR_BLOQUE = 256;
+    static final int PENDIENTES_MAXIMO = 4096;
+    static final double MIN_NOMBRE = 0.6, MIN_NOMBRE_DOS_CAMBIOS = 0.85;
+    private static final double PESO_NOMBRE = 0.4;
+    private static final int CLAVES = 3;
+    private static final int MAX_SOSPECHAS_POR_ALTA = 3;
+    private static final long FNV = 0xcbf29ce484222325L;
+
+    static final class Sospecha {
+        final int id, idParecido;
+        final double similitud;
+        final String motivo;
+
+        Sospecha(int id, int idParecido, double similitud, String motivo) {
+            this.id         = id;
+            this.idParecido = idParecido;
+            this.similitud  = similitud;
+            this.motivo     = motivo;
+        }
+    }
+
+    // Bloques en direccionamiento abierto: hash de 64 bits de la clave → entrada
+    // más reciente; cada entrada (id * CLAVES + k) apunta a la anterior del bloque.
+    private long[] claves = new long[1 << 12];
+    private int[] cabezas = new int[1 << 12];
+    private int ocupadas;
+    private int[] anterior = new int[CLAVES * 1024];
+    // Por id: edad, nombre en clave fonética, 0, cédula normalizada (Latin-1)
+    private byte[][] huellas = new byte[1024][];
+    private final List<Sospecha> sospechas = new CopyOnWriteArrayList<>();
+    private volatile boolean vigilando;
+    private volatile Runnable alCambiar = () -> {};
+    // CallerRunsPolicy: con la cola llena corre en quien guarda; cerrado, descarta
+    private final ExecutorService hilo = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(PENDIENTES_MAXIMO), r -> {
+            Thread t = new Thread(r, "detector-duplicados");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    // Trabajo del hilo detector, reutilizado entre altas
+    private int[] trigramasNuevo = new int[64], trigramasOtro = new int[64];
+    private int[] candidatos = new int[CLAVES * MAX_POR_BLOQUE];
+    private final long[] clavesAlta = new long[CLAVES];
+    private int[] filaPrevia = new int[32], filaActual = new int[32], filaAnterior = new int[32];
+
+    /**
+     * A partir de aquí cada alta se compara con las anteriores. Lo que llega
+     * antes (la carga inicial del repositorio) solo se indexa.
+     */
+    public void vigilar() { vigilando = true; }
+
+    public void setAlCambiar(Runnable alCambiar) { this.alCambiar = alCambiar; }
+
+    @Override
+    public void expedienteGuardado(int id, ExpedienteMedico e) {
+        if (!vigilando) {
+            synchronized (this) { indexar(id, huella(e)); }
+            return;
+        }
+        byte[] h = huella(e);
+        hilo.execute(() -> revisar(id, h));
+    }
+
+    /**
+     * Una versión con otro nombre, cédula o edad se compara con sus bloques
+     * como un alta y su huella reemplaza a la anterior. Las entradas del id en
+     * los bloques no se mueven (están encadenadas con las de otros ids): hasta
+     * reabrir, que indexa la versión vigente, se lo encuentra por las claves
+     * viejas.
+     */
+    @Override
+    public void expedienteModificado(int id, ExpedienteMedico anterior, ExpedienteMedico nueva) {
+        byte[] h = huella(nueva);
+        if (Arrays.equals(h, huella(anterior))) return;
+        if (!vigilando) {
+            synchronized (this) { huellas[id] = h; }
+            return;
+        }
+        hilo.execute(() -> {
+            synchronized (this) {
+                List<Sospecha> nuevas = comparar(id, h);
+                huellas[id] = h;
+                if (!nuevas.isEmpty()) {
+                    sospechas.addAll(nuevas);
+                    alCambiar.run();
+                }
+            }
+        });
+    }
+
+    /** Compara el alta con sus bloques, registra las sospechas y la indexa. */
+    synchronized List<Sospecha> revisar(int id, byte[] h) {
+        List<Sospecha> nuevas = comparar(id, h);
+        indexar(id, h);
+        if (!nuevas.isEmpty()) {
+            sospechas.addAll(nuevas);
+            alCambiar.run();
+        }
+        return nuevas;
+    }
+
+    public List<Sospecha> pendientes() { return new ArrayList<>(sospechas); }
+
+    public int cantidadPendientes() { return sospechas.size(); }
+
+    /** Quita la sospecha de la lista de revisión (revisada o descartada). */
+    public void resolver(Sospecha s) {
+        if (sospechas.remove(s)) alCambiar.run();
+    }
+
+    public void cerrar() { hilo.shutdownNow(); }
+
+    // ── Huellas y bloques ──
+
+    static byte[] huella(ExpedienteMedico e) {
+        StringJoiner fonetico = new StringJoiner(" ");
+        for (String palabra : IndiceTextoCompleto.tokenizar(e.nombrePaciente)) fonetico.add(fonetica(palabra));
+        String nombre = fonetico.toString();
+        StringBuilder sb = new StringBuilder(nombre.length() + 16);
+        sb.append((char) Math.max(0, Math.min(255, e.edad))).append(nombre).append('\0');
+        if (e.cedula != null) {
+            for (int i = 0; i < e.cedula.length(); i++) {
+                char c = e.cedula.charAt(i);
+                if (Character.isLetterOrDigit(c)) sb.append(Character.toUpperCase(c));
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Hash de las claves de bloque de la huella; 0 = sin clave
+    private static void clavesBloque(byte[] h, long[] dest) {
+        int fin = finNombre(h), inicioCedula = fin + 1, largo = h.length - inicioCedula;
+        String nombre = new String(h, 1, fin - 1, StandardCharsets.ISO_8859_1);
+        int espacio = nombre.indexOf(' ');
+        String primera = espacio < 0 ? nombre : nombre.substring(0, espacio);
+        String ultima  = espacio < 0 ? null : nombre.substring(nombre.lastIndexOf(' ') + 1);
+        if (largo < 3) {
+            Arrays.fill(dest, 0);
+            return;
+        }
+        int a = inicioCedula + largo / 3, b = inicioCedula + 2 * largo / 3, finCedula = h.length;
+        dest[0] = hash(hash(hash(hash(FNV ^ 1, h, inicioCedula, a), h, a, b), primera));
+        dest[1] = ultima == null ? 0 : hash(hash(hash(hash(FNV ^ 2, h, inicioCedula, a), h, b, finCedula), ultima));
+        dest[2] = hash(hash(hash(FNV ^ 3, h, a, b), h, b, finCedula));
+    }
+
+    // FNV-1a de 64 bits, por tramos separados con '|'
+    private static long hash(long x, byte[] b, int desde, int hasta) {
+        x = (x ^ '|') * 0x100000001b3L;
+        for (int i = desde; i < hasta; i++) x = (x ^ (b[i] & 0xFF)) * 0x100000001b3L;
+        return x;
+    }
+
+    private static long hash(long x, String s) {
+        x = (x ^ '|') * 0x100000001b3L;
+        for (int i = 0; i < s.length(); i++) x = (x ^ s.charAt(i)) * 0x100000001b3L;
+        return x;
+    }
+
+    private static long hash(long x) { return x == 0 ? 1 : x; }
+
+    private int ranura(long clave) {
+        int mascara = claves.length - 1;
+        int r = (int) (clave ^ (clave >>> 29) ^ (clave >>> 47)) & mascara;
+        while (claves[r] != 0 && claves[r] != clave) r = (r + 1) & mascara;
+        return r;
+    }
+
+    private void indexar(int id, byte[] h) {
+        if (id >= huellas.length) huellas = Arrays.copyOf(huellas, Math.max(id + 1, huellas.length * 2));
+        if (CLAVES * (id + 1) > anterior.length) anterior = Arrays.copyOf(anterior, Math.max(CLAVES * (id + 1), anterior.length * 2));
+        huellas[id] = h;
+        clavesBloque(h, clavesAlta);
+        for (int k = 0; k < CLAVES; k++) {
+            long clave = clavesAlta[k];
+            if (clave == 0) continue;
+            if (2 * (ocupadas + 1) > claves.length) crecer();
+            int r = ranura(clave), entrada = id * CLAVES + k;
+            if (claves[r] == 0) {
+                claves[r] = clave;
+                ocupadas++;
+                anterior[entrada] = -1;
+            } else {
+                anterior[entrada] = cabezas[r];
+            }
+            cabezas[r] = entrada;
+        }
+    }
+
+    private void crecer() {
+        long[] viejas = claves;
+        int[] viejasCabezas = cabezas;
+        claves  = new long[viejas.length * 2];
+        cabezas = new int[viejas.length * 2];
+        for (int i = 0; i < viejas.length; i++) {
+            if (viejas[i] == 0) continue;
+            int r = ranura(viejas[i]);
+            claves[r]  = viejas[i];
+            cabezas[r] = viejasCabezas[i];
+        }
+    }
+
+    /**
+     * Clave fonética de una palabra ya plegada (minúsculas, sin tildes):
+     * h muda, v/w → b, z y c suave → s, c dura y qu → k, g suave → j, ll → y,
+     * y final → i, x → ks, y sin letras repetidas.
+     */
+    static String fonetica(String p) {
+        StringBuilder sb = new StringBuilder(p.length());
+        for (int i = 0, n = p.length(); i < n; i++) {
+            char c = p.charAt(i), sig = i + 1 < n ? p.charAt(i + 1) : 0;
+            String s;
+            switch (c) {
+                case 'h': continue;
+                case 'v': case 'w': s = "b"; break;
+                case 'z': s = "s"; break;
+                case 'c':
+                    if (sig == 'h') { s = "x"; i++; }
+                    else s = sig == 'e' || sig == 'i' ? "s" : "k";
+                    break;
+                case 'q': s = "k"; if (sig == 'u') i++; break;
+                case 'g':
+                    if (sig == 'e' || sig == 'i') s = "j";
+                    else {
+                        s = "g";
+                        char tras = i + 2 < n ? p.charAt(i + 2) : 0;
+                        if (sig == 'u' && (tras == 'e' || tras == 'i')) i++;
+                    }
+                    break;
+                case 'l': if (sig == 'l') { s = "y"; i++; } else s = "l"; break;
+                case 'y': s = sig == 0 || "aeiou".indexOf(sig) < 0 ? "i" : "y"; break;
+                case 'x': s = i == 0 ? "s" : "ks"; break;
+                default: s = String.valueOf(c);
+            }
+            for (int k = 0; k < s.length(); k++) {
+                char x = s.charAt(k);
+                if (sb.length() == 0 || sb.charAt(sb.length() - 1) != x) sb.append(x);
+            }
+        }
+        return sb.toString();
+    }
+
+    // ── Comparación ──
+
+    private List<Sospecha> comparar(int id, byte[] h) {
+        int nc = 0;
+        clavesBloque(h, clavesAlta);
+        for (long clave : clavesAlta) {
+            if (clave == 0) continue;
+            int r = ranura(clave);
+            if (claves[r] == 0) continue;
+            for (int e = cabezas[r], m = 0; e >= 0 && m < MAX_POR_BLOQUE; e = anterior[e], m++)
+                candidatos[nc++] = e / CLAVES;
+        }
+        if (nc == 0) return Collections.emptyList();
+        Arrays.sort(candidatos, 0, nc);
+
+        int finNuevo = finNombre(h);
+        trigramasNuevo = asegurar(trigramasNuevo, finNuevo + 2);
+        int tn = trigramas(h, finNuevo, trigramasNuevo);
+        List<Sospecha> nuevas = new ArrayList<>();
+        for (int k = 0; k < nc; k++) {
+            int otro = candidatos[k];
+            if ((k > 0 && otro == candidatos[k - 1]) || otro == id) continue;
+            byte[] o = huellas[otro];
+            if (Math.abs((h[0] & 0xFF) - (o[0] & 0xFF)) > 2) continue;
+            int finOtro = finNombre(o);
+            trigramasOtro = asegurar(trigramasOtro, finOtro + 2);
+            double nombre = jaccard(trigramasNuevo, tn, trigramasOtro, trigramas(o, finOtro, trigramasOtro));
+            if (nombre < MIN_NOMBRE) continue;
+            int lh = h.length - finNuevo - 1, lo = o.length - finOtro - 1;
+            int cambios = distancia(h, finNuevo + 1, lh, o, finOtro + 1, lo);
+            if (cambios > 2 || (cambios == 2 && nombre < MIN_NOMBRE_DOS_CAMBIOS)) continue;
+            double cedula = 1 - (double) cambios / Math.max(1, Math.max(lh, lo));
+            double similitud = PESO_NOMBRE * nombre + (1 - PESO_NOMBRE) * cedula;
+            nuevas.add(new Sospecha(id, otro, similitud, String.format("nombre %.0f%% · cédula a %d cambio%s",
+                100 * nombre, cambios, cambios == 1 ? "" : "s")));
+        }
+        nuevas.sort((a, b) -> Double.compare(b.similitud, a.similitud));
+        return nuevas.size() > MAX_SOSPECHAS_POR_ALTA ? new ArrayList<>(nuevas.subList(0, MAX_SOSPECHAS_POR_ALTA)) : nuevas;
+    }
+
+    private static int finNombre(byte[] h) {
+        int i = 1;
+        while (h[i] != 0) i++;
+        return i;
+    }
+
+    private static int[] asegurar(int[] a, int n) { return a.length >= n ? a : new int[Math.max(n, a.length * 2)]; }
+
+    // Trigramas del nombre h[1, fin) con un espacio de relleno a cada lado, ordenados y sin repetir
+    private static int trigramas(byte[] h, int fin, int[] dest) {
+        int len = fin - 1 + 2, n = 0;
+        for (int i = 0; i + 3 <= len; i++) {
+            int a = i == 0 ? ' ' : h[i] & 0xFF;
+            int b = h[i + 1] & 0xFF;
+            int c = i + 3 == len ? ' ' : h[i + 2] & 0xFF;
+            dest[n++] = a << 16 | b << 8 | c;
+        }
+        Arrays.sort(dest, 0, n);
+        int u = 0;
+        for (int i = 0; i < n; i++) if (u == 0 || dest[u - 1] != dest[i]) dest[u++] = dest[i];
+        return u;
+    }
+
+    private static double jaccard(int[] a, int na, int[] b, int nb) {
+        int i = 0, j = 0, comunes = 0;
+        while (i < na && j < nb) {
+            if (a[i] == b[j]) { comunes++; i++; j++; }
+            else if (a[i] < b[j]) i++;
+            else j++;
+        }
+        int union = na + nb - comunes;
+        return union == 0 ? 0 : (double) comunes / union;
+    }
+
+    // Distancia de Damerau-Levenshtein (alineación óptima): una transposición cuenta como un cambio
+    private int distancia(byte[] a, int da, int la, byte[] b, int db, int lb) {
+        if (filaActual.length <= lb) {
+            filaPrevia = new int[lb + 1];
+            filaActual = new int[lb + 1];
+            filaAnterior = new int[lb + 1];
+        }
+        int[] antes = filaAnterior, prev = filaPrevia, cur = filaActual;
+        for (int j = 0; j <= lb; j++) prev[j] = j;
+        for (int i = 1; i <= la; i++) {
+            cur[0] = i;
+            for (int j = 1; j <= lb; j++) {
+                int costo = a[da + i - 1] == b[db + j - 1] ? 0 : 1;
+                int v = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + costo);
+                if (i > 1 && j > 1 && a[da + i - 1] == b[db + j - 2] && a[da + i - 2] == b[db + j - 1])
+                    v = Math.min(v, antes[j - 2] + 1);
+                cur[j] = v;
+            }
+            int[] t = antes; antes = prev; prev = cur; cur = t;
+        }
+        return prev[lb];
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tabla de cadenas repetidas (tipos de paciente y de atención, exámenes) para
+ * {@link CodecExpediente}: cada cadena recibe un código estable por orden de
+ * llegada y los registros guardan el código en vez del texto. Solo crece; a
+ * partir de {@link #MAXIMO} entradas las cadenas nuevas se escriben literales.
+ */
+final class DiccionarioCodec {
+    static final int MAXIMO = 1 << 14;
+
+    private final ConcurrentHashMap<String, Integer> codigos = new ConcurrentHashMap<>();
+    private volatile String[] valores = new String[64];
+    private volatile int tamanio;
+
+    /** Código de {@code s}, agregándola si es nueva; -1 si el diccionario está lleno. */
+    int codigo(String s) {
+        Integer c = codigos.get(s);
+        return c != null ? c : agregar(s);
+    }
+
+    synchronized int agregar(String s) {
+        Integer c = codigos.get(s);
+        if (c != null) return c;
+        int n = tamanio;
+        if (n == MAXIMO) return -1;
+        if (n == valores.length) valores = Arrays.copyOf(valores, n * 2);
+        String v = TablaCadenas.internar(s);
+        valores[n] = v;
+        tamanio = n + 1;            // antes de publicar el código: quien lo vea, ve el tamaño
+        codigos.put(v, n);
+        return n;
+    }
+
+    String valor(int codigo) {
+        int n = tamanio;
+        if (codigo < 0 || codigo >= n) throw new IllegalArgumentException("Código de diccionario desconocido: " + codigo);
+        return valores[codigo];
+    }
+
+    int tamanio() { return tamanio; }
+}
@@ -0,0 +1,34 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.function.*;
+import java.util.zip.CRC32;
+
+// Frame en disco: [longitud][id][contenido codificado][crc32(id + contenido)]
+class EscritorFrames {
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private final CRC32 crc = new CRC32();
+
+    /** Arma el frame en el buffer interno (válido hasta la siguiente llamada). */
+    ByteBuffer preparar(int id, Consumer<ByteBuffer> contenido) {
+        while (true) {
+            try {
+                buffer.clear().position(8);
+                contenido.accept(buffer);
+                if (buffer.remaining() < 4) throw new BufferOverflowException();
+                break;
+            } catch (BufferOverflowException ex) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+        int len = buffer.position() - 8;
+        buffer.putInt(0, len).putInt(4, id);
+        crc.reset();
+        crc.update(buffer.array(), 4, len + 4);
+        return buffer.putInt((int) crc.getValue()).flip();
+    }
+
+    static void escribir(FileChannel canal, ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) canal.write(frame);
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Evento JFR por operación medida, para trazas finas con
+ * {@code -XX:StartFlightRecording} o {@code jcmd <pid> JFR.start}.
+ * Está apagado por defecto; sólo se crea cuando una grabación lo habilita.
+ */
+@jdk.jfr.Name("expedientes.Operacion")
+@jdk.jfr.Label("Operación de expedientes")
+@jdk.jfr.Category("Expedientes")
+@jdk.jfr.Enabled(false)
+@jdk.jfr.StackTrace(false)
+class EventoOperacion extends jdk.jfr.Event {
+    static final jdk.jfr.EventType TIPO = jdk.jfr.EventType.getEventType(EventoOperacion.class);
+
+    @jdk.jfr.Label("Operación")
+    String operacion;
+
+    @jdk.jfr.Label("Duración medida")
+    @jdk.jfr.Timespan(jdk.jfr.Timespan.NANOSECONDS)
+    long duracion;
+
+    static void emitir(String operacion, long ns) {
+        EventoOperacion ev = new EventoOperacion();
+        ev.operacion = operacion;
+        ev.duracion = ns;
+        ev.commit();
+    }
+}
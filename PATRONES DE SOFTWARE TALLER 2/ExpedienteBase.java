@@ -0,0 +1,29 @@
+import java.util.*;
+
+// La lista de exámenes es inmutable, así que los clones la comparten en vez
+// de copiarla; cada expediente la copia solo si le agrega un examen.
+class ExpedienteBase implements ExpedientePrototype {
+    private final String tipoPaciente;
+    private final String tipoAtencion;
+    private final List<String> examenesBase;
+
+    public ExpedienteBase(String tipoPaciente, String tipoAtencion, List<String> examenesBase) {
+        this.tipoPaciente  = TablaCadenas.internar(tipoPaciente);
+        this.tipoAtencion  = TablaCadenas.internar(tipoAtencion);
+        this.examenesBase  = TablaCadenas.internar(examenesBase);
+    }
+
+    private ExpedienteBase(ExpedienteBase o) {
+        this.tipoPaciente  = o.tipoPaciente;
+        this.tipoAtencion  = o.tipoAtencion;
+        this.examenesBase  = o.examenesBase;
+    }
+
+    @Override
+    public ExpedientePrototype clonar() { return new ExpedienteBase(this); }
+
+    public String getTipoPaciente()       { return tipoPaciente; }
+    public String getTipoAtencion()       { return tipoAtencion; }
+    /** Lista inmutable compartida por todos los clones. */
+    public List<String> getExamenesBase() { return examenesBase; }
+}
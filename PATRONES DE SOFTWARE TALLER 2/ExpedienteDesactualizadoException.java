@@ -0,0 +1,12 @@
+class ExpedienteDesactualizadoException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+    private final int versionActual;
+
+    public ExpedienteDesactualizadoException(int id, int versionLeida, int versionActual) {
+        super("El expediente " + RepositorioExpedientes.numero(id) + " cambió mientras se editaba (versión " + versionLeida +
+              ", ahora " + versionActual + ").");
+        this.versionActual = versionActual;
+    }
+
+    public int getVersionActual() { return versionActual; }
+}
@@ -0,0 +1,280 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Expediente inmutable y compacto (48 bytes de objeto con compressed oops):
+ * los textos libres son campos, tipo de paciente + tipo de atención y médico
+ * van como códigos de diccionario empacados en un int, y las listas son las de
+ * {@link ListasCompactas}. Solo se crea con {@link Builder#construir()}.
+ * Una versión nueva se arma con {@code new Builder(actual)}: lo que no cambia
+ * (textos y listas) queda compartido con la versión anterior, así cada
+ * modificación cuesta un objeto más los campos cambiados.
+ * Si un diccionario se llena, el expediente no se rechaza: pasa a ser un
+ * {@link Desbordado}, que guarda esos textos tal cual.
+ */
+class ExpedienteMedico {
+    final String nombrePaciente, cedula, diagnostico, notasAdicionales;
+    final int    edad;
+    final List<String> examenes, medicamentos, alergias;
+    // Par (tipo de paciente, tipo de atención) en los 12 bits altos, médico en los 20 bajos
+    private final int codigos;
+
+    private static final int BITS_MEDICO = 20;
+    private static final DiccionarioCampo<List<String>> TIPOS = new DiccionarioCampo<>(1 << (32 - BITS_MEDICO));
+    private static final DiccionarioCampo<String> MEDICOS = new DiccionarioCampo<>(1 << BITS_MEDICO);
+
+    // Solo lo extiende Desbordado
+    private ExpedienteMedico(Builder b, List<String> examenes, List<String> medicamentos, List<String> alergias,
+                             int codigos) {
+        ExpedienteMedico o = b.origen;
+        this.nombrePaciente   = o == null ? b.nombrePaciente : compartir(b.nombrePaciente, o.nombrePaciente);
+        this.cedula           = o == null ? b.cedula         : compartir(b.cedula, o.cedula);
+        this.diagnostico      = o == null ? b.diagnostico    : compartir(b.diagnostico, o.diagnostico);
+        this.notasAdicionales = o == null ? b.notas          : compartir(b.notas, o.notasAdicionales);
+        this.edad             = b.edad;
+        this.examenes         = examenes;
+        this.medicamentos     = medicamentos;
+        this.alergias         = alergias;
+        this.codigos          = codigos;
+    }
+
+    private static ExpedienteMedico de(Builder b, List<String> examenes, List<String> medicamentos,
+                                       List<String> alergias) {
+        int tipos = b.tipoPaciente == null && b.tipoAtencion == null ? 0
+            : TIPOS.codigo(Arrays.asList(b.tipoPaciente, b.tipoAtencion));
+        String medico = TablaCadenas.internar(b.medico);
+        int codigoMedico = MEDICOS.codigo(medico);
+        if (tipos == TIPOS.desborde || codigoMedico == MEDICOS.desborde)
+            return new Desbordado(b, examenes, medicamentos, alergias, medico);
+        return new ExpedienteMedico(b, examenes, medicamentos, alergias, tipos << BITS_MEDICO | codigoMedico);
+    }
+
+    /**
+     * Expediente cuyo par de tipos o cuyo médico ya no cupo en su diccionario:
+     * lleva los tres textos como campos (16 bytes más) en lugar de códigos.
+     */
+    private static final class Desbordado extends ExpedienteMedico {
+        private final String tipoPaciente, tipoAtencion, medico;
+
+        Desbordado(Builder b, List<String> examenes, List<String> medicamentos, List<String> alergias, String medico) {
+            super(b, examenes, medicamentos, alergias, 0);
+            this.tipoPaciente = TablaCadenas.internar(b.tipoPaciente);
+            this.tipoAtencion = TablaCadenas.internar(b.tipoAtencion);
+            this.medico       = medico;
+        }
+
+        @Override public String tipoPaciente()      { return tipoPaciente; }
+        @Override public String tipoAtencion()      { return tipoAtencion; }
+        @Override public String medicoResponsable() { return medico; }
+    }
+
+    public String tipoPaciente()      { int t = codigos >>> BITS_MEDICO; return t == 0 ? null : TIPOS.valor(t).get(0); }
+    public String tipoAtencion()      { int t = codigos >>> BITS_MEDICO; return t == 0 ? null : TIPOS.valor(t).get(1); }
+    public String medicoResponsable() { return MEDICOS.valor(codigos & ((1 << BITS_MEDICO) - 1)); }
+
+    // Un texto igual al de la versión anterior se reemplaza por esa instancia
+    private static String compartir(String nuevo, String anterior) {
+        return Objects.equals(nuevo, anterior) ? anterior : nuevo;
+    }
+
+    /**
+     * Diccionario del proceso para un campo de baja cardinalidad: código
+     * estable por orden de llegada, 0 = null, y solo crece. Lecturas sin
+     * lock: el código se publica en el mapa después de escribir el valor.
+     * Lleno, responde {@link #desborde} a todo valor nuevo.
+     */
+    private static final class DiccionarioCampo<T> {
+        final int desborde;   // último código: "no cupo", nunca se asigna a un valor
+        private final ConcurrentHashMap<T, Integer> codigos = new ConcurrentHashMap<>();
+        private volatile Object[] valores = new Object[64];
+        private int tamanio = 1;
+
+        DiccionarioCampo(int maximo) { this.desborde = maximo - 1; }
+
+        int codigo(T v) {
+            if (v == null) return 0;
+            Integer c = codigos.get(v);
+            return c != null ? c : agregar(v);
+        }
+
+        private synchronized int agregar(T v) {
+            Integer c = codigos.get(v);
+            if (c != null) return c;
+            if (tamanio == desborde) return desborde;
+            if (tamanio == valores.length) valores = Arrays.copyOf(valores, tamanio * 2);
+            valores[tamanio] = v;
+            codigos.put(v, tamanio);
+            return tamanio++;
+        }
+
+        @SuppressWarnings("unchecked")
+        T valor(int codigo) { return (T) valores[codigo]; }
+    }
+
+    public static class Builder {
+        private String tipoPaciente, tipoAtencion, nombrePaciente, cedula, diagnostico, notas, medico;
+        private int edad;
+        private boolean iniciado;
+        // Cada lista es la del prototipo (o la de la versión anterior) hasta que se cambia
+        private List<String> examenesBase, medicamentosBase, alergiasBase;
+        private ArrayList<String> examenes, medicamentos, alergias;
+        private ExpedienteMedico origen;   // versión que se está modificando, o null
+
+        // Modo reutilizable (cargas masivas): las listas de trabajo sobreviven
+        // entre construcciones y cada expediente empieza con reiniciar().
+        private final boolean reutilizable;
+
+        public Builder(ExpedienteBase base) {
+            this(false);
+            iniciar(base);
+        }
+
+        /** Builder de la versión siguiente de {@code actual}; parte con todos sus campos. */
+        public Builder(ExpedienteMedico actual) {
+            this(false);
+            tipoPaciente     = actual.tipoPaciente();
+            tipoAtencion     = actual.tipoAtencion();
+            nombrePaciente   = actual.nombrePaciente;
+            cedula           = actual.cedula;
+            diagnostico      = actual.diagnostico;
+            notas            = actual.notasAdicionales;
+            medico           = actual.medicoResponsable();
+            edad             = actual.edad;
+            examenesBase     = actual.examenes;
+            medicamentosBase = actual.medicamentos;
+            alergiasBase     = actual.alergias;
+            origen           = actual;
+            iniciado         = true;
+        }
+
+        private Builder(boolean reutilizable) {
+            this.reutilizable = reutilizable;
+            if (reutilizable) {
+                examenes     = new ArrayList<>();
+                medicamentos = new ArrayList<>();
+                alergias     = new ArrayList<>();
+            }
+        }
+
+        /** Builder para cargas masivas; cada expediente empieza con {@link #reiniciar}. */
+        public static Builder reutilizable() { return new Builder(true); }
+
+        public Builder reiniciar(ExpedienteBase base) {
+            if (!reutilizable) throw new IllegalStateException("Solo un builder reutilizable se puede reiniciar.");
+            iniciar(base);
+            examenes.clear();
+            medicamentos.clear();
+            alergias.clear();
+            return this;
+        }
+
+        private void iniciar(ExpedienteBase base) {
+            tipoPaciente = base.getTipoPaciente();
+            tipoAtencion = base.getTipoAtencion();
+            examenesBase = base.getExamenesBase();
+            medicamentosBase = alergiasBase = null;
+            origen = null;
+            nombrePaciente = cedula = diagnostico = notas = medico = null;
+            edad = 0;
+            iniciado = true;
+        }
+
+        public Builder conNombre(String v)          { nombrePaciente = v; return this; }
+        public Builder conEdad(int v)               { edad = v;           return this; }
+        public Builder conCedula(String v)          { cedula = v;         return this; }
+        public Builder conDiagnostico(String v)     { diagnostico = v;    return this; }
+        public Builder conMedico(String v)          { medico = v;         return this; }
+        public Builder conNotas(String v)           { notas = v;          return this; }
+        public Builder conTipoPaciente(String v)    { tipoPaciente = v;   return this; }
+        public Builder conTipoAtencion(String v)    { tipoAtencion = v;   return this; }
+
+        public Builder agregarMedicamento(String v) {
+            medicamentos = propia(medicamentosBase, medicamentos);
+            medicamentosBase = null;
+            medicamentos.add(TablaCadenas.internar(v));
+            return this;
+        }
+
+        public Builder agregarAlergia(String v) {
+            alergias = propia(alergiasBase, alergias);
+            alergiasBase = null;
+            alergias.add(TablaCadenas.internar(v));
+            return this;
+        }
+
+        public Builder agregarExamen(String v) {
+            examenes = propia(examenesBase, examenes);
+            examenesBase = null;
+            examenes.add(TablaCadenas.internar(v));
+            return this;
+        }
+
+        /** Reemplaza la lista completa; si queda igual a la anterior, se comparte. */
+        public Builder conMedicamentos(List<String> l) {
+            medicamentosBase = null;
+            medicamentos = reemplazar(medicamentos, l);
+            return this;
+        }
+
+        public Builder conAlergias(List<String> l) {
+            alergiasBase = null;
+            alergias = reemplazar(alergias, l);
+            return this;
+        }
+
+        public Builder conExamenes(List<String> l) {
+            examenesBase = null;
+            examenes = reemplazar(examenes, l);
+            return this;
+        }
+
+        // Copia al escribir: hasta el primer cambio la lista es la compartida
+        private static ArrayList<String> propia(List<String> base, ArrayList<String> lista) {
+            if (lista == null) lista = new ArrayList<>(base == null ? 2 : base.size() + 2);
+            if (base != null) lista.addAll(base);
+            return lista;
+        }
+
+        private static ArrayList<String> reemplazar(ArrayList<String> lista, List<String> valores) {
+            if (lista == null) lista = new ArrayList<>(valores.size());
+            else lista.clear();
+            for (String v : valores) lista.add(TablaCadenas.internar(v));
+            return lista;
+        }
+
+        public ExpedienteMedico construir() {
+            long t0 = Metricas.inicio();
+            try {
+                ExpedienteMedico listo = construirSinMedir();
+                Metricas.CONSTRUIR.registrar(t0);
+                return listo;
+            } catch (IllegalStateException ex) {
+                Metricas.CONSTRUIR.error();
+                throw ex;
+            }
+        }
+
+        // Cada llamada entrega un expediente nuevo e independiente del builder
+        private ExpedienteMedico construirSinMedir() {
+            if (!iniciado)
+                throw new IllegalStateException("Builder reutilizable: llame a reiniciar() antes de construir otro expediente.");
+            if (vacio(nombrePaciente) || vacio(cedula) || vacio(diagnostico))
+                throw new IllegalStateException("Nombre, cédula y diagnóstico son obligatorios.");
+            ExpedienteMedico o = origen;
+            ExpedienteMedico listo = de(this,
+                lista(examenesBase, examenes, o == null ? null : o.examenes),
+                lista(medicamentosBase, medicamentos, o == null ? null : o.medicamentos),
+                lista(alergiasBase, alergias, o == null ? null : o.alergias));
+            if (reutilizable) iniciado = false;
+            return listo;
+        }
+
+        private static List<String> lista(List<String> base, ArrayList<String> propia, List<String> anterior) {
+            if (base != null) return base;
+            if (anterior != null && anterior.equals(propia == null ? List.of() : propia)) return anterior;
+            return ListasCompactas.de(propia);
+        }
+
+        private static boolean vacio(String s) { return s == null || s.isBlank(); }
+    }
+}
@@ -0,0 +1,3 @@
+interface ExpedientePrototype {
+    ExpedientePrototype clonar();
+}
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+// ══════════════════════════════════════════════════════════════
+//  GENERADOR DE CARGA  (java GeneradorCarga clave=valor …)
+//    n=100000          expedientes a generar
+//    hilos=<núcleos>   hilos del ForkJoinPool productor
+//    mezcla=a:60,b:40  peso por clave de plantilla (por defecto, iguales)
+//    via=directo|canal|http
+//                      directo: cada hilo llama guardar() (fsync agrupado);
+//                      canal: como la GUI, a través de CanalGuardado;
+//                      http: POST /expedientes contra ServidorHttpExpedientes
+//    url=<base>        con via=http, servidor externo (por defecto uno local)
+//    token=<token>     con url=, token de acceso del servidor externo
+//    dir=<ruta>        log durable a usar (por defecto uno temporal que se borra)
+//    memoria=si        usar RepositorioEnMemoria en lugar del log
+//    particiones=4     usar RepositorioParticionado con esas particiones
+//    oyentes=no        no registrar índices ni agregados
+//    semilla=1         los datos de cada expediente dependen solo de semilla e índice
+//    plantillas=<ruta> archivo de plantillas (por defecto plantillas.txt si existe)
+// ══════════════════════════════════════════════════════════════
+class GeneradorCarga {
+    static final String[] NOMBRES = {"María", "José", "Luis", "Ana", "Carlos", "Lucía", "Jorge", "Sofía",
+        "Andrés", "Valentina", "Juan", "Camila", "Diego", "Isabela", "Felipe", "Mariana"};
+    static final String[] APELLIDOS = {"García", "Rodríguez", "Martínez", "López", "González", "Pérez",
+        "Sánchez", "Ramírez", "Torres", "Núñez", "Castaño", "Ospina", "Muñoz", "Vargas"};
+    static final String[] DIAGNOSTICOS = {"Hipertensión arterial", "Diabetes mellitus tipo 2",
+        "Neumonía adquirida en comunidad", "Gastroenteritis aguda", "Migraña crónica", "Asma bronquial",
+        "Insuficiencia cardíaca", "Infección urinaria", "Fractura de radio", "Dengue", "Otitis media"};
+    static final String[] MEDICAMENTOS = {"Acetaminofén", "Losartán", "Metformina", "Amoxicilina",
+        "Ibuprofeno", "Omeprazol", "Salbutamol", "Enalapril", "Furosemida", "Insulina glargina"};
+    static final String[] ALERGIAS = {"Penicilina", "Polen", "Sulfas", "Látex", "Mariscos", "Ácaros"};
+    static final String[] EXAMENES = {"Uroanálisis", "Perfil lipídico", "TSH", "Creatinina", "PCR"};
+
+    private final RegistroPrototipos registro;
+    private final String[] claves;
+    private final int[] pesosAcumulados;
+    private final long semilla;
+
+    GeneradorCarga(RegistroPrototipos registro, Map<String, Integer> mezcla, long semilla) {
+        this.registro = registro;
+        this.semilla = semilla;
+        this.claves = mezcla.keySet().toArray(new String[0]);
+        this.pesosAcumulados = new int[claves.length];
+        int suma = 0;
+        for (int i = 0; i < claves.length; i++) pesosAcumulados[i] = suma += mezcla.get(claves[i]);
+    }
+
+    private int plantilla(SplittableRandom r) {
+        int x = r.nextInt(pesosAcumulados[pesosAcumulados.length - 1]), k = 0;
+        while (x >= pesosAcumulados[k]) k++;
+        return k;
+    }
+
+    /** Paciente sintético número {@code i}: siempre el mismo para la misma semilla. */
+    ExpedienteMedico generar(int i) {
+        SplittableRandom r = new SplittableRandom(semilla * 0x9E3779B97F4A7C15L + i);
+        ExpedienteMedico.Builder b = new ExpedienteMedico.Builder(registro.obtenerClon(claves[plantilla(r)]))
+            .conNombre(NOMBRES[r.nextInt(NOMBRES.length)] + " " + APELLIDOS[r.nextInt(APELLIDOS.length)]
+                       + " " + APELLIDOS[r.nextInt(APELLIDOS.length)])
+            .conCedula("G" + semilla + "X" + i)
+            .conEdad(r.nextInt(100))
+            .conDiagnostico(DIAGNOSTICOS[r.nextInt(DIAGNOSTICOS.length)])
+            .conMedico("Dr. " + APELLIDOS[r.nextInt(APELLIDOS.length)]);
+        for (int n = r.nextInt(4); n > 0; n--) b.agregarMedicamento(MEDICAMENTOS[r.nextInt(MEDICAMENTOS.length)]);
+        if (r.nextInt(3) == 0) b.agregarAlergia(ALERGIAS[r.nextInt(ALERGIAS.length)]);
+        if (r.nextInt(4) == 0) b.agregarExamen(EXAMENES[r.nextInt(EXAMENES.length)]);
+        if (r.nextInt(5) == 0) b.conNotas("Control en " + (1 + r.nextInt(12)) + " semanas");
+        return b.construir();
+    }
+
+    /** El mismo paciente {@code i} como cuerpo JSON de POST /expedientes. */
+    String generarJson(int i) {
+        String clave = claves[plantilla(new SplittableRandom(semilla * 0x9E3779B97F4A7C15L + i))];
+        ExpedienteMedico e = generar(i);
+        Map<String, Object> m = ServidorHttpExpedientes.aMapa(i, e);
+        m.remove("id");
+        m.remove("tipoPaciente");
+        m.remove("tipoAtencion");
+        m.put("plantilla", clave);
+        // Los exámenes de la plantilla los pone el servidor; solo se envían los añadidos
+        List<String> extra = new ArrayList<>(e.examenes);
+        extra.removeAll(registro.obtenerClon(clave).getExamenesBase());
+        m.put("examenes", extra);
+        return Json.escribir(m);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> op = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Se esperaba clave=valor: " + a);
+            op.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        int n     = Integer.parseInt(op.getOrDefault("n", "100000"));
+        int hilos = Integer.parseInt(op.getOrDefault("hilos", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long semilla = Long.parseLong(op.getOrDefault("semilla", "1"));
+        String via = op.getOrDefault("via", "directo");
+        boolean porCanal = "canal".equals(via), porHttp = "http".equals(via);
+
+        RegistroPrototipos registro = new RegistroPrototipos();
+        Path archivoPlantillas = Paths.get(op.getOrDefault("plantillas", "plantillas.txt"));
+        if (Files.exists(archivoPlantillas)) registro.cargar(archivoPlantillas);
+        if (registro.getClaves().isEmpty()) registro.registrarPredeterminadas();
+
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        if (op.containsKey("mezcla")) {
+            for (String parte : op.get("mezcla").split(",")) {
+                String[] kv = parte.split(":");
+                if (!registro.getClaves().contains(kv[0].trim()))
+                    throw new IllegalArgumentException("Plantilla desconocida: " + kv[0].trim() + " (hay " + registro.getClaves() + ")");
+                mezcla.put(kv[0].trim(), kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1);
+            }
+        } else {
+            for (String c : registro.getClaves()) mezcla.put(c, 1);
+        }
+
+        Path dir = op.containsKey("dir") ? Paths.get(op.get("dir")) : Files.createTempDirectory("carga-expedientes");
+        RepositorioIndexado repo = null;
+        ServicioExpedientes servicio = null;
+        ServidorHttpExpedientes servidor = null;
+        String base = op.get("url");
+        if (porHttp && base == null) {
+            // El servidor local siempre lleva sus índices: es lo que atiende la API
+            if (op.containsKey("particiones")) System.setProperty("expedientes.particiones", op.get("particiones"));
+            servicio = "si".equals(op.get("memoria")) ? ServicioExpedientes.enMemoria()
+                : ServicioExpedientes.abrir(dir, archivoPlantillas, aviso -> System.err.println("Aviso: " + aviso));
+            servidor = new ServidorHttpExpedientes(servicio, 0).iniciar();
+            base = servidor.url();
+        } else if (!porHttp) {
+            repo = new RepositorioIndexado("si".equals(op.get("memoria")) ? new RepositorioEnMemoria()
+                : op.containsKey("particiones") ? new RepositorioParticionado(dir, Integer.parseInt(op.get("particiones")))
+                : new RepositorioExpedientesLog(dir));
+            if (!"no".equals(op.get("oyentes"))) {
+                AlmacenColumnar columnar = new AlmacenColumnar();
+                repo.agregarOyente(new IndiceTextoCompleto(), columnar, new AgregadosExpedientes(), new IndiceOrden(columnar));
+            }
+        }
+        HttpClient cliente = porHttp ? HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build() : null;
+        URI destino = porHttp ? URI.create(base + "/expedientes") : null;
+        String token = op.get("token");
+
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, semilla);
+        System.out.printf("%,d expedientes · %d hilos · vía %s · mezcla %s%n", n, hilos, porHttp ? via + " " + base : via, mezcla);
+
+        long[] latencias = new long[n];
+        LongAdder errores = new LongAdder();
+        CountDownLatch terminados = new CountDownLatch(n);
+        CanalGuardado canal = porCanal ? new CanalGuardado(repo, 1024, Runnable::run) : null;
+        ForkJoinPool pool = new ForkJoinPool(hilos);
+
+        long asignadoAntes = bytesAsignadosTotales();
+        long t0 = System.nanoTime();
+        RepositorioIndexado destinoRepo = repo;
+        pool.invoke(new Tramo(0, n, i -> {
+            long inicio = System.nanoTime();
+            if (porHttp) {
+                try {
+                    HttpRequest.Builder solicitud = HttpRequest.newBuilder(destino)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(gen.generarJson(i)));
+                    if (token != null) solicitud.header("Authorization", "Bearer " + token);
+                    HttpResponse<Void> r = cliente.send(solicitud.build(), HttpResponse.BodyHandlers.discarding());
+                    if (r.statusCode() != 201) errores.increment();
+                } catch (IOException ex) {
+                    errores.increment();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                latencias[i] = System.nanoTime() - inicio;
+                terminados.countDown();
+            } else if (canal == null) {
+                try {
+                    destinoRepo.guardar(gen.generar(i));
+                } catch (RuntimeException ex) {
+                    errores.increment();
+                }
+                latencias[i] = System.nanoTime() - inicio;
+                terminados.countDown();
+            } else {
+                try {
+                    canal.enviarEsperando(() -> gen.generar(i), (id, e, error) -> {
+                        if (error != null) errores.increment();
+                        latencias[i] = System.nanoTime() - inicio;
+                        terminados.countDown();
+                    });
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        terminados.await();
+        long ns = System.nanoTime() - t0;
+        long asignado = bytesAsignadosTotales() - asignadoAntes;
+
+        pool.shutdown();
+        if (canal != null) canal.cerrar();
+        if (repo != null) repo.cerrar();
+        if (servidor != null) servidor.detener();
+        if (servicio != null) servicio.cerrar();
+        // Con particiones el directorio tiene subdirectorios: se borra el árbol, hojas primero
+        if (!op.containsKey("dir") && Files.exists(dir)) {
+            try (Stream<Path> s = Files.walk(dir)) {
+                for (Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) Files.deleteIfExists(p);
+            }
+        }
+
+        Arrays.sort(latencias);
+        double seg = ns / 1e9;
+        System.out.printf("duración %.2f s · %,.0f expedientes/s · errores %d%n", seg, n / seg, errores.sum());
+        System.out.printf("latencia de guardado (µs): p50 %.0f · p90 %.0f · p99 %.0f · p99.9 %.0f · máx %.0f%n",
+            percentil(latencias, 0.50), percentil(latencias, 0.90), percentil(latencias, 0.99),
+            percentil(latencias, 0.999), latencias[n - 1] / 1e3);
+        System.out.printf("asignación: %.1f MB · %,.0f B/expediente · %.1f MB/s%n",
+            asignado / 1e6, (double) asignado / n, asignado / 1e6 / seg);
+    }
+
+    private static double percentil(long[] ordenados, double p) {
+        return ordenados[Math.min(ordenados.length - 1, (int) (ordenados.length * p))] / 1e3;
+    }
+
+    // Suma de bytes asignados por todos los hilos vivos (los del pool y el escritor siguen vivos al medir)
+    private static long bytesAsignadosTotales() {
+        com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long b : mx.getThreadAllocatedBytes(mx.getAllThreadIds())) if (b > 0) total += b;
+        return total;
+    }
+
+    // Reparte [desde, hasta) en tramos de hasta 1024 índices entre los hilos del pool
+    private static final class Tramo extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int desde, hasta;
+        private final IntConsumer tarea;
+
+        Tramo(int desde, int hasta, IntConsumer tarea) {
+            this.desde = desde;
+            this.hasta = hasta;
+            this.tarea = tarea;
+        }
+
+        @Override protected void compute() {
+            if (hasta - desde <= 1024) {
+                for (int i = desde; i < hasta; i++) tarea.accept(i);
+                return;
+            }
+            int mitad = (desde + hasta) >>> 1;
+            invokeAll(new Tramo(desde, mitad, tarea), new Tramo(mitad, hasta, tarea));
+        }
+    }
+}
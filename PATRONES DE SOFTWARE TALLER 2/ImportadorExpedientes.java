@@ -0,0 +1,321 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Importa expedientes desde CSV (con cabecera) o JSON Lines. Un hilo lee el
+ * archivo en bloques; un pool valida y construye cada bloque con
+ * obtenerClon(plantilla) + Builder; los bloques se confirman en orden con
+ * guardarLote(). Como hay un número acotado de bloques en vuelo, la memoria
+ * no depende del tamaño del archivo. Las filas inválidas van a un CSV de rechazos.
+ */
+class ImportadorExpedientes {
+    interface Progreso { void avance(Resumen r); }
+
+    static final class Resumen {
+        final long filas, importadas, rechazadas, bytesLeidos, bytesTotales;
+
+        Resumen(long filas, long importadas, long rechazadas, long bytesLeidos, long bytesTotales) {
+            this.filas = filas; this.importadas = importadas; this.rechazadas = rechazadas;
+            this.bytesLeidos = bytesLeidos; this.bytesTotales = bytesTotales;
+        }
+    }
+
+    static final String[] CAMPOS = {"plantilla", "nombre", "cedula", "edad", "medico",
+                                    "diagnostico", "notas", "medicamentos", "alergias", "examenes"};
+
+    private static final class Fila {
+        final long linea; final String texto;
+        Fila(long linea, String texto) { this.linea = linea; this.texto = texto; }
+    }
+
+    private static final class Bloque {
+        final List<ExpedienteMedico> validos = new ArrayList<>();
+        final List<Fila> origen = new ArrayList<>();
+        final List<String> rechazos = new ArrayList<>();
+    }
+
+    private final RegistroPrototipos registro;
+    private final RepositorioExpedientes repositorio;
+    private final int hilos, tamBloque;
+
+    public ImportadorExpedientes(RegistroPrototipos registro, RepositorioExpedientes repositorio) {
+        this(registro, repositorio, Runtime.getRuntime().availableProcessors(), 1000);
+    }
+
+    public ImportadorExpedientes(RegistroPrototipos registro, RepositorioExpedientes repositorio,
+                                 int hilos, int tamBloque) {
+        this.registro    = registro;
+        this.repositorio = repositorio;
+        this.hilos       = hilos;
+        this.tamBloque   = tamBloque;
+    }
+
+    static boolean esJson(Path archivo) {
+        String n = archivo.getFileName().toString().toLowerCase();
+        return n.endsWith(".json") || n.endsWith(".jsonl") || n.endsWith(".ndjson");
+    }
+
+    public Resumen importar(Path archivo, Path rechazos, Progreso progreso)
+            throws IOException, InterruptedException {
+        boolean json = esJson(archivo);
+        long total = Files.size(archivo);
+        long[] cuenta = new long[3];   // filas, importadas, rechazadas
+        ExecutorService pool = Executors.newFixedThreadPool(hilos, r -> {
+            Thread t = new Thread(r, "importador-expedientes");
+            t.setDaemon(true);
+            return t;
+        });
+        ArrayDeque<Future<Bloque>> enVuelo = new ArrayDeque<>();
+
+        try (ContadorBytes in = new ContadorBytes(new BufferedInputStream(Files.newInputStream(archivo)));
+             LectorRegistros lector = new LectorRegistros(new InputStreamReader(in, StandardCharsets.UTF_8), !json);
+             BufferedWriter rech = Files.newBufferedWriter(rechazos, StandardCharsets.UTF_8)) {
+            rech.write("linea,motivo,contenido");
+            rech.newLine();
+
+            String[] cabecera = null;
+            if (!json) {
+                Fila f = lector.siguiente();
+                if (f == null) return new Resumen(0, 0, 0, total, total);
+                cabecera = cabecera(f.texto);
+            }
+            final String[] columnas = cabecera;
+
+            List<Fila> filas = new ArrayList<>(tamBloque);
+            for (Fila f; (f = lector.siguiente()) != null; ) {
+                if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+                if (f.texto.isBlank()) continue;
+                filas.add(f);
+                cuenta[0]++;
+                if (filas.size() == tamBloque) {
+                    List<Fila> b = filas;
+                    enVuelo.add(pool.submit(() -> procesar(b, columnas)));
+                    filas = new ArrayList<>(tamBloque);
+                    while (enVuelo.size() > hilos * 2)
+                        confirmar(esperar(enVuelo.poll()), rech, cuenta, progreso, in.leidos, total);
+                }
+            }
+            if (!filas.isEmpty()) {
+                List<Fila> b = filas;
+                enVuelo.add(pool.submit(() -> procesar(b, columnas)));
+            }
+            while (!enVuelo.isEmpty())
+                confirmar(esperar(enVuelo.poll()), rech, cuenta, progreso, total, total);
+            return new Resumen(cuenta[0], cuenta[1], cuenta[2], total, total);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Bloque esperar(Future<Bloque> f) throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private String[] cabecera(String linea) {
+        List<String> cols = partirCsv(linea);
+        String[] nombres = new String[cols.size()];
+        for (int i = 0; i < nombres.length; i++)
+            nombres[i] = String.join("", IndiceTextoCompleto.tokenizar(cols.get(i)));
+        return nombres;
+    }
+
+    // ── Etapa paralela: parsear, validar y construir ──
+    private Bloque procesar(List<Fila> filas, String[] cabecera) {
+        Bloque b = new Bloque();
+        ExpedienteMedico.Builder builder = ExpedienteMedico.Builder.reutilizable();
+        for (Fila f : filas) {
+            try {
+                Map<String, Object> campos;
+                if (cabecera == null) {
+                    Object v = Json.parsear(f.texto);
+                    if (!(v instanceof Map)) throw new IllegalArgumentException("Se esperaba un objeto JSON");
+                    @SuppressWarnings("unchecked") Map<String, Object> m = (Map<String, Object>) v;
+                    campos = m;
+                } else {
+                    List<String> valores = partirCsv(f.texto);
+                    campos = new HashMap<>();
+                    for (int i = 0; i < cabecera.length && i < valores.size(); i++) campos.put(cabecera[i], valores.get(i));
+                }
+                b.validos.add(construir(campos, builder));
+                b.origen.add(f);
+            } catch (RuntimeException ex) {
+                b.rechazos.add(rechazo(f, ex.getMessage()));
+            }
+        }
+        return b;
+    }
+
+    ExpedienteMedico construir(Map<String, Object> m, ExpedienteMedico.Builder builder) {
+        String plantilla = texto(m.get("plantilla"));
+        if (plantilla == null) throw new IllegalArgumentException("Falta la plantilla.");
+        ExpedienteMedico.Builder b = builder.reiniciar(registro.obtenerClon(plantilla))
+            .conNombre(texto(m.get("nombre")))
+            .conCedula(texto(m.get("cedula")))
+            .conDiagnostico(texto(m.get("diagnostico")))
+            .conMedico(texto(m.get("medico")))
+            .conNotas(texto(m.get("notas")));
+
+        Object edad = m.get("edad");
+        try {
+            int v = edad instanceof Number ? ((Number) edad).intValue() : Integer.parseInt(texto(edad));
+            if (v < 0 || v > 130) throw new NumberFormatException();
+            b.conEdad(v);
+        } catch (NumberFormatException | NullPointerException ex) {
+            throw new IllegalArgumentException("Edad inválida: " + edad);
+        }
+
+        for (String v : lista(m.get("medicamentos"))) b.agregarMedicamento(v);
+        for (String v : lista(m.get("alergias")))     b.agregarAlergia(v);
+        for (String v : lista(m.get("examenes")))     b.agregarExamen(v);
+        return b.construir();
+    }
+
+    private static String texto(Object v) {
+        if (v == null) return null;
+        String t = v.toString().trim();
+        return t.isEmpty() ? null : t;
+    }
+
+    // En CSV las listas van separadas por ';' o '|'
+    private static List<String> lista(Object v) {
+        List<String> out = new ArrayList<>();
+        if (v instanceof Collection) {
+            for (Object o : (Collection<?>) v) if (texto(o) != null) out.add(texto(o));
+        } else if (texto(v) != null) {
+            for (String parte : texto(v).split("[;|]")) if (!parte.isBlank()) out.add(parte.trim());
+        }
+        return out;
+    }
+
+    // ── Etapa secuencial: confirmar en orden ──
+    private void confirmar(Bloque b, BufferedWriter rech, long[] cuenta, Progreso progreso,
+                           long leidos, long total) throws IOException {
+        for (String r : b.rechazos) { rech.write(r); rech.newLine(); }
+        cuenta[2] += b.rechazos.size();
+
+        List<ExpedienteMedico> lote = new ArrayList<>(b.validos.size());
+        List<Fila> origen = new ArrayList<>(b.validos.size());
+        Set<String> vistas = new HashSet<>();
+        for (int i = 0; i < b.validos.size(); i++) {
+            ExpedienteMedico e = b.validos.get(i);
+            if (!vistas.add(RepositorioExpedientes.normalizarCedula(e.cedula))
+                    || repositorio.buscarIdPorCedula(e.cedula) >= 0) {
+                rech.write(rechazo(b.origen.get(i), "Cédula duplicada: " + e.cedula));
+                rech.newLine();
+                cuenta[2]++;
+            } else {
+                lote.add(e);
+                origen.add(b.origen.get(i));
+            }
+        }
+        try {
+            if (!lote.isEmpty()) repositorio.guardarLote(lote);
+            cuenta[1] += lote.size();
+        } catch (CedulaDuplicadaException ex) {
+            // Alguien guardó la misma cédula mientras tanto: confirmar uno por uno
+            for (int i = 0; i < lote.size(); i++) {
+                try {
+                    repositorio.guardar(lote.get(i));
+                    cuenta[1]++;
+                } catch (CedulaDuplicadaException dup) {
+                    rech.write(rechazo(origen.get(i), dup.getMessage()));
+                    rech.newLine();
+                    cuenta[2]++;
+                }
+            }
+        }
+        if (progreso != null) progreso.avance(new Resumen(cuenta[0], cuenta[1], cuenta[2], leidos, total));
+    }
+
+    private static String rechazo(Fila f, String motivo) {
+        return f.linea + "," + csv(motivo) + "," + csv(f.texto);
+    }
+
+    private static String csv(String v) {
+        return '"' + String.valueOf(v).replace("\"", "\"\"") + '"';
+    }
+
+    static List<String> partirCsv(String linea) {
+        List<String> campos = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean comillas = false;
+        for (int i = 0; i < linea.length(); i++) {
+            char c = linea.charAt(i);
+            if (comillas) {
+                if (c == '"' && i + 1 < linea.length() && linea.charAt(i + 1) == '"') { sb.append('"'); i++; }
+                else if (c == '"') comillas = false;
+                else sb.append(c);
+            } else if (c == '"') {
+                comillas = true;
+            } else if (c == ',') {
+                campos.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        campos.add(sb.toString());
+        return campos;
+    }
+
+    /** Lee registros lógicos: en CSV un campo entre comillas puede ocupar varias líneas. */
+    private static final class LectorRegistros implements Closeable {
+        private final BufferedReader r;
+        private final boolean csv;
+        private long linea;
+
+        LectorRegistros(Reader r, boolean csv) { this.r = new BufferedReader(r, 1 << 16); this.csv = csv; }
+
+        Fila siguiente() throws IOException {
+            String l = r.readLine();
+            if (l == null) return null;
+            long inicio = ++linea;
+            if (csv) {
+                StringBuilder sb = null;
+                while (comillasAbiertas(sb == null ? l : sb)) {
+                    String mas = r.readLine();
+                    if (mas == null) break;
+                    linea++;
+                    if (sb == null) sb = new StringBuilder(l);
+                    sb.append('\n').append(mas);
+                }
+                if (sb != null) l = sb.toString();
+            }
+            return new Fila(inicio, l);
+        }
+
+        private static boolean comillasAbiertas(CharSequence s) {
+            int n = 0;
+            for (int i = 0; i < s.length(); i++) if (s.charAt(i) == '"') n++;
+            return n % 2 == 1;
+        }
+
+        @Override public void close() throws IOException { r.close(); }
+    }
+
+    private static final class ContadorBytes extends FilterInputStream {
+        volatile long leidos;
+
+        ContadorBytes(InputStream in) { super(in); }
+
+        @Override public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) leidos++;
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) leidos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Permutaciones ordenadas de ids para la tabla. Nombre (orden alfabético
+ * español, ver {@link #claveNombre}) y cédula (numérica cuando solo tiene
+ * dígitos) guardan un arreglo ordenado
+ * más los ids llegados desde la última consulta: al pedir la permutación se
+ * ordenan solo esos y se mezclan en O(n), sin reordenar todo en cada
+ * inserción. Edad y las columnas de diccionario salen ya ordenadas de los
+ * bitmaps de {@link AlmacenColumnar}.
+ */
+class IndiceOrden implements OyenteExpedientes {
+    enum Clave { ID, NOMBRE, CEDULA, EDAD, TIPO_PACIENTE, TIPO_ATENCION, MEDICO }
+
+    private final AlmacenColumnar columnar;
+    private final Collator colacion;
+
+    private static final class Permutacion {
+        int[] ordenados = new int[0];
+        int[] pendientes = new int[256];
+        int nPendientes;
+        int cambios;   // modificaciones de claves; invalida una mezcla en curso
+        final BitSet quitados = new BitSet();   // su entrada en ordenados es vieja: la próxima mezcla la salta
+    }
+
+    // Las claves se leen y escriben solo bajo el lock; la mezcla usa una copia
+    private final Permutacion porNombre = new Permutacion(), porCedula = new Permutacion();
+    private String[] clavesNombre = new String[1024];
+    private long[] cedulasNumericas = new long[1024];
+    private final Map<Integer, String> cedulasTexto = new HashMap<>();   // las que no son solo dígitos
+    private int tope;   // mayor id recibido + 1
+
+    public IndiceOrden(AlmacenColumnar columnar) {
+        this.columnar = columnar;
+        this.colacion = Collator.getInstance(new Locale("es"));
+        colacion.setStrength(Collator.SECONDARY);   // ignora mayúsculas, no los acentos
+    }
+
+    @Override
+    public synchronized void expedienteGuardado(int id, ExpedienteMedico e) {
+        if (id >= clavesNombre.length) {
+            int cap = Math.max(id + 1, clavesNombre.length * 2);
+            clavesNombre = Arrays.copyOf(clavesNombre, cap);
+            cedulasNumericas = Arrays.copyOf(cedulasNumericas, cap);
+        }
+        tope = Math.max(tope, id + 1);
+        clavesNombre[id] = claveNombre(e.nombrePaciente);
+        String cedula = RepositorioExpedientes.normalizarCedula(e.cedula);
+        if (!cedula.isEmpty() && cedula.length() <= 18 && cedula.chars().allMatch(Character::isDigit))
+            cedulasNumericas[id] = Long.parseLong(cedula);
+        else {
+            cedulasNumericas[id] = -1;
+            cedulasTexto.put(id, cedula);
+        }
+        agregarPendiente(porNombre, id);
+        agregarPendiente(porCedula, id);
+    }
+
+    /**
+     * Si cambió el nombre o la cédula, el id sale de su permutación y vuelve
+     * como pendiente con la clave nueva.
+     */
+    @Override
+    public synchronized void expedienteModificado(int id, ExpedienteMedico anterior, ExpedienteMedico nueva) {
+        String nombre = claveNombre(nueva.nombrePaciente);
+        if (!nombre.equals(clavesNombre[id])) {
+            quitar(porNombre, id);
+            clavesNombre[id] = nombre;
+            agregarPendiente(porNombre, id);
+        }
+        String cedula = RepositorioExpedientes.normalizarCedula(nueva.cedula);
+        if (!cedula.equals(RepositorioExpedientes.normalizarCedula(anterior.cedula))) {
+            quitar(porCedula, id);
+            if (!cedula.isEmpty() && cedula.length() <= 18 && cedula.chars().allMatch(Character::isDigit)) {
+                cedulasNumericas[id] = Long.parseLong(cedula);
+                cedulasTexto.remove(id);
+            } else {
+                cedulasNumericas[id] = -1;
+                cedulasTexto.put(id, cedula);
+            }
+            agregarPendiente(porCedula, id);
+        }
+    }
+
+    // El arreglo ordenado no se copia: la entrada vieja se marca y la descarta la próxima mezcla
+    private static void quitar(Permutacion p, int id) {
+        p.cambios++;
+        p.quitados.set(id);
+        for (int k = 0; k < p.nPendientes; k++) {
+            if (p.pendientes[k] != id) continue;
+            System.arraycopy(p.pendientes, k + 1, p.pendientes, k, p.nPendientes - k - 1);
+            p.nPendientes--;
+            break;
+        }
+    }
+
+    private static final char[] PLEGADO = new char[0x250];
+    static {
+        for (char c = 0; c < PLEGADO.length; c++) {
+            String d = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+            PLEGADO[c] = Character.toLowerCase(d.charAt(0));
+        }
+    }
+
+    /**
+     * Clave de orden por nombre con el mismo resultado que un Collator español
+     * en fuerza primaria (sin mayúsculas ni acentos, ñ entre n y o) pero
+     * comparable con String.compareTo: getCollationKey cuesta ~5 µs por nombre,
+     * demasiado para un millón de altas.
+     */
+    static String claveNombre(String nombre) {
+        if (nombre == null) return "";
+        StringBuilder sb = new StringBuilder(nombre.length() + 2);
+        for (int i = 0; i < nombre.length(); i++) {
+            char c = nombre.charAt(i);
+            if (c == 'ñ' || c == 'Ñ') sb.append('n').append(Character.MAX_VALUE);
+            else sb.append(c < PLEGADO.length ? PLEGADO[c] : Character.toLowerCase(c));
+        }
+        return sb.toString();
+    }
+
+    private static void agregarPendiente(Permutacion p, int id) {
+        if (p.nPendientes == p.pendientes.length) p.pendientes = Arrays.copyOf(p.pendientes, p.nPendientes * 2);
+        p.pendientes[p.nPendientes++] = id;
+    }
+
+    /** Comparador de textos en español; cada llamada devuelve uno propio (Collator no es thread-safe). */
+    public synchronized Comparator<String> colacion() {
+        Collator c = (Collator) colacion.clone();
+        return c::compare;
+    }
+
+    /**
+     * Ids visibles en el orden pedido; {@code filtro} null = todos. Puede tardar
+     * (la primera vez ordena todo lo pendiente): llamar fuera del EDT.
+     */
+    public int[] vista(Clave clave, boolean ascendente, BitSet filtro, int total) {
+        int[] salida = new int[filtro == null ? total : filtro.cardinality()];
+        int[] n = {0};
+        IntConsumer emitir = id -> { if (n[0] < salida.length) salida[n[0]++] = id; };
+        switch (clave) {
+            case ID:
+                if (ascendente) {
+                    for (int id = 0; id < total; id++) if (filtro == null || filtro.get(id)) emitir.accept(id);
+                } else {
+                    for (int id = total - 1; id >= 0; id--) if (filtro == null || filtro.get(id)) emitir.accept(id);
+                }
+                break;
+            case NOMBRE:
+            case CEDULA:
+                int[] orden = ordenados(clave == Clave.NOMBRE ? porNombre : porCedula);
+                for (int k = 0; k < orden.length; k++) {
+                    int id = orden[ascendente ? k : orden.length - 1 - k];
+                    if (id < total && (filtro == null || filtro.get(id))) emitir.accept(id);
+                }
+                break;
+            case EDAD:
+                columnar.recorrerPorEdad(ascendente, filtro, emitir);
+                break;
+            default:
+                AlmacenColumnar.Columna c = clave == Clave.TIPO_PACIENTE ? AlmacenColumnar.Columna.TIPO_PACIENTE
+                    : clave == Clave.TIPO_ATENCION ? AlmacenColumnar.Columna.TIPO_ATENCION : AlmacenColumnar.Columna.MEDICO;
+                columnar.recorrerOrdenado(c, colacion(), ascendente, filtro, emitir);
+        }
+        return n[0] == salida.length ? salida : Arrays.copyOf(salida, n[0]);
+    }
+
+    // Bajo el lock: compara sobre una copia de las claves, que la mezcla usa ya sin él
+    private IntBinaryOperator comparador(Clave clave) {
+        if (clave == Clave.NOMBRE) {
+            String[] claves = Arrays.copyOf(clavesNombre, tope);
+            return (a, b) -> {
+                int c = claves[a].compareTo(claves[b]);
+                return c != 0 ? c : Integer.compare(a, b);
+            };
+        }
+        // Cédulas numéricas primero y por valor; luego las alfanuméricas como texto
+        long[] numericas = Arrays.copyOf(cedulasNumericas, tope);
+        Map<Integer, String> texto = new HashMap<>(cedulasTexto);
+        return (a, b) -> {
+            long x = numericas[a], y = numericas[b];
+            int c;
+            if (x >= 0 && y >= 0) c = Long.compare(x, y);
+            else if (x >= 0 || y >= 0) c = x >= 0 ? -1 : 1;
+            else c = texto.get(a).compareTo(texto.get(b));
+            return c != 0 ? c : Integer.compare(a, b);
+        };
+    }
+
+    /*
+     * Los pendientes se toman bajo el lock junto con una copia de las claves,
+     * se ordenan fuera de él (los guardados siguen entrando) y se mezclan con
+     * el arreglo ordenado, saltando las entradas viejas de los ids
+     * modificados. Si otra modificación llega mientras tanto, la copia ya no
+     * sirve: la mezcla se descarta y se repite con los pendientes devueltos.
+     */
+    private int[] ordenados(Permutacion p) {
+        while (true) {
+            int[] nuevos;
+            int[] base;
+            BitSet quitados;
+            int cambios;
+            IntBinaryOperator comparar;
+            synchronized (this) {
+                if (p.nPendientes == 0) return p.ordenados;
+                nuevos = Arrays.copyOf(p.pendientes, p.nPendientes);
+                p.nPendientes = 0;
+                base = p.ordenados;
+                quitados = (BitSet) p.quitados.clone();
+                p.quitados.clear();
+                cambios = p.cambios;
+                comparar = comparador(p == porNombre ? Clave.NOMBRE : Clave.CEDULA);
+            }
+            ordenar(nuevos, comparar);
+            int[] mezcla = new int[base.length + nuevos.length];
+            int n = 0;
+            for (int i = 0, j = 0; i < base.length || j < nuevos.length; ) {
+                if (i < base.length && quitados.get(base[i])) { i++; continue; }
+                mezcla[n++] = j >= nuevos.length || (i < base.length && comparar.applyAsInt(base[i], nuevos[j]) <= 0)
+                    ? base[i++] : nuevos[j++];
+            }
+            if (n < mezcla.length) mezcla = Arrays.copyOf(mezcla, n);
+            synchronized (this) {
+                if (p.cambios == cambios) {
+                    p.ordenados = mezcla;
+                    return mezcla;
+                }
+                p.quitados.or(quitados);
+                // El id modificado ya volvió a pendientes: no repetirlo
+                BitSet yaPendientes = new BitSet();
+                for (int k = 0; k < p.nPendientes; k++) yaPendientes.set(p.pendientes[k]);
+                for (int id : nuevos) if (!yaPendientes.get(id)) agregarPendiente(p, id);
+            }
+        }
+    }
+
+    // Mergesort sobre int[] con comparador primitivo (sin Integer en caja)
+    static void ordenar(int[] a, IntBinaryOperator cmp) {
+        int[] aux = new int[a.length];
+        for (int ancho = 1; ancho < a.length; ancho *= 2) {
+            for (int ini = 0; ini < a.length - ancho; ini += 2 * ancho) {
+                int mitad = ini + ancho, fin = Math.min(ini + 2 * ancho, a.length);
+                if (cmp.applyAsInt(a[mitad - 1], a[mitad]) <= 0) continue;   // ya en orden
+                System.arraycopy(a, ini, aux, ini, fin - ini);
+                for (int i = ini, j = mitad, k = ini; k < fin; k++)
+                    a[k] = j >= fin || (i < mitad && cmp.applyAsInt(aux[i], aux[j]) <= 0) ? aux[i++] : aux[j++];
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * Índice invertido incremental sobre diagnóstico, notas, medicamentos, alergias
+ * y exámenes. Los términos se pliegan a minúsculas y sin tildes; cada posting
+ * guarda el id y un peso según el campo donde apareció. Un término que termina
+ * en '*' se busca como prefijo. Los resultados se ordenan por Σ idf·peso.
+ */
+class IndiceTextoCompleto implements OyenteExpedientes {
+    private static final Set<String> VACIAS = new HashSet<>(Arrays.asList(
+        "a", "al", "con", "de", "del", "el", "en", "la", "las", "los", "o", "para",
+        "por", "que", "se", "sin", "su", "un", "una", "y"));
+
+    private static final class Postings {
+        int[]  ids   = new int[2];
+        byte[] pesos = new byte[2];
+        int    n;
+
+        void agregar(int id, int peso) {
+            if (n == ids.length) {
+                ids   = Arrays.copyOf(ids,   n * 2);
+                pesos = Arrays.copyOf(pesos, n * 2);
+            }
+            int pos = (n == 0 || ids[n - 1] < id) ? n : -Arrays.binarySearch(ids, 0, n, id) - 1;
+            System.arraycopy(ids,   pos, ids,   pos + 1, n - pos);
+            System.arraycopy(pesos, pos, pesos, pos + 1, n - pos);
+            ids[pos]   = id;
+            pesos[pos] = (byte) Math.min(peso, Byte.MAX_VALUE);
+            n++;
+        }
+
+        void quitar(int id) {
+            int pos = Arrays.binarySearch(ids, 0, n, id);
+            if (pos < 0) return;
+            System.arraycopy(ids,   pos + 1, ids,   pos, n - pos - 1);
+            System.arraycopy(pesos, pos + 1, pesos, pos, n - pos - 1);
+            n--;
+        }
+    }
+
+    private final TreeMap<String, Postings> terminos = new TreeMap<>();
+    private int documentos;
+
+    @Override
+    public synchronized void expedienteGuardado(int id, ExpedienteMedico e) {
+        pesos(e).forEach((t, p) -> terminos.computeIfAbsent(t, k -> new Postings()).agregar(id, p));
+        documentos++;
+    }
+
+    /** Solo se tocan los términos que aparecen, desaparecen o cambian de peso. */
+    @Override
+    public synchronized void expedienteModificado(int id, ExpedienteMedico anterior, ExpedienteMedico nueva) {
+        Map<String, Integer> antes = pesos(anterior), ahora = pesos(nueva);
+        antes.forEach((t, p) -> {
+            if (p.equals(ahora.get(t))) return;
+            Postings l = terminos.get(t);
+            if (l == null) return;
+            l.quitar(id);
+            if (l.n == 0) terminos.remove(t);
+        });
+        ahora.forEach((t, p) -> {
+            if (!p.equals(antes.get(t))) terminos.computeIfAbsent(t, k -> new Postings()).agregar(id, p);
+        });
+    }
+
+    private static Map<String, Integer> pesos(ExpedienteMedico e) {
+        Map<String, Integer> pesos = new HashMap<>();
+        indexar(pesos, e.diagnostico, 3);
+        for (String m : e.medicamentos) indexar(pesos, m, 2);
+        for (String a : e.alergias)     indexar(pesos, a, 2);
+        for (String x : e.examenes)     indexar(pesos, x, 1);
+        indexar(pesos, e.notasAdicionales, 1);
+        return pesos;
+    }
+
+    private static void indexar(Map<String, Integer> pesos, String texto, int peso) {
+        for (String t : tokenizar(texto)) pesos.merge(t, peso, Integer::sum);
+    }
+
+    static List<String> tokenizar(String texto) {
+        List<String> tokens = new ArrayList<>();
+        if (texto == null) return tokens;
+        String n = Normalizer.normalize(texto, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= n.length(); i++) {
+            char c = i < n.length() ? n.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+            } else if (sb.length() > 0) {
+                String t = sb.toString();
+                sb.setLength(0);
+                if (!VACIAS.contains(t)) tokens.add(t);
+            }
+        }
+        return tokens;
+    }
+
+    /** Ids que contienen todos los términos de la consulta, de mayor a menor puntaje. */
+    public synchronized int[] buscar(String consulta, int limite) {
+        Coincidencias c = intersectar(consulta);
+        // Top-k con un min-heap de posiciones: O(n log k) sin ordenar todo
+        int k = Math.min(limite, c.n);
+        int[] heap = new int[k];
+        int tam = 0;
+        for (int i = 0; i < c.n; i++) {
+            if (tam < k) {
+                heap[tam] = i;
+                for (int j = tam++; j > 0 && menor(c, heap[j], heap[(j - 1) / 2]); j = (j - 1) / 2)
+                    intercambiar(heap, j, (j - 1) / 2);
+            } else if (menor(c, heap[0], i)) {
+                heap[0] = i;
+                for (int j = 0; ; ) {
+                    int h = 2 * j + 1, m = j;
+                    if (h < k && menor(c, heap[h], heap[m])) m = h;
+                    if (h + 1 < k && menor(c, heap[h + 1], heap[m])) m = h + 1;
+                    if (m == j) break;
+                    intercambiar(heap, j, m);
+                    j = m;
+                }
+            }
+        }
+        int[] ids = new int[k];
+        for (int i = k - 1; i >= 0; i--) {
+            ids[i] = c.ids[heap[0]];
+            heap[0] = heap[i];
+            for (int j = 0; ; ) {
+                int h = 2 * j + 1, m = j;
+                if (h < i && menor(c, heap[h], heap[m])) m = h;
+                if (h + 1 < i && menor(c, heap[h + 1], heap[m])) m = h + 1;
+                if (m == j) break;
+                intercambiar(heap, j, m);
+                j = m;
+            }
+        }
+        return ids;
+    }
+
+    private static boolean menor(Coincidencias c, int a, int b) {
+        return c.puntajes[a] < c.puntajes[b] || (c.puntajes[a] == c.puntajes[b] && c.ids[a] > c.ids[b]);
+    }
+
+    private static void intercambiar(int[] h, int a, int b) { int t = h[a]; h[a] = h[b]; h[b] = t; }
+
+    /** Todos los ids que cumplen la consulta, para filtrar la tabla. */
+    public synchronized BitSet coincidencias(String consulta) {
+        Coincidencias c = intersectar(consulta);
+        BitSet bs = new BitSet();
+        for (int i = 0; i < c.n; i++) bs.set(c.ids[i]);
+        return bs;
+    }
+
+    private static final class Coincidencias {
+        int[] ids; float[] puntajes; int n;
+    }
+
+    private Coincidencias intersectar(String consulta) {
+        List<Postings> listas = new ArrayList<>();
+        for (String parte : consulta.trim().split("\\s+")) {
+            List<String> tokens = tokenizar(parte);
+            for (int i = 0; i < tokens.size(); i++) {
+                boolean prefijo = parte.endsWith("*") && i == tokens.size() - 1;
+                listas.add(prefijo ? unirPrefijo(tokens.get(i)) : terminos.getOrDefault(tokens.get(i), new Postings()));
+            }
+        }
+        Coincidencias c = new Coincidencias();
+        if (listas.isEmpty()) { c.ids = new int[0]; c.puntajes = new float[0]; return c; }
+        listas.sort(Comparator.comparingInt(l -> l.n));   // la más selectiva primero
+
+        Postings base = listas.get(0);
+        c.ids      = Arrays.copyOf(base.ids, base.n);
+        c.puntajes = new float[base.n];
+        c.n        = base.n;
+        float idf0 = idf(base);
+        for (int i = 0; i < c.n; i++) c.puntajes[i] = idf0 * base.pesos[i];
+
+        for (int k = 1; k < listas.size() && c.n > 0; k++) {
+            Postings l = listas.get(k);
+            float idf = idf(l);
+            int vivos = 0, desde = 0;
+            boolean mezcla = l.n < 8L * c.n;   // tamaños parecidos: recorrido lineal; si no, búsqueda binaria
+            for (int i = 0; i < c.n; i++) {
+                int pos;
+                if (mezcla) {
+                    while (desde < l.n && l.ids[desde] < c.ids[i]) desde++;
+                    pos = desde < l.n && l.ids[desde] == c.ids[i] ? desde : -desde - 1;
+                } else {
+                    pos = Arrays.binarySearch(l.ids, desde, l.n, c.ids[i]);
+                }
+                if (pos >= 0) {
+                    c.ids[vivos]      = c.ids[i];
+                    c.puntajes[vivos] = c.puntajes[i] + idf * l.pesos[pos];
+                    vivos++;
+                    desde = pos + 1;
+                } else {
+                    desde = -pos - 1;
+                }
+            }
+            c.n = vivos;
+        }
+        return c;
+    }
+
+    private float idf(Postings l) {
+        return (float) Math.log(1.0 + (double) documentos / Math.max(1, l.n));
+    }
+
+    private Postings unirPrefijo(String prefijo) {
+        SortedMap<String, Postings> rango = terminos.subMap(prefijo, prefijo + Character.MAX_VALUE);
+        if (rango.size() == 1) return rango.values().iterator().next();
+        int total = 0;
+        for (Postings l : rango.values()) total += l.n;
+        long[] pares = new long[total];
+        int k = 0;
+        for (Postings l : rango.values())
+            for (int i = 0; i < l.n; i++) pares[k++] = ((long) l.ids[i] << 8) | l.pesos[i];
+        Arrays.sort(pares);
+        Postings u = new Postings();
+        for (long par : pares) {
+            int id = (int) (par >>> 8), peso = (int) (par & 0xFF);
+            if (u.n > 0 && u.ids[u.n - 1] == id) u.pesos[u.n - 1] = (byte) Math.max(u.pesos[u.n - 1], peso);
+            else u.agregar(id, peso);
+        }
+        return u;
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.*;
+
+// Lector/escritor mínimo: objetos → LinkedHashMap, arreglos → ArrayList,
+// números → Long o Double.
+final class Json {
+    // Cada nivel es un marco de pila del parser: sin tope, "[[[[…" lo desborda
+    static final int PROFUNDIDAD_MAXIMA = 256;
+
+    private final String s;
+    private int i;
+    private int profundidad;
+
+    private Json(String s) { this.s = s; }
+
+    static Object parsear(String texto) {
+        Json p = new Json(texto);
+        Object v = p.valor();
+        p.espacios();
+        if (p.i != texto.length()) throw p.error("Contenido extra");
+        return v;
+    }
+
+    private Object valor() {
+        espacios();
+        if (i >= s.length()) throw error("Fin inesperado");
+        char c = s.charAt(i);
+        switch (c) {
+            case '{':
+            case '[':
+                if (++profundidad > PROFUNDIDAD_MAXIMA)
+                    throw error("Más de " + PROFUNDIDAD_MAXIMA + " niveles de anidamiento");
+                Object v = c == '{' ? objeto() : arreglo();
+                profundidad--;
+                return v;
+            case '"': return cadena();
+            case 't': return literal("true",  Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null",  null);
+            default:  return numero();
+        }
+    }
+
+    private Map<String, Object> objeto() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        i++;
+        espacios();
+        if (actual() == '}') { i++; return m; }
+        while (true) {
+            espacios();
+            if (actual() != '"') throw error("Se esperaba una clave");
+            String k = cadena();
+            espacios();
+            if (siguiente() != ':') throw error("Se esperaba ':'");
+            m.put(k, valor());
+            espacios();
+            char c = siguiente();
+            if (c == '}') return m;
+            if (c != ',') throw error("Se esperaba ',' o '}'");
+        }
+    }
+
+    private List<Object> arreglo() {
+        List<Object> l = new ArrayList<>();
+        i++;
+        espacios();
+        if (actual() == ']') { i++; return l; }
+        while (true) {
+            l.add(valor());
+            espacios();
+            char c = siguiente();
+            if (c == ']') return l;
+            if (c != ',') throw error("Se esperaba ',' o ']'");
+        }
+    }
+
+    private String cadena() {
+        StringBuilder sb = new StringBuilder();
+        i++;
+        while (true) {
+            char c = siguiente();
+            if (c == '"') return sb.toString();
+            if (c != '\\') { sb.append(c); continue; }
+            char e = siguiente();
+            switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (i + 4 > s.length()) throw error("Fin inesperado");
+                    try {
+                        sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("Escape \\u inválido");
+                    }
+                    i += 4;
+                    break;
+                default:  sb.append(e);
+            }
+        }
+    }
+
+    private Object numero() {
+        int ini = i;
+        while (i < s.length() && "+-0123456789.eE".indexOf(s.charAt(i)) >= 0) i++;
+        String n = s.substring(ini, i);
+        if (n.isEmpty()) throw error("Valor inválido");
+        try {
+            return n.matches("-?\\d+") ? (Object) Long.parseLong(n) : (Object) Double.parseDouble(n);
+        } catch (NumberFormatException ex) {
+            i = ini;
+            throw error("Número inválido");
+        }
+    }
+
+    private Object literal(String palabra, Object v) {
+        if (!s.startsWith(palabra, i)) throw error("Valor inválido");
+        i += palabra.length();
+        return v;
+    }
+
+    private void espacios() {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+    }
+
+    // Un cuerpo truncado debe dar el error del parser, no un StringIndexOutOfBounds
+    private char actual() {
+        if (i >= s.length()) throw error("Fin inesperado");
+        return s.charAt(i);
+    }
+
+    private char siguiente() {
+        char c = actual();
+        i++;
+        return c;
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException("JSON inválido en posición " + i + ": " + msg);
+    }
+
+    static String escribir(Object v) {
+        StringBuilder sb = new StringBuilder();
+        escribir(sb, v);
+        return sb.toString();
+    }
+
+    private static void escribir(StringBuilder sb, Object v) {
+        if (v == null || v instanceof Boolean || v instanceof Number) {
+            sb.append(v);
+        } else if (v instanceof Map) {
+            sb.append('{');
+            boolean primero = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+                if (!primero) sb.append(',');
+                primero = false;
+                escribir(sb, String.valueOf(e.getKey()));
+                sb.append(':');
+                escribir(sb, e.getValue());
+            }
+            sb.append('}');
+        } else if (v instanceof Collection) {
+            sb.append('[');
+            boolean primero = true;
+            for (Object o : (Collection<?>) v) {
+                if (!primero) sb.append(',');
+                primero = false;
+                escribir(sb, o);
+            }
+            sb.append(']');
+        } else {
+            String t = v.toString();
+            sb.append('"');
+            for (int k = 0; k < t.length(); k++) {
+                char c = t.charAt(k);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Listas inmutables de cadenas al tamaño justo: la vacía es compartida, una
+ * y dos cadenas van en campos (16 y 24 bytes en vez de los 24/40 de
+ * List.of o los 40+ de un ArrayList) y desde tres, un arreglo exacto. Los
+ * expedientes tienen casi siempre de cero a tres medicamentos y alergias.
+ */
+final class ListasCompactas {
+    private ListasCompactas() {}
+
+    /** Copia inmutable de {@code l} (null o vacía = la lista vacía compartida). */
+    static List<String> de(List<String> l) {
+        int n = l == null ? 0 : l.size();
+        switch (n) {
+            case 0:  return List.of();
+            case 1:  return new Una(l.get(0));
+            case 2:  return new Dos(l.get(0), l.get(1));
+            default: return new Varias(l.toArray(new String[0]));
+        }
+    }
+
+    private static final class Una extends AbstractList<String> implements RandomAccess, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String a;
+        Una(String a) { this.a = a; }
+        @Override public String get(int i) { if (i != 0) throw new IndexOutOfBoundsException(i); return a; }
+        @Override public int size() { return 1; }
+    }
+
+    private static final class Dos extends AbstractList<String> implements RandomAccess, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String a, b;
+        Dos(String a, String b) { this.a = a; this.b = b; }
+        @Override public String get(int i) {
+            if (i == 0) return a;
+            if (i == 1) return b;
+            throw new IndexOutOfBoundsException(i);
+        }
+        @Override public int size() { return 2; }
+    }
+
+    private static final class Varias extends AbstractList<String> implements RandomAccess, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String[] v;
+        Varias(String[] v) { this.v = v; }
+        @Override public String get(int i) { return v[i]; }
+        @Override public int size() { return v.length; }
+    }
+}
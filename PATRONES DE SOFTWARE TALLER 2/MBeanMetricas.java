@@ -0,0 +1,84 @@
+import java.util.*;
+import javax.management.*;
+
+/**
+ * Vista JMX de {@link Metricas}: por cada medidor los atributos
+ * {@code <nombre>.cuenta}, {@code .errores}, {@code .promedioUs},
+ * {@code .p50Us}, {@code .p99Us}, {@code .p999Us} y {@code .maximoUs};
+ * la operación {@code reiniciar} pone todo a cero.
+ */
+final class MBeanMetricas implements DynamicMBean {
+    static final String NOMBRE = "expedientes:type=Metricas";
+    private static final String[] CAMPOS = {"cuenta", "errores", "promedioUs", "p50Us", "p99Us", "p999Us", "maximoUs"};
+
+    @Override
+    public Object getAttribute(String atributo) throws AttributeNotFoundException {
+        int punto = atributo.lastIndexOf('.');
+        if (punto > 0) {
+            String nombre = atributo.substring(0, punto), campo = atributo.substring(punto + 1);
+            for (Medidor m : Metricas.medidores()) {
+                if (m.nombre.equals(nombre)) {
+                    Object v = valor(m.instantanea(), campo);
+                    if (v != null) return v;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(atributo);
+    }
+
+    private static Object valor(Medidor.Instantanea s, String campo) {
+        switch (campo) {
+            case "cuenta":     return s.cuenta;
+            case "errores":    return s.errores;
+            case "promedioUs": return s.promedioNs() / 1e3;
+            case "p50Us":      return s.percentilNs(50) / 1e3;
+            case "p99Us":      return s.percentilNs(99) / 1e3;
+            case "p999Us":     return s.percentilNs(99.9) / 1e3;
+            case "maximoUs":   return s.maximoNs / 1e3;
+            default:           return null;
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] atributos) {
+        AttributeList lista = new AttributeList();
+        for (String a : atributos) {
+            try { lista.add(new Attribute(a, getAttribute(a))); }
+            catch (AttributeNotFoundException ignorado) { }
+        }
+        return lista;
+    }
+
+    @Override
+    public void setAttribute(Attribute atributo) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Atributo de sólo lectura: " + atributo.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList atributos) { return new AttributeList(); }
+
+    @Override
+    public Object invoke(String operacion, Object[] params, String[] firma) throws ReflectionException {
+        if ("reiniciar".equals(operacion)) {
+            Metricas.reiniciar();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(operacion));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> atributos = new ArrayList<>();
+        for (Medidor m : Metricas.medidores()) {
+            for (String c : CAMPOS) {
+                boolean entero = c.equals("cuenta") || c.equals("errores");
+                atributos.add(new MBeanAttributeInfo(m.nombre + "." + c,
+                    entero ? "long" : "double", m.nombre + " · " + c, true, false, false));
+            }
+        }
+        MBeanOperationInfo reiniciar = new MBeanOperationInfo("reiniciar",
+            "Pone a cero contadores e histogramas", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(MBeanMetricas.class.getName(), "Latencias de los caminos calientes de expedientes",
+            atributos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{reiniciar}, null);
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Contador y histograma de latencias de una operación. Los valores (ns) se
+ * agrupan en 16 subcubetas lineales por cada potencia de dos, así que los
+ * percentiles tienen un error relativo menor a 1/16 con 960 cubetas fijas
+ * (16 para 0–15 ns y 16 por cada exponente de 4 a 62).
+ * Registrar es un LongAdder, un incremento atómico y, sólo si hay nuevo
+ * máximo, un CAS; no reserva memoria salvo que JFR tenga activo el evento.
+ */
+final class Medidor {
+    private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+    static final int CUBETAS = (64 - SUB_BITS) << SUB_BITS;
+
+    final String nombre;
+    private final LongAdder cuenta = new LongAdder(), totalNs = new LongAdder(), errores = new LongAdder();
+    private final AtomicLongArray cubetas = new AtomicLongArray(CUBETAS);
+    private final AtomicLong maximoNs = new AtomicLong();
+
+    Medidor(String nombre) { this.nombre = nombre; }
+
+    /** Cierra la medición abierta con {@link Metricas#inicio()}. */
+    void registrar(long inicioNs) {
+        if (Metricas.ACTIVAS) registrarNs(System.nanoTime() - inicioNs);
+    }
+
+    void registrarNs(long ns) {
+        if (!Metricas.ACTIVAS) return;
+        if (ns < 0) ns = 0;
+        cuenta.increment();
+        totalNs.add(ns);
+        cubetas.incrementAndGet(cubeta(ns));
+        long max = maximoNs.get();
+        while (ns > max && !maximoNs.compareAndSet(max, ns)) max = maximoNs.get();
+        if (EventoOperacion.TIPO.isEnabled()) EventoOperacion.emitir(nombre, ns);
+    }
+
+    void error() { if (Metricas.ACTIVAS) errores.increment(); }
+
+    static int cubeta(long ns) {
+        if (ns < SUB) return (int) ns;
+        int exp = 63 - Long.numberOfLeadingZeros(ns);
+        int sub = (int) (ns >>> (exp - SUB_BITS)) & (SUB - 1);
+        return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    /** Mayor valor que cae en la cubeta {@code i}. */
+    static long techo(int i) {
+        if (i < SUB) return i;
+        int exp = (i >>> SUB_BITS) + SUB_BITS - 1;
+        long base = (long) (SUB + (i & (SUB - 1))) << (exp - SUB_BITS);
+        return base + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    void reiniciar() {
+        cuenta.reset();
+        totalNs.reset();
+        errores.reset();
+        maximoNs.set(0);
+        for (int i = 0; i < CUBETAS; i++) cubetas.set(i, 0);
+    }
+
+    Instantanea instantanea() {
+        long[] copia = new long[CUBETAS];
+        long n = 0;
+        for (int i = 0; i < CUBETAS; i++) n += copia[i] = cubetas.get(i);
+        return new Instantanea(nombre, n, totalNs.sum(), errores.sum(), maximoNs.get(), copia);
+    }
+
+    /** Copia coherente del histograma para calcular percentiles sin tocar los contadores vivos. */
+    static final class Instantanea {
+        final String nombre;
+        final long cuenta, totalNs, errores, maximoNs;
+        private final long[] cubetas;
+
+        Instantanea(String nombre, long cuenta, long totalNs, long errores, long maximoNs, long[] cubetas) {
+            this.nombre = nombre;
+            this.cuenta = cuenta;
+            this.totalNs = totalNs;
+            this.errores = errores;
+            this.maximoNs = maximoNs;
+            this.cubetas = cubetas;
+        }
+
+        double promedioNs() { return cuenta == 0 ? 0 : (double) totalNs / cuenta; }
+
+        long percentilNs(double p) {
+            if (cuenta == 0) return 0;
+            long objetivo = Math.max(1, (long) Math.ceil(cuenta * p / 100.0)), acumulado = 0;
+            for (int i = 0; i < cubetas.length; i++) {
+                acumulado += cubetas[i];
+                if (acumulado >= objetivo) return Math.min(techo(i), maximoNs);
+            }
+            return maximoNs;
+        }
+    }
+}
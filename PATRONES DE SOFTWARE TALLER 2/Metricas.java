@@ -0,0 +1,58 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import javax.management.*;
+
+/**
+ * Latencias de los caminos calientes (clonar plantilla, construir, guardar,
+ * refrescar la tabla y repintar). Cada {@link Medidor} es un contador sin
+ * bloqueos más un histograma log-lineal al estilo HDR; se publican por JMX
+ * como {@code expedientes:type=Metricas} y en el panel de diagnóstico.
+ * Con {@code -Dexpedientes.metricas=false} cada punto de medición se reduce
+ * a leer una constante.
+ */
+final class Metricas {
+    static final boolean ACTIVAS = !"false".equalsIgnoreCase(System.getProperty("expedientes.metricas"));
+
+    private static final List<Medidor> MEDIDORES = new CopyOnWriteArrayList<>();
+    static final Medidor CLONAR    = registrar("obtenerClon");
+    static final Medidor CONSTRUIR = registrar("construir");
+    static final Medidor GUARDAR   = registrar("guardarExpediente");
+    static final Medidor TABLA     = registrar("actualizarTabla");
+    static final Medidor REPINTADO = registrar("repintadoEDT");
+    static final Medidor AUDITORIA = registrar("loteAuditoria");
+
+    private static final AtomicBoolean PUBLICADAS = new AtomicBoolean();
+
+    private Metricas() {}
+
+    static Medidor registrar(String nombre) {
+        Medidor m = new Medidor(nombre);
+        MEDIDORES.add(m);
+        return m;
+    }
+
+    static List<Medidor> medidores() { return Collections.unmodifiableList(MEDIDORES); }
+
+    /** Marca de inicio para {@link Medidor#registrar(long)}; 0 si las métricas están apagadas. */
+    static long inicio() { return ACTIVAS ? System.nanoTime() : 0L; }
+
+    static void reiniciar() { for (Medidor m : MEDIDORES) m.reiniciar(); }
+
+    /**
+     * Registra el MBean en el servidor de la plataforma; llamadas repetidas no
+     * hacen nada. Si JMX no está disponible se avisa por {@code advertencias}.
+     */
+    static void publicarJmx(Consumer<String> advertencias) {
+        if (!ACTIVAS || !PUBLICADAS.compareAndSet(false, true)) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new MBeanMetricas(), new ObjectName(MBeanMetricas.NOMBRE));
+        } catch (JMException | SecurityException ex) {
+            // Sin JMX el panel de diagnóstico sigue funcionando
+            advertencias.accept("Las métricas no se pudieron publicar por JMX: " + ex.getMessage());
+        }
+    }
+}
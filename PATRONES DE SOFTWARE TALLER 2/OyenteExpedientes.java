@@ -0,0 +1,10 @@
+/** Recibe cada expediente guardado, en el hilo que lo guardó. */
+interface OyenteExpedientes {
+    void expedienteGuardado(int id, ExpedienteMedico e);
+
+    /**
+     * {@code nueva} reemplazó a {@code anterior} como versión vigente. Los
+     * cambios de un mismo repositorio llegan de a uno y en orden.
+     */
+    default void expedienteModificado(int id, ExpedienteMedico anterior, ExpedienteMedico nueva) {}
+}
@@ -0,0 +1,21 @@
+import java.util.*;
+
+/** Resultado de una consulta paginada por clave (keyset): ids y expedientes en el mismo orden. */
+final class PaginaExpedientes {
+    final int[] ids;
+    final List<ExpedienteMedico> expedientes;
+    final boolean hayMas;
+
+    PaginaExpedientes(int[] ids, List<ExpedienteMedico> expedientes, boolean hayMas) {
+        this.ids = ids;
+        this.expedientes = expedientes;
+        this.hayMas = hayMas;
+    }
+
+    int ultimoId() { return ids.length == 0 ? -1 : ids[ids.length - 1]; }
+
+    String ultimaCedula() {
+        return expedientes.isEmpty() ? null
+            : RepositorioExpedientes.normalizarCedula(expedientes.get(expedientes.size() - 1).cedula);
+    }
+}
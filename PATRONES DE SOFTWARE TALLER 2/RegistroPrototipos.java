@@ -0,0 +1,144 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Catálogo de plantillas publicado como instantánea inmutable y versionada:
+ * los lectores (formulario, importación, guardado) solo leen una referencia
+ * volátil, y cada cambio construye una instantánea nueva bajo un lock de escritura.
+ * Puede cargarse desde un archivo de definiciones y recargarse cuando cambia.
+ */
+class RegistroPrototipos {
+    interface Oyente { void catalogoActualizado(Catalogo c); }
+
+    static final class Catalogo {
+        final long version;
+        final Map<String, ExpedienteBase> plantillas;
+
+        Catalogo(long version, Map<String, ExpedienteBase> plantillas) {
+            this.version    = version;
+            this.plantillas = Collections.unmodifiableMap(plantillas);
+        }
+
+        Set<String> tiposAtencion() {
+            Set<String> tipos = new LinkedHashSet<>();
+            for (ExpedienteBase b : plantillas.values()) tipos.add(b.getTipoAtencion());
+            return tipos;
+        }
+    }
+
+    private volatile Catalogo catalogo = new Catalogo(0, new LinkedHashMap<>());
+    private final List<Oyente> oyentes = new CopyOnWriteArrayList<>();
+
+    /** Las tres plantillas de fábrica, para cuando no hay plantillas.txt. */
+    public void registrarPredeterminadas() {
+        registrar("adulto-urgencias", new ExpedienteBase(
+            "Adulto", "Urgencias",
+            Arrays.asList("Hemograma completo", "Glucosa en sangre", "Electrocardiograma")));
+
+        registrar("pediatrico-consulta", new ExpedienteBase(
+            "Pediátrico", "Consulta externa",
+            Arrays.asList("Peso y talla", "Presión arterial", "Hemograma")));
+
+        registrar("geriatrico-hospitalizacion", new ExpedienteBase(
+            "Geriátrico", "Hospitalización",
+            Arrays.asList("Hemograma", "Panel metabólico", "Radiografía tórax", "Ecocardiograma")));
+    }
+
+    public synchronized void registrar(String clave, ExpedienteBase proto) {
+        Map<String, ExpedienteBase> nuevo = new LinkedHashMap<>(catalogo.plantillas);
+        nuevo.put(clave, proto);
+        publicar(nuevo);
+    }
+
+    /** Sustituye el catálogo completo de una sola vez. */
+    public synchronized void reemplazar(Map<String, ExpedienteBase> plantillas) {
+        publicar(new LinkedHashMap<>(plantillas));
+    }
+
+    private void publicar(Map<String, ExpedienteBase> plantillas) {
+        Catalogo c = new Catalogo(catalogo.version + 1, plantillas);
+        catalogo = c;
+        for (Oyente o : oyentes) o.catalogoActualizado(c);
+    }
+
+    public ExpedienteBase obtenerClon(String clave) {
+        long t0 = Metricas.inicio();
+        ExpedienteBase p = catalogo.plantillas.get(clave);
+        if (p == null) {
+            Metricas.CLONAR.error();
+            throw new IllegalArgumentException("Plantilla no encontrada: " + clave);
+        }
+        ExpedienteBase clon = (ExpedienteBase) p.clonar();
+        Metricas.CLONAR.registrar(t0);
+        return clon;
+    }
+
+    public Set<String> getClaves()  { return catalogo.plantillas.keySet(); }
+    public Catalogo getCatalogo()   { return catalogo; }
+    public void agregarOyente(Oyente o) { oyentes.add(o); }
+
+    // ── Definiciones externas ──
+    // Una plantilla por línea:  clave | tipo paciente | tipo atención | examen; examen; ...
+    // Las líneas vacías y las que empiezan con '#' se ignoran.
+    static Map<String, ExpedienteBase> leerDefiniciones(Path archivo) throws IOException {
+        Map<String, ExpedienteBase> plantillas = new LinkedHashMap<>();
+        int n = 0;
+        for (String linea : Files.readAllLines(archivo, StandardCharsets.UTF_8)) {
+            n++;
+            linea = linea.trim();
+            if (linea.isEmpty() || linea.startsWith("#")) continue;
+            String[] partes = linea.split("\\|", -1);
+            if (partes.length != 4 || partes[0].isBlank())
+                throw new IOException(archivo.getFileName() + ":" + n + ": se esperaban 4 campos separados por '|'");
+            List<String> examenes = new ArrayList<>();
+            for (String ex : partes[3].split(";")) if (!ex.isBlank()) examenes.add(ex.trim());
+            plantillas.put(partes[0].trim(), new ExpedienteBase(partes[1].trim(), partes[2].trim(), examenes));
+        }
+        return plantillas;
+    }
+
+    public void cargar(Path archivo) throws IOException {
+        reemplazar(leerDefiniciones(archivo));
+    }
+
+    /**
+     * Recarga el catálogo cada vez que el archivo cambia. Si la nueva versión no
+     * se puede leer se conserva la anterior y se avisa por {@code advertencias}
+     * (desde el hilo vigilante). Cerrar el resultado detiene la vigilancia.
+     */
+    public Closeable vigilar(Path archivo, Consumer<String> advertencias) throws IOException {
+        Path dir = archivo.toAbsolutePath().getParent();
+        Path nombre = archivo.getFileName();
+        WatchService ws = dir.getFileSystem().newWatchService();
+        dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey k = ws.take();
+                    boolean cambio = false;
+                    for (WatchEvent<?> ev : k.pollEvents())
+                        cambio |= nombre.equals(ev.context());
+                    k.reset();
+                    if (!cambio) continue;
+                    Thread.sleep(100);   // los editores suelen escribir en varios pasos
+                    while (ws.poll() != null) { }
+                    try {
+                        cargar(archivo);
+                    } catch (IOException | RuntimeException ex) {
+                        advertencias.accept("No se pudieron recargar las plantillas de " + archivo + ":\n" +
+                            ex.getMessage() + "\nSe siguen usando las anteriores.");
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException fin) {
+                // vigilancia detenida
+            }
+        }, "vigilante-plantillas");
+        t.setDaemon(true);
+        t.start();
+        return ws;
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.*;
+
+class RepositorioEnMemoria implements RepositorioExpedientes {
+    private final List<ExpedienteMedico> datos = new ArrayList<>();
+    // Por id, el último cambio (null si nunca se modificó), encadenado a los anteriores
+    private Cambio[] cambios = new Cambio[0];
+
+    // Cada edición retiene solo este nodo y la nueva versión, que comparte
+    // con la reemplazada los campos y listas que no cambiaron.
+    private static final class Cambio {
+        final int version;                     // la que dejó vigente
+        final long fecha;
+        final ExpedienteMedico reemplazado;
+        final Cambio previo;
+
+        Cambio(int version, long fecha, ExpedienteMedico reemplazado, Cambio previo) {
+            this.version = version;
+            this.fecha = fecha;
+            this.reemplazado = reemplazado;
+            this.previo = previo;
+        }
+    }
+
+    @Override public synchronized int guardar(ExpedienteMedico e) { datos.add(e); return datos.size() - 1; }
+    @Override public synchronized int guardarLote(List<ExpedienteMedico> lote) { datos.addAll(lote); return datos.size() - 1; }
+    @Override public synchronized ExpedienteMedico obtener(int id) { return datos.get(id); }
+    @Override public synchronized int tamanio()                    { return datos.size(); }
+
+    @Override
+    public synchronized int modificar(int id, int versionLeida, ExpedienteMedico nueva) {
+        int actual = version(id);
+        if (actual != versionLeida) throw new ExpedienteDesactualizadoException(id, versionLeida, actual);
+        if (id >= cambios.length) cambios = Arrays.copyOf(cambios, Math.max(id + 1, datos.size()));
+        cambios[id] = new Cambio(actual + 1, System.currentTimeMillis(), datos.set(id, nueva), cambios[id]);
+        return actual + 1;
+    }
+
+    @Override
+    public synchronized int version(int id) {
+        Cambio c = ultimoCambio(id);
+        return c == null ? 1 : c.version;
+    }
+
+    @Override
+    public synchronized List<VersionExpediente> historial(int id) {
+        Cambio c = ultimoCambio(id);
+        if (c == null) return RepositorioExpedientes.super.historial(id);
+        VersionExpediente[] todas = new VersionExpediente[c.version];
+        ExpedienteMedico siguiente = datos.get(id);
+        for (; c != null; c = c.previo) {
+            todas[c.version - 1] = new VersionExpediente(c.version, c.fecha, siguiente);
+            siguiente = c.reemplazado;
+        }
+        todas[0] = new VersionExpediente(1, 0, siguiente);
+        return Arrays.asList(todas);
+    }
+
+    private Cambio ultimoCambio(int id) {
+        Objects.checkIndex(id, datos.size());
+        return id < cambios.length ? cambios[id] : null;
+    }
+}
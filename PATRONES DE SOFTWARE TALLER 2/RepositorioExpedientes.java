@@ -0,0 +1,110 @@
+import java.util.*;
+
+interface RepositorioExpedientes {
+    /** Agrega el expediente y devuelve su id (posición de inserción). */
+    int guardar(ExpedienteMedico e);
+    ExpedienteMedico obtener(int id);
+    int tamanio();
+
+    /**
+     * Agrega varios expedientes y devuelve el id del último; las
+     * implementaciones durables hacen un solo commit. El lote recibe ids
+     * consecutivos aunque otros hilos guarden a la vez: quien llame puede
+     * calcular el primero como {@code ultimo - lote.size() + 1}. Esta
+     * versión solo sirve para repositorios de un único hilo escritor.
+     */
+    default int guardarLote(List<ExpedienteMedico> lote) {
+        int id = -1;
+        for (ExpedienteMedico e : lote) id = guardar(e);
+        return id;
+    }
+
+    /** Id del expediente con esa cédula, o -1. Esta versión recorre todo el repositorio. */
+    default int buscarIdPorCedula(String cedula) {
+        String clave = normalizarCedula(cedula);
+        for (int i = 0, n = tamanio(); i < n; i++)
+            if (clave.equals(normalizarCedula(obtener(i).cedula))) return i;
+        return -1;
+    }
+
+    default Optional<ExpedienteMedico> buscarPorCedula(String cedula) {
+        int id = buscarIdPorCedula(cedula);
+        return id < 0 ? Optional.empty() : Optional.of(obtener(id));
+    }
+
+    /**
+     * Página en orden de inserción: ids crecientes desde {@code desdeId}, a lo
+     * sumo {@code limite}. La siguiente se pide desde {@code ultimoId() + 1}.
+     * Los ids sin expediente (ver {@link RepositorioParticionado}) se omiten.
+     */
+    default PaginaExpedientes pagina(int desdeId, int limite) {
+        int hasta = Math.min(tamanio(), desdeId + limite);
+        int[] ids = new int[Math.max(0, hasta - desdeId)];
+        List<ExpedienteMedico> lista = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = desdeId + i;
+            lista.add(obtener(desdeId + i));
+        }
+        return new PaginaExpedientes(ids, lista, hasta < tamanio());
+    }
+
+    /**
+     * Página en orden de cédula normalizada con las cédulas estrictamente
+     * posteriores a {@code despuesDe} (null = desde el principio). La siguiente
+     * se pide con {@code ultimaCedula()}. Esta versión recorre y ordena todo.
+     */
+    default PaginaExpedientes paginaPorCedula(String despuesDe, int limite) {
+        TreeMap<String, Integer> orden = new TreeMap<>();
+        for (int i = 0, n = tamanio(); i < n; i++) {
+            String clave = normalizarCedula(obtener(i).cedula);
+            if (despuesDe == null || clave.compareTo(despuesDe) > 0) orden.putIfAbsent(clave, i);
+        }
+        int[] ids = new int[Math.min(limite, orden.size())];
+        List<ExpedienteMedico> lista = new ArrayList<>(ids.length);
+        Iterator<Integer> it = orden.values().iterator();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = it.next();
+            lista.add(obtener(ids[i]));
+        }
+        return new PaginaExpedientes(ids, lista, it.hasNext());
+    }
+
+    /**
+     * Guarda {@code nueva} como la versión siguiente del expediente {@code id}
+     * y devuelve su número; las anteriores se conservan ({@link #historial}).
+     * {@code versionLeida} es la versión sobre la que se editó: si otro cambio
+     * llegó antes, se rechaza con {@link ExpedienteDesactualizadoException}.
+     * Esta versión no admite cambios.
+     */
+    default int modificar(int id, int versionLeida, ExpedienteMedico nueva) {
+        throw new UnsupportedOperationException("Este repositorio no admite modificaciones.");
+    }
+
+    /** Número de la versión vigente del expediente (1 = nunca se modificó). */
+    default int version(int id) { return 1; }
+
+    /** Todas las versiones del expediente, de la original a la vigente. */
+    default List<VersionExpediente> historial(int id) {
+        return Collections.singletonList(new VersionExpediente(1, 0, obtener(id)));
+    }
+
+    /** Entrega todos los expedientes en orden de id; las implementaciones en disco leen por bloques. */
+    default void recorrerTodos(OyenteExpedientes visitante) {
+        for (int i = 0, n = tamanio(); i < n; i++) visitante.expedienteGuardado(i, obtener(i));
+    }
+
+    default void cerrar() {}
+
+    /** Cómo se muestra un expediente al usuario: los ids empiezan en 0 y la tabla numera desde 1. */
+    static String numero(int id) { return "#" + (id + 1); }
+
+    /** "1.234.567 " y "1234567" identifican al mismo paciente. */
+    static String normalizarCedula(String cedula) {
+        StringBuilder sb = new StringBuilder(cedula.length());
+        for (int i = 0; i < cedula.length(); i++) {
+            char c = cedula.charAt(i);
+            if (Character.isLetterOrDigit(c)) sb.append(Character.toUpperCase(c));
+        }
+        return sb.toString();
+    }
+}
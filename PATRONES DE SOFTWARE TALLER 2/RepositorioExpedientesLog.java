@@ -0,0 +1,499 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.CRC32;
+
+/**
+ * Repositorio durable de solo-anexar. Cada expediente se escribe como frame al
+ * log y se confirma con fsync agrupado: el primer hilo que llega sincroniza todo
+ * lo escrito hasta ese momento y los demás reutilizan ese fsync. Cada cierto
+ * número de registros se compacta en una instantánea y el log se trunca.
+ * En memoria solo queda la posición de cada frame (8 bytes por expediente):
+ * {@link #obtener} y {@link #pagina} leen y decodifican bajo demanda, así el
+ * repositorio puede tener más expedientes de los que caben en el heap.
+ * Los frames nuevos van en el formato 2 de {@link CodecExpediente}, con su
+ * diccionario en expedientes.dic; los del formato 1 se siguen leyendo.
+ * Las modificaciones van a expedientes.ver, un frame por versión con solo los
+ * campos cambiados; la vigente se reconstruye aplicándolas sobre la original.
+ */
+class RepositorioExpedientesLog implements RepositorioExpedientes {
+    /** Recibe la posición del frame en el archivo y su contenido codificado. */
+    interface VisitanteFrames { boolean visitar(int id, long posicion, ByteBuffer registro); }
+
+    private static final int VENTANA_MMAP = 1 << 30;
+    private static final long EN_SNAPSHOT = 1L << 62;   // bit de posiciones[]: el frame está en la instantánea
+    static final int UMBRAL_COMPACTACION = 100_000;
+
+    private final Path snapshot, log, archivoDiccionario, archivoVersiones;
+    private final int umbralCompactacion;
+    private final Consumer<String> advertencias;   // fallos de la compactación en segundo plano
+    private long[] posiciones = new long[1024];
+    private int cantidad;
+    // Solo los expedientes modificados: posición en expedientes.ver de cada versión posterior a la original
+    private final Map<Integer, long[]> versiones = new HashMap<>();
+    private final EscritorFrames escritor = new EscritorFrames(), escritorVersiones = new EscritorFrames();
+    // Tipos y exámenes de todos los frames; se persiste antes que los frames que lo usan
+    private final DiccionarioCodec diccionario = new DiccionarioCodec();
+    private final EscritorFrames escritorDiccionario = new EscritorFrames();
+    private int diccionarioPersistido;
+    private ByteBuffer lectura = ByteBuffer.allocate(8192);
+    private final Object lockFsync = new Object();
+    private final ExecutorService compactador = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "compactador-expedientes");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private FileChannel canal, canalSnapshot, canalDiccionario, canalVersiones;
+    private long escritos, durables;
+    private int enLog;
+    private boolean compactando;
+    private boolean compactacionFallida;   // ya avisada; se vuelve a avisar tras un éxito
+
+    public RepositorioExpedientesLog(Path dir) throws IOException {
+        this(dir, UMBRAL_COMPACTACION, aviso -> System.err.println(aviso));
+    }
+
+    public RepositorioExpedientesLog(Path dir, int umbralCompactacion) throws IOException {
+        this(dir, umbralCompactacion, aviso -> System.err.println(aviso));
+    }
+
+    public RepositorioExpedientesLog(Path dir, int umbralCompactacion, Consumer<String> advertencias) throws IOException {
+        Files.createDirectories(dir);
+        this.advertencias = advertencias;
+        this.snapshot = dir.resolve("expedientes.snap");
+        this.log      = dir.resolve("expedientes.log");
+        this.archivoDiccionario = dir.resolve("expedientes.dic");
+        this.archivoVersiones = dir.resolve("expedientes.ver");
+        this.umbralCompactacion = umbralCompactacion;
+
+        long validoDiccionario = !Files.exists(archivoDiccionario) ? 0 : recorrer(archivoDiccionario, (id, pos, r) -> {
+            CodecExpediente.leerDiccionario(r, diccionario);
+            return true;
+        });
+        diccionarioPersistido = diccionario.tamanio();
+        canalDiccionario = FileChannel.open(archivoDiccionario,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        canalDiccionario.truncate(validoDiccionario);
+        canalDiccionario.position(validoDiccionario);
+
+        if (Files.exists(snapshot)) {
+            long validoSnapshot = recorrer(snapshot, (id, pos, r) -> id == cantidad && anexar(pos | EN_SNAPSHOT));
+            // Se escribe aparte y se mueve ya completa: ni siquiera el último frame puede estar cortado
+            if (validoSnapshot != Files.size(snapshot)) throw corrupto(snapshot, validoSnapshot, "frame incompleto");
+            canalSnapshot = FileChannel.open(snapshot, StandardOpenOption.READ);
+        }
+        long valido = !Files.exists(log) ? 0 : recorrer(log, (id, pos, r) -> {
+            if (id < cantidad) return true;          // ya incluido en la instantánea
+            if (id > cantidad) return false;         // hueco: falta la instantánea o parte del log
+            enLog++;
+            return anexar(pos);
+        });
+
+        canal = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        canal.truncate(valido);
+        canal.position(valido);
+
+        long validoVersiones = !Files.exists(archivoVersiones) ? 0 : recorrer(archivoVersiones, (id, pos, r) -> {
+            if (id < 0 || id >= cantidad) return false;
+            long[] previas = versiones.get(id);
+            long[] todas = previas == null ? new long[1] : Arrays.copyOf(previas, previas.length + 1);
+            todas[todas.length - 1] = pos;
+            versiones.put(id, todas);
+            return true;
+        });
+        canalVersiones = FileChannel.open(archivoVersiones,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        canalVersiones.truncate(validoVersiones);
+        canalVersiones.position(validoVersiones);
+    }
+
+    private boolean anexar(long posicion) {
+        if (cantidad == posiciones.length) posiciones = Arrays.copyOf(posiciones, cantidad * 2);
+        posiciones[cantidad++] = posicion;
+        return true;
+    }
+
+    @Override
+    public int guardar(ExpedienteMedico e) {
+        return guardarLote(Collections.singletonList(e));
+    }
+
+    @Override
+    public int guardarLote(List<ExpedienteMedico> lote) {
+        long secuencia;
+        int id;
+        synchronized (this) {
+            int primero = cantidad;
+            long inicio = -1;
+            try {
+                inicio = canal.position();
+                for (ExpedienteMedico e : lote) {
+                    ByteBuffer frame = escritor.preparar(cantidad, b -> CodecExpediente.escribir(b, e, diccionario));
+                    if (diccionario.tamanio() > diccionarioPersistido) persistirDiccionario();
+                    long pos = canal.position();
+                    EscritorFrames.escribir(canal, frame);
+                    anexar(pos);
+                }
+            } catch (IOException ex) {
+                // El lote entero o nada: sin esto los frames ya escritos quedarían
+                // con ids que el llamador cree libres
+                cantidad = primero;
+                if (inicio >= 0) {
+                    try {
+                        canal.truncate(inicio);
+                        canal.position(inicio);
+                    } catch (IOException ex2) {
+                        ex.addSuppressed(ex2);
+                    }
+                }
+                throw new UncheckedIOException(ex);
+            }
+            id = cantidad - 1;
+            secuencia = ++escritos;
+            enLog += lote.size();
+            if (enLog >= umbralCompactacion && !compactando) {
+                compactando = true;
+                compactador.execute(this::compactar);
+            }
+        }
+        sincronizar(secuencia);
+        return id;
+    }
+
+    // Las entradas nuevas llegan durables antes que cualquier frame que las referencie
+    private void persistirDiccionario() throws IOException {
+        int desde = diccionarioPersistido, hasta = diccionario.tamanio();
+        EscritorFrames.escribir(canalDiccionario, escritorDiccionario.preparar(desde,
+            b -> CodecExpediente.escribirDiccionario(b, diccionario, desde, hasta)));
+        canalDiccionario.force(false);
+        diccionarioPersistido = hasta;
+    }
+
+    @Override public synchronized int tamanio() { return cantidad; }
+
+    @Override
+    public synchronized ExpedienteMedico obtener(int id) {
+        try {
+            return vigente(id, original(id), null);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private ExpedienteMedico original(int id) throws IOException {
+        if (id < 0 || id >= cantidad) throw new IndexOutOfBoundsException("id " + id + ", tamaño " + cantidad);
+        long pos = posiciones[id];
+        FileChannel ch = (pos & EN_SNAPSHOT) != 0 ? canalSnapshot : canal;
+        pos &= ~EN_SNAPSHOT;
+        leerCompleto(ch, pos, 8);
+        int len = lectura.getInt(0);
+        leerCompleto(ch, pos + 8, len);
+        return CodecExpediente.leer(lectura, diccionario);
+    }
+
+    // Aplica las versiones guardadas del id sobre la original; con historial != null anota cada una
+    private ExpedienteMedico vigente(int id, ExpedienteMedico original, List<VersionExpediente> historial)
+            throws IOException {
+        if (historial != null) historial.add(new VersionExpediente(1, 0, original));
+        long[] pos = versiones.get(id);
+        if (pos == null) return original;
+        ExpedienteMedico e = original;
+        long[] fecha = new long[1];
+        for (int v = 0; v < pos.length; v++) {
+            leerCompleto(canalVersiones, pos[v], 8);
+            int len = lectura.getInt(0);
+            leerCompleto(canalVersiones, pos[v] + 8, len);
+            e = CodecExpediente.leerVersion(lectura, e, diccionario, fecha);
+            if (historial != null) historial.add(new VersionExpediente(v + 2, fecha[0], e));
+        }
+        return e;
+    }
+
+    /**
+     * Anexa el frame de la versión bajo el lock y sincroniza fuera de él. Los
+     * cambios son raros: cada uno paga su propio fsync de expedientes.ver.
+     */
+    @Override
+    public int modificar(int id, int versionLeida, ExpedienteMedico nueva) {
+        int version;
+        synchronized (this) {
+            try {
+                ExpedienteMedico anterior = obtener(id);
+                long[] previas = versiones.get(id);
+                int actual = previas == null ? 1 : previas.length + 1;
+                if (actual != versionLeida) throw new ExpedienteDesactualizadoException(id, versionLeida, actual);
+                long fecha = System.currentTimeMillis();
+                ByteBuffer frame = escritorVersiones.preparar(id,
+                    b -> CodecExpediente.escribirVersion(b, anterior, nueva, fecha, diccionario));
+                if (diccionario.tamanio() > diccionarioPersistido) persistirDiccionario();
+                long pos = canalVersiones.position();
+                EscritorFrames.escribir(canalVersiones, frame);
+                long[] todas = previas == null ? new long[1] : Arrays.copyOf(previas, previas.length + 1);
+                todas[todas.length - 1] = pos;
+                versiones.put(id, todas);
+                version = actual + 1;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        try {
+            canalVersiones.force(false);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return version;
+    }
+
+    /** Ids con al menos una versión posterior a la original. */
+    public synchronized int[] modificados() {
+        return versiones.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    @Override
+    public synchronized int version(int id) {
+        long[] previas = versiones.get(id);
+        return previas == null ? 1 : previas.length + 1;
+    }
+
+    @Override
+    public synchronized List<VersionExpediente> historial(int id) {
+        List<VersionExpediente> h = new ArrayList<>();
+        try {
+            vigente(id, original(id), h);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return h;
+    }
+
+    /**
+     * Los frames de ids consecutivos suelen estar contiguos en el mismo archivo:
+     * se leen con una sola lectura y se decodifican del buffer.
+     */
+    @Override
+    public synchronized PaginaExpedientes pagina(int desdeId, int limite) {
+        int hasta = Math.min(cantidad, desdeId + limite);
+        int n = Math.max(0, hasta - desdeId);
+        int[] ids = new int[n];
+        List<ExpedienteMedico> lista = new ArrayList<>(n);
+        try {
+            int i = desdeId;
+            while (i < hasta) {
+                long p0 = posiciones[i];
+                FileChannel ch = (p0 & EN_SNAPSHOT) != 0 ? canalSnapshot : canal;
+                // Tramo [i, j) en el mismo archivo y con posiciones crecientes
+                int j = i + 1;
+                while (j < hasta && ((posiciones[j] ^ p0) & EN_SNAPSHOT) == 0 && posiciones[j] > posiciones[j - 1]) j++;
+                long inicio = p0 & ~EN_SNAPSHOT, ultimo = posiciones[j - 1] & ~EN_SNAPSHOT;
+                leerCompleto(ch, ultimo, 4);
+                long fin = ultimo + 12 + lectura.getInt(0);
+                if (fin - inicio > Integer.MAX_VALUE) { j = i + 1; fin = inicio + 12 + leerLongitud(ch, inicio); }
+                leerCompleto(ch, inicio, (int) (fin - inicio));
+                ByteBuffer bloque = lectura;
+                for (int k = i; k < j; k++) {
+                    int rel = (int) ((posiciones[k] & ~EN_SNAPSHOT) - inicio);
+                    int len = bloque.getInt(rel);
+                    ids[k - desdeId] = k;
+                    lista.add(CodecExpediente.leer(bloque.duplicate().limit(rel + 8 + len).position(rel + 8), diccionario));
+                }
+                i = j;
+            }
+            // Los modificados se reemplazan por su versión vigente (después: vigente() reusa 'lectura')
+            if (!versiones.isEmpty())
+                for (int k = 0; k < n; k++)
+                    if (versiones.containsKey(ids[k])) lista.set(k, vigente(ids[k], lista.get(k), null));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return new PaginaExpedientes(ids, lista, hasta < cantidad);
+    }
+
+    @Override
+    public void recorrerTodos(OyenteExpedientes visitante) {
+        for (int i = 0, n = tamanio(); i < n; ) {
+            PaginaExpedientes p = pagina(i, 2048);
+            for (int k = 0; k < p.ids.length; k++) visitante.expedienteGuardado(p.ids[k], p.expedientes.get(k));
+            if (p.ids.length == 0) break;
+            i += p.ids.length;
+        }
+    }
+
+    private int leerLongitud(FileChannel ch, long pos) throws IOException {
+        leerCompleto(ch, pos, 4);
+        return lectura.getInt(0);
+    }
+
+    // Deja en 'lectura' (posición 0, límite n) los n bytes desde pos
+    private void leerCompleto(FileChannel ch, long pos, int n) throws IOException {
+        if (lectura.capacity() < n) lectura = ByteBuffer.allocate(Math.max(n, lectura.capacity() * 2));
+        lectura.clear().limit(n);
+        while (lectura.hasRemaining()) {
+            if (ch.read(lectura, pos + lectura.position()) < 0) throw new EOFException("Frame truncado en " + pos);
+        }
+        lectura.flip();
+    }
+
+    private void sincronizar(long secuencia) {
+        synchronized (lockFsync) {
+            if (durables >= secuencia) return;
+            long objetivo;
+            FileChannel c;
+            synchronized (this) { objetivo = escritos; c = canal; }
+            try {
+                c.force(false);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            durables = objetivo;
+        }
+    }
+
+    /*
+     * Los frames se copian tal cual (sin decodificar) a la nueva instantánea,
+     * agrupando tramos contiguos en un solo transferTo. Solo este hilo cierra
+     * los canales, así que las lecturas posicionales fuera del lock son seguras.
+     */
+    private void compactar() {
+        try {
+            long[] origen;
+            int n;
+            long corte;
+            FileChannel snapViejo, logViejo;
+            synchronized (this) {
+                n = cantidad;
+                origen = Arrays.copyOf(posiciones, n);
+                corte = canal.position();
+                snapViejo = canalSnapshot;
+                logViejo = canal;
+            }
+
+            Path tmpSnap = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+            long[] nuevas = new long[n];
+            ByteBuffer cabecera = ByteBuffer.allocate(4);
+            try (FileChannel out = FileChannel.open(tmpSnap, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long escrito = 0;
+                for (int i = 0; i < n; ) {
+                    FileChannel ch = (origen[i] & EN_SNAPSHOT) != 0 ? snapViejo : logViejo;
+                    long inicio = origen[i] & ~EN_SNAPSHOT, fin = inicio;
+                    int j = i;
+                    while (j < n && ((origen[j] ^ origen[i]) & EN_SNAPSHOT) == 0 && (origen[j] & ~EN_SNAPSHOT) == fin) {
+                        cabecera.clear();
+                        while (cabecera.hasRemaining()) ch.read(cabecera, fin + cabecera.position());
+                        nuevas[j++] = escrito + (fin - inicio);
+                        fin += 12 + cabecera.getInt(0);
+                    }
+                    for (long pos = inicio; pos < fin; )
+                        pos += ch.transferTo(pos, fin - pos, out);
+                    escrito += fin - inicio;
+                    i = j;
+                }
+                out.force(true);
+            }
+
+            synchronized (lockFsync) {
+                synchronized (this) {
+                    Path tmpLog = log.resolveSibling(log.getFileName() + ".tmp");
+                    try (FileChannel nuevo = FileChannel.open(tmpLog, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        long fin = canal.position();
+                        for (long pos = corte; pos < fin; )
+                            pos += canal.transferTo(pos, fin - pos, nuevo);
+                        nuevo.force(true);
+                    }
+                    // Si se cae entre los dos movimientos, el log viejo solo aporta
+                    // ids que la instantánea ya tiene y se descartan al abrir.
+                    Files.move(tmpSnap, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(tmpLog,  log,      StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    canal.close();
+                    if (canalSnapshot != null) canalSnapshot.close();
+                    canal = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    canal.position(canal.size());
+                    canalSnapshot = FileChannel.open(snapshot, StandardOpenOption.READ);
+                    for (int i = 0; i < n; i++) posiciones[i] = nuevas[i] | EN_SNAPSHOT;
+                    for (int i = n; i < cantidad; i++) posiciones[i] -= corte;
+                    enLog    = cantidad - n;
+                    durables = escritos;
+                }
+            }
+            compactacionFallida = false;
+        } catch (IOException ex) {
+            if (compactacionFallida) return;
+            compactacionFallida = true;
+            advertencias.accept("No se pudo compactar " + log + " (" + ex.getMessage() + ").\n" +
+                "Los expedientes siguen en el log; se reintentará en la próxima compactación.");
+        } finally {
+            synchronized (this) { compactando = false; }
+        }
+    }
+
+    @Override
+    public void cerrar() {
+        compactador.shutdown();
+        try {
+            compactador.awaitTermination(1, TimeUnit.MINUTES);
+            synchronized (lockFsync) {
+                synchronized (this) {
+                    canal.force(true);
+                    canal.close();
+                    if (canalSnapshot != null) canalSnapshot.close();
+                    canalDiccionario.close();
+                    canalVersiones.close();
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Recorre los frames válidos del archivo y devuelve la posición donde termina el último.
+     * Solo el último frame puede estar cortado o con CRC inválido (una escritura
+     * interrumpida): se ignora y el llamador trunca ahí. Un frame dañado con otros
+     * detrás, o uno que el visitante rechaza, es corrupción: lanza IOException y el
+     * archivo queda intacto para revisarlo a mano.
+     */
+    static long recorrer(Path archivo, VisitanteFrames visitante) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel ch = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            long tam = ch.size(), base = 0;
+            while (base < tam) {
+                long ventana = Math.min(tam - base, VENTANA_MMAP);
+                MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, base, ventana);
+                int fin = 0;
+                while (m.remaining() >= 12) {
+                    int len = m.getInt(fin);
+                    if (len < 0) throw corrupto(archivo, base + fin, "longitud " + len);
+                    if (m.remaining() < len + 12) break;
+                    crc.reset();
+                    crc.update(m.duplicate().position(fin + 4).limit(fin + 8 + len));
+                    if ((int) crc.getValue() != m.getInt(fin + 8 + len)) {
+                        if (base + fin + len + 12 == tam) return base + fin;   // el último: escritura cortada
+                        throw corrupto(archivo, base + fin, "CRC inválido");
+                    }
+                    int id = m.getInt(fin + 4);
+                    if (!visitante.visitar(id, base + fin, m.duplicate().position(fin + 8).limit(fin + 8 + len)))
+                        throw corrupto(archivo, base + fin, "id " + id + " fuera de secuencia");
+                    fin += len + 12;
+                    m.position(fin);
+                }
+                base += fin;
+                // Frame incompleto al final del archivo: escritura cortada, se descarta
+                if (base + ventana - fin >= tam || fin == 0) break;
+            }
+            return base;
+        }
+    }
+
+    private static IOException corrupto(Path archivo, long posicion, String motivo) {
+        return new IOException(archivo + " está dañado en el byte " + posicion + " (" + motivo + ").\n" +
+            "No se abre para no descartar lo que sigue; revise o restaure el archivo.");
+    }
+}
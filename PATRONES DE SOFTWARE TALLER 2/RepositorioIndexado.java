@@ -0,0 +1,151 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decorador que mantiene un índice hash cédula → id sobre cualquier repositorio
+ * y rechaza cédulas duplicadas. La clave se reserva antes de escribir, así la
+ * escritura (y su fsync) ocurre fuera del lock y los commits se siguen agrupando.
+ * También avisa a los índices secundarios registrados como oyentes. Las
+ * cédulas confirmadas se copian además a un mapa ordenado para paginar por
+ * cédula sin recorrer el repositorio.
+ */
+class RepositorioIndexado implements RepositorioExpedientes {
+    private static final int RESERVADA = -1;
+
+    private final RepositorioExpedientes delegado;
+    private final Map<String, Integer> porCedula = new HashMap<>();
+    private final ConcurrentSkipListMap<String, Integer> ordenCedula = new ConcurrentSkipListMap<>();
+    private final List<OyenteExpedientes> oyentes = new CopyOnWriteArrayList<>();
+    private final Object lockCambios = new Object();
+
+    public RepositorioIndexado(RepositorioExpedientes delegado) {
+        this.delegado = delegado;
+        delegado.recorrerTodos((id, e) -> {
+            String clave = RepositorioExpedientes.normalizarCedula(e.cedula);
+            if (porCedula.putIfAbsent(clave, id) == null) ordenCedula.put(clave, id);
+        });
+    }
+
+    @Override
+    public int guardar(ExpedienteMedico e) {
+        return guardarLote(Collections.singletonList(e));
+    }
+
+    @Override
+    public int guardarLote(List<ExpedienteMedico> lote) {
+        List<String> claves = new ArrayList<>(lote.size());
+        synchronized (this) {
+            for (ExpedienteMedico e : lote) {
+                String clave = RepositorioExpedientes.normalizarCedula(e.cedula);
+                Integer existente = porCedula.putIfAbsent(clave, RESERVADA);
+                if (existente != null) {
+                    boolean mismoLote = claves.contains(clave);
+                    for (String c : claves) porCedula.remove(c);
+                    throw existente == RESERVADA ? new CedulaDuplicadaException(e.cedula, mismoLote)
+                                                 : new CedulaDuplicadaException(e.cedula, existente);
+                }
+                claves.add(clave);
+            }
+        }
+        int ultimo;
+        try {
+            ultimo = delegado.guardarLote(lote);
+        } catch (RuntimeException ex) {
+            synchronized (this) { for (String c : claves) porCedula.remove(c); }
+            throw ex;
+        }
+        int primero = ultimo - lote.size() + 1;
+        synchronized (this) {
+            int id = primero;
+            for (String c : claves) {
+                porCedula.put(c, id);
+                ordenCedula.put(c, id++);
+            }
+        }
+        for (OyenteExpedientes o : oyentes)
+            for (int i = 0; i < lote.size(); i++) o.expedienteGuardado(primero + i, lote.get(i));
+        return ultimo;
+    }
+
+    /**
+     * Registra los oyentes y les entrega los expedientes ya existentes en un
+     * solo recorrido. Llamar antes de guardar.
+     */
+    public void agregarOyente(OyenteExpedientes... nuevos) {
+        delegado.recorrerTodos((id, e) -> {
+            for (OyenteExpedientes o : nuevos) o.expedienteGuardado(id, e);
+        });
+        oyentes.addAll(Arrays.asList(nuevos));
+    }
+
+    /** Registra un oyente solo para los guardados de aquí en adelante. */
+    public void seguirGuardados(OyenteExpedientes o) { oyentes.add(o); }
+
+    /**
+     * Los cambios se serializan entre sí (no con las altas): así los oyentes
+     * los reciben en el orden en que quedaron en el repositorio. Si cambia la
+     * cédula, la nueva se reserva antes de escribir, como en un alta.
+     */
+    @Override
+    public int modificar(int id, int versionLeida, ExpedienteMedico nueva) {
+        synchronized (lockCambios) {
+            ExpedienteMedico anterior = delegado.obtener(id);
+            String claveVieja = RepositorioExpedientes.normalizarCedula(anterior.cedula);
+            String claveNueva = RepositorioExpedientes.normalizarCedula(nueva.cedula);
+            boolean cambiaCedula = !claveVieja.equals(claveNueva);
+            if (cambiaCedula) {
+                synchronized (this) {
+                    Integer existente = porCedula.putIfAbsent(claveNueva, RESERVADA);
+                    if (existente != null)
+                        throw existente == RESERVADA ? new CedulaDuplicadaException(nueva.cedula, false)
+                                                     : new CedulaDuplicadaException(nueva.cedula, existente);
+                }
+            }
+            int version;
+            try {
+                version = delegado.modificar(id, versionLeida, nueva);
+            } catch (RuntimeException ex) {
+                if (cambiaCedula) synchronized (this) { porCedula.remove(claveNueva); }
+                throw ex;
+            }
+            if (cambiaCedula) {
+                synchronized (this) {
+                    porCedula.remove(claveVieja);
+                    ordenCedula.remove(claveVieja);
+                    porCedula.put(claveNueva, id);
+                    ordenCedula.put(claveNueva, id);
+                }
+            }
+            for (OyenteExpedientes o : oyentes) o.expedienteModificado(id, anterior, nueva);
+            return version;
+        }
+    }
+
+    @Override public int version(int id)                         { return delegado.version(id); }
+    @Override public List<VersionExpediente> historial(int id)   { return delegado.historial(id); }
+
+    @Override
+    public PaginaExpedientes paginaPorCedula(String despuesDe, int limite) {
+        NavigableMap<String, Integer> resto = despuesDe == null ? ordenCedula : ordenCedula.tailMap(despuesDe, false);
+        int[] ids = new int[limite];
+        int n = 0;
+        Iterator<Integer> it = resto.values().iterator();
+        while (n < limite && it.hasNext()) ids[n++] = it.next();
+        ids = Arrays.copyOf(ids, n);
+        List<ExpedienteMedico> lista = new ArrayList<>(n);
+        for (int id : ids) lista.add(delegado.obtener(id));
+        return new PaginaExpedientes(ids, lista, it.hasNext());
+    }
+
+    @Override
+    public synchronized int buscarIdPorCedula(String cedula) {
+        Integer id = porCedula.get(RepositorioExpedientes.normalizarCedula(cedula));
+        return id == null ? -1 : id;
+    }
+
+    @Override public ExpedienteMedico obtener(int id) { return delegado.obtener(id); }
+    @Override public int tamanio()                    { return delegado.tamanio(); }
+    @Override public void cerrar()                    { delegado.cerrar(); }
+    @Override public PaginaExpedientes pagina(int desdeId, int limite) { return delegado.pagina(desdeId, limite); }
+    @Override public void recorrerTodos(OyenteExpedientes v)           { delegado.recorrerTodos(v); }
+}
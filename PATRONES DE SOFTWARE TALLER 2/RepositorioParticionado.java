@@ -0,0 +1,494 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Repositorio durable repartido en particiones por hash de la cédula
+ * normalizada, para que las altas concurrentes no compitan por un único log.
+ * Cada partición es un {@link RepositorioExpedientesLog} propio en
+ * dir/particion-N (log, instantánea, diccionario y versiones) con su lock y su
+ * fsync agrupado; un directorio sin locks traduce cada id global a
+ * (partición, id local).
+ * Un lote se escribe primero en las particiones y solo después recibe ids
+ * consecutivos, que cada partición anota en globales.ids junto con el primer
+ * id y el tamaño del lote. Al abrir se restauran solo los lotes con todas sus
+ * anotaciones: lo que quedó a medias (un error o una caída) se borra entero y
+ * los ids ya entregados no cambian. Los ids de un lote perdido quedan sin
+ * expediente: {@link #pagina}, {@link #recorrerTodos} y {@link #filtrar} los
+ * saltan y {@link #obtener} los trata como inexistentes.
+ * Los lotes grandes se escriben con una tarea por partición, y las lecturas
+ * que cruzan particiones se reparten igual y se mezclan por id. El número de
+ * particiones queda fijo al crear el directorio; un expediente se queda en su
+ * partición aunque después cambie de cédula.
+ */
+class RepositorioParticionado implements RepositorioExpedientes {
+    private static final long AUSENTE = -1;          // id de un lote que no llegó a guardarse
+    private static final int LOTE_PARALELO = 64;     // desde este tamaño, una tarea por partición
+    private static final int VENTANA = 16_384;       // ids por tramo en recorridos y filtros
+
+    private final Particion[] particiones;
+    private final ArregloSegmentado directorio = new ArregloSegmentado();   // id → (partición + 1) << 32 | id local
+    private final AtomicInteger reservados = new AtomicInteger(), publicados = new AtomicInteger();
+    private final Object lockPublicados = new Object();
+    private final ForkJoinPool pool;
+
+    private static final class Particion {
+        // Por expediente local: id global + 1 (0 = sin anotar), primer id del lote y tamaño del lote
+        static final int ANOTACION = 12;
+
+        final int numero;
+        final RepositorioExpedientesLog segmento;
+        final FileChannel globales;
+        final ArregloSegmentado globalDe = new ArregloSegmentado();   // id local → id global + 1
+        private final AtomicLong escritos = new AtomicLong();
+        private final Object lockFsync = new Object();
+        private long durables;
+
+        Particion(int numero, Path dir, Consumer<String> advertencias) throws IOException {
+            this.numero = numero;
+            this.segmento = new RepositorioExpedientesLog(dir, RepositorioExpedientesLog.UMBRAL_COMPACTACION, advertencias);
+            try {
+                this.globales = FileChannel.open(dir.resolve("globales.ids"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException ex) {
+                segmento.cerrar();
+                throw ex;
+            }
+        }
+
+        /** Anotaciones de cada expediente local ({id global, primero, tamaño}); id -1 = sin anotar. */
+        int[][] leerAnotaciones() throws IOException {
+            int n = segmento.tamanio();
+            int[][] a = new int[3][n];
+            ByteBuffer b = ByteBuffer.allocate((int) Math.min(globales.size(), (long) ANOTACION * n));
+            while (b.hasRemaining() && globales.read(b, b.position()) >= 0) { }
+            b.flip();
+            for (int i = 0; i < n; i++) {
+                boolean hay = b.remaining() >= ANOTACION;
+                a[0][i] = hay ? b.getInt() - 1 : -1;
+                a[1][i] = hay ? b.getInt() : 0;
+                a[2][i] = hay ? b.getInt() : 0;
+            }
+            globales.truncate((long) ANOTACION * n);
+            return a;
+        }
+
+        /** ids == null escribe anotaciones vacías (borra las del tramo). */
+        void escribirAnotaciones(int primerLocal, int cantidad, int[] ids, int primero, int tamanio) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(ANOTACION * cantidad);
+            for (int k = 0; k < cantidad; k++)
+                if (ids == null) b.putInt(0).putInt(0).putInt(0);
+                else b.putInt(ids[k] + 1).putInt(primero).putInt(tamanio);
+            b.flip();
+            for (long pos = (long) ANOTACION * primerLocal; b.hasRemaining(); ) pos += globales.write(b, pos);
+        }
+
+        /** Escribe las anotaciones y las sincroniza con el mismo fsync agrupado del log. */
+        void anotar(int primerLocal, int[] ids, int primero, int tamanio) throws IOException {
+            escribirAnotaciones(primerLocal, ids.length, ids, primero, tamanio);
+            long secuencia = escritos.incrementAndGet();
+            synchronized (lockFsync) {
+                if (durables >= secuencia) return;
+                long objetivo = escritos.get();
+                globales.force(false);
+                durables = objetivo;
+            }
+        }
+    }
+
+    // Arreglo de longs que crece sin locks: bloques de 64K que se instalan con CAS al primer uso
+    private static final class ArregloSegmentado {
+        private static final int BITS = 16, BLOQUE = 1 << BITS;
+        private final AtomicReferenceArray<AtomicLongArray> bloques = new AtomicReferenceArray<>(1 << (31 - BITS));
+
+        long get(int i) {
+            AtomicLongArray b = bloques.get(i >>> BITS);
+            return b == null ? 0 : b.get(i & (BLOQUE - 1));
+        }
+
+        void set(int i, long valor) {
+            AtomicLongArray b = bloques.get(i >>> BITS);
+            if (b == null) {
+                bloques.compareAndSet(i >>> BITS, null, new AtomicLongArray(BLOQUE));
+                b = bloques.get(i >>> BITS);
+            }
+            b.set(i & (BLOQUE - 1), valor);
+        }
+    }
+
+    public RepositorioParticionado(Path dir, int particiones) throws IOException {
+        this(dir, particiones, aviso -> System.err.println(aviso));
+    }
+
+    /**
+     * Abre (o crea con {@code particiones} particiones) el repositorio en
+     * {@code dir}; los fallos en segundo plano se informan por {@code advertencias}.
+     */
+    public RepositorioParticionado(Path dir, int particiones, Consumer<String> advertencias) throws IOException {
+        Files.createDirectories(dir);
+        int existentes = 0;
+        while (Files.isDirectory(dir.resolve("particion-" + existentes))) existentes++;
+        int n = existentes > 0 ? existentes : particiones;
+        if (n < 1) throw new IllegalArgumentException("Número de particiones inválido: " + particiones);
+        this.particiones = new Particion[n];
+        try {
+            for (int s = 0; s < n; s++) this.particiones[s] = new Particion(s, dir.resolve("particion-" + s), advertencias);
+            reconstruirDirectorio();
+        } catch (IOException | RuntimeException ex) {
+            for (Particion p : this.particiones) if (p != null) cerrar(p);
+            throw ex;
+        }
+        this.pool = new ForkJoinPool(n);
+    }
+
+    /*
+     * Un lote está completo si aparecen anotados todos sus ids. Los expedientes
+     * sin anotar (la caída fue antes de reservar ids) se ignoran; los de lotes
+     * incompletos se desanotan, para que sus ids no se confundan con los de un
+     * lote futuro. Los ids nunca se renumeran.
+     */
+    private void reconstruirDirectorio() throws IOException {
+        int[][][] anotaciones = new int[particiones.length][][];
+        Map<Integer, int[]> lotes = new HashMap<>();     // primer id → {tamaño, anotados}
+        for (Particion p : particiones) {
+            int[][] a = anotaciones[p.numero] = p.leerAnotaciones();
+            for (int local = 0; local < a[0].length; local++) {
+                int g = a[0][local], primero = a[1][local], tam = a[2][local];
+                if (g < 0) continue;
+                int[] lote = lotes.computeIfAbsent(primero, k -> new int[]{tam, 0});
+                if (lote[0] == tam && g >= primero && g - primero < tam) lote[1]++;
+                else lote[1] = Integer.MIN_VALUE;
+            }
+        }
+        int maximo = -1;
+        for (Particion p : particiones) {
+            int[][] a = anotaciones[p.numero];
+            boolean desanotada = false;
+            for (int local = 0; local < a[0].length; local++) {
+                int g = a[0][local];
+                if (g < 0) continue;
+                int[] lote = lotes.get(a[1][local]);
+                if (lote[1] == lote[0] && directorio.get(g) == 0) {
+                    directorio.set(g, ubicacion(p.numero, local));
+                    p.globalDe.set(local, g + 1L);
+                    maximo = Math.max(maximo, g);
+                } else {
+                    p.escribirAnotaciones(local, 1, null, 0, 0);
+                    desanotada = true;
+                }
+            }
+            if (desanotada) p.globales.force(false);
+        }
+        for (int g = 0; g <= maximo; g++) if (directorio.get(g) == 0) directorio.set(g, AUSENTE);
+        reservados.set(maximo + 1);
+        publicados.set(maximo + 1);
+    }
+
+    private static long ubicacion(int particion, int local) { return (long) (particion + 1) << 32 | local; }
+    private static int particion(long ubicacion)            { return (int) (ubicacion >>> 32) - 1; }
+    private static int local(long ubicacion)                { return (int) ubicacion; }
+
+    private int particion(String cedula) {
+        int h = RepositorioExpedientes.normalizarCedula(cedula).hashCode();
+        return Math.floorMod(h ^ (h >>> 16), particiones.length);
+    }
+
+    public int particiones() { return particiones.length; }
+
+    @Override
+    public int guardar(ExpedienteMedico e) {
+        return guardarLote(Collections.singletonList(e));
+    }
+
+    /**
+     * Escribe cada parte del lote en su partición (en paralelo si el lote es
+     * grande), reserva ids consecutivos y los anota. Si algo falla, el lote
+     * entero queda sin guardar: nada de él es visible ahora ni tras reabrir.
+     * Vuelve cuando todos los ids hasta el último del lote son visibles.
+     */
+    @Override
+    public int guardarLote(List<ExpedienteMedico> lote) {
+        if (lote.isEmpty()) return publicados.get() - 1;
+        int[] destino = new int[lote.size()], cuenta = new int[particiones.length];
+        for (int i = 0; i < lote.size(); i++) cuenta[destino[i] = particion(lote.get(i).cedula)]++;
+        List<List<ExpedienteMedico>> partes = new ArrayList<>(particiones.length);
+        for (int s = 0; s < particiones.length; s++) partes.add(new ArrayList<>(cuenta[s]));
+        for (int i = 0; i < lote.size(); i++) partes.get(destino[i]).add(lote.get(i));
+
+        // Sin anotar, lo escrito aquí no existe para la recuperación: un error deja el lote sin efecto
+        boolean paralelo = lote.size() >= LOTE_PARALELO;
+        int[] primerLocal = new int[particiones.length];
+        enParalelo(paralelo, s -> {
+            if (!partes.get(s).isEmpty())
+                primerLocal[s] = particiones[s].segmento.guardarLote(partes.get(s)) - partes.get(s).size() + 1;
+        });
+
+        int primero = reservados.getAndAdd(lote.size()), ultimo = primero + lote.size() - 1;
+        int[][] ids = new int[particiones.length][];
+        for (int s = 0; s < particiones.length; s++) ids[s] = new int[cuenta[s]];
+        int[] usados = new int[particiones.length];
+        for (int i = 0; i < lote.size(); i++) ids[destino[i]][usados[destino[i]]++] = primero + i;
+        try {
+            enParalelo(paralelo, s -> {
+                if (ids[s].length == 0) return;
+                try {
+                    particiones[s].anotar(primerLocal[s], ids[s], primero, lote.size());
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (RuntimeException ex) {
+            for (int id = primero; id <= ultimo; id++) directorio.set(id, AUSENTE);
+            publicar();
+            desanotar(primerLocal, ids, ex);
+            throw ex;
+        }
+        for (int s = 0; s < particiones.length; s++)
+            for (int k = 0; k < ids[s].length; k++) {
+                directorio.set(ids[s][k], ubicacion(s, primerLocal[s] + k));
+                particiones[s].globalDe.set(primerLocal[s] + k, ids[s][k] + 1L);
+            }
+        publicar();
+        esperarPublicados(ultimo);
+        return ultimo;
+    }
+
+    // Borra las anotaciones que sí se escribieron; si tampoco se puede, la recuperación descarta el lote incompleto
+    private void desanotar(int[] primerLocal, int[][] ids, RuntimeException error) {
+        for (int s = 0; s < particiones.length; s++) {
+            if (ids[s].length == 0) continue;
+            try {
+                particiones[s].escribirAnotaciones(primerLocal[s], ids[s].length, null, 0, 0);
+                particiones[s].globales.force(false);
+            } catch (IOException | RuntimeException ex) {
+                error.addSuppressed(ex);
+            }
+        }
+    }
+
+    // Avanza el límite visible sobre los ids consecutivos ya escritos (o ausentes) y despierta a quien espere
+    private void publicar() {
+        boolean avanzo = false;
+        while (true) {
+            int p = publicados.get(), q = p, tope = reservados.get();
+            while (q < tope && directorio.get(q) != 0) q++;
+            if (q == p) break;
+            if (publicados.compareAndSet(p, q)) avanzo = true;
+        }
+        if (avanzo) synchronized (lockPublicados) { lockPublicados.notifyAll(); }
+    }
+
+    // Un lote anterior todavía anotando retiene los siguientes; se espera sin girar
+    private void esperarPublicados(int id) {
+        if (publicados.get() > id) return;
+        boolean interrumpido = false;
+        synchronized (lockPublicados) {
+            while (publicados.get() <= id) {
+                try {
+                    lockPublicados.wait();
+                } catch (InterruptedException ex) {
+                    interrumpido = true;
+                }
+            }
+        }
+        if (interrumpido) Thread.currentThread().interrupt();
+    }
+
+    // Una tarea por partición en el pool propio; espera a todas y relanza el primer error
+    private void enParalelo(boolean paralelo, IntConsumer tarea) {
+        if (!paralelo || particiones.length == 1) {
+            for (int s = 0; s < particiones.length; s++) tarea.accept(s);
+            return;
+        }
+        List<ForkJoinTask<?>> tareas = new ArrayList<>(particiones.length);
+        for (int s = 0; s < particiones.length; s++) {
+            int p = s;
+            tareas.add(pool.submit(() -> tarea.accept(p)));
+        }
+        RuntimeException error = null;
+        for (ForkJoinTask<?> t : tareas) {
+            try {
+                t.join();
+            } catch (RuntimeException ex) {
+                if (error == null) error = ex;
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    /** Límite de ids (exclusivo); los ids de lotes perdidos cuentan aunque no tengan expediente. */
+    @Override public int tamanio() { return publicados.get(); }
+
+    private long ubicacion(int id) {
+        long u = id < 0 ? 0 : directorio.get(id);
+        if (u == 0) throw new IndexOutOfBoundsException("id " + id + ", tamaño " + tamanio());
+        if (u == AUSENTE) throw new IndexOutOfBoundsException("El expediente " + RepositorioExpedientes.numero(id) + " no existe: su lote no llegó a guardarse.");
+        return u;
+    }
+
+    @Override
+    public ExpedienteMedico obtener(int id) {
+        long u = ubicacion(id);
+        return particiones[particion(u)].segmento.obtener(local(u));
+    }
+
+    @Override
+    public int modificar(int id, int versionLeida, ExpedienteMedico nueva) {
+        long u = ubicacion(id);
+        return particiones[particion(u)].segmento.modificar(local(u), versionLeida, nueva);
+    }
+
+    @Override
+    public int version(int id) {
+        long u = ubicacion(id);
+        return particiones[particion(u)].segmento.version(local(u));
+    }
+
+    @Override
+    public List<VersionExpediente> historial(int id) {
+        long u = ubicacion(id);
+        return particiones[particion(u)].segmento.historial(local(u));
+    }
+
+    /** Los ids sin expediente se omiten: la página puede traer menos de {@code limite}. */
+    @Override
+    public PaginaExpedientes pagina(int desdeId, int limite) {
+        int n = tamanio(), hasta = Math.min(n, desdeId + limite);
+        ExpedienteMedico[] es = leer(desdeId, hasta);
+        int[] ids = new int[es.length];
+        List<ExpedienteMedico> lista = new ArrayList<>(es.length);
+        for (int i = 0; i < es.length; i++) {
+            if (es[i] == null) continue;
+            ids[lista.size()] = desdeId + i;
+            lista.add(es[i]);
+        }
+        return new PaginaExpedientes(Arrays.copyOf(ids, lista.size()), lista, hasta < n);
+    }
+
+    /** Lee por tramos: cada tramo se reparte entre las particiones y se entrega en orden de id. */
+    @Override
+    public void recorrerTodos(OyenteExpedientes visitante) {
+        for (int i = 0, n = tamanio(); i < n; i += VENTANA) {
+            ExpedienteMedico[] es = leer(i, Math.min(n, i + VENTANA));
+            for (int k = 0; k < es.length; k++) if (es[k] != null) visitante.expedienteGuardado(i + k, es[k]);
+        }
+    }
+
+    /**
+     * Ids, en orden, de los expedientes que cumplen {@code filtro}. Cada
+     * partición recorre y decodifica los suyos en su propia tarea; las listas
+     * ordenadas de cada una se mezclan al final.
+     */
+    public int[] filtrar(Predicate<ExpedienteMedico> filtro) {
+        int n = tamanio();
+        int[][] porParticion = new int[particiones.length][];
+        enParalelo(true, s -> {
+            int[] ids = new int[64];
+            int c = 0;
+            ExpedienteMedico[] tramo = new ExpedienteMedico[VENTANA];
+            for (int i = 0; i < n; i += VENTANA) {
+                int hasta = Math.min(n, i + VENTANA);
+                Arrays.fill(tramo, null);
+                leerParticion(s, i, hasta, tramo);
+                for (int k = 0; k < hasta - i; k++) {
+                    if (tramo[k] == null || !filtro.test(tramo[k])) continue;
+                    if (c == ids.length) ids = Arrays.copyOf(ids, c * 2);
+                    ids[c++] = i + k;
+                }
+            }
+            porParticion[s] = Arrays.copyOf(ids, c);
+        });
+        return mezclar(porParticion);
+    }
+
+    /**
+     * Solo se recorre la partición que corresponde a la cédula, más los
+     * expedientes modificados de las demás (un cambio de cédula no los mueve).
+     */
+    @Override
+    public int buscarIdPorCedula(String cedula) {
+        String clave = RepositorioExpedientes.normalizarCedula(cedula);
+        int mejor = -1;
+        Particion propia = particiones[particion(clave)];
+        for (int desde = 0, n = propia.segmento.tamanio(); desde < n; desde += VENTANA) {
+            PaginaExpedientes p = propia.segmento.pagina(desde, VENTANA);
+            for (int k = 0; k < p.ids.length; k++)
+                if (clave.equals(RepositorioExpedientes.normalizarCedula(p.expedientes.get(k).cedula)))
+                    mejor = menorId(mejor, propia, p.ids[k]);
+        }
+        for (Particion otra : particiones) {
+            if (otra == propia) continue;
+            for (int local : otra.segmento.modificados())
+                if (clave.equals(RepositorioExpedientes.normalizarCedula(otra.segmento.obtener(local).cedula)))
+                    mejor = menorId(mejor, otra, local);
+        }
+        return mejor;
+    }
+
+    // Los expedientes sin anotar (de lotes que fallaron) no cuentan
+    private static int menorId(int mejor, Particion p, int local) {
+        int g = (int) p.globalDe.get(local) - 1;
+        return g < 0 || (mejor >= 0 && mejor < g) ? mejor : g;
+    }
+
+    // Mezcla de k listas ordenadas (k = particiones, pocas)
+    private static int[] mezclar(int[][] ordenadas) {
+        int total = 0;
+        for (int[] l : ordenadas) total += l.length;
+        int[] salida = new int[total], pos = new int[ordenadas.length];
+        for (int i = 0; i < total; i++) {
+            int mejor = -1;
+            for (int s = 0; s < ordenadas.length; s++)
+                if (pos[s] < ordenadas[s].length
+                        && (mejor < 0 || ordenadas[s][pos[s]] < ordenadas[mejor][pos[mejor]])) mejor = s;
+            salida[i] = ordenadas[mejor][pos[mejor]++];
+        }
+        return salida;
+    }
+
+    // null en las posiciones de ids sin expediente
+    private ExpedienteMedico[] leer(int desde, int hasta) {
+        ExpedienteMedico[] destino = new ExpedienteMedico[Math.max(0, hasta - desde)];
+        enParalelo(destino.length >= LOTE_PARALELO, s -> leerParticion(s, desde, hasta, destino));
+        return destino;
+    }
+
+    // Los expedientes de la partición s con id en [desde, hasta), leídos en tramos de ids locales consecutivos
+    private void leerParticion(int s, int desde, int hasta, ExpedienteMedico[] destino) {
+        int[] pos = new int[hasta - desde], locales = new int[hasta - desde];
+        int n = 0;
+        for (int id = desde; id < hasta; id++) {
+            long u = directorio.get(id);
+            if (u == 0 || u == AUSENTE || particion(u) != s) continue;
+            pos[n] = id - desde;
+            locales[n++] = local(u);
+        }
+        for (int i = 0; i < n; ) {
+            int j = i + 1;
+            while (j < n && locales[j] == locales[j - 1] + 1) j++;
+            List<ExpedienteMedico> leidos = particiones[s].segmento.pagina(locales[i], j - i).expedientes;
+            for (int k = i; k < j; k++) destino[pos[k]] = leidos.get(k - i);
+            i = j;
+        }
+    }
+
+    @Override
+    public void cerrar() {
+        pool.shutdown();
+        for (Particion p : particiones) cerrar(p);
+    }
+
+    private static void cerrar(Particion p) {
+        p.segmento.cerrar();
+        try {
+            p.globales.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
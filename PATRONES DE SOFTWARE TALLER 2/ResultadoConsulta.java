@@ -0,0 +1,55 @@
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * Resultado de {@link AlmacenColumnar#ejecutar}: los candidatos ya
+ * intersecados más las verificaciones pendientes, que se aplican a medida que
+ * se recorre {@link #ids()}. Tomar los primeros N ids cuesta lo que tarde en
+ * aparecer el N-ésimo, no lo que cuesta resolver la consulta entera.
+ */
+final class ResultadoConsulta {
+    /** Pasos elegidos por el planificador, uno por línea. */
+    final String plan;
+    /** Cantidad esperada de ids (exacta si no quedaron verificaciones). */
+    final int estimado;
+    private final BitSet candidatos;
+    private final IntPredicate verificar;
+
+    ResultadoConsulta(BitSet candidatos, IntPredicate verificar, int estimado, String plan) {
+        this.candidatos = candidatos;
+        this.verificar = verificar;
+        this.estimado = estimado;
+        this.plan = plan;
+    }
+
+    /** Ids que cumplen la consulta, en orden creciente y evaluados a demanda. */
+    public IntStream ids() {
+        Spliterator.OfInt it = new Spliterators.AbstractIntSpliterator(estimado,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL) {
+            private int siguiente = candidatos.nextSetBit(0);
+
+            @Override
+            public boolean tryAdvance(IntConsumer accion) {
+                while (siguiente >= 0) {
+                    int id = siguiente;
+                    siguiente = id == Integer.MAX_VALUE ? -1 : candidatos.nextSetBit(id + 1);
+                    if (verificar == null || verificar.test(id)) {
+                        accion.accept(id);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+        return StreamSupport.intStream(it, false);
+    }
+
+    /** Todos los ids como bitmap (para ordenar con {@link IndiceOrden#vista}). */
+    public BitSet bitmap() {
+        if (verificar == null) return candidatos;
+        BitSet r = new BitSet();
+        ids().forEach(r::set);
+        return r;
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Núcleo sin interfaz gráfica: es dueño del registro de plantillas, del
+ * repositorio y de sus índices, y expone las operaciones de guardado y
+ * consulta. La GUI, el servidor HTTP y las herramientas de consola son
+ * clientes de esta clase; ninguna parte de ella toca Swing.
+ */
+class ServicioExpedientes {
+    // Ubicaciones por defecto, relativas al directorio de trabajo
+    static final Path DIR_DATOS = Paths.get("expedientes-datos");
+    static final Path ARCHIVO_PLANTILLAS = Paths.get("plantillas.txt");
+
+    final RegistroPrototipos registro;
+    final RepositorioIndexado repositorio;
+    final IndiceTextoCompleto indiceTexto = new IndiceTextoCompleto();
+    final AlmacenColumnar columnar = new AlmacenColumnar();
+    final AgregadosExpedientes agregados = new AgregadosExpedientes();
+    final IndiceOrden indiceOrden = new IndiceOrden(columnar);
+    final DetectorDuplicados duplicados = new DetectorDuplicados();
+    final BitacoraAuditoria auditoria;   // null sin almacenamiento en disco
+    private final ImportadorExpedientes conversor;
+    private final Closeable vigilancia;
+
+    private ServicioExpedientes(RegistroPrototipos registro, Closeable vigilancia, RepositorioExpedientes almacen,
+                                BitacoraAuditoria auditoria, Consumer<String> advertencias) {
+        this.registro = registro;
+        this.vigilancia = vigilancia;
+        this.auditoria = auditoria;
+        this.repositorio = new RepositorioIndexado(almacen);
+        this.conversor = new ImportadorExpedientes(registro, repositorio);
+        repositorio.agregarOyente(indiceTexto, columnar, agregados, indiceOrden, duplicados);
+        if (auditoria != null) repositorio.seguirGuardados(auditoria);
+        duplicados.vigilar();
+        Metricas.publicarJmx(advertencias);
+    }
+
+    /**
+     * Abre el log durable en {@code dirDatos} con las plantillas de
+     * {@code archivoPlantillas} (vigilado; si no existe o no se puede leer,
+     * las predeterminadas). Con {@code -Dexpedientes.particiones=N} (N > 1), o
+     * si ya existe {@code dirDatos/particiones}, el log se reparte en un
+     * {@link RepositorioParticionado}; un log sin particionar existente se
+     * sigue usando. Si el log no abre se sigue en memoria; si abre, los
+     * cambios se auditan en {@code dirDatos/auditoria.log}. Los casos de
+     * degradación se informan por {@code advertencias}, también los que ocurren
+     * después en segundo plano (recarga de plantillas, compactación), desde
+     * otros hilos.
+     */
+    static ServicioExpedientes abrir(Path dirDatos, Path archivoPlantillas, Consumer<String> advertencias) {
+        RegistroPrototipos registro = new RegistroPrototipos();
+        Closeable vigilancia = null;
+        if (archivoPlantillas != null && Files.exists(archivoPlantillas)) {
+            try {
+                registro.cargar(archivoPlantillas);
+                vigilancia = registro.vigilar(archivoPlantillas, advertencias);
+            } catch (IOException ex) {
+                advertencias.accept(ex.getMessage() + "\nSe usarán las plantillas predeterminadas.");
+            }
+        }
+        if (registro.getClaves().isEmpty()) registro.registrarPredeterminadas();
+
+        RepositorioExpedientes almacen;
+        BitacoraAuditoria auditoria = null;
+        int particiones = Integer.getInteger("expedientes.particiones", 0);
+        Path dirParticiones = dirDatos.resolve("particiones");
+        if (particiones > 1 && !Files.isDirectory(dirParticiones) && Files.exists(dirDatos.resolve("expedientes.log"))) {
+            advertencias.accept("Ya hay expedientes sin particionar en " + dirDatos.toAbsolutePath() +
+                "; se ignora expedientes.particiones=" + particiones + ".");
+            particiones = 0;
+        }
+        try {
+            almacen = particiones > 1 || Files.isDirectory(dirParticiones)
+                ? new RepositorioParticionado(dirParticiones, Math.max(particiones, 1), advertencias)
+                : new RepositorioExpedientesLog(dirDatos, RepositorioExpedientesLog.UMBRAL_COMPACTACION, advertencias);
+        } catch (IOException | UncheckedIOException ex) {
+            advertencias.accept("No se pudo abrir el almacenamiento en " + dirDatos.toAbsolutePath() + ":\n" +
+                ex.getMessage() + "\nLos expedientes de esta sesión no se guardarán en disco.");
+            almacen = new RepositorioEnMemoria();
+        }
+        if (!(almacen instanceof RepositorioEnMemoria)) {
+            try {
+                auditoria = new BitacoraAuditoria(dirDatos.resolve("auditoria.log"), advertencias);
+            } catch (IOException | RuntimeException ex) {
+                advertencias.accept("No se pudo abrir la bitácora de auditoría:\n" + ex.getMessage() +
+                    "\nLos cambios de esta sesión se guardarán sin auditar.");
+            }
+        }
+        return new ServicioExpedientes(registro, vigilancia, almacen, auditoria, advertencias);
+    }
+
+    /** Servicio sin disco con las plantillas predeterminadas; no tiene a quién advertir. */
+    static ServicioExpedientes enMemoria() {
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        return new ServicioExpedientes(registro, null, new RepositorioEnMemoria(), null, aviso -> {});
+    }
+
+    /** Builder partiendo de un clon de la plantilla {@code clave}. */
+    public ExpedienteMedico.Builder nuevoExpediente(String clave) {
+        return new ExpedienteMedico.Builder(registro.obtenerClon(clave));
+    }
+
+    public int guardar(ExpedienteMedico e) { return repositorio.guardar(e); }
+
+    /**
+     * Construye y guarda un expediente a partir de campos sueltos (los mismos
+     * de la importación: plantilla, nombre, cedula, edad, …).
+     */
+    public int crear(Map<String, Object> campos) {
+        return guardar(conversor.construir(campos, ExpedienteMedico.Builder.reutilizable()));
+    }
+
+    /** Builder de la versión siguiente del expediente {@code id}, con sus datos actuales. */
+    public ExpedienteMedico.Builder editar(int id) {
+        return new ExpedienteMedico.Builder(repositorio.obtener(id));
+    }
+
+    /** Ver {@link RepositorioExpedientes#modificar}. */
+    public int modificar(int id, int versionLeida, ExpedienteMedico nueva) {
+        return repositorio.modificar(id, versionLeida, nueva);
+    }
+
+    public int version(int id)                                  { return repositorio.version(id); }
+    public List<VersionExpediente> historial(int id)            { return repositorio.historial(id); }
+    public ExpedienteMedico obtener(int id)                     { return repositorio.obtener(id); }
+    public int tamanio()                                        { return repositorio.tamanio(); }
+    public int buscarIdPorCedula(String cedula)                 { return repositorio.buscarIdPorCedula(cedula); }
+    public Optional<ExpedienteMedico> buscarPorCedula(String c) { return repositorio.buscarPorCedula(c); }
+    public int[] buscarTexto(String consulta, int limite)       { return indiceTexto.buscar(consulta, limite); }
+    public BitSet coincidencias(String consulta)                { return indiceTexto.coincidencias(consulta); }
+    public PaginaExpedientes pagina(int desdeId, int limite)    { return repositorio.pagina(desdeId, limite); }
+    public PaginaExpedientes paginaPorCedula(String despuesDe, int limite) {
+        return repositorio.paginaPorCedula(despuesDe, limite);
+    }
+    public ResultadoConsulta consultar(ConsultaExpedientes c)   { return columnar.ejecutar(c, null); }
+    public AgregadosExpedientes.Instantanea estadisticas()      { return agregados.instantanea(); }
+    public List<DetectorDuplicados.Sospecha> posiblesDuplicados() { return duplicados.pendientes(); }
+
+    // El repositorio primero: hasta cerrarlo puede haber guardados que avisan al detector
+    public void cerrar() {
+        if (vigilancia != null) {
+            try { vigilancia.close(); } catch (IOException ignored) {}
+        }
+        repositorio.cerrar();
+        duplicados.cerrar();
+        if (auditoria != null) auditoria.cerrar();
+    }
+}
@@ -0,0 +1,465 @@
+import java.io.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Servidor HTTP/JSON embebido (com.sun.net.httpserver) sobre un
+ * {@link ServicioExpedientes}. Cada solicitud corre en su propio hilo virtual
+ * cuando la JVM los tiene (JDK 21+); si no, en un pool fijo. Los guardados
+ * concurrentes comparten fsync gracias al commit agrupado del log.
+ *
+ * Por defecto solo escucha en loopback y la auditoría firma con la dirección
+ * remota. Exponerla en otra interfaz es explícito y exige tokens: cada
+ * solicitud lleva "Authorization: Bearer <token>" y se audita con el usuario
+ * dueño del token. Ninguna cabecera que mande el cliente decide quién firma.
+ *
+ *   GET  /plantillas
+ *   GET  /expedientes/{id}
+ *   GET  /expedientes?cedula=…
+ *   GET  /expedientes?desde=0&limite=50                 (orden de inserción)
+ *   GET  /expedientes?orden=cedula&despuesDe=…&limite=50
+ *   POST /expedientes                                    cuerpo: campos de la importación
+ *   GET  /buscar?q=…&limite=20
+ *   GET  /consultar?tipoPaciente=…&tipoAtencion=…&medico=…&edadDesde=…&edadHasta=…
+ *                   &alergia=a,b&medicamento=…&examen=…&limite=50
+ *   GET  /estadisticas
+ *   GET  /duplicados                                     sospechas pendientes de revisión
+ */
+class ServidorHttpExpedientes {
+    private static final int LIMITE_MAXIMO = 1000;
+    private static final int CUERPO_MAXIMO = 1 << 20;   // bytes de un POST; un expediente ocupa unos pocos KB
+    private static final int TOKEN_MINIMO = 16;
+    private static final String ATRIBUTO_USUARIO = "expedientes.usuario";
+
+    // Cabeceras y cuerpo salen en dos escrituras: con Nagle activo cada
+    // respuesta espera el ACK retardado del cliente (~40 ms)
+    static {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ServicioExpedientes servicio;
+    private final HttpServer servidor;
+    private final ExecutorService hilos;
+    private final Map<String, String> tokens;    // token → usuario
+    private final Consumer<String> errores;
+
+    private interface Manejador { Object responder(HttpExchange ex) throws IOException; }
+
+    /** Respuesta con código distinto de 200. */
+    private static final class Respuesta {
+        final int codigo;
+        final Object cuerpo;
+        Respuesta(int codigo, Object cuerpo) { this.codigo = codigo; this.cuerpo = cuerpo; }
+    }
+
+    /** Cuerpo de más de {@link #CUERPO_MAXIMO} bytes: 413. */
+    private static final class CuerpoDemasiadoGrande extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+        CuerpoDemasiadoGrande() { super("El cuerpo supera los " + CUERPO_MAXIMO + " bytes."); }
+    }
+
+    /** Solo en loopback y sin tokens; el detalle de los errores 500 va a System.err. */
+    public ServidorHttpExpedientes(ServicioExpedientes servicio, int puerto) throws IOException {
+        this(servicio, new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto),
+             Collections.emptyMap(), detalle -> System.err.println(detalle));
+    }
+
+    /**
+     * Escucha en {@code direccion}. Con {@code tokens} (token → usuario) toda
+     * solicitud debe autenticarse; sin ellos solo se acepta una dirección de
+     * loopback. {@code errores} recibe el detalle de cada error 500, que al
+     * cliente no se le muestra.
+     */
+    public ServidorHttpExpedientes(ServicioExpedientes servicio, InetSocketAddress direccion,
+                                   Map<String, String> tokens, Consumer<String> errores) throws IOException {
+        if (tokens.isEmpty() && (direccion.getAddress() == null || !direccion.getAddress().isLoopbackAddress()))
+            throw new IllegalArgumentException("Exponer la API en " + direccion
+                + " exige tokens de acceso (expedientes.http.tokens).");
+        for (String t : tokens.keySet())
+            if (t.length() < TOKEN_MINIMO)
+                throw new IllegalArgumentException("Los tokens deben tener al menos " + TOKEN_MINIMO + " caracteres.");
+        this.servicio = servicio;
+        this.tokens   = new HashMap<>(tokens);
+        this.errores  = errores;
+        this.servidor = HttpServer.create(direccion, 0);
+        this.hilos = ejecutorPorSolicitud();
+        servidor.setExecutor(hilos);
+        servidor.createContext("/plantillas",   ex -> atender(ex, this::plantillas));
+        servidor.createContext("/expedientes",  ex -> atender(ex, this::expedientes));
+        servidor.createContext("/buscar",       ex -> atender(ex, this::buscar));
+        servidor.createContext("/consultar",    ex -> atender(ex, this::consultar));
+        servidor.createContext("/estadisticas", ex -> atender(ex, e -> estadisticas()));
+        servidor.createContext("/duplicados",   ex -> atender(ex, this::duplicados));
+    }
+
+    public ServidorHttpExpedientes iniciar() {
+        servidor.start();
+        return this;
+    }
+
+    public int puerto() { return servidor.getAddress().getPort(); }
+
+    /** URL base para un cliente en esta misma máquina. */
+    public String url() {
+        InetAddress a = servidor.getAddress().getAddress();
+        if (a.isAnyLocalAddress()) a = InetAddress.getLoopbackAddress();
+        String host = a instanceof Inet6Address ? "[" + a.getHostAddress() + "]" : a.getHostAddress();
+        return "http://" + host + ":" + puerto();
+    }
+
+    /**
+     * Servidor según las propiedades del sistema: {@code expedientes.http.direccion}
+     * (por defecto loopback; "0.0.0.0" expone todas las interfaces) y
+     * {@code expedientes.http.tokens}, un archivo con líneas "usuario token".
+     */
+    static ServidorHttpExpedientes configurado(ServicioExpedientes servicio, int puerto,
+                                               Consumer<String> errores) throws IOException {
+        String host = System.getProperty("expedientes.http.direccion");
+        InetAddress dir = host == null || host.isBlank() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host.trim());
+        String archivo = System.getProperty("expedientes.http.tokens");
+        Map<String, String> tokens = archivo == null ? Collections.emptyMap() : leerTokens(Paths.get(archivo));
+        return new ServidorHttpExpedientes(servicio, new InetSocketAddress(dir, puerto), tokens, errores);
+    }
+
+    static Map<String, String> leerTokens(Path archivo) throws IOException {
+        Map<String, String> tokens = new HashMap<>();
+        int n = 0;
+        for (String l : Files.readAllLines(archivo, StandardCharsets.UTF_8)) {
+            n++;
+            l = l.trim();
+            if (l.isEmpty() || l.startsWith("#")) continue;
+            String[] partes = l.split("\\s+");
+            if (partes.length != 2) throw new IllegalArgumentException(archivo + ":" + n + ": se esperaba \"usuario token\".");
+            if (tokens.put(partes[1], partes[0]) != null)
+                throw new IllegalArgumentException(archivo + ":" + n + ": token repetido.");
+        }
+        return tokens;
+    }
+
+    public void detener() {
+        servidor.stop(1);
+        hilos.shutdown();
+    }
+
+    // Hilos virtuales por reflexión para compilar y correr también en JDK 17
+    static ExecutorService ejecutorPorSolicitud() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            int n = Math.max(16, 8 * Runtime.getRuntime().availableProcessors());
+            return Executors.newFixedThreadPool(n, r -> {
+                Thread t = new Thread(r, "http-expedientes");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void atender(HttpExchange ex, Manejador m) throws IOException {
+        int codigo;
+        Object cuerpo;
+        try {
+            String usuario = autenticar(ex);
+            if (usuario == null) {
+                ex.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                responder(ex, 401, error("Se requiere un token de acceso."));
+                return;
+            }
+            ex.setAttribute(ATRIBUTO_USUARIO, usuario);
+            cuerpo = m.responder(ex);
+            codigo = 200;
+            if (cuerpo instanceof Respuesta) {
+                codigo = ((Respuesta) cuerpo).codigo;
+                cuerpo = ((Respuesta) cuerpo).cuerpo;
+            }
+        } catch (CuerpoDemasiadoGrande e) {
+            codigo = 413;
+            cuerpo = error(e.getMessage());
+        } catch (CedulaDuplicadaException e) {
+            codigo = 409;
+            OptionalInt existente = e.getIdExistente();
+            cuerpo = existente.isPresent() ? error(e.getMessage(), "idExistente", existente.getAsInt())
+                                           : error(e.getMessage());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            codigo = 400;
+            cuerpo = error(e.getMessage());
+        } catch (NoSuchElementException e) {
+            codigo = 404;
+            cuerpo = error("No encontrado.");
+        } catch (RuntimeException e) {
+            codigo = 500;
+            cuerpo = error("Error interno del servidor.");
+            StringWriter traza = new StringWriter();
+            e.printStackTrace(new PrintWriter(traza));
+            errores.accept("HTTP " + ex.getRequestMethod() + " " + ex.getRequestURI() + ": " + traza);
+        }
+        responder(ex, codigo, cuerpo);
+    }
+
+    private static void responder(HttpExchange ex, int codigo, Object cuerpo) throws IOException {
+        byte[] bytes = Json.escribir(cuerpo).getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(codigo, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, Object> error(String mensaje, Object... extra) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("error", mensaje);
+        for (int i = 0; i + 1 < extra.length; i += 2) m.put(String.valueOf(extra[i]), extra[i + 1]);
+        return m;
+    }
+
+    private Object plantillas(HttpExchange ex) {
+        exigirMetodo(ex, "GET");
+        List<Object> lista = new ArrayList<>();
+        servicio.registro.getCatalogo().plantillas.forEach((clave, p) -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("clave", clave);
+            m.put("tipoPaciente", p.getTipoPaciente());
+            m.put("tipoAtencion", p.getTipoAtencion());
+            m.put("examenes", p.getExamenesBase());
+            lista.add(m);
+        });
+        return lista;
+    }
+
+    private Object expedientes(HttpExchange ex) throws IOException {
+        String resto = ex.getRequestURI().getPath().substring("/expedientes".length());
+        if ("POST".equals(ex.getRequestMethod())) {
+            if (!resto.isEmpty() && !resto.equals("/")) throw new NoSuchElementException();
+            Map<String, Object> campos = cuerpoJson(ex);
+            int id = BitacoraAuditoria.comoUsuario(usuario(ex), () -> servicio.crear(campos));
+            return new Respuesta(201, Collections.singletonMap("id", id));
+        }
+        exigirMetodo(ex, "GET");
+        if (resto.length() > 1) {
+            int id;
+            try {
+                id = Integer.parseInt(resto.substring(1));
+            } catch (NumberFormatException e) {
+                throw new NoSuchElementException();
+            }
+            return aMapa(id, expediente(id));
+        }
+
+        Map<String, String> q = parametros(ex.getRequestURI());
+        if (q.containsKey("cedula")) {
+            int id = servicio.buscarIdPorCedula(q.get("cedula"));
+            return aMapa(id, expediente(id));
+        }
+        int limite = limite(q, 50);
+        boolean porCedula = "cedula".equals(q.get("orden"));
+        PaginaExpedientes p = porCedula
+            ? servicio.paginaPorCedula(q.get("despuesDe"), limite)
+            : servicio.pagina(entero(q, "desde", 0, 0), limite);
+        List<Object> lista = new ArrayList<>(p.ids.length);
+        for (int i = 0; i < p.ids.length; i++) lista.add(aMapa(p.ids[i], p.expedientes.get(i)));
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("expedientes", lista);
+        r.put("hayMas", p.hayMas);
+        if (p.hayMas) r.put("siguiente", porCedula ? p.ultimaCedula() : (Object) (p.ultimoId() + 1));
+        return r;
+    }
+
+    private Object buscar(HttpExchange ex) {
+        exigirMetodo(ex, "GET");
+        Map<String, String> q = parametros(ex.getRequestURI());
+        String consulta = q.getOrDefault("q", "").trim();
+        if (consulta.isEmpty()) throw new IllegalArgumentException("Falta el parámetro q.");
+        int limite = limite(q, 20);
+        List<Object> lista = new ArrayList<>();
+        for (int id : servicio.buscarTexto(consulta, limite)) lista.add(aMapa(id, servicio.obtener(id)));
+        return lista;
+    }
+
+    // Solo se leen los primeros {@code limite} ids del resultado perezoso
+    private Object consultar(HttpExchange ex) {
+        exigirMetodo(ex, "GET");
+        Map<String, String> q = parametros(ex.getRequestURI());
+        ConsultaExpedientes.Builder b = ConsultaExpedientes.nueva()
+            .tipoPaciente(q.get("tipoPaciente"))
+            .tipoAtencion(q.get("tipoAtencion"))
+            .medico(q.get("medico"))
+            .edadEntre(entero(q, "edadDesde", -1, -1), entero(q, "edadHasta", -1, -1));
+        for (String v : q.getOrDefault("alergia", "").split(","))     b.conAlergia(v);
+        for (String v : q.getOrDefault("medicamento", "").split(",")) b.conMedicamento(v);
+        for (String v : q.getOrDefault("examen", "").split(","))      b.conExamen(v);
+        int limite = limite(q, 50);
+        ResultadoConsulta r = servicio.consultar(b.construir());
+        List<Object> lista = new ArrayList<>();
+        r.ids().limit(limite).forEach(id -> lista.add(aMapa(id, servicio.obtener(id))));
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("estimado", r.estimado);
+        m.put("plan", Arrays.asList(r.plan.split("\n")));
+        m.put("expedientes", lista);
+        return m;
+    }
+
+    private Object estadisticas() {
+        AgregadosExpedientes.Instantanea a = servicio.estadisticas();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("total", a.total);
+        m.put("edadPromedio", a.edadPromedio);
+        m.put("porTipoPaciente", a.porTipoPaciente);
+        m.put("porTipoAtencion", a.porTipoAtencion);
+        Map<String, Object> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> d : a.topDiagnosticos) top.put(d.getKey(), d.getValue());
+        m.put("topDiagnosticos", top);
+        return m;
+    }
+
+    private Object duplicados(HttpExchange ex) {
+        exigirMetodo(ex, "GET");
+        List<Object> lista = new ArrayList<>();
+        for (DetectorDuplicados.Sospecha s : servicio.posiblesDuplicados()) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", s.id);
+            m.put("idParecido", s.idParecido);
+            m.put("similitud", s.similitud);
+            m.put("motivo", s.motivo);
+            lista.add(m);
+        }
+        return lista;
+    }
+
+    static Map<String, Object> aMapa(int id, ExpedienteMedico e) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", id);
+        m.put("tipoPaciente", e.tipoPaciente());
+        m.put("tipoAtencion", e.tipoAtencion());
+        m.put("nombre", e.nombrePaciente);
+        m.put("cedula", e.cedula);
+        m.put("edad", e.edad);
+        m.put("diagnostico", e.diagnostico);
+        m.put("medico", e.medicoResponsable());
+        m.put("notas", e.notasAdicionales);
+        m.put("medicamentos", e.medicamentos);
+        m.put("alergias", e.alergias);
+        m.put("examenes", e.examenes);
+        return m;
+    }
+
+    // Con tokens, el dueño del token presentado (null si falta o no coincide);
+    // sin tokens, la dirección remota, que en loopback es la propia máquina
+    private String autenticar(HttpExchange ex) {
+        if (tokens.isEmpty()) return "http:" + ex.getRemoteAddress().getAddress().getHostAddress();
+        String h = ex.getRequestHeaders().getFirst("Authorization");
+        if (h == null || !h.regionMatches(true, 0, "Bearer ", 0, 7)) return null;
+        byte[] presentado = h.substring(7).trim().getBytes(StandardCharsets.UTF_8);
+        String usuario = null;
+        for (Map.Entry<String, String> t : tokens.entrySet())   // sin cortar al acertar: tiempo constante
+            if (MessageDigest.isEqual(presentado, t.getKey().getBytes(StandardCharsets.UTF_8))) usuario = t.getValue();
+        return usuario;
+    }
+
+    private static String usuario(HttpExchange ex) {
+        return (String) ex.getAttribute(ATRIBUTO_USUARIO);
+    }
+
+    // 404 solo para un id que no existe: fuera de rango o de un lote que no llegó a guardarse
+    private ExpedienteMedico expediente(int id) {
+        if (id < 0 || id >= servicio.tamanio()) throw new NoSuchElementException();
+        try {
+            return servicio.obtener(id);
+        } catch (IndexOutOfBoundsException e) {
+            throw new NoSuchElementException();
+        }
+    }
+
+    // Lee a lo sumo CUERPO_MAXIMO + 1 bytes: un Content-Length falso no reserva memoria
+    private static Map<String, Object> cuerpoJson(HttpExchange ex) throws IOException {
+        String largo = ex.getRequestHeaders().getFirst("Content-Length");
+        if (largo != null) {
+            try {
+                if (Long.parseLong(largo.trim()) > CUERPO_MAXIMO) throw new CuerpoDemasiadoGrande();
+            } catch (NumberFormatException ignored) {}
+        }
+        byte[] bytes;
+        try (InputStream in = ex.getRequestBody()) {
+            bytes = in.readNBytes(CUERPO_MAXIMO + 1);
+        }
+        if (bytes.length > CUERPO_MAXIMO) throw new CuerpoDemasiadoGrande();
+        Object datos = Json.parsear(new String(bytes, StandardCharsets.UTF_8));
+        if (!(datos instanceof Map)) throw new IllegalArgumentException("Se esperaba un objeto JSON.");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> campos = (Map<String, Object>) datos;
+        for (Map.Entry<String, Object> c : campos.entrySet()) {
+            Object v = c.getValue();
+            boolean valido = !(v instanceof Map);
+            if (v instanceof Collection)
+                for (Object o : (Collection<?>) v) valido &= !(o instanceof Map) && !(o instanceof Collection);
+            if (!valido) throw new IllegalArgumentException("Valor inválido para el campo " + c.getKey() + ".");
+        }
+        return campos;
+    }
+
+    private static int limite(Map<String, String> q, int porDefecto) {
+        return Math.min(LIMITE_MAXIMO, entero(q, "limite", porDefecto, 0));
+    }
+
+    private static int entero(Map<String, String> q, String nombre, int porDefecto, int minimo) {
+        String v = q.get(nombre);
+        if (v == null || v.isBlank()) return porDefecto;
+        try {
+            int n = Integer.parseInt(v.trim());
+            if (n >= minimo) return n;
+        } catch (NumberFormatException ignored) {}
+        throw new IllegalArgumentException("Parámetro " + nombre + " inválido: " + v);
+    }
+
+    private static void exigirMetodo(HttpExchange ex, String metodo) {
+        if (!metodo.equals(ex.getRequestMethod()))
+            throw new IllegalArgumentException("Método no soportado: " + ex.getRequestMethod());
+    }
+
+    private static Map<String, String> parametros(URI uri) {
+        Map<String, String> m = new HashMap<>();
+        String q = uri.getRawQuery();
+        if (q == null) return m;
+        for (String par : q.split("&")) {
+            int eq = par.indexOf('=');
+            if (eq <= 0) continue;
+            m.put(URLDecoder.decode(par.substring(0, eq), StandardCharsets.UTF_8),
+                  URLDecoder.decode(par.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return m;
+    }
+
+    /**
+     * java [-Dexpedientes.http.direccion=…] [-Dexpedientes.http.tokens=archivo]
+     *      ServidorHttpExpedientes [puerto] [directorio de datos]
+     */
+    public static void main(String[] args) {
+        int puerto = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        Path dir = args.length > 1 ? Paths.get(args[1]) : ServicioExpedientes.DIR_DATOS;
+        ServicioExpedientes servicio = ServicioExpedientes.abrir(dir, ServicioExpedientes.ARCHIVO_PLANTILLAS,
+            aviso -> System.err.println("Aviso: " + aviso));
+        try {
+            ServidorHttpExpedientes s = configurado(servicio, puerto, detalle -> System.err.println("Error: " + detalle)).iniciar();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                s.detener();
+                servicio.cerrar();
+            }));
+            System.out.println("Expedientes HTTP en " + s.servidor.getAddress() + " (" + servicio.tamanio() + " expedientes)");
+        } catch (IOException | IllegalArgumentException ex) {
+            servicio.cerrar();
+            System.err.println("No se pudo iniciar el servidor: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Cadenas muy repetidas (tipos, médicos, exámenes, medicamentos) se guardan
+// una sola vez, y también las listas de exámenes de plantilla que se releen
+// del log. Pasado el tope se devuelven tal cual, para que texto libre
+// importado no haga crecer la tabla sin límite.
+final class TablaCadenas {
+    private static final int MAXIMO = 1 << 16, MAXIMO_LISTAS = 1 << 12;
+    private static final ConcurrentHashMap<String, String> CADENAS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<List<String>, List<String>> LISTAS = new ConcurrentHashMap<>();
+
+    private TablaCadenas() {}
+
+    static String internar(String s) {
+        if (s == null) return null;
+        String previa = CADENAS.get(s);
+        if (previa != null) return previa;
+        if (CADENAS.size() >= MAXIMO) return s;
+        previa = CADENAS.putIfAbsent(s, s);
+        return previa != null ? previa : s;
+    }
+
+    static List<String> internar(List<String> l) {
+        String[] copia = new String[l.size()];
+        for (int i = 0; i < copia.length; i++) copia[i] = internar(l.get(i));
+        List<String> lista = ListasCompactas.de(Arrays.asList(copia));
+        List<String> previa = LISTAS.get(lista);
+        if (previa != null) return previa;
+        if (LISTAS.size() >= MAXIMO_LISTAS) return lista;
+        previa = LISTAS.putIfAbsent(lista, lista);
+        return previa != null ? previa : lista;
+    }
+}
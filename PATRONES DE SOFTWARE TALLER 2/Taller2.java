@@ -3,9 +3,27 @@ import javax.swing.border.*;
 import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.*;
+import java.awt.image.*;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.text.Collator;
+import java.text.Normalizer;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 // ============================================================
 //  TALLER: Patrón Prototype + Builder con GUI Swing
@@ -13,93 +31,401 @@ import java.util.List;
 //  Curso: Patrones de Software - Cuarto Semestre
 // ============================================================
 
-// ── PROTOTYPE ───────────────────────────────────────────────
-interface ExpedientePrototype {
-    ExpedientePrototype clonar();
+// ── REPINTADO AGRUPADO ──────────────────────────────────────
+/**
+ * Agrupa avisos que llegan desde cualquier hilo en a lo sumo una ejecución
+ * de {@code accion} en el EDT por intervalo (16 ms ≈ un cuadro). Mientras
+ * hay una ejecución pendiente los avisos nuevos solo cuestan un CAS fallido.
+ */
+class CoalescedorRepintado {
+    private final AtomicBoolean pendiente = new AtomicBoolean();
+    private final javax.swing.Timer timer;
+
+    public CoalescedorRepintado(int intervaloMs, Runnable accion) {
+        timer = new javax.swing.Timer(intervaloMs, e -> {
+            pendiente.set(false);   // antes de leer: un cambio posterior programa otro cuadro
+            accion.run();
+        });
+        timer.setRepeats(false);
+    }
+
+    public void avisar() {
+        if (pendiente.compareAndSet(false, true)) SwingUtilities.invokeLater(timer::start);
+    }
 }
 
-class ExpedienteBase implements ExpedientePrototype {
-    private String tipoPaciente;
-    private String tipoAtencion;
-    private List<String> examenesBase;
+// ── MODELO DE TABLA ─────────────────────────────────────────
+// Muestra el repositorio por páginas de FILAS_PAGINA filas. Las páginas se
+// piden a un hilo de fondo al pintar una fila que no está en memoria (la
+// celda dice "Cargando…" mientras tanto) y se guardan ya formateadas en una
+// caché LRU acotada por un presupuesto aproximado de bytes. Con una vista
+// (ids ordenados y/o filtrados, ver IndiceOrden) la fila r muestra vista[r].
+class ExpedientesTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    static final String[] COLUMNAS = {"#","Paciente","Cédula","Edad","Tipo","Atención",
+                                      "Médico","Diagnóstico","Medicamentos","Alergias"};
+    static final int FILAS_PAGINA = 200;
+    static final String CARGANDO = "Cargando…";
+
+    private final RepositorioExpedientes datos;
+    private final long presupuestoBytes;
+    private long bytesEnCache;
+    private int filas;
+    private int[] vista;          // null = todos los ids en orden de inserción
+    private int generacion;       // descarta páginas pedidas para una vista anterior
+    private final Set<Integer> pedidas = new HashSet<>();
+    private final Map<Integer, Pagina> paginas = new LinkedHashMap<>(64, 0.75f, true);
+    private final ExecutorService cargador = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "cargador-paginas");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Pagina {
+        final String[][] celdas;
+        final long bytes;
+
+        Pagina(String[][] celdas) {
+            this.celdas = celdas;
+            long b = 16 + 16L * celdas.length;
+            for (String[] fila : celdas)
+                for (String c : fila) if (c != null) b += 40 + 2L * c.length();
+            this.bytes = b;
+        }
+    }
 
-    public ExpedienteBase(String tipoPaciente, String tipoAtencion, List<String> examenesBase) {
-        this.tipoPaciente  = tipoPaciente;
-        this.tipoAtencion  = tipoAtencion;
-        this.examenesBase  = new ArrayList<>(examenesBase);
+    public ExpedientesTableModel(RepositorioExpedientes datos) {
+        this(datos, 16L << 20);
     }
 
-    private ExpedienteBase(ExpedienteBase o) {
-        this.tipoPaciente  = o.tipoPaciente;
-        this.tipoAtencion  = o.tipoAtencion;
-        this.examenesBase  = new ArrayList<>(o.examenesBase);
+    public ExpedientesTableModel(RepositorioExpedientes datos, long presupuestoBytes) {
+        this.datos = datos;
+        this.presupuestoBytes = presupuestoBytes;
+        this.filas = datos.tamanio();
     }
 
+    // El número de filas y la caché solo cambian en el EDT
+    @Override public int getRowCount()              { return vista == null ? filas : vista.length; }
+    @Override public int getColumnCount()           { return COLUMNAS.length; }
+    @Override public String getColumnName(int c)    { return COLUMNAS[c]; }
+    @Override public boolean isCellEditable(int r, int c) { return false; }
+
     @Override
-    public ExpedientePrototype clonar() { return new ExpedienteBase(this); }
+    public Object getValueAt(int r, int c) {
+        if (c == 0) return idDeFila(r) + 1;
+        Pagina p = paginas.get(r / FILAS_PAGINA);
+        if (p != null && r % FILAS_PAGINA >= p.celdas.length) {
+            // Página leída antes de que llegaran más filas
+            paginas.remove(r / FILAS_PAGINA);
+            bytesEnCache -= p.bytes;
+            p = null;
+        }
+        if (p == null) {
+            solicitar(r / FILAS_PAGINA);
+            return c == 1 ? CARGANDO : "";
+        }
+        return p.celdas[r % FILAS_PAGINA][c];
+    }
 
-    public String getTipoPaciente()       { return tipoPaciente; }
-    public String getTipoAtencion()       { return tipoAtencion; }
-    public List<String> getExamenesBase() { return new ArrayList<>(examenesBase); }
-}
+    private void solicitar(int numero) {
+        if (!pedidas.add(numero)) return;
+        int gen = generacion, desde = numero * FILAS_PAGINA;
+        int esperadas = Math.min(FILAS_PAGINA, getRowCount() - desde);
+        int[] ids = vista == null ? null
+            : Arrays.copyOfRange(vista, desde, Math.min(vista.length, desde + FILAS_PAGINA));
+        cargador.execute(() -> {
+            Pagina p;
+            try {
+                p = leerPagina(desde, ids);
+            } catch (RuntimeException ex) {
+                // Filas de error en lugar de "Cargando…" para siempre; se reintenta
+                // cuando la página sale de la caché o cambia la vista
+                String motivo = ex instanceof UncheckedIOException ? ex.getCause().getMessage() : ex.toString();
+                String[][] celdas = new String[Math.max(1, esperadas)][];
+                Arrays.fill(celdas, new String[]{null, "⚠️  No se pudo cargar", motivo, "", "", "", "", "", "", ""});
+                p = new Pagina(celdas);
+            }
+            Pagina lista = p;
+            SwingUtilities.invokeLater(() -> { if (gen == generacion) publicar(numero, lista); });
+        });
+    }
+
+    private Pagina leerPagina(int desde, int[] ids) {
+        List<ExpedienteMedico> leidos;
+        if (ids == null) {
+            // Cada fila va en la posición de su id; un id sin expediente deja la fila vacía
+            int n = Math.min(FILAS_PAGINA, Math.max(0, datos.tamanio() - desde));
+            PaginaExpedientes pg = datos.pagina(desde, n);
+            leidos = new ArrayList<>(Collections.nCopies(n, (ExpedienteMedico) null));
+            for (int k = 0; k < pg.ids.length; k++) leidos.set(pg.ids[k] - desde, pg.expedientes.get(k));
+        } else {
+            leidos = new ArrayList<>(ids.length);
+            for (int id : ids) leidos.add(datos.obtener(id));
+        }
+        String[][] celdas = new String[leidos.size()][];
+        for (int i = 0; i < celdas.length; i++)
+            celdas[i] = leidos.get(i) == null ? FILA_AUSENTE : formatear(leidos.get(i));
+        return new Pagina(celdas);
+    }
+
+    private void publicar(int numero, Pagina p) {
+        pedidas.remove(numero);
+        Pagina vieja = paginas.put(numero, p);
+        if (vieja != null) bytesEnCache -= vieja.bytes;
+        bytesEnCache += p.bytes;
+        Iterator<Map.Entry<Integer, Pagina>> it = paginas.entrySet().iterator();
+        while (bytesEnCache > presupuestoBytes && paginas.size() > 1) {
+            Map.Entry<Integer, Pagina> e = it.next();
+            if (e.getKey() == numero) continue;
+            bytesEnCache -= e.getValue().bytes;
+            it.remove();
+        }
+        int desde = numero * FILAS_PAGINA;
+        int hasta = Math.min(getRowCount(), desde + p.celdas.length) - 1;
+        if (hasta >= desde) fireTableRowsUpdated(desde, hasta);
+    }
+
+    private static final String[] FILA_AUSENTE = {null, "(sin expediente)", "", "", "", "", "", "", "", ""};
+
+    private static String[] formatear(ExpedienteMedico e) {
+        return new String[]{ null, e.nombrePaciente, e.cedula, e.edad + " años",
+            e.tipoPaciente(), e.tipoAtencion(), e.medicoResponsable(), e.diagnostico,
+            String.join(", ", e.medicamentos),
+            e.alergias.isEmpty() ? "Ninguna" : String.join(", ", e.alergias) };
+    }
+
+    public long bytesEnCache() { return bytesEnCache; }
 
-class RegistroPrototipos {
-    private Map<String, ExpedienteBase> catalogo = new LinkedHashMap<>();
+    public int idDeFila(int fila) { return vista == null ? fila : vista[fila]; }
 
-    public void registrar(String clave, ExpedienteBase proto) { catalogo.put(clave, proto); }
+    /** Fila que muestra el id, o -1 si la vista actual no lo incluye. */
+    public int filaDeId(int id) {
+        if (vista == null) return id < filas ? id : -1;
+        for (int r = 0; r < vista.length; r++) if (vista[r] == id) return r;
+        return -1;
+    }
+
+    public boolean tieneVista() { return vista != null; }
+
+    /** El expediente cambió de versión: se descarta la página que lo muestra para releerla. */
+    public void actualizar(int id) {
+        int fila = filaDeId(id);
+        if (fila < 0) return;
+        Pagina p = paginas.remove(fila / FILAS_PAGINA);
+        if (p != null) bytesEnCache -= p.bytes;
+        fireTableRowsUpdated(fila, fila);
+    }
+
+    /** Reemplaza la vista (null = orden de inserción sin filtros) y descarta la caché. */
+    public void setVista(int[] vista) {
+        this.vista = vista;
+        generacion++;
+        paginas.clear();
+        pedidas.clear();
+        bytesEnCache = 0;
+        filas = Math.max(filas, datos.tamanio());
+        fireTableDataChanged();
+    }
+
+    /**
+     * Alarga la vista actual con las filas que siguen (la nueva empieza con
+     * la anterior) sin perder las páginas ya cargadas; si no hay vista o la
+     * nueva es más corta, equivale a {@link #setVista}.
+     */
+    public void extenderVista(int[] mayor) {
+        if (vista == null || mayor == null || mayor.length < vista.length) {
+            setVista(mayor);
+            return;
+        }
+        int desde = vista.length;
+        vista = mayor;
+        if (desde > 0) {
+            Pagina ultima = paginas.remove((desde - 1) / FILAS_PAGINA);
+            if (ultima != null) bytesEnCache -= ultima.bytes;
+        }
+        if (mayor.length > desde) fireTableRowsInserted(desde, mayor.length - 1);
+    }
 
-    public ExpedienteBase obtenerClon(String clave) {
-        ExpedienteBase p = catalogo.get(clave);
-        if (p == null) throw new IllegalArgumentException("Plantilla no encontrada: " + clave);
-        return (ExpedienteBase) p.clonar();
+    /**
+     * Publica las filas agregadas al repositorio desde la última llamada. Con
+     * una vista activa solo actualiza el total: la vista se recalcula aparte.
+     */
+    public void sincronizar() {
+        int n = datos.tamanio();
+        if (n <= filas) return;
+        int desde = filas;
+        filas = n;
+        if (vista != null) return;
+        // La última página pudo quedar incompleta: se vuelve a pedir cuando se pinte
+        Pagina ultima = paginas.remove((desde - 1) / FILAS_PAGINA);
+        if (ultima != null) bytesEnCache -= ultima.bytes;
+        fireTableRowsInserted(desde, n - 1);
     }
 
-    public Set<String> getClaves() { return catalogo.keySet(); }
+    public void cerrar() { cargador.shutdownNow(); }
 }
 
-// ── BUILDER ─────────────────────────────────────────────────
-class ExpedienteMedico {
-    String tipoPaciente, tipoAtencion, nombrePaciente, cedula, diagnostico,
-           notasAdicionales, medicoResponsable;
-    int    edad;
-    List<String> examenes     = new ArrayList<>();
-    List<String> medicamentos = new ArrayList<>();
-    List<String> alergias     = new ArrayList<>();
+// ── RENDERIZADO ─────────────────────────────────────────────
+/**
+ * Caché de fondos pintados a mano (degradados y rectángulos redondeados con
+ * antialias). Cada fondo se rasteriza una vez en un {@link BufferedImage}
+ * a la escala del dispositivo (HiDPI) y luego se copia con drawImage; la
+ * clave incluye tamaño, escala y versión de tema, así que un redimensionado
+ * o {@link #invalidar()} generan mosaicos nuevos y los viejos salen por LRU.
+ * Se usa solo desde el EDT.
+ */
+final class CacheFondos {
+    private static final int MAX_MOSAICOS = 256;
+
+    /** Con -Dexpedientes.cacheFondos=false se pinta directo, para comparar. */
+    static boolean activo = !"false".equals(System.getProperty("expedientes.cacheFondos"));
+    private static int tema;
+
+    private static final Map<Clave, BufferedImage> mosaicos =
+        new LinkedHashMap<Clave, BufferedImage>(64, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Clave, BufferedImage> e) {
+                return size() > MAX_MOSAICOS;
+            }
+        };
+
+    private static final class Clave {
+        final int tipo, ancho, alto, radio, rgb1, rgb2, tema;
+        final double escala;
+
+        Clave(int tipo, int ancho, int alto, int radio, int rgb1, int rgb2, double escala, int tema) {
+            this.tipo = tipo; this.ancho = ancho; this.alto = alto; this.radio = radio;
+            this.rgb1 = rgb1; this.rgb2 = rgb2; this.escala = escala; this.tema = tema;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Clave)) return false;
+            Clave c = (Clave) o;
+            return tipo == c.tipo && ancho == c.ancho && alto == c.alto && radio == c.radio
+                && rgb1 == c.rgb1 && rgb2 == c.rgb2 && escala == c.escala && tema == c.tema;
+        }
+
+        @Override public int hashCode() {
+            int h = tipo;
+            h = 31 * h + ancho;
+            h = 31 * h + alto;
+            h = 31 * h + radio;
+            h = 31 * h + rgb1;
+            h = 31 * h + rgb2;
+            h = 31 * h + Double.hashCode(escala);
+            return 31 * h + tema;
+        }
+    }
+
+    private static final int DEGRADADO = 0, REDONDEADO = 1;
+
+    private CacheFondos() {}
+
+    /** Descarta todos los mosaicos (cambio de tema o de paleta). */
+    static void invalidar() {
+        tema++;
+        mosaicos.clear();
+    }
+
+    static int tamanio() { return mosaicos.size(); }
 
-    private ExpedienteMedico() {}
+    /** Degradado horizontal de {@code desde} a {@code hasta} sobre todo el área. */
+    static void degradado(Graphics g, int ancho, int alto, Color desde, Color hasta) {
+        if (!activo) {
+            pintarDegradado((Graphics2D) g, ancho, alto, desde, hasta);
+            return;
+        }
+        dibujar(g, DEGRADADO, ancho, alto, 0, desde, hasta);
+    }
 
-    public static class Builder {
-        private ExpedienteMedico exp;
+    /**
+     * Rectángulo redondeado de {@code relleno}; si {@code franja} no es null
+     * se pinta además la banda izquierda de 6 px de las tarjetas de estadística.
+     */
+    static void redondeado(Graphics g, int ancho, int alto, int radio, Color relleno, Color franja) {
+        if (!activo) {
+            pintarRedondeado((Graphics2D) g, ancho, alto, radio, relleno, franja);
+            return;
+        }
+        dibujar(g, REDONDEADO, ancho, alto, radio, relleno, franja);
+    }
 
-        public Builder(ExpedienteBase base) {
-            exp = new ExpedienteMedico();
-            exp.tipoPaciente = base.getTipoPaciente();
-            exp.tipoAtencion = base.getTipoAtencion();
-            exp.examenes.addAll(base.getExamenesBase());
+    private static void dibujar(Graphics g, int tipo, int ancho, int alto, int radio, Color c1, Color c2) {
+        if (ancho <= 0 || alto <= 0) return;
+        double escala = ((Graphics2D) g).getTransform().getScaleX();
+        Clave clave = new Clave(tipo, ancho, alto, radio, c1.getRGB(), c2 == null ? 0 : c2.getRGB(), escala, tema);
+        BufferedImage img = mosaicos.get(clave);
+        if (img == null) {
+            int w = (int) Math.ceil(ancho * escala), h = (int) Math.ceil(alto * escala);
+            // Un degradado opaco se copia sin mezcla alfa
+            boolean opaco = tipo == DEGRADADO && c1.getAlpha() == 255 && c2.getAlpha() == 255;
+            img = new BufferedImage(w, h, opaco ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2 = img.createGraphics();
+            g2.scale(escala, escala);
+            if (tipo == DEGRADADO) pintarDegradado(g2, ancho, alto, c1, c2);
+            else                   pintarRedondeado(g2, ancho, alto, radio, c1, c2);
+            g2.dispose();
+            mosaicos.put(clave, img);
         }
+        g.drawImage(img, 0, 0, ancho, alto, null);
+    }
 
-        public Builder conNombre(String v)          { exp.nombrePaciente = v;      return this; }
-        public Builder conEdad(int v)               { exp.edad = v;                return this; }
-        public Builder conCedula(String v)          { exp.cedula = v;              return this; }
-        public Builder conDiagnostico(String v)     { exp.diagnostico = v;         return this; }
-        public Builder conMedico(String v)          { exp.medicoResponsable = v;   return this; }
-        public Builder conNotas(String v)           { exp.notasAdicionales = v;    return this; }
-        public Builder agregarMedicamento(String v) { exp.medicamentos.add(v);     return this; }
-        public Builder agregarAlergia(String v)     { exp.alergias.add(v);         return this; }
-        public Builder agregarExamen(String v)      { exp.examenes.add(v);         return this; }
+    private static void pintarDegradado(Graphics2D g2, int ancho, int alto, Color desde, Color hasta) {
+        g2.setPaint(new GradientPaint(0, 0, desde, ancho, 0, hasta));
+        g2.fillRect(0, 0, ancho, alto);
+    }
 
-        public ExpedienteMedico construir() {
-            if (exp.nombrePaciente == null || exp.cedula == null || exp.diagnostico == null)
-                throw new IllegalStateException("Nombre, cédula y diagnóstico son obligatorios.");
-            return exp;
+    private static void pintarRedondeado(Graphics2D g, int ancho, int alto, int radio, Color relleno, Color franja) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setColor(relleno);
+        g2.fillRoundRect(0, 0, ancho, alto, radio, radio);
+        if (franja != null) {
+            g2.setColor(franja);
+            g2.fillRoundRect(0, 0, 6, alto, 6, 6);
         }
+        g2.dispose();
+    }
+}
+
+/**
+ * RepaintManager que mide cuánto tarda cada ciclo de paintDirtyRegions
+ * (un "cuadro" de Swing). Lleva el último valor, un promedio móvil y el
+ * máximo desde el último {@link #reiniciar()}; la GUI los muestra en una
+ * capa superpuesta que se activa con F12.
+ */
+class MedidorRepintado extends RepaintManager {
+    private volatile long ultimoNs, maximoNs, cuadros;
+    private volatile double promedioNs;
+
+    @Override
+    public void paintDirtyRegions() {
+        long t0 = System.nanoTime();
+        super.paintDirtyRegions();
+        long ns = System.nanoTime() - t0;
+        Metricas.REPINTADO.registrarNs(ns);
+        ultimoNs = ns;
+        maximoNs = Math.max(maximoNs, ns);
+        promedioNs = cuadros++ == 0 ? ns : promedioNs * 0.9 + ns * 0.1;
+    }
+
+    public void reiniciar() {
+        maximoNs = 0;
+        cuadros = 0;
+        promedioNs = 0;
+    }
+
+    public String resumen() {
+        return String.format("cuadro %.2f ms · prom %.2f ms · máx %.2f ms · %d cuadros · caché %s (%d)",
+            ultimoNs / 1e6, promedioNs / 1e6, maximoNs / 1e6, cuadros,
+            CacheFondos.activo ? "on" : "off", CacheFondos.tamanio());
     }
 }
 
 // ══════════════════════════════════════════════════════════════
 //  INTERFAZ GRÁFICA SWING
 // ══════════════════════════════════════════════════════════════
-public class SistemaExpedientesMedicosGUI extends JFrame {
+class SistemaExpedientesMedicosGUI extends JFrame {
+    private static final long serialVersionUID = 1L;
 
     // ── Colores corporativos ──
     static final Color C_AZUL      = new Color(41,  128, 185);
@@ -110,6 +436,8 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
     static final Color C_BLANCO    = Color.WHITE;
     static final Color C_TEXTO     = new Color(44,  62,  80);
     static final Color C_GRIS_CLAR = new Color(189, 195, 199);
+    static final Color C_MENU      = new Color(52,  73,  94,  120);
+    static final Color C_MENU_HOVER= new Color(52,  152, 219, 180);
     static final Font  F_TITULO    = new Font("Segoe UI", Font.BOLD,  22);
     static final Font  F_SUBTIT    = new Font("Segoe UI", Font.BOLD,  14);
     static final Font  F_NORMAL    = new Font("Segoe UI", Font.PLAIN, 13);
@@ -117,34 +445,96 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
     static final Font  F_SMALL     = new Font("Segoe UI", Font.PLAIN, 11);
 
     // ── Datos del sistema ──
-    private RegistroPrototipos registro = new RegistroPrototipos();
-    private List<ExpedienteMedico> expedientes = new ArrayList<>();
+
+    // El estado de dominio vive en el servicio; la GUI es uno de sus clientes
+    private ServicioExpedientes servicio;
+    private ServidorHttpExpedientes servidorHttp;
+    private RegistroPrototipos registro;
+    private RepositorioIndexado repositorio;
+    private IndiceTextoCompleto indiceTexto;
+    private CanalGuardado canalGuardado;
+    private AlmacenColumnar columnar;
+    private AgregadosExpedientes agregados;
+    private IndiceOrden indiceOrden;
+    private DetectorDuplicados duplicados;
+    private JButton btnDuplicados;
+    private JLabel lblResumenVivo;
 
     // ── Componentes principales ──
     private JPanel   panelCentral;
     private CardLayout cardLayout;
-    private DefaultTableModel tableModel;
+    private ExpedientesTableModel tableModel;
     private JTable   tabla;
+
+    // Orden y filtros de la lista; la vista se calcula en "vista-expedientes"
+    private static final IndiceOrden.Clave[] CLAVES_ORDEN = {
+        IndiceOrden.Clave.ID, IndiceOrden.Clave.NOMBRE, IndiceOrden.Clave.CEDULA, IndiceOrden.Clave.EDAD,
+        IndiceOrden.Clave.TIPO_PACIENTE, IndiceOrden.Clave.TIPO_ATENCION, IndiceOrden.Clave.MEDICO,
+        null, null, null };
+    private IndiceOrden.Clave ordenClave = IndiceOrden.Clave.ID;
+    private boolean ordenAscendente = true;
+    private BitSet filtroTexto;
+    private final Map<AlmacenColumnar.Columna, String> filtroIguales = new EnumMap<>(AlmacenColumnar.Columna.class);
+    private int filtroEdadDesde = -1, filtroEdadHasta = -1;
+    private final Map<AlmacenColumnar.Lista, List<String>> filtroContiene = new EnumMap<>(AlmacenColumnar.Lista.class);
+    private final AtomicInteger generacionVista = new AtomicInteger();
+    private final ExecutorService hiloVista = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "vista-expedientes");
+        t.setDaemon(true);
+        return t;
+    });
+    private JLabel lblVista;
     private JLabel   lblContador;
+    private JButton  btnGuardar;
+    private final Map<String, JLabel> etiquetasStat = new HashMap<>();
+    private GraficoBarras grafTipos, grafMedicos, grafEdades;
 
     public SistemaExpedientesMedicosGUI() {
-        initPrototipos();
+        initServicio();
         initUI();
     }
 
-    // ── Inicializar plantillas Prototype ──────────────────────
-    private void initPrototipos() {
-        registro.registrar("adulto-urgencias", new ExpedienteBase(
-            "Adulto", "Urgencias",
-            Arrays.asList("Hemograma completo", "Glucosa en sangre", "Electrocardiograma")));
-
-        registro.registrar("pediatrico-consulta", new ExpedienteBase(
-            "Pediátrico", "Consulta externa",
-            Arrays.asList("Peso y talla", "Presión arterial", "Hemograma")));
+    // ── Abrir el servicio (plantillas, almacenamiento e índices) ──
+    // Si existe plantillas.txt se usa (y se vigila); si no, las tres de siempre.
+    // Con -Dexpedientes.http.puerto=N se publica además la API HTTP (en loopback,
+    // salvo que expedientes.http.direccion y expedientes.http.tokens la expongan).
+    private void initServicio() {
+        servicio = ServicioExpedientes.abrir(ServicioExpedientes.DIR_DATOS, ServicioExpedientes.ARCHIVO_PLANTILLAS,
+            aviso -> SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(null, "⚠️  " + aviso, "Expedientes", JOptionPane.WARNING_MESSAGE)));
+        registro    = servicio.registro;
+        repositorio = servicio.repositorio;
+        indiceTexto = servicio.indiceTexto;
+        columnar    = servicio.columnar;
+        agregados   = servicio.agregados;
+        indiceOrden = servicio.indiceOrden;
+        duplicados  = servicio.duplicados;
+        duplicados.setAlCambiar(() -> SwingUtilities.invokeLater(this::actualizarBotonDuplicados));
+        registro.agregarOyente(c -> SwingUtilities.invokeLater(this::refrescarPlantillas));
+
+        Integer puerto = Integer.getInteger("expedientes.http.puerto");
+        if (puerto != null) {
+            try {
+                servidorHttp = ServidorHttpExpedientes.configurado(servicio, puerto,
+                    detalle -> System.err.println("Error HTTP: " + detalle)).iniciar();
+            } catch (IOException | IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(null, "⚠️  No se pudo iniciar la API HTTP en el puerto " + puerto +
+                    ":\n" + ex.getMessage(), "Expedientes", JOptionPane.WARNING_MESSAGE);
+            }
+        }
 
-        registro.registrar("geriatrico-hospitalizacion", new ExpedienteBase(
-            "Geriátrico", "Hospitalización",
-            Arrays.asList("Hemograma", "Panel metabólico", "Radiografía tórax", "Ecocardiograma")));
+        CoalescedorRepintado coalescedor = new CoalescedorRepintado(16, this::actualizarDashboard);
+        agregados.setAlCambiar(coalescedor::avisar);
+        canalGuardado = new CanalGuardado(repositorio, 64);
+        addWindowListener(new WindowAdapter() {
+            @Override public void windowClosing(WindowEvent e) {
+                canalGuardado.cerrar();
+                if (tableModel != null) tableModel.cerrar();
+                hiloVista.shutdownNow();
+                if (servidorHttp != null) servidorHttp.detener();
+                servicio.cerrar();
+            }
+        });
     }
 
     // ── Construcción de la UI ─────────────────────────────────
@@ -167,6 +557,7 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         panelCentral.add(crearPanelDashboard(), "dashboard");
         panelCentral.add(crearPanelFormulario(),"formulario");
         panelCentral.add(crearPanelLista(),     "lista");
+        panelCentral.add(crearPanelDiagnostico(), "diagnostico");
         panelCentral.add(crearPanelAcercaDe(), "acerca");
 
         root.add(panelCentral, BorderLayout.CENTER);
@@ -174,17 +565,55 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
 
         setContentPane(root);
         cardLayout.show(panelCentral, "dashboard");
+        instalarMedidorRepintado();
+    }
+
+    // ── MEDICIÓN DE REPINTADO ────────────────────────────────
+    // F12 muestra/oculta el costo por cuadro; Shift+F12 alterna la caché de fondos
+    private void instalarMedidorRepintado() {
+        MedidorRepintado medidor = new MedidorRepintado();
+        RepaintManager.setCurrentManager(medidor);
+
+        JComponent capa = new JComponent() {
+            @Override protected void paintComponent(Graphics g) {
+                String texto = medidor.resumen();
+                g.setFont(F_SMALL);
+                int w = g.getFontMetrics().stringWidth(texto) + 16;
+                g.setColor(C_MENU);
+                g.fillRect(getWidth() - w - 8, getHeight() - 58, w, 20);
+                g.setColor(C_BLANCO);
+                g.drawString(texto, getWidth() - w, getHeight() - 44);
+            }
+        };
+        setGlassPane(capa);
+        javax.swing.Timer refresco = new javax.swing.Timer(250, e -> capa.repaint());
+
+        InputMap im = getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        ActionMap am = getRootPane().getActionMap();
+        im.put(KeyStroke.getKeyStroke(KeyEvent.VK_F12, 0), "medidor");
+        im.put(KeyStroke.getKeyStroke(KeyEvent.VK_F12, InputEvent.SHIFT_DOWN_MASK), "cacheFondos");
+        am.put("medidor", new AbstractAction() {
+            @Override public void actionPerformed(ActionEvent e) {
+                boolean visible = !capa.isVisible();
+                capa.setVisible(visible);
+                if (visible) { medidor.reiniciar(); refresco.start(); } else refresco.stop();
+            }
+        });
+        am.put("cacheFondos", new AbstractAction() {
+            @Override public void actionPerformed(ActionEvent e) {
+                CacheFondos.activo = !CacheFondos.activo;
+                CacheFondos.invalidar();
+                medidor.reiniciar();
+                getRootPane().repaint();
+            }
+        });
     }
 
     // ── HEADER ───────────────────────────────────────────────
     private JPanel crearHeader() {
         JPanel header = new JPanel(new BorderLayout()) {
             @Override protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g;
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                GradientPaint gp = new GradientPaint(0,0, C_AZUL_OSC, getWidth(),0, C_AZUL);
-                g2.setPaint(gp);
-                g2.fillRect(0,0,getWidth(),getHeight());
+                CacheFondos.degradado(g, getWidth(), getHeight(), C_AZUL_OSC, C_AZUL);
             }
         };
         header.setPreferredSize(new Dimension(0, 70));
@@ -202,7 +631,7 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         left.add(ico);
         left.add(titulo);
 
-        lblContador = new JLabel("Expedientes: 0");
+        lblContador = new JLabel("Expedientes: " + repositorio.tamanio());
         lblContador.setFont(F_SMALL);
         lblContador.setForeground(new Color(200, 230, 255));
 
@@ -240,14 +669,18 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
             {"🏠", "Dashboard"},
             {"➕", "Nuevo Expediente"},
             {"📋", "Ver Expedientes"},
+            {"📈", "Diagnóstico"},
             {"ℹ️",  "Acerca de"}
         };
-        String[] cards = {"dashboard","formulario","lista","acerca"};
+        String[] cards = {"dashboard","formulario","lista","diagnostico","acerca"};
 
         for (int i = 0; i < menus.length; i++) {
             final String card = cards[i];
             JButton btn = crearBotonMenu(menus[i][0] + "  " + menus[i][1]);
-            btn.addActionListener(e -> cardLayout.show(panelCentral, card));
+            btn.addActionListener(e -> {
+                if (card.equals("dashboard")) refrescarEstadisticas();
+                cardLayout.show(panelCentral, card);
+            });
             sidebar.add(btn);
             sidebar.add(Box.createVerticalStrut(8));
         }
@@ -265,15 +698,8 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
     private JButton crearBotonMenu(String texto) {
         JButton btn = new JButton(texto) {
             @Override protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                if (getModel().isRollover()) {
-                    g2.setColor(new Color(52, 152, 219, 180));
-                } else {
-                    g2.setColor(new Color(52, 73, 94, 120));
-                }
-                g2.fillRoundRect(0,0,getWidth(),getHeight(),12,12);
-                g2.dispose();
+                CacheFondos.redondeado(g, getWidth(), getHeight(), 12,
+                    getModel().isRollover() ? C_MENU_HOVER : C_MENU, null);
                 super.paintComponent(g);
             }
         };
@@ -305,11 +731,39 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         cards.setOpaque(false);
         cards.setBorder(new EmptyBorder(20, 0, 20, 0));
 
-        cards.add(crearTarjetaStat("📁", "Expedientes\nRegistrados", "0", C_AZUL,   "statExpedientes"));
-        cards.add(crearTarjetaStat("🧬", "Plantillas\nPrototype",    "3", C_VERDE,  null));
-        cards.add(crearTarjetaStat("🏥", "Tipos de\nAtención",       "3", C_NARANJA,null));
-
-        p.add(cards, BorderLayout.CENTER);
+        cards.add(crearTarjetaStat("📁", "Expedientes\nRegistrados", String.valueOf(repositorio.tamanio()), C_AZUL, "statExpedientes"));
+        RegistroPrototipos.Catalogo catalogo = registro.getCatalogo();
+        cards.add(crearTarjetaStat("🧬", "Plantillas\nPrototype", String.valueOf(catalogo.plantillas.size()),
+            C_VERDE, "statPlantillas"));
+        cards.add(crearTarjetaStat("🏥", "Tipos de\nAtención", String.valueOf(catalogo.tiposAtencion().size()),
+            C_NARANJA, "statAtencion"));
+
+        // Estadísticas en vivo sobre el almacén columnar
+        JPanel graficos = new JPanel(new GridLayout(1, 3, 16, 0));
+        graficos.setOpaque(false);
+        graficos.setBorder(new EmptyBorder(0, 0, 20, 0));
+        grafTipos   = new GraficoBarras("Por plantilla", C_VERDE);
+        grafMedicos = new GraficoBarras("Médicos con más expedientes", C_AZUL);
+        grafEdades  = new GraficoBarras("Edades por década", C_NARANJA);
+        graficos.add(grafTipos);
+        graficos.add(grafMedicos);
+        graficos.add(grafEdades);
+        refrescarEstadisticas();
+
+        lblResumenVivo = new JLabel(" ");
+        lblResumenVivo.setFont(F_SMALL);
+        lblResumenVivo.setForeground(C_TEXTO);
+        lblResumenVivo.setBorder(new EmptyBorder(0, 0, 12, 0));
+
+        JPanel centro = new JPanel(new BorderLayout());
+        centro.setOpaque(false);
+        JPanel arriba = new JPanel(new BorderLayout());
+        arriba.setOpaque(false);
+        arriba.add(cards,          BorderLayout.NORTH);
+        arriba.add(lblResumenVivo, BorderLayout.SOUTH);
+        centro.add(arriba,   BorderLayout.NORTH);
+        centro.add(graficos, BorderLayout.CENTER);
+        p.add(centro, BorderLayout.CENTER);
 
         // Panel explicativo
         JPanel info = new JPanel(new GridLayout(1, 2, 16, 0));
@@ -327,16 +781,90 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         return p;
     }
 
+    // Se ejecuta a lo sumo una vez por cuadro (ver CoalescedorRepintado)
+    private void actualizarDashboard() {
+        AgregadosExpedientes.Instantanea a = agregados.instantanea();
+        String n = String.valueOf(a.total);
+        etiquetasStat.get("statExpedientes").setText(n);
+        lblContador.setText("Expedientes: " + n);
+        StringBuilder sb = new StringBuilder(String.format("Edad promedio: %.1f años", a.edadPromedio));
+        a.porTipoPaciente.forEach((k, v) -> sb.append("  ·  ").append(k).append(": ").append(v));
+        if (!a.topDiagnosticos.isEmpty()) {
+            sb.append("  ·  Diagnósticos frecuentes: ");
+            for (int i = 0; i < a.topDiagnosticos.size(); i++) {
+                Map.Entry<String, Integer> d = a.topDiagnosticos.get(i);
+                sb.append(i == 0 ? "" : ", ").append(d.getKey()).append(" (").append(d.getValue()).append(")");
+            }
+        }
+        lblResumenVivo.setText(sb.toString());
+        // Los gráficos recorren el almacén columnar: solo si el dashboard está a la vista
+        if (grafTipos.isShowing()) refrescarEstadisticas();
+    }
+
+    private void refrescarEstadisticas() {
+        grafTipos.setDatos(columnar.resumen(AlmacenColumnar.Columna.PLANTILLA, 5));
+        grafMedicos.setDatos(columnar.resumen(AlmacenColumnar.Columna.MEDICO, 5));
+        int[] h = columnar.histogramaEdad(10);
+        List<Map.Entry<String, Integer>> decadas = new ArrayList<>();
+        for (int d = 0; d < h.length; d++)
+            decadas.add(new AbstractMap.SimpleImmutableEntry<>((d * 10) + "–" + (d * 10 + 9), h[d]));
+        grafEdades.setDatos(decadas);
+    }
+
+    // Barras horizontales sobre tarjeta blanca, en el estilo de crearTarjetaStat
+    static class GraficoBarras extends JPanel {
+        private static final long serialVersionUID = 1L;
+        private final String titulo;
+        private final Color color;
+        private List<Map.Entry<String, Integer>> datos = Collections.emptyList();
+
+        GraficoBarras(String titulo, Color color) {
+            this.titulo = titulo;
+            this.color  = color;
+            setOpaque(false);
+            setPreferredSize(new Dimension(0, 150));
+        }
+
+        void setDatos(List<Map.Entry<String, Integer>> datos) {
+            this.datos = datos;
+            repaint();
+        }
+
+        @Override protected void paintComponent(Graphics g) {
+            CacheFondos.redondeado(g, getWidth(), getHeight(), 16, C_BLANCO, null);
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+            g2.setFont(F_BOLD);
+            g2.setColor(C_TEXTO);
+            g2.drawString(titulo, 16, 24);
+
+            int max = 1;
+            for (Map.Entry<String, Integer> e : datos) max = Math.max(max, e.getValue());
+            int n = Math.max(1, datos.size());
+            int y = 36, alto = Math.min(20, (getHeight() - y - 10) / n), etiqueta = 110;
+            int ancho = getWidth() - etiqueta - 70;
+            g2.setFont(F_SMALL);
+            FontMetrics fm = g2.getFontMetrics();
+            for (Map.Entry<String, Integer> e : datos) {
+                g2.setColor(C_TEXTO);
+                String k = e.getKey();
+                while (fm.stringWidth(k) > etiqueta - 8 && k.length() > 1) k = k.substring(0, k.length() - 1);
+                g2.drawString(k, 16, y + alto - 6);
+                g2.setColor(color);
+                g2.fillRoundRect(16 + etiqueta, y + 3, Math.max(2, ancho * e.getValue() / max), alto - 6, 6, 6);
+                g2.setColor(C_TEXTO);
+                g2.drawString(String.format("%,d", e.getValue()), 22 + etiqueta + ancho * e.getValue() / max, y + alto - 6);
+                y += alto;
+            }
+            g2.dispose();
+        }
+    }
+
     private JPanel crearTarjetaStat(String icono, String titulo, String valor, Color color, String tag) {
         JPanel card = new JPanel(new BorderLayout()) {
             @Override protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setColor(C_BLANCO);
-                g2.fillRoundRect(0,0,getWidth(),getHeight(),16,16);
-                g2.setColor(color);
-                g2.fillRoundRect(0,0,6,getHeight(),6,6);
-                g2.dispose();
+                CacheFondos.redondeado(g, getWidth(), getHeight(), 16, C_BLANCO, color);
             }
         };
         card.setOpaque(false);
@@ -348,7 +876,10 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         JLabel valL = new JLabel(valor);
         valL.setFont(new Font("Segoe UI", Font.BOLD, 40));
         valL.setForeground(color);
-        if (tag != null) valL.setName(tag);
+        if (tag != null) {
+            valL.setName(tag);
+            etiquetasStat.put(tag, valL);
+        }
 
         JLabel titL = new JLabel("<html>" + titulo.replace("\n","<br>") + "</html>");
         titL.setFont(F_SMALL);
@@ -372,11 +903,7 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
     private JPanel crearTarjetaInfo(String titulo, String texto, Color color) {
         JPanel card = new JPanel(new BorderLayout()) {
             @Override protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setColor(C_BLANCO);
-                g2.fillRoundRect(0,0,getWidth(),getHeight(),16,16);
-                g2.dispose();
+                CacheFondos.redondeado(g, getWidth(), getHeight(), 16, C_BLANCO, null);
             }
         };
         card.setOpaque(false);
@@ -471,7 +998,7 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         btnPanel.setOpaque(false);
 
         JButton btnLimpiar = crearBoton("🗑  Limpiar", C_GRIS_CLAR, C_TEXTO);
-        JButton btnGuardar = crearBoton("💾  Guardar Expediente", C_AZUL, C_BLANCO);
+        btnGuardar = crearBoton("💾  Guardar Expediente", C_AZUL, C_BLANCO);
 
         btnLimpiar.addActionListener(e -> limpiarFormulario());
         btnGuardar.addActionListener(e -> guardarExpediente());
@@ -504,13 +1031,10 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
     }
 
     private JButton crearBoton(String texto, Color bg, Color fg) {
+        Color bgHover = bg.darker();
         JButton btn = new JButton(texto) {
             @Override protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setColor(getModel().isRollover() ? bg.darker() : bg);
-                g2.fillRoundRect(0,0,getWidth(),getHeight(),12,12);
-                g2.dispose();
+                CacheFondos.redondeado(g, getWidth(), getHeight(), 12, getModel().isRollover() ? bgHover : bg, null);
                 super.paintComponent(g);
             }
         };
@@ -528,49 +1052,110 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         for (JTextField tf : new JTextField[]{fNombre,fCedula,fEdad,fMedico,
                 fDiagnostico,fMed1,fMed2,fAlergia,fExtraExam,fNotas})
             tf.setText("");
-        cbPlantilla.setSelectedIndex(0);
+        if (cbPlantilla.getItemCount() > 0) cbPlantilla.setSelectedIndex(0);
     }
 
     private void guardarExpediente() {
-        try {
-            String plantilla = (String) cbPlantilla.getSelectedItem();
+        // Los campos se leen aquí en el EDT; clonar, construir y persistir
+        // ocurre en el hilo escritor del canal de guardado. La métrica cubre
+        // desde el clic hasta la confirmación (cola + construcción + disco).
+        long t0 = Metricas.inicio();
+        String plantilla = (String) cbPlantilla.getSelectedItem();
+        String nombre = fNombre.getText().trim(), cedula = fCedula.getText().trim(),
+               diagnostico = fDiagnostico.getText().trim(), medico = fMedico.getText().trim(),
+               notas = fNotas.getText().trim(), edad = fEdad.getText().trim(),
+               med1 = fMed1.getText().trim(), med2 = fMed2.getText().trim(),
+               alergia = fAlergia.getText().trim(), extraExam = fExtraExam.getText().trim();
+
+        Supplier<ExpedienteMedico> construir = () -> {
             ExpedienteBase base = registro.obtenerClon(plantilla);
 
             ExpedienteMedico.Builder builder = new ExpedienteMedico.Builder(base)
-                .conNombre(fNombre.getText().trim())
-                .conCedula(fCedula.getText().trim())
-                .conDiagnostico(fDiagnostico.getText().trim())
-                .conMedico(fMedico.getText().trim())
-                .conNotas(fNotas.getText().trim());
+                .conNombre(nombre)
+                .conCedula(cedula)
+                .conDiagnostico(diagnostico)
+                .conMedico(medico)
+                .conNotas(notas);
 
-            try { builder.conEdad(Integer.parseInt(fEdad.getText().trim())); }
+            try { builder.conEdad(Integer.parseInt(edad)); }
             catch (NumberFormatException ex) { builder.conEdad(0); }
 
-            if (!fMed1.getText().isBlank())      builder.agregarMedicamento(fMed1.getText().trim());
-            if (!fMed2.getText().isBlank())      builder.agregarMedicamento(fMed2.getText().trim());
-            if (!fAlergia.getText().isBlank())   builder.agregarAlergia(fAlergia.getText().trim());
-            if (!fExtraExam.getText().isBlank()) builder.agregarExamen(fExtraExam.getText().trim());
-
-            ExpedienteMedico exp = builder.construir();
-            expedientes.add(exp);
-            actualizarTabla();
-            lblContador.setText("Expedientes: " + expedientes.size());
+            if (!med1.isEmpty())      builder.agregarMedicamento(med1);
+            if (!med2.isEmpty())      builder.agregarMedicamento(med2);
+            if (!alergia.isEmpty())   builder.agregarAlergia(alergia);
+            if (!extraExam.isEmpty()) builder.agregarExamen(extraExam);
 
-            JOptionPane.showMessageDialog(this,
-                "✅  Expediente de " + exp.nombrePaciente + " guardado exitosamente.\n" +
-                "Plantilla usada (Prototype): " + plantilla + "\n" +
-                "Patrón Builder aplicado correctamente.",
-                "Expediente Guardado", JOptionPane.INFORMATION_MESSAGE);
+            return builder.construir();
+        };
 
-            limpiarFormulario();
-            cardLayout.show(panelCentral, "lista");
+        btnGuardar.setEnabled(false);
+        try {
+            canalGuardado.enviar(construir, (id, exp, error) -> {
+                btnGuardar.setEnabled(true);
+                refrescarContadores();
+                if (error != null) {
+                    Metricas.GUARDAR.error();
+                    mostrarErrorGuardado(error);
+                    return;
+                }
+                Metricas.GUARDAR.registrar(t0);
+                JOptionPane.showMessageDialog(this,
+                    "✅  Expediente de " + exp.nombrePaciente + " guardado exitosamente.\n" +
+                    "Plantilla usada (Prototype): " + plantilla + "\n" +
+                    "Patrón Builder aplicado correctamente.",
+                    "Expediente Guardado", JOptionPane.INFORMATION_MESSAGE);
+
+                limpiarFormulario();
+                cardLayout.show(panelCentral, "lista");
+            });
+        } catch (RejectedExecutionException ex) {
+            Metricas.GUARDAR.error();
+            btnGuardar.setEnabled(true);
+            JOptionPane.showMessageDialog(this, "⏳  " + ex.getMessage() + "\nIntente de nuevo en un momento.",
+                "Sistema ocupado", JOptionPane.WARNING_MESSAGE);
+        }
+    }
 
-        } catch (IllegalStateException ex) {
-            JOptionPane.showMessageDialog(this, "⚠️  " + ex.getMessage(),
+    private void mostrarErrorGuardado(RuntimeException error) {
+        if (error instanceof CedulaDuplicadaException) {
+            OptionalInt id = ((CedulaDuplicadaException) error).getIdExistente();
+            String detalle = id.isPresent()
+                ? "Registrado a nombre de: " + repositorio.obtener(id.getAsInt()).nombrePaciente
+                : "Cuando termine ese guardado podrá buscarlo por la cédula.";
+            JOptionPane.showMessageDialog(this, "⚠️  " + error.getMessage() + "\n" + detalle,
+                "Cédula duplicada", JOptionPane.WARNING_MESSAGE);
+        } else if (error instanceof ExpedienteDesactualizadoException) {
+            JOptionPane.showMessageDialog(this, "⚠️  " + error.getMessage() + "\n" +
+                "Abra el detalle de nuevo para editar la versión vigente.",
+                "Expediente desactualizado", JOptionPane.WARNING_MESSAGE);
+        } else if (error instanceof IllegalStateException) {
+            JOptionPane.showMessageDialog(this, "⚠️  " + error.getMessage(),
                 "Campos incompletos", JOptionPane.WARNING_MESSAGE);
+        } else if (error instanceof UncheckedIOException) {
+            JOptionPane.showMessageDialog(this, "❌  No se pudo guardar en disco: " + error.getCause().getMessage(),
+                "Error de almacenamiento", JOptionPane.ERROR_MESSAGE);
+        } else {
+            JOptionPane.showMessageDialog(this, "❌  " + error,
+                "Error al guardar", JOptionPane.ERROR_MESSAGE);
         }
     }
 
+    /** Combo del formulario y tarjetas del dashboard tras recargar el catálogo. */
+    private void refrescarPlantillas() {
+        RegistroPrototipos.Catalogo c = registro.getCatalogo();
+        Object seleccion = cbPlantilla.getSelectedItem();
+        cbPlantilla.setModel(new DefaultComboBoxModel<>(c.plantillas.keySet().toArray(new String[0])));
+        if (seleccion != null && c.plantillas.containsKey(seleccion)) cbPlantilla.setSelectedItem(seleccion);
+        etiquetasStat.get("statPlantillas").setText(String.valueOf(c.plantillas.size()));
+        etiquetasStat.get("statAtencion").setText(String.valueOf(c.tiposAtencion().size()));
+    }
+
+    /** Tabla, contador del encabezado y tarjeta del dashboard. Solo en el EDT. */
+    private void refrescarContadores() {
+        actualizarTabla();
+        actualizarDashboard();
+    }
+
     // ── LISTA DE EXPEDIENTES ──────────────────────────────────
     private JPanel crearPanelLista() {
         JPanel p = new JPanel(new BorderLayout());
@@ -580,14 +1165,136 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         JLabel lbl = new JLabel("📋  Expedientes Registrados");
         lbl.setFont(F_TITULO);
         lbl.setForeground(C_TEXTO);
-        lbl.setBorder(new EmptyBorder(0,0,16,0));
-        p.add(lbl, BorderLayout.NORTH);
 
-        String[] cols = {"#","Paciente","Cédula","Edad","Tipo","Atención","Médico","Diagnóstico","Medicamentos","Alergias"};
-        tableModel = new DefaultTableModel(cols, 0) {
-            @Override public boolean isCellEditable(int r, int c) { return false; }
-        };
+        JTextField fBuscarTexto = crearCampo();
+        fBuscarTexto.setPreferredSize(new Dimension(260, 32));
+        fBuscarTexto.setToolTipText("Diagnóstico, medicamentos, alergias, exámenes o notas (use * para prefijos)");
+        JButton btnBuscarTexto = crearBoton("🔎  Buscar texto", C_AZUL, C_BLANCO);
+        btnBuscarTexto.setPreferredSize(new Dimension(150, 32));
+        ActionListener buscarTexto = e -> filtrarPorTexto(fBuscarTexto.getText().trim());
+        fBuscarTexto.addActionListener(buscarTexto);
+        btnBuscarTexto.addActionListener(buscarTexto);
+
+        JTextField fBuscarCedula = crearCampo();
+        fBuscarCedula.setPreferredSize(new Dimension(140, 32));
+        fBuscarCedula.setToolTipText("Cédula exacta del paciente");
+        JButton btnBuscar = crearBoton("🔍  Buscar cédula", C_AZUL, C_BLANCO);
+        btnBuscar.setPreferredSize(new Dimension(160, 32));
+        ActionListener buscar = e -> buscarPorCedula(fBuscarCedula.getText().trim());
+        fBuscarCedula.addActionListener(buscar);
+        btnBuscar.addActionListener(buscar);
+
+        JPanel busqueda = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
+        busqueda.setOpaque(false);
+        busqueda.add(fBuscarTexto);
+        busqueda.add(btnBuscarTexto);
+        busqueda.add(Box.createHorizontalStrut(16));
+        busqueda.add(fBuscarCedula);
+        busqueda.add(btnBuscar);
+
+        JButton btnImportar = crearBoton("📥  Importar CSV/JSON", C_VERDE, C_BLANCO);
+        btnImportar.setPreferredSize(new Dimension(190, 32));
+        btnImportar.addActionListener(e -> importarArchivo());
+        busqueda.add(Box.createHorizontalStrut(16));
+        busqueda.add(btnImportar);
+
+        btnDuplicados = crearBoton("👥  Duplicados", C_NARANJA, C_BLANCO);
+        btnDuplicados.setPreferredSize(new Dimension(170, 32));
+        btnDuplicados.setToolTipText("Pacientes que podrían estar registrados dos veces");
+        btnDuplicados.addActionListener(e -> revisarDuplicados());
+        busqueda.add(btnDuplicados);
+        actualizarBotonDuplicados();
+
+        // Filtros combinables: se evalúan como AND de bitmaps del almacén columnar
+        JComboBox<String> cbFTipo     = crearComboFiltro(AlmacenColumnar.Columna.TIPO_PACIENTE);
+        JComboBox<String> cbFAtencion = crearComboFiltro(AlmacenColumnar.Columna.TIPO_ATENCION);
+        JComboBox<String> cbFMedico   = crearComboFiltro(AlmacenColumnar.Columna.MEDICO);
+        JTextField fEdadDesde = crearCampo(), fEdadHasta = crearCampo();
+        fEdadDesde.setPreferredSize(new Dimension(50, 30));
+        fEdadHasta.setPreferredSize(new Dimension(50, 30));
+        JButton btnFiltrar = crearBoton("Filtrar", C_AZUL, C_BLANCO);
+        btnFiltrar.setPreferredSize(new Dimension(90, 30));
+        JButton btnLimpiar = crearBoton("Limpiar", C_GRIS_CLAR, C_TEXTO);
+        btnLimpiar.setPreferredSize(new Dimension(90, 30));
+        JButton btnCriterios = crearBoton("➕  Criterios", C_GRIS_CLAR, C_TEXTO);
+        btnCriterios.setPreferredSize(new Dimension(130, 30));
+        btnCriterios.setToolTipText("Alergias, medicamentos y exámenes que deben figurar en el expediente");
+        btnCriterios.addActionListener(e -> editarCriteriosLista(btnCriterios));
+        lblVista = new JLabel(" ");
+        lblVista.setFont(F_SMALL);
+        lblVista.setForeground(C_TEXTO);
+
+        btnFiltrar.addActionListener(e -> {
+            int desde, hasta;
+            try {
+                desde = fEdadDesde.getText().trim().isEmpty() ? -1 : Integer.parseInt(fEdadDesde.getText().trim());
+                hasta = fEdadHasta.getText().trim().isEmpty() ? -1 : Integer.parseInt(fEdadHasta.getText().trim());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "La edad debe ser un número entero.", "Filtros", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            filtroIguales.clear();
+            ponerFiltro(AlmacenColumnar.Columna.TIPO_PACIENTE, cbFTipo);
+            ponerFiltro(AlmacenColumnar.Columna.TIPO_ATENCION, cbFAtencion);
+            ponerFiltro(AlmacenColumnar.Columna.MEDICO, cbFMedico);
+            filtroEdadDesde = desde;
+            filtroEdadHasta = hasta;
+            recalcularVista();
+        });
+        btnLimpiar.addActionListener(e -> {
+            cbFTipo.setSelectedIndex(0);
+            cbFAtencion.setSelectedIndex(0);
+            cbFMedico.setSelectedIndex(0);
+            fEdadDesde.setText("");
+            fEdadHasta.setText("");
+            filtroIguales.clear();
+            filtroEdadDesde = filtroEdadHasta = -1;
+            filtroContiene.clear();
+            btnCriterios.setText("➕  Criterios");
+            recalcularVista();
+        });
+
+        JPanel filtros = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
+        filtros.setOpaque(false);
+        filtros.add(crearLabel("Tipo:"));
+        filtros.add(cbFTipo);
+        filtros.add(crearLabel("Atención:"));
+        filtros.add(cbFAtencion);
+        filtros.add(crearLabel("Médico:"));
+        filtros.add(cbFMedico);
+        filtros.add(crearLabel("Edad:"));
+        filtros.add(fEdadDesde);
+        filtros.add(new JLabel("–"));
+        filtros.add(fEdadHasta);
+        filtros.add(btnCriterios);
+        filtros.add(btnFiltrar);
+        filtros.add(btnLimpiar);
+        filtros.add(lblVista);
+
+        JPanel controles = new JPanel(new BorderLayout(0, 8));
+        controles.setOpaque(false);
+        controles.add(busqueda, BorderLayout.NORTH);
+        controles.add(filtros,  BorderLayout.SOUTH);
+
+        JPanel top = new JPanel(new BorderLayout(0, 12));
+        top.setOpaque(false);
+        top.setBorder(new EmptyBorder(0,0,16,0));
+        top.add(lbl,       BorderLayout.NORTH);
+        top.add(controles, BorderLayout.SOUTH);
+        p.add(top, BorderLayout.NORTH);
+
+        tableModel = new ExpedientesTableModel(repositorio, Long.getLong("expedientes.cachePaginasMB", 16) << 20);
         tabla = new JTable(tableModel);
+        // Orden por clic en el encabezado: la permutación se calcula fuera del EDT
+        tabla.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override public void mouseClicked(MouseEvent e) {
+                int col = tabla.convertColumnIndexToModel(tabla.columnAtPoint(e.getPoint()));
+                if (col < 0 || CLAVES_ORDEN[col] == null) return;
+                ordenAscendente = CLAVES_ORDEN[col] != ordenClave || !ordenAscendente;
+                ordenClave = CLAVES_ORDEN[col];
+                recalcularVista();
+            }
+        });
         tabla.setFont(F_NORMAL);
         tabla.setRowHeight(30);
         tabla.getTableHeader().setFont(F_BOLD);
@@ -613,7 +1320,7 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
             @Override public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() == 2) {
                     int row = tabla.getSelectedRow();
-                    if (row >= 0) mostrarDetalleExpediente(expedientes.get(row));
+                    if (row >= 0) mostrarDetalleExpediente(tableModel.idDeFila(row));
                 }
             }
         });
@@ -630,54 +1337,549 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
         return p;
     }
 
+    private void buscarPorCedula(String cedula) {
+        if (cedula.isEmpty()) return;
+        int id = repositorio.buscarIdPorCedula(cedula);
+        if (id < 0) {
+            JOptionPane.showMessageDialog(this, "No hay expedientes con la cédula " + cedula + ".",
+                "Búsqueda", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        int fila = tableModel.filaDeId(id);
+        if (fila >= 0) {
+            tabla.setRowSelectionInterval(fila, fila);
+            tabla.scrollRectToVisible(tabla.getCellRect(fila, 0, true));
+        }
+        mostrarDetalleExpediente(id);
+    }
+
+    private void filtrarPorTexto(String consulta) {
+        filtroTexto = consulta.isEmpty() ? null : indiceTexto.coincidencias(consulta);
+        recalcularVista();
+        if (filtroTexto != null && filtroTexto.isEmpty())
+            JOptionPane.showMessageDialog(this, "Ningún expediente coincide con \"" + consulta + "\".",
+                "Búsqueda", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    // ── Importación en segundo plano con barra de progreso ──
+    private void importarArchivo() {
+        JFileChooser fc = new JFileChooser();
+        fc.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
+            "CSV o JSON Lines", "csv", "json", "jsonl", "ndjson"));
+        if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path archivo  = fc.getSelectedFile().toPath();
+        Path rechazos = archivo.resolveSibling(archivo.getFileName() + ".rechazos.csv");
+
+        JProgressBar barra = new JProgressBar(0, 1000);
+        barra.setStringPainted(true);
+        JLabel estado = new JLabel("Leyendo " + archivo.getFileName() + "…");
+        estado.setFont(F_NORMAL);
+        JButton cancelar = crearBoton("Cancelar", C_GRIS_CLAR, C_TEXTO);
+
+        JPanel contenido = new JPanel(new BorderLayout(0, 10));
+        contenido.setBorder(new EmptyBorder(16, 16, 16, 16));
+        contenido.add(estado,   BorderLayout.NORTH);
+        contenido.add(barra,    BorderLayout.CENTER);
+        JPanel pie = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        pie.add(cancelar);
+        contenido.add(pie, BorderLayout.SOUTH);
+
+        JDialog dialogo = new JDialog(this, "Importando expedientes", true);
+        dialogo.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        dialogo.setContentPane(contenido);
+        dialogo.setSize(460, 170);
+        dialogo.setLocationRelativeTo(this);
+
+        ImportadorExpedientes importador = new ImportadorExpedientes(registro, repositorio);
+        SwingWorker<ImportadorExpedientes.Resumen, ImportadorExpedientes.Resumen> worker = new SwingWorker<>() {
+            @Override protected ImportadorExpedientes.Resumen doInBackground() throws Exception {
+                return importador.importar(archivo, rechazos, this::publish);
+            }
+
+            @Override protected void process(List<ImportadorExpedientes.Resumen> avances) {
+                ImportadorExpedientes.Resumen r = avances.get(avances.size() - 1);
+                barra.setValue((int) (1000 * r.bytesLeidos / Math.max(1, r.bytesTotales)));
+                estado.setText(String.format("%,d filas · %,d importadas · %,d rechazadas",
+                    r.filas, r.importadas, r.rechazadas));
+                refrescarContadores();
+            }
+
+            @Override protected void done() {
+                dialogo.dispose();
+                refrescarContadores();
+                try {
+                    ImportadorExpedientes.Resumen r = get();
+                    JOptionPane.showMessageDialog(SistemaExpedientesMedicosGUI.this,
+                        String.format("✅  Importación terminada.%n%,d importadas, %,d rechazadas de %,d filas.", r.importadas, r.rechazadas, r.filas) +
+                        (r.rechazadas > 0 ? "\nDetalle de rechazos: " + rechazos : ""),
+                        "Importación", JOptionPane.INFORMATION_MESSAGE);
+                } catch (CancellationException ex) {
+                    JOptionPane.showMessageDialog(SistemaExpedientesMedicosGUI.this,
+                        "Importación cancelada. Los bloques ya confirmados se conservan.",
+                        "Importación", JOptionPane.WARNING_MESSAGE);
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable causa = ex.getCause() != null ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(SistemaExpedientesMedicosGUI.this,
+                        "❌  La importación falló: " + causa.getMessage(),
+                        "Importación", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        cancelar.addActionListener(e -> worker.cancel(true));
+        worker.execute();
+        dialogo.setVisible(true);
+    }
+
+    // ── Revisión de posibles duplicados ──
+    private void actualizarBotonDuplicados() {
+        if (btnDuplicados == null) return;
+        int n = duplicados.cantidadPendientes();
+        btnDuplicados.setText(n == 0 ? "👥  Duplicados" : "👥  Duplicados (" + n + ")");
+    }
+
+    private void revisarDuplicados() {
+        List<DetectorDuplicados.Sospecha> lista = duplicados.pendientes();
+        if (lista.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No hay posibles duplicados pendientes de revisión.",
+                "Duplicados", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        String[] columnas = {"#", "Paciente", "Cédula", "Parecido a", "Cédula", "Similitud", "Motivo"};
+        DefaultTableModel modelo = new DefaultTableModel(columnas, 0) {
+            @Override public boolean isCellEditable(int r, int c) { return false; }
+        };
+        for (DetectorDuplicados.Sospecha s : lista) {
+            ExpedienteMedico a = repositorio.obtener(s.id), b = repositorio.obtener(s.idParecido);
+            modelo.addRow(new Object[]{s.id + 1, a.nombrePaciente, a.cedula,
+                b.nombrePaciente + "  (" + RepositorioExpedientes.numero(s.idParecido) + ")",
+                b.cedula, String.format("%.0f%%", 100 * s.similitud), s.motivo});
+        }
+        JTable t = new JTable(modelo);
+        t.setFont(F_NORMAL);
+        t.setRowHeight(28);
+        t.getTableHeader().setFont(F_BOLD);
+        t.setSelectionBackground(new Color(174, 214, 241));
+
+        JButton comparar = crearBoton("Comparar", C_AZUL, C_BLANCO);
+        JButton revisado = crearBoton("Marcar revisado", C_VERDE, C_BLANCO);
+        JButton cerrar   = crearBoton("Cerrar", C_GRIS_CLAR, C_TEXTO);
+        JDialog dialogo = new JDialog(this, "Posibles duplicados", true);
+        comparar.addActionListener(e -> {
+            int fila = t.getSelectedRow();
+            if (fila >= 0) compararExpedientes(lista.get(fila));
+        });
+        revisado.addActionListener(e -> {
+            int[] filas = t.getSelectedRows();
+            for (int i = filas.length - 1; i >= 0; i--) {
+                duplicados.resolver(lista.remove(filas[i]));
+                modelo.removeRow(filas[i]);
+            }
+            if (modelo.getRowCount() == 0) dialogo.dispose();
+        });
+        cerrar.addActionListener(e -> dialogo.dispose());
+        t.addMouseListener(new MouseAdapter() {
+            @Override public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && t.getSelectedRow() >= 0) compararExpedientes(lista.get(t.getSelectedRow()));
+            }
+        });
+
+        JPanel pie = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        pie.add(comparar);
+        pie.add(revisado);
+        pie.add(cerrar);
+        JPanel contenido = new JPanel(new BorderLayout(0, 10));
+        contenido.setBorder(new EmptyBorder(12, 12, 12, 12));
+        contenido.add(new JScrollPane(t), BorderLayout.CENTER);
+        contenido.add(pie, BorderLayout.SOUTH);
+        dialogo.setContentPane(contenido);
+        dialogo.setSize(900, 420);
+        dialogo.setLocationRelativeTo(this);
+        dialogo.setVisible(true);
+    }
+
+    private void compararExpedientes(DetectorDuplicados.Sospecha s) {
+        ExpedienteMedico a = repositorio.obtener(s.id), b = repositorio.obtener(s.idParecido);
+        JPanel p = new JPanel(new GridLayout(0, 3, 12, 8));
+        p.setBorder(new EmptyBorder(10, 10, 10, 10));
+        String[][] filas = {
+            {"",             RepositorioExpedientes.numero(s.id), RepositorioExpedientes.numero(s.idParecido)},
+            {"Paciente",     a.nombrePaciente,        b.nombrePaciente},
+            {"Cédula",       a.cedula,                b.cedula},
+            {"Edad",         a.edad + " años",        b.edad + " años"},
+            {"Tipo",         a.tipoPaciente(),          b.tipoPaciente()},
+            {"Médico",       a.medicoResponsable(),     b.medicoResponsable()},
+            {"Diagnóstico",  a.diagnostico,           b.diagnostico},
+            {"Alergias",     String.join(", ", a.alergias), String.join(", ", b.alergias)}
+        };
+        for (String[] f : filas) {
+            JLabel k = new JLabel(f[0].isEmpty() ? "" : f[0] + ":");
+            k.setFont(F_BOLD);
+            k.setForeground(C_AZUL);
+            p.add(k);
+            for (int i = 1; i < 3; i++) {
+                JLabel v = new JLabel("<html>" + (f[i] == null ? "—" : f[i]) + "</html>");
+                v.setFont(f[0].isEmpty() ? F_BOLD : F_NORMAL);
+                p.add(v);
+            }
+        }
+        JOptionPane.showMessageDialog(this, p, "Comparar — " + s.motivo, JOptionPane.PLAIN_MESSAGE);
+    }
+
     private void actualizarTabla() {
-        tableModel.setRowCount(0);
-        int i = 1;
-        for (ExpedienteMedico e : expedientes) {
-            tableModel.addRow(new Object[]{
-                i++,
-                e.nombrePaciente,
-                e.cedula,
-                e.edad + " años",
-                e.tipoPaciente,
-                e.tipoAtencion,
-                e.medicoResponsable,
-                e.diagnostico,
-                String.join(", ", e.medicamentos),
-                e.alergias.isEmpty() ? "Ninguna" : String.join(", ", e.alergias)
+        long t0 = Metricas.inicio();
+        tableModel.sincronizar();
+        if (tableModel.tieneVista()) recalcularVista();
+        Metricas.TABLA.registrar(t0);
+    }
+
+    // ── ORDEN Y FILTROS DE LA LISTA ──────────────────────────
+    private JComboBox<String> crearComboFiltro(AlmacenColumnar.Columna columna) {
+        JComboBox<String> cb = new JComboBox<>(new String[]{"Todos"});
+        cb.setFont(F_NORMAL);
+        cb.setPreferredSize(new Dimension(140, 30));
+        // Los valores se leen del diccionario del almacén columnar al abrir la lista
+        cb.addPopupMenuListener(new javax.swing.event.PopupMenuListener() {
+            @Override public void popupMenuWillBecomeVisible(javax.swing.event.PopupMenuEvent e) {
+                Object actual = cb.getSelectedItem();
+                List<String> valores = columnar.valores(columna);
+                valores.sort(indiceOrden.colacion());
+                DefaultComboBoxModel<String> m = new DefaultComboBoxModel<>();
+                m.addElement("Todos");
+                for (String v : valores) m.addElement(v);
+                m.setSelectedItem(actual);
+                cb.setModel(m);
+            }
+            @Override public void popupMenuWillBecomeInvisible(javax.swing.event.PopupMenuEvent e) {}
+            @Override public void popupMenuCanceled(javax.swing.event.PopupMenuEvent e) {}
+        });
+        return cb;
+    }
+
+    private void ponerFiltro(AlmacenColumnar.Columna columna, JComboBox<String> cb) {
+        if (cb.getSelectedIndex() > 0) filtroIguales.put(columna, (String) cb.getSelectedItem());
+    }
+
+    // Valores separados por comas; todos deben figurar en el expediente
+    private void editarCriteriosLista(JButton boton) {
+        String[] etiquetas = {"Alergias:", "Medicamentos:", "Exámenes:"};
+        AlmacenColumnar.Lista[] listas = AlmacenColumnar.Lista.values();
+        JPanel p = new JPanel(new GridLayout(0, 2, 8, 8));
+        JTextField[] campos = new JTextField[listas.length];
+        for (int i = 0; i < listas.length; i++) {
+            campos[i] = crearCampo();
+            campos[i].setText(String.join(", ", filtroContiene.getOrDefault(listas[i], List.of())));
+            List<String> conocidos = columnar.valores(listas[i]);
+            conocidos.sort(indiceOrden.colacion());
+            campos[i].setToolTipText("<html>Separe varios valores con comas.<br>Registrados: "
+                + String.join(", ", conocidos.subList(0, Math.min(20, conocidos.size())))
+                + (conocidos.size() > 20 ? ", …" : "") + "</html>");
+            p.add(crearLabel(etiquetas[i]));
+            p.add(campos[i]);
+        }
+        if (JOptionPane.showConfirmDialog(this, p, "Criterios de listas", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) return;
+        filtroContiene.clear();
+        int n = 0;
+        for (int i = 0; i < listas.length; i++) {
+            for (String v : campos[i].getText().split(",")) {
+                if (v.isBlank()) continue;
+                filtroContiene.computeIfAbsent(listas[i], k -> new ArrayList<>()).add(v.trim());
+                n++;
+            }
+        }
+        boton.setText(n == 0 ? "➕  Criterios" : "➕  Criterios (" + n + ")");
+        recalcularVista();
+    }
+
+    /**
+     * Recalcula en "vista-expedientes" los ids visibles según orden y filtros.
+     * Solo se publica el resultado del último pedido: si mientras tanto llegó
+     * otro (más clics, más guardados), los anteriores se descartan. Los
+     * filtros van como una sola {@link ConsultaExpedientes}; en orden de
+     * inserción su resultado se recorre a demanda y la primera página se
+     * publica apenas está completa, antes de tener el total.
+     */
+    private void recalcularVista() {
+        actualizarEncabezados();
+        IndiceOrden.Clave clave = ordenClave;
+        boolean ascendente = ordenAscendente;
+        BitSet texto = filtroTexto;
+        ConsultaExpedientes.Builder criterios = ConsultaExpedientes.nueva().edadEntre(filtroEdadDesde, filtroEdadHasta);
+        filtroIguales.forEach(criterios::igual);
+        filtroContiene.forEach((l, vs) -> vs.forEach(v -> criterios.contiene(l, v)));
+        ConsultaExpedientes consulta;
+        try {
+            consulta = criterios.construir();
+        } catch (IllegalStateException ex) {
+            lblVista.setText("⚠️  " + ex.getMessage());
+            return;
+        }
+        int gen = generacionVista.incrementAndGet();
+
+        if (clave == IndiceOrden.Clave.ID && ascendente && texto == null && consulta.vacia()) {
+            tableModel.setVista(null);
+            lblVista.setText(" ");
+            lblVista.setToolTipText(null);
+            return;
+        }
+        lblVista.setText("Calculando vista…");
+        hiloVista.execute(() -> {
+            if (gen != generacionVista.get()) return;
+            long t0 = System.nanoTime();
+            int total = repositorio.tamanio();
+            ResultadoConsulta r = texto == null && consulta.vacia() ? null : columnar.ejecutar(consulta, texto);
+            int[] vista;
+            boolean parcial = false;
+            if (r != null && clave == IndiceOrden.Clave.ID && ascendente) {
+                vista = new int[Math.max(ExpedientesTableModel.FILAS_PAGINA, Math.min(r.estimado, total))];
+                int n = 0;
+                PrimitiveIterator.OfInt it = r.ids().iterator();
+                while (it.hasNext()) {
+                    int id = it.nextInt();
+                    if (id >= total) break;
+                    if (n == vista.length) vista = Arrays.copyOf(vista, n * 2);
+                    vista[n++] = id;
+                    if (n == ExpedientesTableModel.FILAS_PAGINA) {
+                        int[] primeros = Arrays.copyOf(vista, n);
+                        parcial = true;
+                        SwingUtilities.invokeLater(() -> {
+                            if (gen != generacionVista.get()) return;
+                            tableModel.setVista(primeros);
+                            lblVista.setText(String.format("Mostrando los primeros %,d…", primeros.length));
+                        });
+                    }
+                    if ((n & 0xFFF) == 0 && gen != generacionVista.get()) return;
+                }
+                vista = Arrays.copyOf(vista, n);
+            } else {
+                vista = indiceOrden.vista(clave, ascendente, r == null ? null : r.bitmap(), total);
+            }
+            int[] lista = vista;
+            boolean extender = parcial;
+            long ms = (System.nanoTime() - t0) / 1_000_000;
+            SwingUtilities.invokeLater(() -> {
+                if (gen != generacionVista.get()) return;
+                if (extender) tableModel.extenderVista(lista); else tableModel.setVista(lista);
+                lblVista.setText(String.format("Mostrando %,d de %,d (%d ms)", lista.length, total, ms));
+                lblVista.setToolTipText(r == null ? null
+                    : "<html><b>Plan:</b><br>" + r.plan.replace("\n", "<br>") + "</html>");
             });
+        });
+    }
+
+    private void actualizarEncabezados() {
+        TableColumnModel cm = tabla.getColumnModel();
+        for (int i = 0; i < cm.getColumnCount(); i++) {
+            int c = cm.getColumn(i).getModelIndex();
+            String nombre = ExpedientesTableModel.COLUMNAS[c];
+            if (CLAVES_ORDEN[c] == ordenClave && !(ordenClave == IndiceOrden.Clave.ID && ordenAscendente))
+                nombre += ordenAscendente ? " ▲" : " ▼";
+            cm.getColumn(i).setHeaderValue(nombre);
         }
+        tabla.getTableHeader().repaint();
     }
 
-    private void mostrarDetalleExpediente(ExpedienteMedico e) {
-        JPanel p = new JPanel(new GridLayout(0,2,8,8));
-        p.setBorder(new EmptyBorder(10,10,10,10));
+    private static final String[] CAMPOS_DETALLE = {"Paciente", "Cédula", "Edad", "Tipo paciente",
+        "Tipo atención", "Médico", "Diagnóstico", "Exámenes", "Medicamentos", "Alergias", "Notas"};
 
-        Object[][] datos = {
-            {"Paciente",      e.nombrePaciente},
-            {"Cédula",        e.cedula},
-            {"Edad",          e.edad + " años"},
-            {"Tipo paciente", e.tipoPaciente},
-            {"Tipo atención", e.tipoAtencion},
-            {"Médico",        e.medicoResponsable},
-            {"Diagnóstico",   e.diagnostico},
-            {"Exámenes",      String.join(" | ", e.examenes)},
-            {"Medicamentos",  String.join(" | ", e.medicamentos)},
-            {"Alergias",      e.alergias.isEmpty() ? "Ninguna" : String.join(", ", e.alergias)},
-            {"Notas",         e.notasAdicionales != null ? e.notasAdicionales : "—"}
-        };
+    private static String[] textosDetalle(ExpedienteMedico e) {
+        return new String[]{ e.nombrePaciente, e.cedula, e.edad + " años", e.tipoPaciente(), e.tipoAtencion(),
+            e.medicoResponsable(), e.diagnostico, String.join(" | ", e.examenes), String.join(" | ", e.medicamentos),
+            e.alergias.isEmpty() ? "Ninguna" : String.join(", ", e.alergias),
+            e.notasAdicionales != null ? e.notasAdicionales : "—" };
+    }
 
-        for (Object[] d : datos) {
-            JLabel k = new JLabel((String)d[0] + ":");
+    // Con más de una versión, el selector muestra cualquiera de ellas y marca
+    // en naranja lo que cambió respecto de la anterior. "Editar" parte de la vigente.
+    private void mostrarDetalleExpediente(int id) {
+        List<VersionExpediente> versiones;
+        try {
+            versiones = repositorio.historial(id);
+        } catch (IndexOutOfBoundsException ex) {
+            JOptionPane.showMessageDialog(this, "⚠️  " + ex.getMessage(), "Sin expediente", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        VersionExpediente vigente = versiones.get(versiones.size() - 1);
+
+        JPanel p = new JPanel(new GridLayout(0,2,8,8));
+        p.setBorder(new EmptyBorder(10,10,10,10));
+        JLabel[] valores = new JLabel[CAMPOS_DETALLE.length];
+        for (int i = 0; i < CAMPOS_DETALLE.length; i++) {
+            JLabel k = new JLabel(CAMPOS_DETALLE[i] + ":");
             k.setFont(F_BOLD);
             k.setForeground(C_AZUL);
-            JLabel v = new JLabel("<html>" + d[1] + "</html>");
-            v.setFont(F_NORMAL);
-            p.add(k); p.add(v);
+            valores[i] = new JLabel();
+            valores[i].setFont(F_NORMAL);
+            p.add(k); p.add(valores[i]);
+        }
+        IntConsumer mostrar = v -> {
+            String[] actual = textosDetalle(versiones.get(v).expediente);
+            String[] previo = v == 0 ? actual : textosDetalle(versiones.get(v - 1).expediente);
+            for (int i = 0; i < actual.length; i++) {
+                valores[i].setText("<html>" + actual[i] + "</html>");
+                valores[i].setForeground(Objects.equals(actual[i], previo[i]) ? C_TEXTO : C_NARANJA);
+            }
+        };
+        mostrar.accept(versiones.size() - 1);
+
+        JPanel contenido = new JPanel(new BorderLayout(0, 8));
+        if (versiones.size() > 1) {
+            JComboBox<String> selector = new JComboBox<>();
+            selector.setFont(F_NORMAL);
+            for (int v = versiones.size() - 1; v >= 0; v--) {
+                VersionExpediente ve = versiones.get(v);
+                selector.addItem("Versión " + ve.numero + (v == versiones.size() - 1 ? " (vigente)" : "")
+                    + (ve.fecha == 0 ? " · original" : " · " + new java.text.SimpleDateFormat("dd/MM/yyyy HH:mm").format(new Date(ve.fecha))));
+            }
+            selector.addActionListener(e -> mostrar.accept(versiones.size() - 1 - selector.getSelectedIndex()));
+            contenido.add(selector, BorderLayout.NORTH);
+        }
+        contenido.add(p, BorderLayout.CENTER);
+
+        Object[] opciones = {"✏️  Editar", "Cerrar"};
+        int r = JOptionPane.showOptionDialog(this, contenido, "Detalle — " + vigente.expediente.nombrePaciente,
+            JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, opciones, opciones[1]);
+        if (r == 0) editarExpediente(id, vigente);
+    }
+
+    // Los campos parten de la versión vigente; la siguiente se construye y
+    // guarda en el hilo escritor, compartiendo con esta lo que no cambió.
+    private void editarExpediente(int id, VersionExpediente vigente) {
+        ExpedienteMedico e = vigente.expediente;
+        JTextField nombre = crearCampo(), cedula = crearCampo(), edad = crearCampo(), medico = crearCampo(),
+                   diagnostico = crearCampo(), medicamentos = crearCampo(), alergias = crearCampo(),
+                   examenes = crearCampo(), notas = crearCampo();
+        nombre.setText(e.nombrePaciente);
+        cedula.setText(e.cedula);
+        edad.setText(String.valueOf(e.edad));
+        medico.setText(e.medicoResponsable() == null ? "" : e.medicoResponsable());
+        diagnostico.setText(e.diagnostico);
+        medicamentos.setText(String.join(", ", e.medicamentos));
+        alergias.setText(String.join(", ", e.alergias));
+        examenes.setText(String.join(", ", e.examenes));
+        notas.setText(e.notasAdicionales == null ? "" : e.notasAdicionales);
+
+        JPanel p = new JPanel(new GridLayout(0, 2, 8, 8));
+        p.setBorder(new EmptyBorder(10,10,10,10));
+        Object[][] filas = {{"Nombre:", nombre}, {"Cédula:", cedula}, {"Edad:", edad}, {"Médico:", medico},
+            {"Diagnóstico:", diagnostico}, {"Medicamentos (separados por coma):", medicamentos},
+            {"Alergias:", alergias}, {"Exámenes:", examenes}, {"Notas:", notas}};
+        for (Object[] f : filas) {
+            p.add(crearLabel((String) f[0]));
+            p.add((JTextField) f[1]);
+        }
+        int r = JOptionPane.showConfirmDialog(this, p,
+            "Editar expediente " + RepositorioExpedientes.numero(id) + " — versión " + vigente.numero,
+            JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (r != JOptionPane.OK_OPTION) return;
+
+        String vNombre = nombre.getText().trim(), vCedula = cedula.getText().trim(), vEdad = edad.getText().trim(),
+               vMedico = medico.getText().trim(), vDiagnostico = diagnostico.getText().trim(),
+               vMedicamentos = medicamentos.getText(), vAlergias = alergias.getText(),
+               vExamenes = examenes.getText(), vNotas = notas.getText().trim();
+        Supplier<ExpedienteMedico> construir = () -> {
+            ExpedienteMedico.Builder b = new ExpedienteMedico.Builder(e)
+                .conNombre(vNombre)
+                .conCedula(vCedula)
+                .conDiagnostico(vDiagnostico)
+                .conMedico(vMedico.isEmpty() && e.medicoResponsable() == null ? null : vMedico)
+                .conNotas(vNotas.isEmpty() && e.notasAdicionales == null ? null : vNotas)
+                .conMedicamentos(separarLista(vMedicamentos))
+                .conAlergias(separarLista(vAlergias))
+                .conExamenes(separarLista(vExamenes));
+            try { b.conEdad(Integer.parseInt(vEdad)); }
+            catch (NumberFormatException ex) { throw new IllegalStateException("La edad debe ser un número."); }
+            return b.construir();
+        };
+        try {
+            canalGuardado.enviarCambio(id, vigente.numero, construir, (idCambio, exp, error) -> {
+                if (error != null) {
+                    mostrarErrorGuardado(error);
+                    return;
+                }
+                tableModel.actualizar(id);
+                if (tableModel.tieneVista()) recalcularVista();
+                JOptionPane.showMessageDialog(this,
+                    "✅  Cambios de " + exp.nombrePaciente + " guardados como versión " + repositorio.version(id) + ".\n" +
+                    "Las versiones anteriores siguen disponibles en el detalle.",
+                    "Expediente modificado", JOptionPane.INFORMATION_MESSAGE);
+            });
+        } catch (RejectedExecutionException ex) {
+            JOptionPane.showMessageDialog(this, "⏳  " + ex.getMessage() + "\nIntente de nuevo en un momento.",
+                "Sistema ocupado", JOptionPane.WARNING_MESSAGE);
         }
+    }
+
+    private static List<String> separarLista(String texto) {
+        List<String> l = new ArrayList<>();
+        for (String v : texto.split(","))
+            if (!v.isBlank()) l.add(v.trim());
+        return l;
+    }
+
+    // ── DIAGNÓSTICO ───────────────────────────────────────────
+    // Latencias de Metricas; la tabla se refresca cada segundo sólo mientras el panel está visible
+    private JPanel crearPanelDiagnostico() {
+        JPanel p = new JPanel(new BorderLayout(0, 12));
+        p.setBackground(C_FONDO);
+        p.setBorder(new EmptyBorder(20,20,20,20));
+
+        JLabel titulo = new JLabel("📈  Diagnóstico de rendimiento");
+        titulo.setFont(F_TITULO);
+        titulo.setForeground(C_AZUL);
+
+        String[] columnas = {"Operación", "Cuenta", "Errores", "Prom. ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "Máx. ms"};
+        DefaultTableModel modelo = new DefaultTableModel(columnas, 0) {
+            @Override public boolean isCellEditable(int r, int c) { return false; }
+        };
+        JTable t = new JTable(modelo);
+        t.setFont(F_NORMAL);
+        t.setRowHeight(28);
+        t.getTableHeader().setFont(F_BOLD);
+        t.getTableHeader().setBackground(C_AZUL);
+        t.getTableHeader().setForeground(C_BLANCO);
+        t.setGridColor(new Color(220,220,220));
+        t.setFillsViewportHeight(true);
+
+        JLabel estado = new JLabel();
+        estado.setFont(F_SMALL);
+        estado.setForeground(C_TEXTO);
+
+        Runnable refrescar = () -> {
+            modelo.setRowCount(0);
+            for (Medidor m : Metricas.medidores()) {
+                Medidor.Instantanea s = m.instantanea();
+                modelo.addRow(new Object[]{ s.nombre, s.cuenta, s.errores,
+                    String.format("%.3f", s.promedioNs() / 1e6),
+                    String.format("%.3f", s.percentilNs(50) / 1e6),
+                    String.format("%.3f", s.percentilNs(90) / 1e6),
+                    String.format("%.3f", s.percentilNs(99) / 1e6),
+                    String.format("%.3f", s.percentilNs(99.9) / 1e6),
+                    String.format("%.3f", s.maximoNs / 1e6) });
+            }
+            estado.setText(Metricas.ACTIVAS
+                ? "JMX: " + MBeanMetricas.NOMBRE + " · JFR: evento expedientes.Operacion "
+                  + (EventoOperacion.TIPO.isEnabled() ? "grabando" : "inactivo")
+                : "Métricas desactivadas (-Dexpedientes.metricas=false)");
+        };
+        javax.swing.Timer refresco = new javax.swing.Timer(1000, e -> refrescar.run());
+        p.addComponentListener(new ComponentAdapter() {
+            @Override public void componentShown(ComponentEvent e)  { refrescar.run(); refresco.start(); }
+            @Override public void componentHidden(ComponentEvent e) { refresco.stop(); }
+        });
+
+        JButton btnReiniciar = crearBoton("↺  Reiniciar", C_GRIS_CLAR, C_TEXTO);
+        btnReiniciar.addActionListener(e -> { Metricas.reiniciar(); refrescar.run(); });
 
-        JOptionPane.showMessageDialog(this, p,
-            "Detalle — " + e.nombrePaciente, JOptionPane.PLAIN_MESSAGE);
+        JPanel pie = new JPanel(new BorderLayout());
+        pie.setOpaque(false);
+        pie.add(estado, BorderLayout.CENTER);
+        pie.add(btnReiniciar, BorderLayout.EAST);
+
+        p.add(titulo, BorderLayout.NORTH);
+        p.add(new JScrollPane(t), BorderLayout.CENTER);
+        p.add(pie, BorderLayout.SOUTH);
+        return p;
     }
 
     // ── ACERCA DE ─────────────────────────────────────────────
@@ -688,11 +1890,7 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
 
         JPanel card = new JPanel(new BorderLayout()) {
             @Override protected void paintComponent(Graphics g) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setColor(C_BLANCO);
-                g2.fillRoundRect(0,0,getWidth(),getHeight(),20,20);
-                g2.dispose();
+                CacheFondos.redondeado(g, getWidth(), getHeight(), 20, C_BLANCO, null);
             }
         };
         card.setOpaque(false);
@@ -734,14 +1932,12 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
     // ───────────────────
     private JPanel crearFooter() {
         
-        JPanel footer = new JPanel(new FlowLay
-            out(FlowLayout.CENTER));
+        JPanel footer = new JPanel(new FlowLayout(FlowLayout.CENTER));
         footer.setBackground(C_AZUL_OSC);
         
         footer.setPreferredSize(new Dimension(
             0, 32));
-        JLabel lbl = new JLabel("Universidad C
-        ooperativa de Colombia  |  Patrones de Software  |  2026");
+        JLabel lbl = new JLabel("Universidad Cooperativa de Colombia  |  Patrones de Software  |  2026");
         lbl.setFont(F_SMALL);
         
         lbl.setForeground(new Color(180, 210, 
@@ -766,4 +1962,1852 @@ public class SistemaExpedientesMedicosGUI extends JFrame {
             app.setVisible(true);
         });
     }
+}
+
+// ══════════════════════════════════════════════════════════════
+//  BENCHMARKS  (java -Djava.awt.headless=true BenchmarkExpedientes <escenario>)
+//  La suite de referencia de los caminos críticos está en el módulo jmh/
+//  (java -jar jmh/target/benchmarks.jar -prof gc) y su línea base en
+//  bench-baseline.txt; estos escenarios comparan alternativas a mano.
+// ══════════════════════════════════════════════════════════════
+class BenchmarkExpedientes {
+    static final int[] TAMANIOS = {10_000, 100_000, 1_000_000};
+
+    public static void main(String[] args) throws Exception {
+        String escenario = args.length > 0 ? args[0] : "tabla";
+        switch (escenario) {
+            case "tabla":        benchTabla(); break;
+            case "recuperacion": benchRecuperacion(); break;
+            case "cedula":       benchCedula(); break;
+            case "texto":        benchTexto(); break;
+            case "memoria":      benchMemoria(); break;
+            case "columnar":     benchColumnar(); break;
+            case "pintado":      benchPintado(); break;
+            case "paginado":     benchPaginado(); break;
+            case "orden":        benchOrden(); break;
+            case "codec":        benchCodec(); break;
+            case "duplicados":   benchDuplicados(); break;
+            case "metricas":     benchMetricas(); break;
+            case "consulta":     benchConsulta(); break;
+            case "auditoria":    benchAuditoria(); break;
+            case "versiones":    benchVersiones(); break;
+            case "particiones":  benchParticiones(); break;
+            default: throw new IllegalArgumentException("Escenario desconocido: " + escenario);
+        }
+    }
+
+    static ExpedienteBase plantilla() {
+        return new ExpedienteBase("Adulto", "Urgencias",
+            Arrays.asList("Hemograma completo", "Glucosa en sangre", "Electrocardiograma"));
+    }
+
+    static final String[] DIAGNOSTICOS = {"Hipertensión arterial", "Diabetes mellitus tipo 2",
+        "Neumonía adquirida en comunidad", "Gastroenteritis aguda", "Migraña crónica",
+        "Insuficiencia cardíaca", "Asma bronquial", "Infección urinaria", "Fractura de radio", "Dengue"};
+    static final String[] MEDICAMENTOS = {"Acetaminofén", "Losartán", "Metformina", "Amoxicilina",
+        "Ibuprofeno", "Omeprazol", "Salbutamol", "Enalapril", "Furosemida", "Insulina glargina"};
+    static final String[] ALERGIAS = {"Penicilina", "Polen", "Sulfas", "Látex", "Mariscos", "Ácaros"};
+
+    static ExpedienteMedico sintetico(ExpedienteBase base, int i) {
+        ExpedienteMedico.Builder b = new ExpedienteMedico.Builder(base)
+            .conNombre("Paciente " + i)
+            .conCedula(String.valueOf(10_000_000 + i))
+            .conEdad(i % 100)
+            .conDiagnostico(DIAGNOSTICOS[i % DIAGNOSTICOS.length] + " grado " + (i % 4))
+            .conMedico("Dr. " + (i % 20))
+            .agregarMedicamento(MEDICAMENTOS[i % MEDICAMENTOS.length])
+            .agregarMedicamento(MEDICAMENTOS[(i / 7) % MEDICAMENTOS.length]);
+        if (i % 3 == 0) b.agregarAlergia(ALERGIAS[(i / 3) % ALERGIAS.length]);
+        return b.construir();
+    }
+
+    static RepositorioExpedientes poblar(int n) {
+        ExpedienteBase base = plantilla();
+        RepositorioExpedientes datos = new RepositorioEnMemoria();
+        for (int i = 0; i < n; i++) datos.guardar(sintetico(base, i));
+        return datos;
+    }
+
+    // ── Latencia guardar → repintar de la tabla ──
+    static void benchTabla() throws Exception {
+        System.out.println("n\tmodelo\tmediana(ms)\tp99(ms)");
+        for (int n : TAMANIOS) {
+            RepositorioExpedientes datos = poblar(n);
+            ExpedientesTableModel modelo = new ExpedientesTableModel(datos);
+            medirTabla(n, "incremental", 200, datos, modelo, modelo::sincronizar);
+
+            DefaultTableModel legado = new DefaultTableModel(ExpedientesTableModel.COLUMNAS, 0);
+            medirTabla(n, "reconstruccion", 5, datos, legado, () -> reconstruirLegado(legado, datos));
+        }
+    }
+
+    private static void medirTabla(int n, String nombre, int iteraciones, RepositorioExpedientes datos,
+                                   TableModel modelo, Runnable notificar) throws Exception {
+        ExpedienteBase base = plantilla();
+        long[] t = new long[iteraciones];
+        SwingUtilities.invokeAndWait(() -> {
+            JTable tabla = new JTable(modelo);
+            tabla.setRowHeight(30);
+            BufferedImage img = new BufferedImage(1100, 600, BufferedImage.TYPE_INT_RGB);
+            for (int k = 0; k < iteraciones; k++) {
+                long t0 = System.nanoTime();
+                datos.guardar(sintetico(base, datos.tamanio()));
+                notificar.run();
+                pintarUltimasFilas(tabla, img);
+                t[k] = System.nanoTime() - t0;
+            }
+        });
+        Arrays.sort(t);
+        System.out.printf("%d\t%s\t%.3f\t%.3f%n", n, nombre,
+            t[t.length / 2] / 1e6, t[(int) (t.length * 0.99)] / 1e6);
+    }
+
+    static void pintarUltimasFilas(JTable tabla, BufferedImage img) {
+        int alto = tabla.getRowCount() * tabla.getRowHeight();
+        tabla.setSize(img.getWidth(), alto);
+        tabla.doLayout();
+        Graphics2D g = img.createGraphics();
+        g.translate(0, img.getHeight() - alto);
+        g.setClip(0, alto - img.getHeight(), img.getWidth(), img.getHeight());
+        tabla.paint(g);
+        g.dispose();
+    }
+
+    // Réplica del actualizarTabla() anterior, como referencia
+    private static void reconstruirLegado(DefaultTableModel m, RepositorioExpedientes datos) {
+        m.setRowCount(0);
+        for (int i = 1; i <= datos.tamanio(); i++) {
+            ExpedienteMedico e = datos.obtener(i - 1);
+            m.addRow(new Object[]{ i, e.nombrePaciente, e.cedula, e.edad + " años",
+                e.tipoPaciente(), e.tipoAtencion(), e.medicoResponsable(), e.diagnostico,
+                String.join(", ", e.medicamentos),
+                e.alergias.isEmpty() ? "Ninguna" : String.join(", ", e.alergias) });
+        }
+    }
+
+    // ── Escritura en lotes y tiempo de arranque (replay) del log durable ──
+    static void benchRecuperacion() throws IOException {
+        System.out.println("n\tescritura(ms)\tapertura(ms)\ttamaño(MB)");
+        ExpedienteBase base = plantilla();
+        for (int n : TAMANIOS) {
+            Path dir = Files.createTempDirectory("bench-expedientes");
+            long t0 = System.nanoTime();
+            RepositorioExpedientes repo = new RepositorioExpedientesLog(dir);
+            List<ExpedienteMedico> lote = new ArrayList<>(10_000);
+            for (int i = 0; i < n; i++) {
+                lote.add(sintetico(base, i));
+                if (lote.size() == 10_000) { repo.guardarLote(lote); lote.clear(); }
+            }
+            if (!lote.isEmpty()) repo.guardarLote(lote);
+            repo.cerrar();
+            long t1 = System.nanoTime();
+
+            RepositorioExpedientes reabierto = new RepositorioExpedientesLog(dir);
+            long t2 = System.nanoTime();
+            if (reabierto.tamanio() != n) throw new IllegalStateException("Recuperados " + reabierto.tamanio() + " de " + n);
+            reabierto.cerrar();
+
+            long bytes = 0;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path f : ds) { bytes += Files.size(f); Files.delete(f); }
+            }
+            Files.delete(dir);
+            System.out.printf("%d\t%.1f\t%.1f\t%.1f%n", n, (t1 - t0) / 1e6, (t2 - t1) / 1e6, bytes / 1e6);
+        }
+    }
+
+    // ── Búsqueda exacta por cédula: índice hash vs recorrido lineal ──
+    static void benchCedula() {
+        System.out.println("n\tindice(ns/op)\tlineal(ns/op)");
+        ExpedienteBase base = plantilla();
+        Random rnd = new Random(42);
+        for (int n : TAMANIOS) {
+            RepositorioExpedientes lineal = poblar(n);
+            RepositorioExpedientes indexado = new RepositorioIndexado(lineal);
+            String[] consultas = new String[1000];
+            for (int i = 0; i < consultas.length; i++)
+                consultas[i] = String.valueOf(10_000_000 + rnd.nextInt(n));
+
+            System.out.printf("%d\t%.1f\t%.1f%n", n,
+                nsPorBusqueda(indexado, consultas, 200_000),
+                nsPorBusqueda(lineal,   consultas, Math.max(20, 20_000_000 / n)));
+        }
+    }
+
+    private static double nsPorBusqueda(RepositorioExpedientes repo, String[] consultas, int ops) {
+        long suma = 0;
+        for (int i = 0; i < ops; i++) suma += repo.buscarIdPorCedula(consultas[i % consultas.length]);  // calentamiento
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) suma += repo.buscarIdPorCedula(consultas[i % consultas.length]);
+        long t = System.nanoTime() - t0;
+        sumidero = suma;
+        return (double) t / ops;
+    }
+
+    // ── Latencia de consultas sobre el índice invertido ──
+    static void benchTexto() {
+        String[] consultas = {"neumonia", "penicilina losartan", "diabet*", "insuficiencia cardiaca furosemida", "latex grado 3"};
+        System.out.println("n\tindexado(ms)\tconsulta\tresultados\tus/op");
+        ExpedienteBase base = plantilla();
+        for (int n : TAMANIOS) {
+            IndiceTextoCompleto indice = new IndiceTextoCompleto();
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) indice.expedienteGuardado(i, sintetico(base, i));
+            double msIndexado = (System.nanoTime() - t0) / 1e6;
+            for (String q : consultas) {
+                int resultados = 0;
+                for (int i = 0; i < 20; i++) resultados = indice.buscar(q, 50).length;   // calentamiento
+                int ops = 200;
+                long t1 = System.nanoTime();
+                for (int i = 0; i < ops; i++) indice.buscar(q, 50);
+                System.out.printf("%d\t%.0f\t%s\t%d\t%.1f%n", n, msIndexado, q,
+                    indice.coincidencias(q).cardinality(), (System.nanoTime() - t1) / 1e3 / ops);
+            }
+        }
+    }
+
+    // ── Memoria retenida y asignada por expediente: copia profunda vs. compartida ──
+    // Bytes retenidos por expediente con 1M en memoria, con los mismos datos:
+    // el diseño anterior (siete String, ArrayList mutables, un String de médico
+    // por registro) contra el expediente compacto e inmutable.
+    static void benchMemoria() {
+        int n = 1_000_000;
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : registro.getClaves()) mezcla.put(c, 1);
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, 1);
+        Set<List<String>> deplantilla = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ExpedienteBase b : registro.getCatalogo().plantillas.values()) deplantilla.add(b.getExamenesBase());
+        System.out.println("modo\tretenido(B/exp)");
+        long[] retenido = new long[2];
+        String[] modos = {"anterior", "compacto"};
+        for (int m = 0; m < modos.length; m++) {
+            Object[] retenidos = new Object[n];
+            long antes = heapUsado();
+            for (int i = 0; i < n; i++) {
+                ExpedienteMedico e = gen.generar(i);
+                retenidos[i] = m == 0 ? new ExpedienteAnterior(e, !deplantilla.contains(e.examenes)) : e;
+            }
+            retenido[m] = heapUsado() - antes;
+            System.out.printf("%s\t%d%n", modos[m], retenido[m] / n);
+            sumidero = retenidos;   // vivo hasta después de medir
+        }
+        System.out.printf("ahorro: %.1f MB (%.0f%%)%n", (retenido[0] - retenido[1]) / 1e6,
+            100.0 * (retenido[0] - retenido[1]) / retenido[0]);
+    }
+
+    // Réplica del expediente anterior: campos String sueltos, listas ArrayList
+    // creadas con capacidad 2 al primer elemento y copia de los exámenes si se
+    // agregaba uno; el nombre del médico llegaba como un String nuevo.
+    static final class ExpedienteAnterior {
+        String tipoPaciente, tipoAtencion, nombrePaciente, cedula, diagnostico,
+               notasAdicionales, medicoResponsable;
+        int edad;
+        List<String> examenes, medicamentos = Collections.emptyList(), alergias = Collections.emptyList();
+
+        ExpedienteAnterior(ExpedienteMedico e, boolean examenesPropios) {
+            tipoPaciente = e.tipoPaciente();
+            tipoAtencion = e.tipoAtencion();
+            nombrePaciente = e.nombrePaciente;
+            cedula = e.cedula;
+            diagnostico = e.diagnostico;
+            notasAdicionales = e.notasAdicionales;
+            medicoResponsable = new String(e.medicoResponsable());
+            edad = e.edad;
+            examenes = examenesPropios ? new ArrayList<>(e.examenes) : e.examenes;
+            for (String s : e.medicamentos) medicamentos = agregar(medicamentos, s);
+            for (String s : e.alergias)     alergias = agregar(alergias, s);
+        }
+
+        private static List<String> agregar(List<String> l, String v) {
+            if (l.isEmpty()) l = new ArrayList<>(2);
+            l.add(v);
+            return l;
+        }
+    }
+
+    static long heapUsado() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static volatile Object sumidero;   // el JIT no puede descartar lo que llega aquí
+
+    // ── Agregados: recorrido columnar vs. recorrido de objetos ──
+    static void benchColumnar() {
+        int n = 1_000_000;
+        RepositorioExpedientes datos = poblar(n);
+        AlmacenColumnar col = new AlmacenColumnar();
+        for (int i = 0; i < n; i++) col.expedienteGuardado(i, datos.obtener(i));
+
+        System.out.println("consulta\tcolumnar(ms)\tobjetos(ms)");
+        System.out.printf("conteo por médico\t%.2f\t%.2f%n",
+            ms(() -> col.conteo(AlmacenColumnar.Columna.MEDICO)),
+            ms(() -> {
+                Map<String, Integer> m = new HashMap<>();
+                for (int i = 0; i < n; i++) m.merge(datos.obtener(i).medicoResponsable(), 1, Integer::sum);
+                return m;
+            }));
+        System.out.printf("histograma de edad\t%.2f\t%.2f%n",
+            ms(() -> col.histogramaEdad(10)),
+            ms(() -> {
+                Map<Integer, Integer> m = new TreeMap<>();
+                for (int i = 0; i < n; i++) m.merge(datos.obtener(i).edad / 10, 1, Integer::sum);
+                return m;
+            }));
+        System.out.printf("edad promedio por plantilla\t%.2f\t%.2f%n",
+            ms(() -> col.edadPromedio(AlmacenColumnar.Columna.PLANTILLA)),
+            ms(() -> {
+                Map<String, double[]> m = new HashMap<>();
+                for (int i = 0; i < n; i++) {
+                    ExpedienteMedico e = datos.obtener(i);
+                    double[] a = m.computeIfAbsent(e.tipoPaciente() + " · " + e.tipoAtencion(), k -> new double[2]);
+                    a[0] += e.edad;
+                    a[1]++;
+                }
+                return m;
+            }));
+    }
+
+    private static double ms(Supplier<Object> consulta) {
+        for (int i = 0; i < 5; i++) sumidero = consulta.get();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 10; i++) sumidero = consulta.get();
+        return (System.nanoTime() - t0) / 1e6 / 10;
+    }
+
+    // ── Fondos: pintado directo vs. mosaicos de CacheFondos ──
+    static void benchPintado() {
+        BufferedImage lienzo = new BufferedImage(1150, 720, BufferedImage.TYPE_INT_ARGB_PRE);
+        Color[] franjas = { SistemaExpedientesMedicosGUI.C_AZUL, SistemaExpedientesMedicosGUI.C_VERDE,
+                            SistemaExpedientesMedicosGUI.C_NARANJA };
+        // Un "cuadro" del dashboard: header, 4 botones de menú, 3 tarjetas stat, 3 gráficos, 2 tarjetas info
+        Runnable cuadro = () -> {
+            Graphics2D g = lienzo.createGraphics();
+            CacheFondos.degradado(g, 1150, 70, SistemaExpedientesMedicosGUI.C_AZUL_OSC, SistemaExpedientesMedicosGUI.C_AZUL);
+            for (int i = 0; i < 4; i++)
+                CacheFondos.redondeado(g, 170, 42, 12, SistemaExpedientesMedicosGUI.C_MENU, null);
+            for (Color c : franjas) CacheFondos.redondeado(g, 292, 110, 16, SistemaExpedientesMedicosGUI.C_BLANCO, c);
+            for (int i = 0; i < 3; i++) CacheFondos.redondeado(g, 292, 150, 16, SistemaExpedientesMedicosGUI.C_BLANCO, null);
+            for (int i = 0; i < 2; i++) CacheFondos.redondeado(g, 444, 120, 16, SistemaExpedientesMedicosGUI.C_BLANCO, null);
+            g.dispose();
+        };
+        System.out.println("modo\tms/cuadro");
+        for (boolean activo : new boolean[] { false, true }) {
+            CacheFondos.activo = activo;
+            CacheFondos.invalidar();
+            for (int i = 0; i < 200; i++) cuadro.run();
+            int n = 2000;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) cuadro.run();
+            System.out.printf("%s\t%.3f%n", activo ? "caché" : "directo", (System.nanoTime() - t0) / 1e6 / n);
+        }
+    }
+
+    // ── Repositorio en disco: heap residente y latencia de página ──
+    static void benchPaginado() throws IOException {
+        int n = 1_000_000, tamPagina = ExpedientesTableModel.FILAS_PAGINA;
+        Path dir = Files.createTempDirectory("bench-paginado");
+        ExpedienteBase base = plantilla();
+        RepositorioExpedientes repo = new RepositorioExpedientesLog(dir);
+        List<ExpedienteMedico> lote = new ArrayList<>(10_000);
+        for (int i = 0; i < n; i++) {
+            lote.add(sintetico(base, i));
+            if (lote.size() == 10_000) { repo.guardarLote(lote); lote.clear(); }
+        }
+        repo.cerrar();
+
+        long antes = heapUsado();
+        RepositorioExpedientesLog log = new RepositorioExpedientesLog(dir);
+        System.out.printf("heap residente tras abrir %d: %.1f MB%n", n, (heapUsado() - antes) / 1e6);
+        RepositorioIndexado indexado = new RepositorioIndexado(log);
+        System.out.printf("  + índice de cédulas (hash + ordenado): %.1f MB%n", (heapUsado() - antes) / 1e6);
+
+        Random rnd = new Random(7);
+        long[] porId = new long[2000], porCedula = new long[2000];
+        for (int k = 0; k < porId.length; k++) {
+            int desde = rnd.nextInt(n - tamPagina);
+            long t0 = System.nanoTime();
+            sumidero = log.pagina(desde, tamPagina);
+            porId[k] = System.nanoTime() - t0;
+            String despuesDe = String.valueOf(10_000_000 + rnd.nextInt(n));
+            t0 = System.nanoTime();
+            sumidero = indexado.paginaPorCedula(despuesDe, tamPagina);
+            porCedula[k] = System.nanoTime() - t0;
+        }
+        Arrays.sort(porId);
+        Arrays.sort(porCedula);
+        System.out.println("página de " + tamPagina + "\tmediana(ms)\tp99(ms)");
+        System.out.printf("por id\t%.3f\t%.3f%n", porId[1000] / 1e6, porId[1980] / 1e6);
+        System.out.printf("por cédula\t%.3f\t%.3f%n", porCedula[1000] / 1e6, porCedula[1980] / 1e6);
+        log.cerrar();
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path f : ds) Files.delete(f);
+        }
+        Files.delete(dir);
+    }
+
+    // ── Orden y filtros de la tabla con permutaciones incrementales ──
+    static void benchOrden() {
+        int n = 1_000_000;
+        RepositorioExpedientes datos = poblar(n);
+        AlmacenColumnar col = new AlmacenColumnar();
+        IndiceOrden orden = new IndiceOrden(col);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            ExpedienteMedico e = datos.obtener(i);
+            col.expedienteGuardado(i, e);
+            orden.expedienteGuardado(i, e);
+        }
+        System.out.printf("alimentar índices (%d)\t%.0f ms%n", n, (System.nanoTime() - t0) / 1e6);
+
+        System.out.printf("primer orden por nombre\t%.0f ms%n", msUnaVez(() -> orden.vista(IndiceOrden.Clave.NOMBRE, true, null, n)));
+        ExpedienteBase base = plantilla();
+        for (int i = n; i < n + 1000; i++) {
+            ExpedienteMedico e = sintetico(base, i);
+            datos.guardar(e);
+            col.expedienteGuardado(i, e);
+            orden.expedienteGuardado(i, e);
+        }
+        int total = n + 1000;
+        System.out.printf("nombre tras 1000 altas\t%.1f ms%n", msUnaVez(() -> orden.vista(IndiceOrden.Clave.NOMBRE, true, null, total)));
+        System.out.printf("nombre descendente\t%.1f ms%n", msUnaVez(() -> orden.vista(IndiceOrden.Clave.NOMBRE, false, null, total)));
+        System.out.printf("cédula (primera vez)\t%.0f ms%n", msUnaVez(() -> orden.vista(IndiceOrden.Clave.CEDULA, true, null, total)));
+        System.out.printf("edad\t%.1f ms%n", msUnaVez(() -> orden.vista(IndiceOrden.Clave.EDAD, true, null, total)));
+        System.out.printf("médico\t%.1f ms%n", msUnaVez(() -> orden.vista(IndiceOrden.Clave.MEDICO, true, null, total)));
+        Map<AlmacenColumnar.Columna, String> iguales = new EnumMap<>(AlmacenColumnar.Columna.class);
+        iguales.put(AlmacenColumnar.Columna.MEDICO, "Dr. 3");
+        System.out.printf("filtro médico + edad 30–60, por nombre\t%.1f ms%n", msUnaVez(() ->
+            orden.vista(IndiceOrden.Clave.NOMBRE, true, col.filtrar(iguales, 30, 60), total)));
+
+        // Referencia: lo que haría un TableRowSorter con Collator sobre todas las filas
+        Collator c = Collator.getInstance(new Locale("es"));
+        System.out.printf("referencia Collator sobre Integer[]\t%.0f ms%n", msUnaVez(() -> {
+            Integer[] ids = new Integer[total];
+            for (int i = 0; i < total; i++) ids[i] = i;
+            Arrays.sort(ids, (a, b) -> c.compare(datos.obtener(a).nombrePaciente, datos.obtener(b).nombrePaciente));
+            return ids;
+        }));
+    }
+
+    // ── Codec: formato 2 frente al formato 1, la serialización de Java y JSON ──
+    // Costo por medición y exactitud de los percentiles frente a ordenar todas las muestras.
+    // Correr también con -Dexpedientes.metricas=false para ver el camino apagado.
+    static void benchMetricas() {
+        int n = 2_000_000;
+        System.out.println("métricas " + (Metricas.ACTIVAS ? "activas" : "apagadas"));
+        Medidor m = new Medidor("bench");
+        SplittableRandom rnd = new SplittableRandom(7);
+        long[] muestras = new long[n];
+        // Log-normal aproximada: la mayoría en µs, cola larga hasta decenas de ms
+        for (int i = 0; i < n; i++) muestras[i] = (long) Math.exp(9 + 1.5 * rnd.nextGaussian());
+
+        for (int ronda = 0; ronda < 3; ronda++) {
+            m.reiniciar();
+            long t0 = System.nanoTime();
+            for (long v : muestras) m.registrarNs(v);
+            System.out.printf("registrarNs: %.1f ns/op%n", (System.nanoTime() - t0) / (double) n);
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) m.registrar(Metricas.inicio());
+        System.out.printf("inicio()+registrar: %.1f ns/op%n", (System.nanoTime() - t0) / (double) n);
+
+        m.reiniciar();
+        for (long v : muestras) m.registrarNs(v);
+        Medidor.Instantanea s = m.instantanea();
+        if (s.cuenta == 0) return;
+        long[] orden = muestras.clone();
+        Arrays.sort(orden);
+        System.out.println("percentil\texacto(ns)\thistograma(ns)\terror");
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            long exacto = orden[(int) Math.ceil(n * p / 100.0) - 1], aprox = s.percentilNs(p);
+            System.out.printf("p%s\t%d\t%d\t%.2f%%%n", p, exacto, aprox, 100.0 * (aprox - exacto) / exacto);
+        }
+
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : registro.getClaves()) mezcla.put(c, 1);
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, 1);
+        for (int ronda = 0; ronda < 3; ronda++) {
+            t0 = System.nanoTime();
+            for (int i = 0; i < 500_000; i++) sumidero = gen.generar(i);
+            System.out.printf("clonar+construir: %.1f ns/expediente%n", (System.nanoTime() - t0) / 500_000.0);
+        }
+    }
+
+    /**
+     * Costo de auditar en el camino de guardado (productores concurrentes),
+     * caudal del escritor, verificación de un millón de entradas y detección
+     * de una línea alterada.
+     */
+    static void benchAuditoria() throws Exception {
+        int n = 1_000_000, hilos = 4;
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : registro.getClaves()) mezcla.put(c, 1);
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, 1);
+        ExpedienteMedico[] es = new ExpedienteMedico[1024];
+        for (int i = 0; i < es.length; i++) es[i] = gen.generar(i);
+
+        Path dir = Files.createTempDirectory("bench-auditoria");
+        Path archivo = dir.resolve("auditoria.log");
+        try {
+            BitacoraAuditoria primera = new BitacoraAuditoria(archivo, System.err::println);
+            LongAdder nsPublicar = new LongAdder();
+            long t0 = System.nanoTime();
+            Thread[] ts = new Thread[hilos];
+            for (int h = 0; h < hilos; h++) {
+                int desde = h * (n / hilos), hasta = (h + 1) * (n / hilos);
+                ts[h] = new Thread(() -> BitacoraAuditoria.comoUsuario("bench", () -> {
+                    long inicio = System.nanoTime();
+                    for (int i = desde; i < hasta; i++) primera.registrar("CREAR", i + 1, es[i & 1023]);
+                    nsPublicar.add(System.nanoTime() - inicio);
+                    return null;
+                }));
+                ts[h].start();
+            }
+            for (Thread t : ts) t.join();
+            long publicado = System.nanoTime();
+            primera.cerrar();
+            long fin = System.nanoTime();
+            System.out.printf("%,d entradas, %d productores: registrar %.0f ns/op (incluye %,d esperas por anillo lleno)%n",
+                n, hilos, nsPublicar.sum() / (double) n, primera.esperas());
+            System.out.printf("escritura: %,d entradas en %d ms (%,.0f entradas/s; %d ms de vaciado al cerrar), %.1f MB, %d perdidas%n",
+                primera.escritas(), (fin - t0) / 1_000_000, primera.escritas() * 1e9 / (fin - t0),
+                (fin - publicado) / 1_000_000, Files.size(archivo) / 1e6, primera.perdidas());
+            Medidor.Instantanea lotes = Metricas.AUDITORIA.instantanea();
+            System.out.printf("lotes: %,d (%.0f entradas/lote), write+fsync p50 %.2f ms, p99 %.2f ms%n", lotes.cuenta,
+                n / (double) Math.max(1, lotes.cuenta), lotes.percentilNs(50) / 1e6, lotes.percentilNs(99) / 1e6);
+
+            for (int ronda = 0; ronda < 3; ronda++) {
+                t0 = System.nanoTime();
+                BitacoraAuditoria.Verificacion v = BitacoraAuditoria.verificar(archivo);
+                System.out.printf("verificar: %,d entradas en %d ms — %s%n", v.entradas,
+                    (System.nanoTime() - t0) / 1_000_000, v.detalle);
+            }
+
+            // Reabrir continúa la cadena; ráfagas que caben en el anillo = costo real al guardar
+            BitacoraAuditoria bitacora = new BitacoraAuditoria(archivo, System.err::println);
+            int rafaga = BitacoraAuditoria.CAPACIDAD / 2, id = n;
+            for (int ronda = 0; ronda < 5; ronda++) {
+                t0 = System.nanoTime();
+                for (int i = 0; i < rafaga; i++) bitacora.registrar("CREAR", ++id, es[i & 1023]);
+                long ns = System.nanoTime() - t0;
+                while (bitacora.escritas() < id - n) Thread.sleep(1);
+                System.out.printf("ráfaga de %,d sin esperar al disco: registrar %.0f ns/op%n", rafaga, ns / (double) rafaga);
+            }
+            bitacora.cerrar();
+            System.out.println("tras reabrir: " + BitacoraAuditoria.verificar(archivo).detalle);
+
+            // Alterar un byte a mitad del archivo
+            try (FileChannel c = FileChannel.open(archivo, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long pos = c.size() / 2;
+                ByteBuffer b = ByteBuffer.allocate(1);
+                c.read(b, pos);
+                byte original = b.get(0);
+                b.clear();
+                b.put(0, (byte) (original == '\n' || original == '\t' ? original : original ^ 1));
+                c.write(b, pos);
+            }
+            BitacoraAuditoria.Verificacion v = BitacoraAuditoria.verificar(archivo);
+            System.out.printf("alterada: %s (primera inválida %,d)%n", v.detalle, v.primeraInvalida);
+        } finally {
+            Files.deleteIfExists(archivo);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // Una edición por expediente: se compara lo que retiene (en heap) y lo que
+    // escribe (en expedientes.ver) contra el costo de un expediente completo.
+    static void benchVersiones() throws Exception {
+        int n = 200_000;
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : registro.getClaves()) mezcla.put(c, 1);
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, 1);
+        String[] diagnosticos = {"Control post operatorio", "Seguimiento", "Alta médica"};
+
+        RepositorioEnMemoria memoria = new RepositorioEnMemoria();
+        long antes = heapUsado();
+        for (int i = 0; i < n; i++) memoria.guardar(gen.generar(i));
+        long completo = heapUsado() - antes;
+        antes = heapUsado();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++)
+            memoria.modificar(i, 1, new ExpedienteMedico.Builder(memoria.obtener(i))
+                .conDiagnostico(diagnosticos[i % diagnosticos.length]).construir());
+        long ns = System.nanoTime() - t0;
+        long edicion = heapUsado() - antes;
+        System.out.printf("heap: expediente %d B, edición de un campo %d B (%.0f%%, con el historial), %.0f ns/edición%n",
+            completo / n, edicion / n, 100.0 * edicion / completo, ns / (double) n);
+        sumidero = memoria.version(n - 1);
+
+        Path dir = Files.createTempDirectory("bench-versiones");
+        try {
+            RepositorioExpedientesLog log = new RepositorioExpedientesLog(dir);
+            for (int i = 0; i < n; i++) log.guardar(gen.generar(i));
+            long bytesLog = Files.size(dir.resolve("expedientes.log"));
+            t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                ExpedienteMedico.Builder b = new ExpedienteMedico.Builder(log.obtener(i))
+                    .conDiagnostico(diagnosticos[i % diagnosticos.length]);
+                if (i % 4 == 0) b.agregarAlergia("Látex");
+                log.modificar(i, 1, b.construir());
+            }
+            ns = System.nanoTime() - t0;
+            long bytesVer = Files.size(dir.resolve("expedientes.ver"));
+            System.out.printf("disco: expediente %.1f B, edición %.1f B (%.0f%%), %.1f µs/edición%n",
+                bytesLog / (double) n, bytesVer / (double) n, 100.0 * bytesVer / bytesLog, ns / 1e3 / n);
+            log.cerrar();
+            t0 = System.nanoTime();
+            log = new RepositorioExpedientesLog(dir);
+            System.out.printf("reabrir con %,d versiones: %d ms, versión de #0 = %d%n", n,
+                (System.nanoTime() - t0) / 1_000_000, log.version(0));
+            log.cerrar();
+        } finally {
+            try (Stream<Path> s = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) s::iterator) Files.deleteIfExists(f);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // Altas concurrentes de a una (fsync agrupado), lotes de importación y un
+    // recorrido con filtro, con el log único y con 2, 4 y 8 particiones.
+    static void benchParticiones() throws Exception {
+        int hilos = 8, porHilo = 2_000, enLotes = 200_000;
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : registro.getClaves()) mezcla.put(c, 1);
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, 1);
+        System.out.printf("%d núcleos; %d hilos × %,d altas; %,d en lotes de 10.000%n",
+            Runtime.getRuntime().availableProcessors(), hilos, porHilo, enLotes);
+        System.out.println("particiones\taltas/s(hilos)\taltas/s(lotes)\tfiltrar(ms)");
+        for (int particiones : new int[]{0, 2, 4, 8}) {
+            Path dir = Files.createTempDirectory("bench-particiones");
+            try {
+                RepositorioExpedientes repo = particiones == 0 ? new RepositorioExpedientesLog(dir)
+                    : new RepositorioParticionado(dir, particiones);
+                Thread[] ts = new Thread[hilos];
+                long t0 = System.nanoTime();
+                for (int h = 0; h < hilos; h++) {
+                    int base = h * porHilo;
+                    ts[h] = new Thread(() -> {
+                        for (int i = 0; i < porHilo; i++) repo.guardar(gen.generar(base + i));
+                    });
+                    ts[h].start();
+                }
+                for (Thread t : ts) t.join();
+                double porHilos = hilos * porHilo * 1e9 / (System.nanoTime() - t0);
+
+                List<ExpedienteMedico> lote = new ArrayList<>(10_000);
+                long ns = 0;
+                for (int i = 0; i < enLotes; i++) {
+                    lote.add(gen.generar(hilos * porHilo + i));
+                    if (lote.size() == 10_000) {
+                        t0 = System.nanoTime();
+                        repo.guardarLote(lote);
+                        ns += System.nanoTime() - t0;
+                        lote.clear();
+                    }
+                }
+                double porLotes = enLotes * 1e9 / ns;
+
+                t0 = System.nanoTime();
+                int encontrados;
+                if (repo instanceof RepositorioParticionado) {
+                    encontrados = ((RepositorioParticionado) repo).filtrar(e -> e.edad == 40).length;
+                } else {
+                    int[] c = new int[1];
+                    repo.recorrerTodos((id, e) -> { if (e.edad == 40) c[0]++; });
+                    encontrados = c[0];
+                }
+                long msFiltrar = (System.nanoTime() - t0) / 1_000_000;
+                System.out.printf("%s\t%,.0f\t%,.0f\t%d (%,d de %,d)%n", particiones == 0 ? "log único" : particiones,
+                    porHilos, porLotes, msFiltrar, encontrados, repo.tamanio());
+                repo.cerrar();
+            } finally {
+                try (Stream<Path> s = Files.walk(dir)) {
+                    for (Path f : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(f);
+                }
+            }
+        }
+    }
+
+    static void benchCodec() throws Exception {
+        int n = 100_000;
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : registro.getClaves()) mezcla.put(c, 1);
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, 1);
+        ExpedienteMedico[] es = new ExpedienteMedico[n];
+        for (int i = 0; i < n; i++) es[i] = gen.generar(i);
+
+        System.out.println("formato\tB/expediente\tcodificar(ns/exp)\tdecodificar(ns/exp)");
+        ByteBuffer b = ByteBuffer.allocate(64 << 20), bd = ByteBuffer.allocate(1 << 16);
+        medirCodec("formato 1", n, () -> {
+            b.clear();
+            for (ExpedienteMedico e : es) CodecExpediente.escribirFormato1(b, e);
+            return b.position();
+        }, () -> {
+            ByteBuffer r = b.duplicate().flip();
+            for (int i = 0; i < n; i++) sumidero = CodecExpediente.leerFormato1(r);
+        });
+        medirCodec("formato 2 sin diccionario", n, () -> {
+            b.clear();
+            for (ExpedienteMedico e : es) CodecExpediente.escribir(b, e, null);
+            return b.position();
+        }, () -> {
+            ByteBuffer r = b.duplicate().flip();
+            for (int i = 0; i < n; i++) sumidero = CodecExpediente.leer(r, null);
+        });
+        // El diccionario se arma desde cero en cada corrida y su registro cuenta en el tamaño
+        medirCodec("formato 2 + diccionario", n, () -> {
+            DiccionarioCodec dic = new DiccionarioCodec();
+            b.clear();
+            for (ExpedienteMedico e : es) CodecExpediente.escribir(b, e, dic);
+            bd.clear();
+            CodecExpediente.escribirDiccionario(bd, dic, 0, dic.tamanio());
+            return b.position() + bd.position();
+        }, () -> {
+            DiccionarioCodec dic = new DiccionarioCodec();
+            CodecExpediente.leerDiccionario(bd.duplicate().flip(), dic);
+            ByteBuffer r = b.duplicate().flip();
+            for (int i = 0; i < n; i++) sumidero = CodecExpediente.leer(r, dic);
+        });
+
+        byte[][] serializado = new byte[1][];
+        medirCodec("serialización Java", n, () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 << 20);
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                for (ExpedienteMedico e : es) out.writeObject(comoMapa(e));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            serializado[0] = bytes.toByteArray();
+            return serializado[0].length;
+        }, () -> {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializado[0]))) {
+                for (int i = 0; i < n; i++) sumidero = desdeMapa(in.readObject());
+            } catch (IOException | ClassNotFoundException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+
+        String[] json = new String[1];
+        medirCodec("JSON (una línea por expediente)", n, () -> {
+            StringBuilder sb = new StringBuilder(64 << 20);
+            for (ExpedienteMedico e : es) sb.append(Json.escribir(comoMapa(e))).append('\n');
+            json[0] = sb.toString();
+            return json[0].getBytes(StandardCharsets.UTF_8).length;
+        }, () -> {
+            String t = json[0];
+            for (int desde = 0, fin; (fin = t.indexOf('\n', desde)) >= 0; desde = fin + 1)
+                sumidero = desdeMapa(Json.parsear(t.substring(desde, fin)));
+        });
+    }
+
+    private static void medirCodec(String nombre, int n, IntSupplier codificar, Runnable decodificar) {
+        long mejorCod = Long.MAX_VALUE, mejorDec = Long.MAX_VALUE;
+        int bytes = 0;
+        for (int corrida = 0; corrida < 5; corrida++) {
+            long t0 = System.nanoTime();
+            bytes = codificar.getAsInt();
+            long t1 = System.nanoTime();
+            decodificar.run();
+            long t2 = System.nanoTime();
+            mejorCod = Math.min(mejorCod, t1 - t0);
+            mejorDec = Math.min(mejorDec, t2 - t1);
+        }
+        System.out.printf("%s\t%.1f\t%.0f\t%.0f%n", nombre, (double) bytes / n, (double) mejorCod / n, (double) mejorDec / n);
+    }
+
+    private static Map<String, Object> comoMapa(ExpedienteMedico e) {
+        Map<String, Object> m = ServidorHttpExpedientes.aMapa(0, e);
+        m.remove("id");
+        return m;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ExpedienteMedico desdeMapa(Object o) {
+        Map<String, Object> m = (Map<String, Object>) o;
+        ExpedienteMedico.Builder b = new ExpedienteMedico.Builder(new ExpedienteBase((String) m.get("tipoPaciente"),
+                (String) m.get("tipoAtencion"), (List<String>) m.get("examenes")))
+            .conEdad(((Number) m.get("edad")).intValue())
+            .conNombre((String) m.get("nombre"))
+            .conCedula((String) m.get("cedula"))
+            .conDiagnostico((String) m.get("diagnostico"))
+            .conMedico((String) m.get("medico"))
+            .conNotas((String) m.get("notas"));
+        for (Object v : (List<Object>) m.get("medicamentos")) b.agregarMedicamento((String) v);
+        for (Object v : (List<Object>) m.get("alergias"))     b.agregarAlergia((String) v);
+        return b.construir();
+    }
+
+    // ── Duplicados: costo por alta con bloques llenos, y cuántos errores de digitación detecta ──
+    // Consultas multicriterio sobre 1M expedientes: planificador contra un
+    // recorrido de todos los registros, y cuánto tarda la primera página.
+    static void benchConsulta() {
+        int n = 1_000_000;
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : registro.getClaves()) mezcla.put(c, 1);
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, 3);
+        ExpedienteMedico[] es = new ExpedienteMedico[n];
+        AlmacenColumnar col = new AlmacenColumnar();
+        for (int i = 0; i < n; i++) col.expedienteGuardado(i, es[i] = gen.generar(i));
+
+        Map<String, ConsultaExpedientes> consultas = new LinkedHashMap<>();
+        consultas.put("geriátrico+hosp.+penicilina+edad>75+médico", ConsultaExpedientes.nueva()
+            .tipoPaciente("Geriátrico").tipoAtencion("Hospitalización").conAlergia("penicilina")
+            .edadMayorQue(75).medico("Dr. Ramírez").construir());
+        consultas.put("edad 20–60 + losartán", ConsultaExpedientes.nueva()
+            .edadEntre(20, 60).conMedicamento("Losartán").construir());
+        consultas.put("adulto + edad<10", ConsultaExpedientes.nueva()
+            .tipoPaciente("adulto").edadMenorQue(10).construir());
+        consultas.put("metformina + omeprazol + TSH", ConsultaExpedientes.nueva()
+            .conMedicamento("Metformina").conMedicamento("Omeprazol").conExamen("TSH").construir());
+
+        System.out.println("consulta\tresultados\tplan+total(ms)\tprimeros 200(µs)\trecorrido(ms)");
+        for (Map.Entry<String, ConsultaExpedientes> e : consultas.entrySet()) {
+            ConsultaExpedientes q = e.getValue();
+            long total = 0, primeros = 0, recorrido = 0;
+            int cuenta = 0, esperado = 0;
+            for (int ronda = 0; ronda < 5; ronda++) {
+                long t0 = System.nanoTime();
+                cuenta = col.ejecutar(q, null).bitmap().cardinality();
+                long t1 = System.nanoTime();
+                sumidero = col.ejecutar(q, null).ids().limit(200).toArray();
+                long t2 = System.nanoTime();
+                esperado = 0;
+                for (ExpedienteMedico x : es) if (cumple(q, x)) esperado++;
+                long t3 = System.nanoTime();
+                if (ronda >= 2) { total += t1 - t0; primeros += t2 - t1; recorrido += t3 - t2; }
+            }
+            if (cuenta != esperado) throw new AssertionError(e.getKey() + ": " + cuenta + " != " + esperado);
+            System.out.printf("%s\t%,d\t%.2f\t%.0f\t%.1f%n", e.getKey(), cuenta,
+                total / 3e6, primeros / 3e3, recorrido / 3e6);
+        }
+        System.out.println();
+        System.out.println(col.ejecutar(consultas.values().iterator().next(), null).plan);
+    }
+
+    // La misma consulta evaluada campo por campo, como referencia
+    static boolean cumple(ConsultaExpedientes q, ExpedienteMedico e) {
+        for (Map.Entry<AlmacenColumnar.Columna, String> c : q.iguales.entrySet()) {
+            String v = c.getKey() == AlmacenColumnar.Columna.TIPO_PACIENTE ? e.tipoPaciente()
+                : c.getKey() == AlmacenColumnar.Columna.TIPO_ATENCION ? e.tipoAtencion() : e.medicoResponsable();
+            if (!AlmacenColumnar.normalizar(v).equals(AlmacenColumnar.normalizar(c.getValue()))) return false;
+        }
+        if (q.ningunaEdad) return false;
+        if (q.edadDesde >= 0 && e.edad < q.edadDesde) return false;
+        if (q.edadHasta >= 0 && e.edad > q.edadHasta) return false;
+        for (Map.Entry<AlmacenColumnar.Lista, List<String>> c : q.contiene.entrySet()) {
+            List<String> l = c.getKey() == AlmacenColumnar.Lista.ALERGIAS ? e.alergias
+                : c.getKey() == AlmacenColumnar.Lista.MEDICAMENTOS ? e.medicamentos : e.examenes;
+            for (String v : c.getValue())
+                if (l.stream().noneMatch(x -> AlmacenColumnar.normalizar(x).equals(AlmacenColumnar.normalizar(v)))) return false;
+        }
+        return true;
+    }
+
+    static void benchDuplicados() {
+        int n = 1_000_000, copias = 2000;
+        RegistroPrototipos registro = new RegistroPrototipos();
+        registro.registrarPredeterminadas();
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : registro.getClaves()) mezcla.put(c, 1);
+        GeneradorCarga gen = new GeneradorCarga(registro, mezcla, 1);
+        long antes = heapUsado();
+        DetectorDuplicados det = new DetectorDuplicados();
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n - 100_000; i++) det.expedienteGuardado(i, gen.generar(i));
+        System.out.printf("indexar %,d (carga inicial)\t%.0f ms%n", n - 100_000, (System.nanoTime() - t0) / 1e6);
+        System.out.printf("memoria del detector\t%.0f B/expediente%n", (double) (heapUsado() - antes) / (n - 100_000));
+
+        // Altas nuevas, cada una comparada con sus bloques: las sospechas aquí son falsos positivos
+        int falsos = 0;
+        t0 = System.nanoTime();
+        for (int i = n - 100_000; i < n; i++) falsos += det.revisar(i, DetectorDuplicados.huella(gen.generar(i))).isEmpty() ? 0 : 1;
+        double usAlta = (System.nanoTime() - t0) / 1e3 / 100_000;
+
+        // Reingresos del mismo paciente: una letra del nombre y un dígito de la cédula cambiados
+        SplittableRandom r = new SplittableRandom(7);
+        int detectados = 0;
+        for (int k = 0; k < copias; k++) {
+            int original = r.nextInt(n);
+            ExpedienteMedico e = gen.generar(original);
+            String nombre = r.nextBoolean() ? variante(e.nombrePaciente, r) : tecla(e.nombrePaciente, r);
+            char[] cedula = e.cedula.toCharArray();
+            int dig = 3 + r.nextInt(cedula.length - 3);
+            cedula[dig] = (char) ('0' + (cedula[dig] - '0' + 1 + r.nextInt(9)) % 10);
+            ExpedienteMedico copia = new ExpedienteMedico.Builder(plantilla()).conNombre(nombre)
+                .conCedula(new String(cedula)).conEdad(e.edad).conDiagnostico(e.diagnostico).construir();
+            for (DetectorDuplicados.Sospecha s : det.revisar(n + k, DetectorDuplicados.huella(copia)))
+                if (s.idParecido == original) { detectados++; break; }
+        }
+        System.out.printf("revisar alta\t%.1f µs%n", usAlta);
+        System.out.printf("falsos positivos\t%d de 100000%n", falsos);
+        System.out.printf("reingresos detectados\t%d de %d (%.1f%%)%n", detectados, copias, 100.0 * detectados / copias);
+        det.cerrar();
+    }
+
+    // Variante ortográfica típica de recepción: sin tildes, z/s, v/b, ll/y, h
+    private static String variante(String nombre, SplittableRandom r) {
+        String[][] cambios = {{"á", "a"}, {"é", "e"}, {"í", "i"}, {"ó", "o"}, {"ú", "u"}, {"z", "s"}, {"s", "z"},
+            {"v", "b"}, {"b", "v"}, {"ll", "y"}, {"y", "ll"}, {"h", ""}, {"ñ", "n"}, {"c", "s"}};
+        for (int intento = 0; intento < 20; intento++) {
+            String[] c = cambios[r.nextInt(cambios.length)];
+            int i = nombre.indexOf(c[0]);
+            if (i >= 0) return nombre.substring(0, i) + c[1] + nombre.substring(i + c[0].length());
+        }
+        return tecla(nombre, r);
+    }
+
+    // Error de tecleo: una letra cambiada por otra
+    private static String tecla(String nombre, SplittableRandom r) {
+        char[] cs = nombre.toCharArray();
+        int pos = 1 + r.nextInt(cs.length - 1);
+        if (cs[pos] != ' ') cs[pos] = "aeiosnrlt".charAt(r.nextInt(9));
+        return new String(cs);
+    }
+
+    private static double msUnaVez(Supplier<Object> tarea) {
+        long t0 = System.nanoTime();
+        sumidero = tarea.get();
+        return (System.nanoTime() - t0) / 1e6;
+    }
+}
+
+// ══════════════════════════════════════════════════════════════
+//  PRUEBAS  (java PruebasExpedientes [nombre …])
+//    Sin dependencias: cada prueba es un método que lanza AssertionError
+//    cuando algo no cuadra. Sin argumentos corre todas; el código de salida
+//    es 1 si alguna falla. Los datos van a directorios temporales que se
+//    borran al terminar cada prueba.
+// ══════════════════════════════════════════════════════════════
+class PruebasExpedientes {
+    interface Prueba { void correr() throws Exception; }
+
+    private static final Map<String, Prueba> PRUEBAS = new LinkedHashMap<>();
+    static {
+        PRUEBAS.put("log-frame-cortado", PruebasExpedientes::logDescartaFrameCortado);
+        PRUEBAS.put("log-crc",           PruebasExpedientes::logDescartaFrameConCrcInvalido);
+        PRUEBAS.put("log-corrupto",      PruebasExpedientes::logNoAbreConFrameDanado);
+        PRUEBAS.put("cedula-duplicada",   PruebasExpedientes::cedulaDuplicadaSinIdReservado);
+        PRUEBAS.put("texto-tokens",       PruebasExpedientes::textoPliegaTildesYMayusculas);
+        PRUEBAS.put("texto-busqueda",     PruebasExpedientes::textoPrefijosYRanking);
+        PRUEBAS.put("paginas-por-id",     PruebasExpedientes::paginasPorId);
+        PRUEBAS.put("paginas-por-cedula", PruebasExpedientes::paginasPorCedula);
+        PRUEBAS.put("tabla-error-carga",  PruebasExpedientes::tablaMuestraErrorDeCarga);
+        PRUEBAS.put("orden-ediciones",    PruebasExpedientes::ordenSigueLasEdiciones);
+        PRUEBAS.put("http-limites",       PruebasExpedientes::httpRechazaCuerposAbusivos);
+        PRUEBAS.put("codec-ida-y-vuelta", PruebasExpedientes::codecIdaYVuelta);
+        PRUEBAS.put("codec-evolucion",    PruebasExpedientes::codecToleraCamposNuevos);
+        PRUEBAS.put("codec-formato-1",    PruebasExpedientes::logLeeFormato1);
+        PRUEBAS.put("duplicados-fonetica", PruebasExpedientes::duplicadosClaveFonetica);
+        PRUEBAS.put("duplicados-bloques",  PruebasExpedientes::duplicadosPorBloques);
+        PRUEBAS.put("duplicados-damerau",  PruebasExpedientes::duplicadosCuentanTransposiciones);
+        PRUEBAS.put("duplicados-cierre",   PruebasExpedientes::duplicadosTrasCerrar);
+        PRUEBAS.put("consulta-planificada", PruebasExpedientes::consultaIgualAlRecorrido);
+        PRUEBAS.put("consulta-edad-cero",  PruebasExpedientes::consultaEdadMenorQueCero);
+        PRUEBAS.put("auditoria-cadena",   PruebasExpedientes::auditoriaDetectaAlteraciones);
+        PRUEBAS.put("auditoria-retomar",  PruebasExpedientes::auditoriaRetomaLaCadena);
+        PRUEBAS.put("particiones-ids",    PruebasExpedientes::particionesConservanIds);
+        PRUEBAS.put("particiones-lote-perdido", PruebasExpedientes::particionesDescartanLoteIncompleto);
+    }
+
+    private static final RegistroPrototipos REGISTRO = new RegistroPrototipos();
+    static { REGISTRO.registrarPredeterminadas(); }
+
+    public static void main(String[] args) {
+        Collection<String> nombres = args.length == 0 ? PRUEBAS.keySet() : Arrays.asList(args);
+        int fallidas = 0;
+        for (String nombre : nombres) {
+            Prueba p = PRUEBAS.get(nombre);
+            if (p == null) {
+                System.out.println("??    " + nombre + ": no existe");
+                fallidas++;
+                continue;
+            }
+            long t0 = System.nanoTime();
+            try {
+                p.correr();
+                System.out.printf("ok    %s (%d ms)%n", nombre, (System.nanoTime() - t0) / 1_000_000);
+            } catch (Throwable ex) {
+                fallidas++;
+                System.out.println("FALLA " + nombre + ": " + ex);
+                ex.printStackTrace(System.out);
+            }
+        }
+        System.out.println(fallidas == 0 ? nombres.size() + " pruebas, todas pasaron" : fallidas + " de " + nombres.size() + " fallaron");
+        if (fallidas > 0) System.exit(1);
+    }
+
+    // ── Log durable: frames cortados y CRC ──
+
+    // Un corte de luz a mitad del write deja el último frame incompleto:
+    // al abrir se descarta, se trunca, y el siguiente guardado reusa su id
+    static void logDescartaFrameCortado() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-log");
+        try {
+            List<ExpedienteMedico> guardados = poblarLog(dir, 20);
+            recortar(dir.resolve("expedientes.log"), 3);
+
+            RepositorioExpedientesLog repo = new RepositorioExpedientesLog(dir);
+            iguales(19, repo.tamanio(), "expedientes tras el corte");
+            for (int i = 0; i < 19; i++) mismoExpediente(guardados.get(i), repo.obtener(i), "expediente #" + i);
+            ExpedienteMedico nuevo = generador(2).generar(0);
+            iguales(19, repo.guardar(nuevo), "id del guardado siguiente");
+            repo.cerrar();
+
+            repo = new RepositorioExpedientesLog(dir);
+            iguales(20, repo.tamanio(), "expedientes al reabrir");
+            mismoExpediente(nuevo, repo.obtener(19), "expediente guardado tras el corte");
+            repo.cerrar();
+        } finally {
+            borrar(dir);
+        }
+    }
+
+    // Un bit cambiado en el último frame: el CRC no coincide y se descarta igual que uno cortado
+    static void logDescartaFrameConCrcInvalido() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-log");
+        try {
+            List<ExpedienteMedico> guardados = poblarLog(dir, 20);
+            try (FileChannel c = FileChannel.open(dir.resolve("expedientes.log"),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long pos = c.size() - 6;   // contenido del último frame, antes de su CRC
+                ByteBuffer b = ByteBuffer.allocate(1);
+                c.read(b, pos);
+                b.put(0, (byte) (b.get(0) ^ 0x20)).rewind();
+                c.write(b, pos);
+            }
+
+            RepositorioExpedientesLog repo = new RepositorioExpedientesLog(dir);
+            iguales(19, repo.tamanio(), "expedientes con el último frame alterado");
+            for (int i = 0; i < 19; i++) mismoExpediente(guardados.get(i), repo.obtener(i), "expediente #" + i);
+            iguales(19, repo.guardar(generador(2).generar(0)), "id del guardado siguiente");
+            repo.cerrar();
+
+            repo = new RepositorioExpedientesLog(dir);
+            iguales(20, repo.tamanio(), "expedientes al reabrir");
+            repo.cerrar();
+        } finally {
+            borrar(dir);
+        }
+    }
+
+    // El mismo bit en un frame del medio no es una escritura cortada: truncar ahí
+    // perdería los frames sanos que siguen, así que no abre y el log queda igual
+    static void logNoAbreConFrameDanado() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-log");
+        try {
+            poblarLog(dir, 20);
+            Path log = dir.resolve("expedientes.log");
+            try (FileChannel c = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(1);
+                c.read(b, 20);
+                b.put(0, (byte) (b.get(0) ^ 0x20)).rewind();
+                c.write(b, 20);
+            }
+            byte[] antes = Files.readAllBytes(log);
+
+            try {
+                new RepositorioExpedientesLog(dir).cerrar();
+                throw new AssertionError("abrió un log con un frame dañado en el medio");
+            } catch (IOException esperado) {
+                verificar(esperado.getMessage().contains("CRC"), "motivo: " + esperado.getMessage());
+            }
+            verificar(Arrays.equals(antes, Files.readAllBytes(log)), "el log cambió al intentar abrirlo");
+        } finally {
+            borrar(dir);
+        }
+    }
+
+    private static List<ExpedienteMedico> poblarLog(Path dir, int n) throws IOException {
+        GeneradorCarga gen = generador(1);
+        List<ExpedienteMedico> guardados = new ArrayList<>();
+        RepositorioExpedientesLog repo = new RepositorioExpedientesLog(dir);
+        for (int i = 0; i < n; i++) {
+            ExpedienteMedico e = gen.generar(i);
+            iguales(i, repo.guardar(e), "id asignado");
+            guardados.add(e);
+        }
+        repo.cerrar();
+        return guardados;
+    }
+
+    private static void recortar(Path archivo, int bytes) throws IOException {
+        try (FileChannel c = FileChannel.open(archivo, StandardOpenOption.WRITE)) {
+            c.truncate(c.size() - bytes);
+        }
+    }
+
+    // ── Cédulas duplicadas ──
+
+    // Una cédula repetida dentro del lote choca con una reserva, no con un id:
+    // la excepción no debe inventar uno, y el lote rechazado libera sus cédulas
+    static void cedulaDuplicadaSinIdReservado() {
+        RepositorioIndexado repo = new RepositorioIndexado(new RepositorioEnMemoria());
+        GeneradorCarga gen = generador(4);
+        ExpedienteMedico primero = gen.generar(0), repetido = gen.generar(1);
+        repo.guardar(primero);
+        try {
+            repo.guardarLote(Arrays.asList(repetido, gen.generar(2), repetido));
+            throw new AssertionError("aceptó un lote con la cédula repetida");
+        } catch (CedulaDuplicadaException ex) {
+            verificar(!ex.getIdExistente().isPresent(), "id existente " + ex.getIdExistente());
+        }
+        iguales(1, repo.tamanio(), "expedientes tras el lote rechazado");
+        iguales(1, repo.guardar(repetido), "id de la cédula liberada");
+        try {
+            repo.guardar(primero);
+            throw new AssertionError("aceptó una cédula ya guardada");
+        } catch (CedulaDuplicadaException ex) {
+            iguales(OptionalInt.of(0), ex.getIdExistente(), "id existente");
+        }
+    }
+
+    // ── Búsqueda de texto completo ──
+
+    static void textoPliegaTildesYMayusculas() {
+        iguales(Arrays.asList("neumonia", "atipica", "cefalea", "cronica", "2"),
+            IndiceTextoCompleto.tokenizar("Neumonía ATÍPICA, con Cefalea-crónica 2"), "tokens");
+        iguales(Collections.emptyList(), IndiceTextoCompleto.tokenizar(null), "tokens de null");
+        iguales(Collections.emptyList(), IndiceTextoCompleto.tokenizar("de la, y  el"), "solo palabras vacías");
+    }
+
+    // Diagnóstico pesa 3, medicamentos 2 y notas 1: con la misma rareza del
+    // término, gana el campo; a igual puntaje, el id menor
+    static void textoPrefijosYRanking() {
+        IndiceTextoCompleto indice = new IndiceTextoCompleto();
+        indice.expedienteGuardado(0, paraTexto(0, "Neumonía bacteriana", null));
+        indice.expedienteGuardado(1, paraTexto(1, "Control", "descartar NEUMONIA"));
+        indice.expedienteGuardado(2, paraTexto(2, "Bronquitis", null, "Neumovax"));
+        indice.expedienteGuardado(3, paraTexto(3, "Gastritis", null));
+
+        iguales("[0, 1]", Arrays.toString(indice.buscar("neumonia", 10)), "término exacto");
+        iguales("[1]", Arrays.toString(indice.buscar("Neumonía control", 10)), "todos los términos");
+        iguales("[0, 2, 1]", Arrays.toString(indice.buscar("neumo*", 10)), "prefijo");
+        iguales("[0, 2]", Arrays.toString(indice.buscar("neumo*", 2)), "prefijo con límite");
+        iguales("[]", Arrays.toString(indice.buscar("neumo* inexistente", 10)), "un término sin coincidencias");
+        iguales("{0, 1, 2}", indice.coincidencias("NEUMO*").toString(), "coincidencias del prefijo");
+
+        // Un cambio saca el término viejo del índice y agrega el nuevo
+        indice.expedienteModificado(0, paraTexto(0, "Neumonía bacteriana", null), paraTexto(0, "Gastritis", null));
+        iguales("[1]", Arrays.toString(indice.buscar("neumonia", 10)), "tras modificar");
+        iguales("[0, 3]", Arrays.toString(indice.buscar("gastritis", 10)), "empate de puntaje");
+    }
+
+    private static ExpedienteMedico paraTexto(int n, String diagnostico, String notas, String... medicamentos) {
+        return new ExpedienteMedico.Builder(REGISTRO.obtenerClon("adulto-urgencias"))
+            .conNombre("Paciente " + n).conCedula("V-" + n).conDiagnostico(diagnostico).conNotas(notas)
+            .conExamenes(Collections.emptyList()).conAlergias(Collections.emptyList())
+            .conMedicamentos(Arrays.asList(medicamentos)).construir();
+    }
+
+    // ── Paginación por clave ──
+
+    static void paginasPorId() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-paginas");
+        RepositorioExpedientesLog log = new RepositorioExpedientesLog(dir);
+        try {
+            GeneradorCarga gen = generador(3);
+            for (int i = 0; i < 500; i++) log.guardar(gen.generar(i));
+            for (int limite : new int[]{1, 37, 500, 1000}) {
+                List<Integer> vistos = new ArrayList<>();
+                PaginaExpedientes p = log.pagina(0, limite);
+                while (true) {
+                    verificar(p.ids.length <= limite, "página más larga que el límite " + limite);
+                    for (int k = 0; k < p.ids.length; k++) {
+                        vistos.add(p.ids[k]);
+                        mismoExpediente(gen.generar(p.ids[k]), p.expedientes.get(k), "expediente #" + p.ids[k]);
+                    }
+                    if (!p.hayMas) break;
+                    p = log.pagina(p.ultimoId() + 1, limite);
+                }
+                iguales(IntStream.range(0, 500).boxed().collect(Collectors.toList()), vistos, "ids con límite " + limite);
+            }
+        } finally {
+            log.cerrar();
+            borrar(dir);
+        }
+    }
+
+    // El índice ordenado debe dar las mismas páginas que la versión por defecto,
+    // que recorre y ordena todo; y con altas entre página y página, cada cédula
+    // sale una sola vez: las nuevas aparecen solo si van después del cursor
+    static void paginasPorCedula() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-paginas");
+        RepositorioIndexado indexado = new RepositorioIndexado(new RepositorioExpedientesLog(dir));
+        try {
+            GeneradorCarga gen = generador(3);
+            RepositorioEnMemoria referencia = new RepositorioEnMemoria();
+            for (int i = 0; i < 500; i++) {
+                ExpedienteMedico e = gen.generar(i);
+                indexado.guardar(e);
+                referencia.guardar(e);
+            }
+            for (int limite : new int[]{1, 37, 500}) {
+                String cursor = null;
+                while (true) {
+                    PaginaExpedientes a = indexado.paginaPorCedula(cursor, limite), b = referencia.paginaPorCedula(cursor, limite);
+                    iguales(Arrays.toString(b.ids), Arrays.toString(a.ids), "ids después de " + cursor);
+                    iguales(b.hayMas, a.hayMas, "hayMas después de " + cursor);
+                    if (!a.hayMas) break;
+                    cursor = a.ultimaCedula();
+                }
+            }
+
+            List<String> vistas = new ArrayList<>();
+            String cursor = null;
+            int altas = 0;
+            while (true) {
+                PaginaExpedientes p = indexado.paginaPorCedula(cursor, 25);
+                for (ExpedienteMedico e : p.expedientes) vistas.add(RepositorioExpedientes.normalizarCedula(e.cedula));
+                if (!p.hayMas) break;
+                cursor = p.ultimaCedula();
+                ExpedienteMedico base = gen.generar(altas);
+                indexado.guardar(new ExpedienteMedico.Builder(base).conCedula("A" + altas).construir());   // antes del cursor
+                indexado.guardar(new ExpedienteMedico.Builder(base).conCedula("Z" + altas).construir());   // después
+                altas++;
+            }
+            for (int i = 1; i < vistas.size(); i++)
+                verificar(vistas.get(i - 1).compareTo(vistas.get(i)) < 0, "orden o repetido en " + vistas.get(i));
+            for (int i = 0; i < 500; i++)
+                verificar(vistas.contains(RepositorioExpedientes.normalizarCedula(gen.generar(i).cedula)), "falta el expediente #" + i);
+            for (int k = 0; k < altas; k++) {
+                verificar(!vistas.contains("A" + k), "apareció A" + k + ", que entró antes del cursor");
+                verificar(vistas.contains("Z" + k), "falta Z" + k + ", que entró después del cursor");
+            }
+        } finally {
+            indexado.cerrar();
+            borrar(dir);
+        }
+    }
+
+    // Con ediciones entre vistas (y durante ellas) el orden sigue completo, sin repetidos y al día
+    static void ordenSigueLasEdiciones() throws Exception {
+        IndiceOrden orden = new IndiceOrden(new AlmacenColumnar());
+        GeneradorCarga gen = generador(5);
+        int total = 2000;
+        ExpedienteMedico[] actuales = new ExpedienteMedico[total];
+        for (int id = 0; id < total; id++) {
+            actuales[id] = gen.generar(id);
+            orden.expedienteGuardado(id, actuales[id]);
+        }
+        Random r = new Random(5);
+        for (int ronda = 0; ronda < 4; ronda++) {
+            orden.vista(IndiceOrden.Clave.NOMBRE, true, null, total);
+            orden.vista(IndiceOrden.Clave.CEDULA, true, null, total);
+            Thread editor = new Thread(() -> {
+                for (int k = 0; k < 300; k++) {
+                    int id = r.nextInt(total);
+                    ExpedienteMedico nueva = new ExpedienteMedico.Builder(actuales[id])
+                        .conNombre(gen.generar(total + r.nextInt(total)).nombrePaciente)
+                        .conCedula(r.nextBoolean() ? String.valueOf(r.nextInt(1_000_000)) : "X" + r.nextInt(1000))
+                        .construir();
+                    orden.expedienteModificado(id, actuales[id], nueva);
+                    actuales[id] = nueva;
+                }
+            });
+            editor.start();
+            while (editor.isAlive()) {
+                orden.vista(IndiceOrden.Clave.NOMBRE, true, null, total);
+                orden.vista(IndiceOrden.Clave.CEDULA, false, null, total);
+            }
+            editor.join();
+
+            Integer[] esperado = new Integer[total];
+            for (int id = 0; id < total; id++) esperado[id] = id;
+            Arrays.sort(esperado, Comparator.comparing((Integer id) -> IndiceOrden.claveNombre(actuales[id].nombrePaciente))
+                .thenComparing(id -> id));
+            iguales(Arrays.toString(esperado), Arrays.toString(orden.vista(IndiceOrden.Clave.NOMBRE, true, null, total)),
+                "orden por nombre en la ronda " + ronda);
+            int[] porCedula = orden.vista(IndiceOrden.Clave.CEDULA, true, null, total);
+            iguales(total, (int) Arrays.stream(porCedula).distinct().count(), "ids distintos por cédula");
+            for (int k = 1; k < total; k++) {
+                String x = RepositorioExpedientes.normalizarCedula(actuales[porCedula[k - 1]].cedula);
+                String y = RepositorioExpedientes.normalizarCedula(actuales[porCedula[k]].cedula);
+                boolean nx = x.chars().allMatch(Character::isDigit), ny = y.chars().allMatch(Character::isDigit);
+                int c = nx && ny ? Long.compare(Long.parseLong(x), Long.parseLong(y)) : nx != ny ? (nx ? -1 : 1) : x.compareTo(y);
+                verificar(c < 0 || c == 0 && porCedula[k - 1] < porCedula[k], "cédula " + y + " después de " + x);
+            }
+        }
+    }
+
+    // Anidamiento sin fin y cuerpos enormes se rechazan con 400 y 413, sin tumbar el hilo
+    static void httpRechazaCuerposAbusivos() throws Exception {
+        String hondo = "[".repeat(Json.PROFUNDIDAD_MAXIMA) + "]".repeat(Json.PROFUNDIDAD_MAXIMA);
+        iguales(1, ((List<?>) Json.parsear(hondo)).size(), "arreglos dentro del tope");
+        try {
+            Json.parsear("[" + hondo + "]");
+            verificar(false, "un nivel más que el tope debería rechazarse");
+        } catch (IllegalArgumentException esperado) {}
+
+        ServicioExpedientes servicio = ServicioExpedientes.enMemoria();
+        ServidorHttpExpedientes s = new ServidorHttpExpedientes(servicio, 0).iniciar();
+        try {
+            HttpClient cliente = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            URI uri = URI.create(s.url() + "/expedientes");
+            HttpResponse<String> r = cliente.send(HttpRequest.newBuilder(uri)
+                .POST(HttpRequest.BodyPublishers.ofString("[".repeat(200_000))).build(), HttpResponse.BodyHandlers.ofString());
+            iguales(400, r.statusCode(), "código con 200000 corchetes");
+            verificar(r.body().contains("anidamiento"), "mensaje: " + r.body());
+
+            // Sin Content-Length (chunked): el límite lo pone la lectura
+            byte[] relleno = new byte[(1 << 20) + 10];
+            Arrays.fill(relleno, (byte) ' ');
+            r = cliente.send(HttpRequest.newBuilder(uri)
+                .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(relleno))).build(),
+                HttpResponse.BodyHandlers.ofString());
+            iguales(413, r.statusCode(), "código con un cuerpo de más de 1 MB");
+
+            // Content-Length anunciado de más: 413 sin esperar el cuerpo
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), s.puerto())) {
+                socket.getOutputStream().write(("POST /expedientes HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Length: 1000000000\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                String estado = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+                iguales("HTTP/1.1 413 Request Entity Too Large", estado, "línea de estado con Content-Length de 1 GB");
+            }
+
+            r = cliente.send(HttpRequest.newBuilder(URI.create(s.url() + "/estadisticas")).build(), HttpResponse.BodyHandlers.ofString());
+            iguales(200, r.statusCode(), "el servidor sigue atendiendo");
+        } finally {
+            s.detener();
+            servicio.cerrar();
+        }
+    }
+
+    // Si leer la página falla, sus filas dicen por qué en lugar de "Cargando…"
+    static void tablaMuestraErrorDeCarga() throws Exception {
+        RepositorioEnMemoria datos = new RepositorioEnMemoria() {
+            @Override public PaginaExpedientes pagina(int desdeId, int limite) {
+                throw new UncheckedIOException(new IOException("disco desconectado"));
+            }
+        };
+        datos.guardar(generador(6).generar(0));
+        ExpedientesTableModel modelo = new ExpedientesTableModel(datos);
+        try {
+            Object[] celdas = new Object[2];
+            SwingUtilities.invokeAndWait(() -> celdas[0] = modelo.getValueAt(0, 1));
+            iguales(ExpedientesTableModel.CARGANDO, celdas[0], "antes de leer");
+            long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            do {
+                Thread.sleep(10);
+                SwingUtilities.invokeAndWait(() -> { celdas[0] = modelo.getValueAt(0, 1); celdas[1] = modelo.getValueAt(0, 2); });
+            } while (ExpedientesTableModel.CARGANDO.equals(celdas[0]) && System.nanoTime() < limite);
+            iguales("⚠️  No se pudo cargar", celdas[0], "fila tras el error");
+            iguales("disco desconectado", celdas[1], "motivo");
+        } finally {
+            modelo.cerrar();
+        }
+    }
+
+    // ── Codec: ida y vuelta y evolución del formato ──
+
+    static void codecIdaYVuelta() {
+        GeneradorCarga gen = generador(5);
+        DiccionarioCodec dic = new DiccionarioCodec();
+        ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+        List<ExpedienteMedico> casos = new ArrayList<>();
+        for (int i = 0; i < 200; i++) casos.add(gen.generar(i));
+        casos.add(new ExpedienteMedico.Builder(REGISTRO.obtenerClon("adulto-urgencias"))
+            .conNombre("Ñandú Ğüell 𝄞").conCedula("1.234.567-k").conDiagnostico("línea\ncon\ttabs").conEdad(0).construir());
+        for (ExpedienteMedico e : casos) {
+            for (DiccionarioCodec d : new DiccionarioCodec[]{dic, null}) {
+                b.clear();
+                CodecExpediente.escribir(b, e, d);
+                b.flip();
+                mismoExpediente(e, CodecExpediente.leer(b, d), "formato 2 " + (d == null ? "literal" : "con diccionario"));
+                iguales(0, b.remaining(), "bytes sin leer");
+            }
+            b.clear();
+            CodecExpediente.escribirFormato1(b, e);
+            b.flip();
+            mismoExpediente(e, CodecExpediente.leer(b, null), "formato 1");
+        }
+
+        // El diccionario viaja en sus propios registros: otro proceso lo reconstruye y lee lo mismo
+        b.clear();
+        CodecExpediente.escribir(b, casos.get(0), dic);
+        ByteBuffer expediente = ByteBuffer.wrap(Arrays.copyOf(b.array(), b.position()));
+        b.clear();
+        CodecExpediente.escribirDiccionario(b, dic, 0, dic.tamanio());
+        b.flip();
+        DiccionarioCodec otro = new DiccionarioCodec();
+        CodecExpediente.leerDiccionario(b, otro);
+        iguales(dic.tamanio(), otro.tamanio(), "entradas del diccionario");
+        mismoExpediente(casos.get(0), CodecExpediente.leer(expediente, otro), "con el diccionario reconstruido");
+
+        // Versión: solo lo que cambió, incluido un campo que se vacía
+        ExpedienteMedico anterior = casos.get(1);
+        ExpedienteMedico nueva = new ExpedienteMedico.Builder(anterior)
+            .conDiagnostico("Otro diagnóstico").conNotas(null).conEdad(anterior.edad + 1).construir();
+        b.clear();
+        CodecExpediente.escribirVersion(b, anterior, nueva, 1_700_000_000_000L, dic);
+        b.flip();
+        long[] fecha = new long[1];
+        mismoExpediente(nueva, CodecExpediente.leerVersion(b, anterior, dic, fecha), "versión aplicada");
+        iguales(1_700_000_000_000L, fecha[0], "fecha de la versión");
+    }
+
+    // Un escritor más nuevo (versión 3, campos que este no conoce) sigue siendo legible
+    static void codecToleraCamposNuevos() {
+        ExpedienteMedico e = generador(6).generar(7);
+        ByteBuffer b = ByteBuffer.allocate(4096);
+        CodecExpediente.escribir(b, e, null);
+        b.position(b.position() - 1);                      // sin el 0 final
+        CodecExpediente.putVarint(b, 20 << 3);             // varint desconocido
+        CodecExpediente.putVarint(b, 123_456);
+        CodecExpediente.putVarint(b, 21 << 3 | 1);         // texto desconocido
+        byte[] texto = "campo del futuro".getBytes(StandardCharsets.UTF_8);
+        CodecExpediente.putVarint(b, texto.length << 1);
+        b.put(texto);
+        CodecExpediente.putVarint(b, 22 << 3 | 2);         // lista desconocida
+        CodecExpediente.putVarint(b, 2);
+        for (String v : new String[]{"a", "bé"}) {
+            byte[] x = v.getBytes(StandardCharsets.UTF_8);
+            CodecExpediente.putVarint(b, x.length << 1);
+            b.put(x);
+        }
+        b.put((byte) 0);
+        b.put(2, (byte) 3);                                // versión del formato
+        b.flip();
+        mismoExpediente(e, CodecExpediente.leer(b, null), "registro con campos nuevos");
+        iguales(0, b.remaining(), "bytes sin leer");
+    }
+
+    // Un log escrito entero en formato 1 (versiones anteriores) abre, se lee y admite guardados nuevos
+    static void logLeeFormato1() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-formato1");
+        try {
+            GeneradorCarga gen = generador(7);
+            EscritorFrames escritor = new EscritorFrames();
+            try (FileChannel c = FileChannel.open(dir.resolve("expedientes.log"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < 30; i++) {
+                    ExpedienteMedico e = gen.generar(i);
+                    EscritorFrames.escribir(c, escritor.preparar(i, b -> CodecExpediente.escribirFormato1(b, e)));
+                }
+            }
+            RepositorioExpedientesLog repo = new RepositorioExpedientesLog(dir);
+            iguales(30, repo.tamanio(), "expedientes en formato 1");
+            for (int i = 0; i < 30; i++) mismoExpediente(gen.generar(i), repo.obtener(i), "expediente #" + i);
+            iguales(30, repo.guardar(gen.generar(30)), "id del primero en formato 2");
+            repo.cerrar();
+
+            repo = new RepositorioExpedientesLog(dir);
+            iguales(31, repo.tamanio(), "expedientes mezclando formatos");
+            for (int i = 0; i <= 30; i++) mismoExpediente(gen.generar(i), repo.obtener(i), "expediente #" + i);
+            repo.cerrar();
+        } finally {
+            borrar(dir);
+        }
+    }
+
+    // ── Duplicados: clave fonética, bloques y distancia de la cédula ──
+
+    private static ExpedienteMedico paciente(String nombre, String cedula, int edad) {
+        return new ExpedienteMedico.Builder(REGISTRO.obtenerClon("adulto-urgencias"))
+            .conNombre(nombre).conCedula(cedula).conEdad(edad).conDiagnostico("Control").construir();
+    }
+
+    // Detector con los expedientes ya indexados (sin vigilar: no compara al guardar)
+    private static DetectorDuplicados detectorCon(ExpedienteMedico... previos) {
+        DetectorDuplicados d = new DetectorDuplicados();
+        for (int id = 0; id < previos.length; id++) d.expedienteGuardado(id, previos[id]);
+        return d;
+    }
+
+    static void duplicadosClaveFonetica() {
+        String[][] pares = {
+            {"hernandez", "ernandes"}, {"vasquez", "basques"}, {"llanos", "yanos"},
+            {"gimenez", "jimenez"}, {"cecilia", "sesilia"}, {"quiroga", "kiroga"}, {"guerra", "guera"},
+        };
+        for (String[] par : pares)
+            iguales(DetectorDuplicados.fonetica(par[0]), DetectorDuplicados.fonetica(par[1]), par[0] + " / " + par[1]);
+        verificar(!DetectorDuplicados.fonetica("garcia").equals(DetectorDuplicados.fonetica("marcia")), "garcia / marcia");
+        verificar(!DetectorDuplicados.fonetica("gato").equals(DetectorDuplicados.fonetica("jato")), "g dura / j");
+        // La huella pliega tildes y mayúsculas antes de la clave fonética
+        verificar(Arrays.equals(DetectorDuplicados.huella(paciente("Hernández Vásquez", "17-1234-5678", 40)),
+                                DetectorDuplicados.huella(paciente("ERNANDEZ basquez", "1712345678", 40))), "huellas");
+    }
+
+    // La cédula se parte en tercios 1712 | 345 | 678: dos errores en tercios
+    // distintos no dejan ningún par intacto y el alta no llega a compararse
+    static void duplicadosPorBloques() {
+        DetectorDuplicados d = detectorCon(paciente("María López Andrade", "1712345678", 40));
+        List<DetectorDuplicados.Sospecha> s = d.revisar(1, DetectorDuplicados.huella(paciente("Maria Lopes Andrade", "1712345679", 40)));
+        iguales(1, s.size(), "sospechas con un dígito cambiado");
+        iguales(0, s.get(0).idParecido, "id parecido");
+        iguales(1, d.cantidadPendientes(), "pendientes de revisión");
+
+        verificar(!d.revisar(2, DetectorDuplicados.huella(paciente("María López Andrade", "1712345600", 40))).isEmpty(),
+            "dos cambios en el último tercio, mismo nombre");
+        iguales(0, d.revisar(3, DetectorDuplicados.huella(paciente("María López Andrade", "9712345670", 40))).size(),
+            "dos cambios en el primer y el último tercio");
+        iguales(0, d.revisar(4, DetectorDuplicados.huella(paciente("Pedro Andrade Salas", "1712345677", 40))).size(),
+            "otro nombre en el mismo bloque");
+        iguales(0, d.revisar(5, DetectorDuplicados.huella(paciente("María López Andrade", "1712345676", 70))).size(),
+            "edad muy distinta");
+    }
+
+    static void duplicadosCuentanTransposiciones() {
+        DetectorDuplicados d = detectorCon(paciente("Carlos Quiroga Vélez", "0923456781", 33));
+        List<DetectorDuplicados.Sospecha> s = d.revisar(1, DetectorDuplicados.huella(paciente("Carlos Kiroga Belez", "0923456718", 33)));
+        iguales(1, s.size(), "sospechas con dos dígitos transpuestos");
+        verificar(s.get(0).motivo.endsWith("cédula a 1 cambio"), "motivo: " + s.get(0).motivo);
+        // Dos sustituciones valen dos cambios: con el nombre solo parecido no alcanza
+        iguales(0, d.revisar(2, DetectorDuplicados.huella(paciente("Carlos Quiroga", "0923456700", 33))).size(),
+            "dos cambios con nombre parecido");
+        s = d.revisar(3, DetectorDuplicados.huella(paciente("Carlos Quiroga Vélez", "0923456700", 33)));
+        verificar(!s.isEmpty() && s.get(0).motivo.endsWith("cédula a 2 cambios"), "dos cambios con el mismo nombre: " + s);
+    }
+
+    // Cerrar el servicio no hace fallar a un guardado que avisa al detector después
+    static void duplicadosTrasCerrar() {
+        ServicioExpedientes servicio = ServicioExpedientes.enMemoria();
+        servicio.guardar(paciente("Ana Ruiz", "1100000001", 30));
+        servicio.cerrar();
+        servicio.duplicados.expedienteGuardado(1, paciente("Ana Ruiz", "1100000002", 30));
+        iguales(0, servicio.duplicados.cantidadPendientes(), "sospechas tras cerrar");
+    }
+
+    // ── Consultas: el planificador contra evaluar cada expediente ──
+
+    // Criterios tomados de expedientes reales (con otra grafía) para que haya
+    // resultados, mezclados con valores que no existen; parte de los datos se
+    // modifica después de indexar para ejercitar los bitmaps que se mueven.
+    static void consultaIgualAlRecorrido() {
+        GeneradorCarga gen = generador(8);
+        RepositorioIndexado repo = new RepositorioIndexado(new RepositorioEnMemoria());
+        AlmacenColumnar col = new AlmacenColumnar();
+        repo.agregarOyente(col);
+        int n = 10_000;
+        for (int i = 0; i < n; i++) repo.guardar(gen.generar(i));
+        SplittableRandom r = new SplittableRandom(8);
+        for (int k = 0; k < 1_000; k++) {
+            int id = r.nextInt(n);
+            ExpedienteMedico e = repo.obtener(id);
+            ExpedienteMedico.Builder b = new ExpedienteMedico.Builder(e).conEdad(r.nextInt(100));
+            if (r.nextBoolean()) b.conMedico(repo.obtener(r.nextInt(n)).medicoResponsable());
+            if (r.nextBoolean()) b.agregarAlergia(repo.obtener(r.nextInt(n)).alergias.isEmpty() ? "Látex" : "Ibuprofeno");
+            repo.modificar(id, repo.version(id), b.construir());
+        }
+        ExpedienteMedico[] vigentes = new ExpedienteMedico[n];
+        for (int i = 0; i < n; i++) vigentes[i] = repo.obtener(i);
+
+        BitSet pares = new BitSet(n);
+        for (int i = 0; i < n; i += 2) pares.set(i);
+        int conResultados = 0;
+        for (int k = 0; k < 300; k++) {
+            ExpedienteMedico modelo = vigentes[r.nextInt(n)];
+            ConsultaExpedientes.Builder q = ConsultaExpedientes.nueva();
+            if (r.nextInt(3) == 0) q.tipoPaciente(otraGrafia(modelo.tipoPaciente(), r));
+            if (r.nextInt(3) == 0) q.tipoAtencion(otraGrafia(modelo.tipoAtencion(), r));
+            if (r.nextInt(4) == 0) q.medico(r.nextInt(10) == 0 ? "Dr. Inexistente" : otraGrafia(modelo.medicoResponsable(), r));
+            if (r.nextInt(3) == 0 && !modelo.alergias.isEmpty())
+                q.conAlergia(otraGrafia(modelo.alergias.get(r.nextInt(modelo.alergias.size())), r));
+            if (r.nextInt(3) == 0 && !modelo.medicamentos.isEmpty())
+                q.conMedicamento(otraGrafia(modelo.medicamentos.get(r.nextInt(modelo.medicamentos.size())), r));
+            if (r.nextInt(4) == 0 && !modelo.examenes.isEmpty())
+                q.conExamen(otraGrafia(modelo.examenes.get(r.nextInt(modelo.examenes.size())), r));
+            if (r.nextInt(10) == 0) q.conAlergia("Kriptonita");
+            switch (r.nextInt(5)) {
+                case 0: q.edadEntre(r.nextInt(60), -1); break;
+                case 1: q.edadEntre(-1, r.nextInt(100)); break;
+                case 2: { int d = r.nextInt(90); q.edadEntre(d, d + r.nextInt(20)); break; }
+                case 3: q.edadMenorQue(r.nextInt(3)); break;
+                default: break;
+            }
+            ConsultaExpedientes consulta = q.construir();
+            boolean restringida = r.nextInt(5) == 0;
+
+            List<Integer> esperados = new ArrayList<>();
+            for (int id = 0; id < n; id++)
+                if ((!restringida || pares.get(id)) && BenchmarkExpedientes.cumple(consulta, vigentes[id])) esperados.add(id);
+            ResultadoConsulta res = col.ejecutar(consulta, restringida ? pares : null);
+            List<Integer> obtenidos = res.ids().boxed().collect(Collectors.toList());
+            if (!esperados.equals(obtenidos))
+                throw new AssertionError(consulta + (restringida ? " (solo pares)" : "") + ": se esperaban "
+                    + esperados.size() + " ids y llegaron " + obtenidos.size() + "\n" + res.plan);
+            if (!esperados.isEmpty()) conResultados++;
+        }
+        verificar(conResultados > 100, "muy pocas consultas con resultados: " + conResultados);
+    }
+
+    // "Menor que 0" no es "hasta 0": los recién nacidos no coinciden
+    static void consultaEdadMenorQueCero() {
+        AlmacenColumnar col = new AlmacenColumnar();
+        GeneradorCarga gen = generador(9);
+        for (int id = 0; id < 50; id++) col.expedienteGuardado(id, new ExpedienteMedico.Builder(gen.generar(id)).conEdad(id % 3).construir());
+        ConsultaExpedientes q = ConsultaExpedientes.nueva().edadMenorQue(0).construir();
+        verificar(!q.vacia(), "edadMenorQue(0) cuenta como criterio");
+        iguales("edad < 0", q.toString(), "descripción");
+        iguales(0, col.ejecutar(q, null).bitmap().cardinality(), "expedientes con edad < 0");
+        iguales(17, col.ejecutar(ConsultaExpedientes.nueva().edadMenorQue(1).construir(), null).bitmap().cardinality(),
+            "expedientes con edad < 1");
+        ConsultaExpedientes entre = ConsultaExpedientes.nueva().edadMenorQue(0).edadEntre(1, 2).construir();
+        iguales(33, col.ejecutar(entre, null).bitmap().cardinality(), "edadEntre reemplaza el límite anterior");
+    }
+
+    // Mayúsculas, espacios y, a veces, sin tildes: el almacén no distingue entre ellas
+    private static String otraGrafia(String v, SplittableRandom r) {
+        if (v == null) return null;
+        String w = r.nextBoolean() ? v.toUpperCase(Locale.ROOT) : v.toLowerCase(Locale.ROOT);
+        if (r.nextBoolean()) w = Normalizer.normalize(w, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        return "  " + w + " ";
+    }
+
+    // ── Auditoría: cadena de hashes ──
+
+    // Cambiar, borrar o reordenar una línea se señala en esa línea; rehacer su
+    // hash no alcanza, porque la siguiente se encadenó con el original
+    static void auditoriaDetectaAlteraciones() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-auditoria");
+        try {
+            Path archivo = dir.resolve("auditoria.log");
+            escribirAuditoria(archivo, 0, 50);
+            BitacoraAuditoria.Verificacion v = BitacoraAuditoria.verificar(archivo);
+            verificar(v.integra(), "cadena recién escrita: " + v.detalle);
+            iguales(50L, v.entradas, "entradas verificadas");
+            List<String> lineas = Files.readAllLines(archivo, StandardCharsets.UTF_8);
+
+            List<String> modificada = new ArrayList<>(lineas);
+            modificada.set(19, lineas.get(19).replace("\tprueba\t", "\tintruso\t"));
+            iguales(20L, alterada(archivo, modificada).primeraInvalida, "línea modificada");
+
+            List<String> borrada = new ArrayList<>(lineas);
+            borrada.remove(19);
+            iguales(20L, alterada(archivo, borrada).primeraInvalida, "línea borrada");
+
+            List<String> reordenada = new ArrayList<>(lineas);
+            Collections.swap(reordenada, 19, 20);
+            iguales(20L, alterada(archivo, reordenada).primeraInvalida, "líneas reordenadas");
+
+            String cuerpo = modificada.get(19).substring(0, modificada.get(19).lastIndexOf('\t'));
+            String anterior = lineas.get(18).substring(lineas.get(18).lastIndexOf('\t') + 1);
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(hexABytes(anterior));
+            StringBuilder hex = new StringBuilder(cuerpo).append('\t');
+            for (byte x : sha.digest(cuerpo.getBytes(StandardCharsets.UTF_8))) hex.append(String.format("%02x", x));
+            modificada.set(19, hex.toString());
+            iguales(21L, alterada(archivo, modificada).primeraInvalida, "línea modificada con su hash rehecho");
+        } finally {
+            borrar(dir);
+        }
+    }
+
+    // Reabrir sigue la cadena desde la última línea completa; una a medias se descarta
+    static void auditoriaRetomaLaCadena() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-auditoria");
+        try {
+            Path archivo = dir.resolve("auditoria.log");
+            escribirAuditoria(archivo, 0, 30);
+            Files.write(archivo, "31\t2026-".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            iguales(31L, BitacoraAuditoria.verificar(archivo).primeraInvalida, "línea incompleta al final");
+
+            escribirAuditoria(archivo, 30, 20);
+            BitacoraAuditoria.Verificacion v = BitacoraAuditoria.verificar(archivo);
+            verificar(v.integra(), "cadena tras reabrir: " + v.detalle);
+            iguales(50L, v.entradas, "entradas tras reabrir");
+        } finally {
+            borrar(dir);
+        }
+    }
+
+    private static void escribirAuditoria(Path archivo, int desde, int n) throws IOException {
+        GeneradorCarga gen = generador(9);
+        BitacoraAuditoria bitacora = new BitacoraAuditoria(archivo, aviso -> { throw new AssertionError(aviso); });
+        BitacoraAuditoria.comoUsuario("prueba", () -> {
+            for (int i = desde; i < desde + n; i++) bitacora.registrar(i % 3 == 0 ? "MODIFICAR" : "CREAR", i, gen.generar(i));
+            return null;
+        });
+        bitacora.cerrar();
+        iguales(0L, bitacora.perdidas(), "entradas perdidas");
+    }
+
+    private static BitacoraAuditoria.Verificacion alterada(Path archivo, List<String> lineas) throws IOException {
+        Path copia = archivo.resolveSibling("alterada.log");
+        Files.write(copia, (String.join("\n", lineas) + "\n").getBytes(StandardCharsets.UTF_8));   // \n también en Windows
+        return BitacoraAuditoria.verificar(copia);
+    }
+
+    private static byte[] hexABytes(String hex) {
+        byte[] b = new byte[hex.length() / 2];
+        for (int i = 0; i < b.length; i++) b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return b;
+    }
+
+    // ── Particiones: ids estables ──
+
+    // Altas sueltas y lotes desde varios hilos: cada id entregado sigue
+    // apuntando al mismo expediente al reabrir, y los nuevos continúan después
+    static void particionesConservanIds() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-particiones");
+        try {
+            GeneradorCarga gen = generador(10);
+            Map<Integer, String> entregados = new ConcurrentHashMap<>();
+            RepositorioParticionado escrito = new RepositorioParticionado(dir, 4);
+            Thread[] hilos = new Thread[4];
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            for (int h = 0; h < hilos.length; h++) {
+                int base = h * 10_000;
+                hilos[h] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            ExpedienteMedico e = gen.generar(base + i);
+                            entregados.put(escrito.guardar(e), e.cedula);
+                        }
+                        for (int l = 0; l < 5; l++) {
+                            List<ExpedienteMedico> lote = new ArrayList<>();
+                            for (int i = 0; i < 1 + l * 40; i++) lote.add(gen.generar(base + 1_000 + l * 1_000 + i));
+                            int ultimo = escrito.guardarLote(lote);
+                            for (int i = 0; i < lote.size(); i++) entregados.put(ultimo - lote.size() + 1 + i, lote.get(i).cedula);
+                        }
+                    } catch (Throwable ex) {
+                        error.compareAndSet(null, ex);
+                    }
+                });
+                hilos[h].start();
+            }
+            for (Thread t : hilos) t.join();
+            if (error.get() != null) throw new AssertionError("guardado concurrente", error.get());
+            int total = 4 * (50 + 1 + 41 + 81 + 121 + 161);
+            iguales(total, entregados.size(), "ids distintos entregados");
+            iguales(total, escrito.tamanio(), "tamaño");
+            comprobarIds(escrito, entregados, "antes de cerrar");
+            escrito.cerrar();
+
+            RepositorioParticionado repo = new RepositorioParticionado(dir, 9);   // el número de particiones queda el de la creación
+            iguales(4, repo.particiones(), "particiones al reabrir");
+            iguales(total, repo.tamanio(), "tamaño al reabrir");
+            comprobarIds(repo, entregados, "al reabrir");
+            ExpedienteMedico nuevo = gen.generar(99_999);
+            iguales(total, repo.guardar(nuevo), "id del primer guardado tras reabrir");
+            iguales(total, repo.buscarIdPorCedula(nuevo.cedula), "búsqueda del nuevo");
+            repo.cerrar();
+        } finally {
+            borrar(dir);
+        }
+    }
+
+    // Un lote al que le falta una anotación (caída entre escribir y anotar)
+    // se descarta entero: sus ids quedan como huecos y los demás no se mueven
+    static void particionesDescartanLoteIncompleto() throws Exception {
+        Path dir = Files.createTempDirectory("prueba-particiones");
+        try {
+            GeneradorCarga gen = generador(11);
+            Map<Integer, String> entregados = new HashMap<>();
+            List<ExpedienteMedico> perdido = new ArrayList<>();
+            RepositorioParticionado repo = new RepositorioParticionado(dir, 3);
+            List<ExpedienteMedico> primero = new ArrayList<>();
+            for (int i = 0; i < 300; i++) primero.add(gen.generar(i));
+            repo.guardarLote(primero);
+            for (int i = 0; i < 300; i++) entregados.put(i, primero.get(i).cedula);
+            for (int i = 300; i < 310; i++) entregados.put(repo.guardar(gen.generar(i)), gen.generar(i).cedula);
+            for (int i = 310; i < 410; i++) perdido.add(gen.generar(i));
+            iguales(409, repo.guardarLote(perdido), "último id del lote que se perderá");
+            for (int i = 410; i < 420; i++) entregados.put(repo.guardar(gen.generar(i)), gen.generar(i).cedula);
+            repo.cerrar();
+
+            borrarUnaAnotacion(dir, 310, 409);
+            repo = new RepositorioParticionado(dir, 3);
+            iguales(420, repo.tamanio(), "límite de ids con el lote perdido");
+            comprobarIds(repo, entregados, "con el lote perdido");
+            try {
+                repo.obtener(350);
+                throw new AssertionError("obtener un id del lote perdido debía fallar");
+            } catch (IndexOutOfBoundsException esperado) {
+                // el id quedó sin expediente
+            }
+            PaginaExpedientes p = repo.pagina(300, 120);
+            iguales(20, p.ids.length, "página que cruza el hueco");
+            iguales(309, p.ids[9], "último id antes del hueco");
+            iguales(410, p.ids[10], "primer id después del hueco");
+            iguales(-1, repo.buscarIdPorCedula(perdido.get(0).cedula), "búsqueda de un expediente perdido");
+            iguales(420, repo.guardar(perdido.get(0)), "el expediente perdido se vuelve a guardar con id nuevo");
+            entregados.put(420, perdido.get(0).cedula);
+            repo.cerrar();
+
+            repo = new RepositorioParticionado(dir, 3);
+            comprobarIds(repo, entregados, "al reabrir otra vez");
+            iguales(421, repo.tamanio(), "límite de ids al reabrir otra vez");
+            repo.cerrar();
+        } finally {
+            borrar(dir);
+        }
+    }
+
+    // Recorrido, página, búsqueda por cédula y obtener dicen lo mismo que se entregó
+    private static void comprobarIds(RepositorioParticionado repo, Map<Integer, String> entregados, String cuando) {
+        Map<Integer, String> recorridos = new HashMap<>();
+        repo.recorrerTodos((id, e) -> recorridos.put(id, e.cedula));
+        iguales(entregados, recorridos, "ids y cédulas " + cuando);
+        PaginaExpedientes p = repo.pagina(0, repo.tamanio());
+        iguales(entregados.size(), p.ids.length, "expedientes en una sola página " + cuando);
+        for (int i = 0; i < p.ids.length; i++) iguales(entregados.get(p.ids[i]), p.expedientes.get(i).cedula, "página, id " + p.ids[i]);
+        for (Map.Entry<Integer, String> e : entregados.entrySet()) {
+            iguales(e.getValue(), repo.obtener(e.getKey()).cedula, "obtener(" + e.getKey() + ") " + cuando);
+            iguales(e.getKey(), repo.buscarIdPorCedula(e.getValue()), "buscar " + e.getValue() + " " + cuando);
+        }
+    }
+
+    // Borra (pone en cero) la anotación de un expediente cuyo id global está en [desde, hasta]
+    private static void borrarUnaAnotacion(Path dir, int desde, int hasta) throws IOException {
+        for (int s = 0; Files.isDirectory(dir.resolve("particion-" + s)); s++) {
+            try (FileChannel c = FileChannel.open(dir.resolve("particion-" + s).resolve("globales.ids"),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate((int) c.size());
+                while (b.hasRemaining() && c.read(b, b.position()) >= 0) { }
+                for (int pos = 0; pos + 12 <= b.limit(); pos += 12) {
+                    int id = b.getInt(pos) - 1;
+                    if (id < desde || id > hasta) continue;
+                    c.write(ByteBuffer.allocate(12), pos);
+                    return;
+                }
+            }
+        }
+        throw new AssertionError("ninguna partición anotó ids entre " + desde + " y " + hasta);
+    }
+
+    // ── Utilidades ──
+
+    static GeneradorCarga generador(long semilla) {
+        Map<String, Integer> mezcla = new LinkedHashMap<>();
+        for (String c : REGISTRO.getClaves()) mezcla.put(c, 1);
+        return new GeneradorCarga(REGISTRO, mezcla, semilla);
+    }
+
+    static void verificar(boolean condicion, String mensaje) {
+        if (!condicion) throw new AssertionError(mensaje);
+    }
+
+    static void iguales(Object esperado, Object real, String que) {
+        if (!Objects.equals(esperado, real))
+            throw new AssertionError(que + ": se esperaba " + esperado + " y llegó " + real);
+    }
+
+    // Mismos campos; las listas compactas se comparan como List
+    static void mismoExpediente(ExpedienteMedico esperado, ExpedienteMedico real, String que) {
+        iguales(ServidorHttpExpedientes.aMapa(0, esperado), ServidorHttpExpedientes.aMapa(0, real), que);
+    }
+
+    static void borrar(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) Files.deleteIfExists(p);
+        }
+    }
 }
\ No newline at end of file
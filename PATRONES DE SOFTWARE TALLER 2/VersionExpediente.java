@@ -0,0 +1,12 @@
+/** Una versión de un expediente; la original tiene número 1 y fecha 0 (desconocida). */
+final class VersionExpediente {
+    final int numero;
+    final long fecha;              // epoch ms en que se guardó el cambio
+    final ExpedienteMedico expediente;
+
+    VersionExpediente(int numero, long fecha, ExpedienteMedico expediente) {
+        this.numero = numero;
+        this.fecha = fecha;
+        this.expediente = expediente;
+    }
+}
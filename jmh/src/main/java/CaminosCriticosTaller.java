@@ -0,0 +1,64 @@
+import expedientes.jmh.CaminosCriticos;
+import java.awt.image.BufferedImage;
+import javax.swing.JTable;
+
+/**
+ * Lado de {@link CaminosCriticos} en el paquete sin nombre, donde puede usar
+ * las clases de la aplicación. Arma las mismas operaciones que medía
+ * {@code BenchmarkExpedientes hotpaths}.
+ */
+public class CaminosCriticosTaller implements CaminosCriticos {
+    private final RegistroPrototipos registro = new RegistroPrototipos();
+    private final ExpedienteBase base;
+    private final ExpedienteMedico.Builder reutilizable = ExpedienteMedico.Builder.reutilizable();
+
+    private RepositorioExpedientes datos;
+    private ExpedientesTableModel modelo;
+    private JTable tabla;
+    private BufferedImage img;
+
+    public CaminosCriticosTaller() {
+        registro.registrar("adulto-urgencias", BenchmarkExpedientes.plantilla());
+        base = registro.obtenerClon("adulto-urgencias");
+    }
+
+    @Override public Object obtenerClon() { return registro.obtenerClon("adulto-urgencias"); }
+    @Override public Object clonar()      { return base.clonar(); }
+
+    @Override
+    public Object construir() {
+        return new ExpedienteMedico.Builder(base)
+            .conNombre("Paciente").conCedula("1234567").conEdad(40).conDiagnostico("Hipertensión arterial")
+            .conMedico("Dr. House").conNotas("Control en 3 meses")
+            .agregarMedicamento("Losartán").agregarMedicamento("Acetaminofén")
+            .agregarAlergia("Penicilina").agregarExamen("Perfil lipídico")
+            .construir();
+    }
+
+    @Override
+    public Object construirReutilizable() {
+        return reutilizable.reiniciar(base)
+            .conNombre("Paciente").conCedula("1234567").conEdad(40).conDiagnostico("Hipertensión arterial")
+            .conMedico("Dr. House").conNotas("Control en 3 meses")
+            .agregarMedicamento("Losartán").agregarMedicamento("Acetaminofén")
+            .agregarAlergia("Penicilina").agregarExamen("Perfil lipídico")
+            .construir();
+    }
+
+    @Override
+    public void prepararTabla(int n) {
+        datos = BenchmarkExpedientes.poblar(n);
+        modelo = new ExpedientesTableModel(datos);
+        tabla = new JTable(modelo);
+        tabla.setRowHeight(30);
+        img = new BufferedImage(1100, 600, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Override
+    public Object actualizarTabla() {
+        datos.guardar(BenchmarkExpedientes.sintetico(base, datos.tamanio()));
+        modelo.sincronizar();
+        BenchmarkExpedientes.pintarUltimasFilas(tabla, img);
+        return img;
+    }
+}
@@ -0,0 +1,30 @@
+package expedientes.jmh;
+
+/**
+ * Operaciones que mide {@link CaminosCriticosBench}. Las clases de la
+ * aplicación están en el paquete sin nombre y JMH exige que los benchmarks
+ * tengan paquete; la implementación, {@code CaminosCriticosTaller}, vive en
+ * el paquete sin nombre y se carga por nombre una sola vez en el setup. Cada
+ * benchmark hace una llamada de interfaz monomórfica, que el JIT resuelve en
+ * línea.
+ */
+public interface CaminosCriticos {
+    Object obtenerClon();
+    Object clonar();
+    Object construir();
+    Object construirReutilizable();
+
+    /** Repositorio en memoria con {@code n} expedientes, su modelo y una tabla lista para pintar. */
+    void prepararTabla(int n);
+
+    /** Guarda un expediente, sincroniza el modelo y pinta las últimas filas. */
+    Object actualizarTabla();
+
+    static CaminosCriticos cargar() {
+        try {
+            return (CaminosCriticos) Class.forName("CaminosCriticosTaller").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("No se encontró CaminosCriticosTaller en el classpath", ex);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package expedientes.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Suite de referencia de los caminos críticos: la que antes corría
+ * {@code BenchmarkExpedientes hotpaths}, ahora con forks, Blackhole y el error
+ * de JMH (intervalo de confianza del 99.9 %). Los bytes por operación salen de
+ * {@code -prof gc} (gc.alloc.rate.norm):
+ *
+ *   mvn -B package -DskipTests
+ *   java -jar jmh/target/benchmarks.jar -prof gc
+ *
+ * La línea base está en PATRONES DE SOFTWARE TALLER 2/bench-baseline.txt.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = {"-Xmx3g", "-Djava.awt.headless=true"})
+public class CaminosCriticosBench {
+
+    @State(Scope.Thread)
+    public static class Prototipos {
+        CaminosCriticos caminos;
+
+        @Setup
+        public void preparar() { caminos = CaminosCriticos.cargar(); }
+    }
+
+    /**
+     * La tabla crece con cada operación, como en la aplicación: el tamaño es
+     * el de partida. Headless, sin EDT: solo el hilo del benchmark toca los
+     * componentes.
+     */
+    @State(Scope.Thread)
+    public static class Tabla {
+        @Param({"10000", "100000", "1000000"})
+        int n;
+        CaminosCriticos caminos;
+
+        @Setup
+        public void preparar() {
+            caminos = CaminosCriticos.cargar();
+            caminos.prepararTabla(n);
+        }
+    }
+
+    @Benchmark public Object obtenerClon(Prototipos p)           { return p.caminos.obtenerClon(); }
+    @Benchmark public Object clonar(Prototipos p)                { return p.caminos.clonar(); }
+    @Benchmark public Object builderConstruir(Prototipos p)      { return p.caminos.construir(); }
+    @Benchmark public Object builderReutilizable(Prototipos p)   { return p.caminos.construirReutilizable(); }
+    @Benchmark public Object actualizarTabla(Tabla t)            { return t.caminos.actualizarTabla(); }
+}